@@ -0,0 +1,131 @@
+package neo4j.dq.bench;
+
+import neo4j.dq.DQ;
+import org.neo4j.configuration.GraphDatabaseSettings;
+import org.neo4j.dbms.api.DatabaseManagementService;
+import org.neo4j.exceptions.KernelException;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Result;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.api.procedure.GlobalProcedures;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.test.TestDatabaseManagementServiceBuilder;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.util.Collections.singletonList;
+
+/**
+ * An impermanent database seeded with a synthetic DQ graph : <code>flags</code> data nodes, each flagged once,
+ * spread evenly over <code>classes</code> classes.
+ * The hierarchy is either "flat" (all classes directly under the root class) or "deep" (each class under the previous one).
+ */
+@State(Scope.Benchmark)
+public class DQGraph {
+
+    private static final int SEED_CHUNK = 100_000;
+
+    @Param({"10000", "100000", "1000000"})
+    public int flags;
+
+    @Param({"flat", "deep"})
+    public String hierarchy;
+
+    @Param({"32"})
+    public int classes;
+
+    DatabaseManagementService dbms;
+    GraphDatabaseService db;
+    String[] classNames;
+    long[] sampleFlagIds;
+    long[] sampleNodeIds;
+
+    @Setup(Level.Trial)
+    public void seed() {
+        dbms = new TestDatabaseManagementServiceBuilder().impermanent()
+                .setConfig(GraphDatabaseSettings.procedure_unrestricted, singletonList("neo4j.dq.*"))
+                .build();
+        db = dbms.database(GraphDatabaseSettings.DEFAULT_DATABASE_NAME);
+        registerProcedures(db);
+
+        classNames = new String[classes];
+        for (int c = 0; c < classes; c++) {
+            classNames[c] = "Class" + c;
+            String parent = c == 0 || "flat".equals(hierarchy) ? "all" : classNames[c - 1];
+            db.executeTransactionally("CALL neo4j.dq.createClass($class, $parent)", Map.of("class", classNames[c], "parent", parent));
+        }
+        int perClass = Math.max(1, flags / classes);
+        for (String dqClass : classNames) {
+            for (int from = 0; from < perClass; from += SEED_CHUNK) {
+                flagNewNodes(dqClass, Math.min(SEED_CHUNK, perClass - from), "seed");
+            }
+        }
+        sampleFlagIds = ids("MATCH (f:DQ_Flag) RETURN id(f) AS id LIMIT 10000");
+        sampleNodeIds = ids("MATCH (n:Data) RETURN id(n) AS id LIMIT 10000");
+    }
+
+    /**
+     * Creates <code>size</code> data nodes, and flags them with createFlags once committed.
+     */
+    void flagNewNodes(String dqClass, int size, String description) {
+        long[] ids = ids("UNWIND range(1, $size) AS i CREATE (n:Data) RETURN id(n) AS id", Map.of("size", size));
+        db.executeTransactionally("CALL neo4j.dq.createFlags($ids, $class, $description, 10000)",
+                Map.of("ids", ids, "class", dqClass, "description", description));
+    }
+
+    private long[] ids(String query) {
+        return ids(query, Map.of());
+    }
+
+    private long[] ids(String query, Map<String, Object> params) {
+        return db.executeTransactionally(query, params, r -> r.<Long>columnAs("id").stream().mapToLong(Long::longValue).toArray());
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdown() {
+        dbms.shutdown();
+    }
+
+    /**
+     * @return the deepest class, holding its share of the flags.
+     */
+    String leafClass() {
+        return classNames[classNames.length - 1];
+    }
+
+    long randomFlagId() {
+        return sampleFlagIds[ThreadLocalRandom.current().nextInt(sampleFlagIds.length)];
+    }
+
+    long randomDataNodeId() {
+        return sampleNodeIds[ThreadLocalRandom.current().nextInt(sampleNodeIds.length)];
+    }
+
+    /**
+     * Runs the query in its own transaction, and consumes all its rows.
+     * @return the number of rows.
+     */
+    long run(String query, Map<String, Object> params) {
+        try (Transaction tx = db.beginTx()) {
+            Result result = tx.execute(query, params);
+            long rows = 0;
+            while (result.hasNext()) {
+                result.next();
+                rows++;
+            }
+            tx.commit();
+            return rows;
+        }
+    }
+
+    static void registerProcedures(GraphDatabaseService db) {
+        GlobalProcedures globalProcedures = ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(GlobalProcedures.class);
+        try {
+            globalProcedures.registerProcedure(DQ.class, true);
+        } catch (KernelException e) {
+            throw new RuntimeException("while registering DQ procedures", e);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package neo4j.dq.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flag deletion, on the seeded graph. The flag deleted by each invocation is created beforehand, outside of the measurement.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class DeleteBenchmarks {
+
+    @State(Scope.Thread)
+    public static class Victim {
+        long nodeId;
+        long flagId;
+
+        @Setup(Level.Invocation)
+        public void flag(DQGraph graph) {
+            Map<String, Object> row = graph.db.executeTransactionally(
+                    "CREATE (n:Data) WITH n CALL neo4j.dq.createFlag(n, $class, 'victim') yield flag RETURN id(n) AS node, id(flag) AS flag",
+                    Map.of("class", graph.leafClass()), r -> r.next());
+            nodeId = (Long) row.get("node");
+            flagId = (Long) row.get("flag");
+        }
+    }
+
+    @Benchmark
+    public long deleteFlags(DQGraph graph, Victim victim) {
+        return graph.run("CALL neo4j.dq.deleteFlags($flag)", Map.of("flag", victim.flagId));
+    }
+
+    @Benchmark
+    public long deleteNodeFlags(DQGraph graph, Victim victim) {
+        return graph.run("CALL neo4j.dq.deleteNodeFlags($node)", Map.of("node", victim.nodeId));
+    }
+}
@@ -0,0 +1,40 @@
+package neo4j.dq.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletion of a class holding <code>classFlags</code> flags, in a single transaction (<code>batchSize</code> 0) or in batches.
+ * The class is recreated before each iteration, so each measurement is a single deletion.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class DeleteClassBenchmark {
+
+    private static final String CLASS = "Doomed";
+
+    @State(Scope.Benchmark)
+    public static class DoomedClass {
+        @Param({"10000", "100000"})
+        public int classFlags;
+
+        @Param({"0", "10000"})
+        public int batchSize;
+
+        @Setup(Level.Iteration)
+        public void create(DQGraph graph) {
+            graph.db.executeTransactionally("CALL neo4j.dq.createClass($class, $parent)", Map.of("class", CLASS, "parent", graph.leafClass()));
+            graph.flagNewNodes(CLASS, classFlags, "doomed");
+        }
+    }
+
+    @Benchmark
+    public long deleteClass(DQGraph graph, DoomedClass doomed) {
+        return graph.run("CALL neo4j.dq.deleteClass($class, $batchSize)", Map.of("class", CLASS, "batchSize", doomed.batchSize));
+    }
+}
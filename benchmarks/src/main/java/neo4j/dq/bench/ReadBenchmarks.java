@@ -0,0 +1,42 @@
+package neo4j.dq.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-only procedures, on the seeded graph.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class ReadBenchmarks {
+
+    @Benchmark
+    public long listFlags(DQGraph graph) {
+        return graph.run("CALL neo4j.dq.listFlags($class)", Map.of("class", graph.leafClass()));
+    }
+
+    @Benchmark
+    public long listFlags_includeSubclasses(DQGraph graph) {
+        return graph.run("CALL neo4j.dq.listFlags($class, true)", Map.of("class", graph.classNames[graph.classNames.length / 2]));
+    }
+
+    @Benchmark
+    public long listClasses(DQGraph graph) {
+        return graph.run("CALL neo4j.dq.listClasses()", Map.of());
+    }
+
+    @Benchmark
+    public long statistics(DQGraph graph) {
+        return graph.run("CALL neo4j.dq.statistics()", Map.of());
+    }
+
+    @Benchmark
+    public long statistics_scan(DQGraph graph) {
+        return graph.run("CALL neo4j.dq.statistics('all', 'scan')", Map.of());
+    }
+}
@@ -0,0 +1,38 @@
+package neo4j.dq.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Concurrent createFlag on a single class, plain (<code>shards</code> 0) or sharded.
+ * Run it on a small seeded graph, e.g. <code>-p flags=10000 -p hierarchy=flat</code>.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@Threads(4)
+public class ShardedClassBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class HotClass {
+        @Param({"0", "16"})
+        public int shards;
+
+        String name;
+
+        @Setup(Level.Trial)
+        public void create(DQGraph graph) {
+            name = "Hot" + shards;
+            graph.db.executeTransactionally("CALL neo4j.dq.createClass($class, 'all', -1, '', $shards)", Map.of("class", name, "shards", shards));
+        }
+    }
+
+    @Benchmark
+    public long createFlag(DQGraph graph, HotClass hot) {
+        return graph.run("CREATE (n:Data) WITH n CALL neo4j.dq.createFlag(n, $class) yield flag RETURN flag", Map.of("class", hot.name));
+    }
+}
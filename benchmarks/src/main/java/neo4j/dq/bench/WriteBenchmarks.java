@@ -0,0 +1,36 @@
+package neo4j.dq.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flag creation and attachment, on the seeded graph. Each invocation commits its own transaction,
+ * and the graph grows as the benchmark runs.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class WriteBenchmarks {
+
+    @Benchmark
+    public long createFlag(DQGraph graph) {
+        return graph.run("CALL neo4j.dq.createFlag($node, $class, 'bench') yield flag RETURN flag",
+                Map.of("node", graph.randomDataNodeId(), "class", graph.leafClass()));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long createFlag_concurrent(DQGraph graph) {
+        return createFlag(graph);
+    }
+
+    @Benchmark
+    public long attachToFlag(DQGraph graph) {
+        return graph.run("CALL neo4j.dq.attachToFlag($flag, $node, 'bench') yield attachment RETURN attachment",
+                Map.of("flag", graph.randomFlagId(), "node", graph.randomDataNodeId()));
+    }
+}
@@ -0,0 +1,79 @@
+package neo4j.dq;
+
+import java.time.ZonedDateTime;
+
+/**
+ * A class crossing its <code>alertTriggerLimit</code>, up or down.
+ */
+public class Alert {
+
+    public enum Event {
+        /** the total flag count of the class went above its limit */
+        RAISED,
+        /** the total flag count of the class went back to its limit or below */
+        CLEARED
+    }
+
+    private final String database;
+    private final long classId;
+    private final String dqClass;
+    private final Event event;
+    private final long flagCount;
+    private final long limit;
+    private final ZonedDateTime created;
+    private volatile long alertId = -1;
+
+    public Alert(String database, long classId, String dqClass, Event event, long flagCount, long limit, ZonedDateTime created) {
+        this.database = database;
+        this.classId = classId;
+        this.dqClass = dqClass;
+        this.event = event;
+        this.flagCount = flagCount;
+        this.limit = limit;
+        this.created = created;
+    }
+
+    public String getDatabase() {
+        return database;
+    }
+
+    public long getClassId() {
+        return classId;
+    }
+
+    public String getDqClass() {
+        return dqClass;
+    }
+
+    public Event getEvent() {
+        return event;
+    }
+
+    public long getFlagCount() {
+        return flagCount;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public ZonedDateTime getCreated() {
+        return created;
+    }
+
+    /**
+     * @return the id of the DQ_Alert node recording this alert, or -1 if it isn't recorded yet.
+     */
+    public long getAlertId() {
+        return alertId;
+    }
+
+    void setAlertId(long alertId) {
+        this.alertId = alertId;
+    }
+
+    @Override
+    public String toString() {
+        return "DQ alert "+event+" on class '"+dqClass+"' ("+database+") : "+flagCount+" flags, limit "+limit;
+    }
+}
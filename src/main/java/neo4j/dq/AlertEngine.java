@@ -0,0 +1,189 @@
+package neo4j.dq;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.logging.Log;
+
+import java.time.ZonedDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import static neo4j.dq.DQ.*;
+
+/**
+ * Raises and clears alerts as the total flag count of classes crosses their <code>alertTriggerLimit</code>.
+ * Only the classes whose counts changed in a committed transaction (and their ancestors) are checked.
+ * Alerts are recorded as DQ_Alert nodes by an asynchronous write after commits, then passed to the {@link AlertSink}s.
+ */
+public class AlertEngine {
+
+    public static final Label DQ_ALERT = Label.label("DQ_Alert");
+
+    public static final String eventProperty = "event";
+    public static final String flagCountProperty = "flagCount";
+    public static final String limitProperty = "limit";
+    public static final String acknowledgedProperty = "acknowledged";
+    public static final String acknowledgedAtProperty = "acknowledgedAt";
+
+    private final GraphDatabaseService db;
+    private final String databaseName;
+    private final ClassCache classCache;
+    private final FlagCounters flagCounters;
+    private final Supplier<Executor> executor;
+    private final List<AlertSink> sinks;
+    private final boolean enabled;
+    private final Log log;
+
+    // whether each class (by id) is currently alerting
+    private final Map<Long, Boolean> raised = new ConcurrentHashMap<>();
+    private final Queue<Alert> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    // commits are only checked once the state is restored, which checks all classes
+    private volatile boolean loaded;
+
+    public AlertEngine(GraphDatabaseService db, String databaseName, ClassCache classCache, FlagCounters flagCounters,
+                       Supplier<Executor> executor, List<AlertSink> sinks, boolean enabled, Log log) {
+        this.db = db;
+        this.databaseName = databaseName;
+        this.classCache = classCache;
+        this.flagCounters = flagCounters;
+        this.executor = executor;
+        this.sinks = sinks;
+        this.enabled = enabled;
+        this.log = log;
+    }
+
+    /**
+     * Restores the state of each class from its last recorded alert, then records the crossings that happened while stopped.
+     */
+    public void load() {
+        if (!enabled) return;
+        Map<String, Node> lastAlerts = new HashMap<>();
+        try (Transaction tx = db.beginTx()) {
+            try (ResourceIterator<Node> alerts = tx.findNodes(DQ_ALERT)) {
+                while (alerts.hasNext()) {
+                    Node alert = alerts.next();
+                    Object dqClass = alert.getProperty(classProperty, null);
+                    if (dqClass == null) continue;
+                    lastAlerts.merge(dqClass.toString(), alert, (a, b) -> a.getId() > b.getId() ? a : b);
+                }
+            }
+            ClassTree tree = classCache.tree();
+            lastAlerts.forEach((dqClass, alert) -> {
+                ClassTree.Entry entry = tree.get(dqClass);
+                if (entry != null) raised.put(entry.getId(), Alert.Event.RAISED.name().equals(alert.getProperty(eventProperty, null)));
+            });
+            tx.commit();
+        }
+        loaded = true;
+        checkAll();
+    }
+
+    /**
+     * Checks the classes affected by the flag count deltas (by class node id) of a committed transaction.
+     */
+    public void check(Map<Long, Long> deltas, boolean hierarchyChanged) {
+        if (!enabled || !loaded) return;
+        if (hierarchyChanged) {
+            checkAll();
+            return;
+        }
+        if (deltas.isEmpty()) return;
+        ClassTree tree = classCache.tree();
+        Set<Long> checked = new HashSet<>();
+        deltas.keySet().forEach(classId -> {
+            ClassTree.Entry entry = tree.get(classId);
+            if (entry == null) return;
+            if (checked.add(classId)) check(entry);
+            for (long ancestor : entry.getAncestors()) {
+                if (checked.add(ancestor)) check(tree.get(ancestor));
+            }
+        });
+        scheduleWrite();
+    }
+
+    private void checkAll() {
+        ClassTree tree = classCache.tree();
+        Set<Long> ids = new HashSet<>();
+        for (ClassTree.Entry entry : tree.entries()) {
+            ids.add(entry.getId());
+            check(entry);
+        }
+        raised.keySet().retainAll(ids);
+        scheduleWrite();
+    }
+
+    private void check(ClassTree.Entry entry) {
+        if (entry == null) return;
+        long limit = entry.getAlertTriggerLimit();
+        // the total is read under the lock of the class entry : a check reading an older total can't overwrite a later one
+        raised.compute(entry.getId(), (classId, was) -> {
+            long total = flagCounters.getTotal(classId);
+            boolean above = limit > 0 && total > limit;
+            boolean wasAbove = was != null && was;
+            if (above != wasAbove) {
+                pending.add(new Alert(databaseName, classId, entry.getName(), above ? Alert.Event.RAISED : Alert.Event.CLEARED,
+                        total, limit, ZonedDateTime.now()));
+            }
+            return above;
+        });
+    }
+
+    private void scheduleWrite() {
+        if (pending.isEmpty() || !writeScheduled.compareAndSet(false, true)) return;
+        try {
+            executor.get().execute(() -> {
+                writeScheduled.set(false);
+                flush();
+            });
+        } catch (Exception e) {
+            // left pending, for the next commit to write
+            writeScheduled.set(false);
+            log.debug("Could not schedule DQ alerts write : "+e.getMessage());
+        }
+    }
+
+    /**
+     * Records the pending alerts, and notifies the sinks.
+     */
+    public synchronized void flush() {
+        List<Alert> alerts = new ArrayList<>();
+        for (Alert alert = pending.poll(); alert != null; alert = pending.poll()) {
+            alerts.add(alert);
+        }
+        if (alerts.isEmpty()) return;
+        try (Transaction tx = db.beginTx()) {
+            for (Alert alert : alerts) {
+                Node node = tx.createNode(DQ_ALERT);
+                node.setProperty(classProperty, alert.getDqClass());
+                node.setProperty(eventProperty, alert.getEvent().name());
+                node.setProperty(flagCountProperty, alert.getFlagCount());
+                node.setProperty(limitProperty, alert.getLimit());
+                node.setProperty(createdProperty, alert.getCreated());
+                node.setProperty(acknowledgedProperty, false);
+                alert.setAlertId(node.getId());
+            }
+            tx.commit();
+        } catch (Exception e) {
+            pending.addAll(alerts);
+            log.warn("Could not record DQ alerts : "+e.getMessage());
+            return;
+        }
+        for (Alert alert : alerts) {
+            for (AlertSink sink : sinks) {
+                try {
+                    sink.notify(alert);
+                } catch (Exception e) {
+                    log.warn("DQ alert sink "+sink.getClass().getName()+" failed : "+e.getMessage());
+                }
+            }
+        }
+    }
+
+    public boolean isRaised(long classId) {
+        return raised.getOrDefault(classId, false);
+    }
+}
@@ -0,0 +1,15 @@
+package neo4j.dq;
+
+import org.neo4j.annotations.service.Service;
+
+/**
+ * Gets notified of alerts once they're recorded.
+ * Plugins can provide their own sinks by annotating implementations (with a public no-arg constructor) with
+ * <code>@ServiceProvider</code>, or listing them in <code>META-INF/services/neo4j.dq.AlertSink</code>.
+ * Sinks are called from a pool thread, one alert at a time, and should not block for long.
+ */
+@Service
+public interface AlertSink {
+
+    void notify(Alert alert);
+}
@@ -0,0 +1,218 @@
+package neo4j.dq;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.TransientFailureException;
+import org.neo4j.kernel.api.exceptions.Status;
+import org.neo4j.logging.Log;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Commits batches in separate transactions on the {@link ThreadPool} executor,
+ * keeping at most <code>maxInFlight</code> batches submitted at any time.
+ * Each batch function returns the number of items it successfully processed ;
+ * the rest of the batch is counted as failed.
+ * Batches failing with a transient error (e.g. a deadlock) are retried with an exponential backoff.
+ * The batch size can adapt to the observed commit latency, see {@link #withAdaptiveBatchSize(long)}.
+ * Runners created by a DQ job report their progress to it, and stop submitting batches once the job is cancelled.
+ */
+public class BatchRunner {
+
+    public static final int MAX_BATCH_SIZE = 100_000;
+    private static final long BACKOFF_MILLIS = 10;
+
+    private final GraphDatabaseService db;
+    private final ThreadPool threadPool;
+    private final Log log;
+    private final int maxInFlight;
+    private final Deque<Batch> inFlight = new ArrayDeque<>();
+    private final long start = System.nanoTime();
+    private final Jobs.Job job = Jobs.current();
+
+    private int maxRetries = 0;
+    private long targetBatchNanos = 0;
+    private final AtomicInteger batchSize = new AtomicInteger(1);
+    private final LongAdder retried = new LongAdder();
+
+    private long succeeded = 0;
+    private long failed = 0;
+    private long batches = 0;
+
+    public BatchRunner(GraphDatabaseService db, ThreadPool threadPool, Log log, int maxInFlight) {
+        this.db = db;
+        this.threadPool = threadPool;
+        this.log = log;
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    public BatchRunner withRetries(int maxRetries) {
+        this.maxRetries = Math.max(0, maxRetries);
+        return this;
+    }
+
+    public BatchRunner withBatchSize(int batchSize) {
+        this.batchSize.set(Math.max(1, Math.min(MAX_BATCH_SIZE, batchSize)));
+        return this;
+    }
+
+    /**
+     * Makes the batch size grow while batches commit faster than <code>targetBatchMillis</code>, and halve when they're slower.
+     */
+    public BatchRunner withAdaptiveBatchSize(long targetBatchMillis) {
+        this.targetBatchNanos = targetBatchMillis * 1_000_000;
+        return this;
+    }
+
+    /**
+     * Adds <code>items</code> to the number of items the job running this, if any, is expected to process.
+     */
+    public BatchRunner expect(long items) {
+        if (job != null && items >= 0) job.expect(items);
+        return this;
+    }
+
+    /**
+     * @return the size of the next batch to submit.
+     */
+    public int nextBatchSize() {
+        return batchSize.get();
+    }
+
+    /**
+     * Submits a batch of <code>size</code> items, blocking until a slot is available.
+     */
+    public void submit(int size, Function<Transaction, Long> function) {
+        submit(size, function, null);
+    }
+
+    /**
+     * Submits a batch of <code>size</code> items, blocking until a slot is available.
+     * If the job running this has been cancelled, waits for the batches in flight and throws a {@link Jobs.JobCancelledException} instead.
+     * @param completion called in the submitting thread once the batch is committed (with null) or has failed (with the error).
+     */
+    public void submit(int size, Function<Transaction, Long> function, Consumer<Throwable> completion) {
+        if (job != null && job.isCancelRequested()) {
+            finish();
+            throw new Jobs.JobCancelledException(job);
+        }
+        while (inFlight.size() >= maxInFlight) {
+            await(inFlight.pollFirst());
+        }
+        Future<Long> future = threadPool.getExecutorService().submit(() -> inTxWithRetries(size, function));
+        inFlight.addLast(new Batch(size, future, completion));
+    }
+
+    /**
+     * Waits for all submitted batches to complete.
+     */
+    public BatchRunner finish() {
+        while (!inFlight.isEmpty()) {
+            await(inFlight.pollFirst());
+        }
+        return this;
+    }
+
+    private Long inTxWithRetries(int size, Function<Transaction, Long> function) throws InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            long batchStart = System.nanoTime();
+            try (Transaction tx = db.beginTx()) {
+                Long result = function.apply(tx);
+                tx.commit();
+                adapt(size, System.nanoTime() - batchStart);
+                threadPool.getMetrics().record("batch", System.nanoTime() - batchStart, result == null ? 0 : result, false);
+                return result;
+            } catch (RuntimeException e) {
+                threadPool.getMetrics().record("batch", System.nanoTime() - batchStart, 0, true);
+                if (attempt >= maxRetries || !isTransient(e)) throw e;
+                retried.increment();
+                long backoff = (BACKOFF_MILLIS << Math.min(attempt, 10));
+                Thread.sleep(backoff + ThreadLocalRandom.current().nextLong(backoff));
+            }
+        }
+    }
+
+    private void adapt(int size, long nanos) {
+        if (targetBatchNanos <= 0) return;
+        int current = batchSize.get();
+        if (nanos > targetBatchNanos) {
+            batchSize.compareAndSet(current, Math.max(1, current / 2));
+        } else if (size >= current) {
+            batchSize.compareAndSet(current, Math.min(MAX_BATCH_SIZE, current + Math.max(1, current / 4)));
+        }
+    }
+
+    static boolean isTransient(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof TransientFailureException) return true;
+            if (t instanceof Status.HasStatus
+                    && ((Status.HasStatus) t).status().code().classification() == Status.Classification.TransientError) return true;
+        }
+        return false;
+    }
+
+    private void await(Batch batch) {
+        batches += 1;
+        Throwable error = null;
+        long done = 0;
+        try {
+            done = batch.future.get();
+            succeeded += done;
+            failed += batch.size - done;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failed += batch.size;
+            error = e;
+        } catch (ExecutionException e) {
+            log.warn("DQ batch of "+batch.size+" failed : "+e.getCause().getMessage());
+            failed += batch.size;
+            error = e.getCause();
+        }
+        if (job != null) job.progress(done, batch.size - done);
+        if (batch.completion != null) batch.completion.accept(error);
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public long getSucceeded() {
+        return succeeded;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public long getRetried() {
+        return retried.sum();
+    }
+
+    public long getBatches() {
+        return batches;
+    }
+
+    public long getElapsedMillis() {
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    private static class Batch {
+        final int size;
+        final Future<Long> future;
+        final Consumer<Throwable> completion;
+
+        Batch(int size, Future<Long> future, Consumer<Throwable> completion) {
+            this.size = size;
+            this.future = future;
+            this.completion = completion;
+        }
+    }
+}
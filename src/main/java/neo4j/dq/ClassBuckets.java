@@ -0,0 +1,130 @@
+package neo4j.dq;
+
+import org.neo4j.graphdb.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static neo4j.dq.DQ.*;
+
+/**
+ * Sharded classes : instead of all linking to the (dense, hot) class node, the flags of a sharded class
+ * link to one of its bucket nodes, <code>(flag)-[:HAS_DQ_CLASS]->(bucket:DQ_ClassBucket)-[:HAS_DQ_BUCKET]->(class)</code>,
+ * chosen by hashing the id of the flagged node. Concurrent flagging then locks different nodes.
+ */
+public class ClassBuckets {
+
+    public static final Label DQ_CLASS_BUCKET = Label.label("DQ_ClassBucket");
+    public static final RelationshipType HAS_DQ_BUCKET = RelationshipType.withName("HAS_DQ_BUCKET");
+
+    public static final String shardsProperty = "shards";
+    public static final String bucketProperty = "bucket";
+
+    public static final int MAX_SHARDS = 1024;
+
+    /**
+     * Makes the class sharded, creating its missing buckets. The number of buckets can only grow.
+     */
+    public static void shard(Transaction tx, Node classNode, int shards) {
+        shards = Math.min(shards, MAX_SHARDS);
+        int current = shards(classNode);
+        if (shards <= current) return;
+        for (int i = current; i < shards; i++) {
+            Node bucket = tx.createNode(DQ_CLASS_BUCKET);
+            bucket.setProperty(bucketProperty, i);
+            bucket.createRelationshipTo(classNode, HAS_DQ_BUCKET);
+        }
+        classNode.setProperty(shardsProperty, shards);
+    }
+
+    public static int shards(Node classNode) {
+        Object shards = classNode.getProperty(shardsProperty, null);
+        return shards instanceof Number ? ((Number) shards).intValue() : 0;
+    }
+
+    public static int bucketIndex(long nodeId, int shards) {
+        return Math.floorMod(Long.hashCode(nodeId * 0x9E3779B97F4A7C15L), shards);
+    }
+
+    /**
+     * @return the node a flag of <code>flaggedNodeId</code> should link to : the class node itself, or one of its buckets.
+     */
+    public static Node target(Transaction tx, Node classNode, long flaggedNodeId, ClassTree.Entry entry) {
+        int shards = shards(classNode);
+        if (shards == 0) return classNode;
+        int index = bucketIndex(flaggedNodeId, shards);
+        if (entry != null && entry.getBuckets().length == shards) {
+            try {
+                return tx.getNodeById(entry.getBuckets()[index]);
+            } catch (NotFoundException e) {
+                // deleted since the hierarchy was cached
+            }
+        }
+        for (Node bucket : buckets(classNode)) {
+            if (((Number) bucket.getProperty(bucketProperty, -1)).intValue() == index) return bucket;
+        }
+        return classNode;
+    }
+
+    public static List<Node> buckets(Node classNode) {
+        List<Node> buckets = new ArrayList<>();
+        for (Relationship rel : classNode.getRelationships(Direction.INCOMING, HAS_DQ_BUCKET)) {
+            buckets.add(rel.getStartNode());
+        }
+        return buckets;
+    }
+
+    /**
+     * @return ids of the bucket nodes of the class, ordered by bucket index.
+     */
+    public static long[] bucketIds(Node classNode) {
+        List<Node> buckets = buckets(classNode);
+        long[] ids = new long[buckets.size()];
+        for (Node bucket : buckets) {
+            int index = ((Number) bucket.getProperty(bucketProperty, -1)).intValue();
+            if (index < 0 || index >= ids.length) return new long[0];
+            ids[index] = bucket.getId();
+        }
+        return ids;
+    }
+
+    /**
+     * @return the class node and its buckets : all the nodes flags of the class can link to.
+     */
+    public static List<Node> flagParents(Node classNode) {
+        List<Node> parents = buckets(classNode);
+        parents.add(0, classNode);
+        return parents;
+    }
+
+    /**
+     * @return the number of flags in the buckets of the class, compact or not. Buckets only have flags linking to them.
+     */
+    public static long bucketFlagCount(Node classNode) {
+        long count = 0;
+        for (Node bucket : buckets(classNode)) {
+            count += bucket.getDegree(HAS_DQ_CLASS, Direction.INCOMING) + CompactFlags.count(bucket);
+        }
+        return count;
+    }
+
+    /**
+     * Deletes the buckets of a class, along with their flags.
+     * @return the number of deleted flags.
+     */
+    public static long deleteBuckets(Node classNode) {
+        long count = 0;
+        for (Node bucket : buckets(classNode)) {
+            count += CompactFlags.count(bucket);
+            for (Relationship rel : bucket.getRelationships(Direction.INCOMING, HAS_DQ_CLASS)) {
+                Node flag = rel.getStartNode();
+                flag.getRelationships().forEach(Relationship::delete);
+                flag.delete();
+                count += 1;
+            }
+            bucket.getRelationships().forEach(Relationship::delete);
+            bucket.delete();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,63 @@
+package neo4j.dq;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.logging.Log;
+
+import static neo4j.dq.DQ.*;
+
+/**
+ * Caches the committed DQ_Class hierarchy of a database.
+ * The snapshot is dropped by {@link DQTransactionListener} whenever a committed transaction changes the hierarchy,
+ * and lazily reloaded on next access, see {@link VersionedCache}.
+ */
+public class ClassCache {
+
+    private final GraphDatabaseService db;
+    private final Log log;
+    private final VersionedCache<ClassTree> tree = new VersionedCache<>(this::load);
+
+    public ClassCache(GraphDatabaseService db, Log log) {
+        this.db = db;
+        this.log = log;
+    }
+
+    public ClassTree tree() {
+        try {
+            return tree.get();
+        } catch (Exception e) {
+            log.warn("Could not load DQ class hierarchy : "+e.getMessage());
+            return ClassTree.EMPTY;
+        }
+    }
+
+    private ClassTree load() {
+        try (Transaction tx = db.beginTx()) {
+            ClassTree loaded = ClassTree.load(tx);
+            tx.commit();
+            return loaded;
+        }
+    }
+
+    public void invalidate() {
+        tree.invalidate();
+    }
+
+    /**
+     * Looks up a class node through the cache, falling back on an index lookup for classes
+     * that aren't committed yet (or aren't unique).
+     */
+    public Node find(Transaction tx, String name) {
+        ClassTree.Entry entry = tree().get(name);
+        if (entry != null) {
+            try {
+                return tx.getNodeById(entry.getId());
+            } catch (NotFoundException e) {
+                // deleted in the current transaction
+            }
+        }
+        return tx.findNode(DQ_CLASS, classProperty, name);
+    }
+}
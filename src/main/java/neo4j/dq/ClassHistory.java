@@ -0,0 +1,197 @@
+package neo4j.dq;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.logging.Log;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static neo4j.dq.DQ.*;
+
+/**
+ * Records the flag counts of every class at a regular interval, read from the maintained {@link FlagCounters},
+ * into a {@link HistorySeries} per class stored on a <code>(:DQ_History {class})</code> node, looked up by its index.
+ * A class is only recorded when its counts changed since its last record, as read from the stored series at the first snapshot,
+ * and older samples are downsampled once per hour, each in transactions of a bounded number of classes.
+ */
+public class ClassHistory {
+
+    public static final Label DQ_HISTORY = Label.label("DQ_History");
+
+    private static final int BATCH_SIZE = 100;
+
+    private final GraphDatabaseService db;
+    private final ClassCache classCache;
+    private final FlagCounters flagCounters;
+    private final Supplier<ScheduledExecutorService> scheduler;
+    private final Supplier<Executor> executor;
+    private final Duration interval;
+    private final Duration minuteRetention;
+    private final Duration hourRetention;
+    private final Duration dayRetention;
+    private final Log log;
+
+    private ScheduledFuture<?> scheduled;
+    // last counts recorded per class name, {direct, total}, and the hour of the last downsampling
+    private final Map<String, long[]> recorded = new HashMap<>();
+    private boolean seeded;
+    private long downsampled = Long.MIN_VALUE;
+
+    public ClassHistory(GraphDatabaseService db, ClassCache classCache, FlagCounters flagCounters,
+                        Supplier<ScheduledExecutorService> scheduler, Supplier<Executor> executor,
+                        Duration interval, Duration minuteRetention, Duration hourRetention, Duration dayRetention, Log log) {
+        this.db = db;
+        this.classCache = classCache;
+        this.flagCounters = flagCounters;
+        this.scheduler = scheduler;
+        this.executor = executor;
+        this.interval = interval;
+        this.minuteRetention = minuteRetention;
+        this.hourRetention = hourRetention;
+        this.dayRetention = dayRetention;
+        this.log = log;
+    }
+
+    public synchronized void start() {
+        if (interval.isZero() || interval.isNegative() || scheduler == null || scheduled != null) return;
+        try {
+            long millis = interval.toMillis();
+            // snapshots run on the executor, so that a slow one doesn't hold the scheduler thread
+            scheduled = scheduler.get().scheduleAtFixedRate(() -> executor.get().execute(this::snapshotQuietly),
+                    millis, millis, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            log.warn("Could not schedule DQ history snapshots : "+e.getMessage());
+        }
+    }
+
+    public synchronized void stop() {
+        if (scheduled != null) scheduled.cancel(false);
+        scheduled = null;
+    }
+
+    private void snapshotQuietly() {
+        try {
+            snapshot(System.currentTimeMillis() / 1000);
+        } catch (Exception e) {
+            log.warn("Could not record DQ history : "+e.getMessage());
+        }
+    }
+
+    /**
+     * Records the current counts of the classes that changed since their last record at <code>time</code> (epoch seconds),
+     * and downsamples older samples of every class if it wasn't done in this hour yet.
+     * @return the number of classes recorded.
+     */
+    public synchronized long snapshot(long time) {
+        if (!seeded) {
+            seedRecorded();
+            seeded = true;
+        }
+        ClassTree tree = classCache.tree();
+        List<ClassTree.Entry> changed = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (ClassTree.Entry entry : tree.entries()) {
+            names.add(entry.getName());
+            long[] counts = recorded.get(entry.getName());
+            if (counts == null || counts[0] != flagCounters.getDirect(entry.getId()) || counts[1] != flagCounters.getTotal(entry.getId())) {
+                changed.add(entry);
+            }
+        }
+        recorded.keySet().retainAll(names);
+
+        for (int from = 0; from < changed.size(); from += BATCH_SIZE) {
+            Map<String, long[]> batch = new HashMap<>();
+            try (Transaction tx = db.beginTx()) {
+                for (ClassTree.Entry entry : changed.subList(from, Math.min(changed.size(), from + BATCH_SIZE))) {
+                    long[] counts = {flagCounters.getDirect(entry.getId()), flagCounters.getTotal(entry.getId())};
+                    Node history = tx.findNode(DQ_HISTORY, classProperty, entry.getName());
+                    if (history == null) {
+                        history = tx.createNode(DQ_HISTORY);
+                        history.setProperty(classProperty, entry.getName());
+                    }
+                    HistorySeries series = HistorySeries.load(tx, history);
+                    series.append(time, counts[0], counts[1]);
+                    series.store();
+                    batch.put(entry.getName(), counts);
+                }
+                tx.commit();
+            }
+            recorded.putAll(batch);
+        }
+
+        long hour = HistorySeries.Resolution.HOUR.periodStart(time);
+        if (hour != downsampled) {
+            downsample(time);
+            downsampled = hour;
+        }
+        return changed.size();
+    }
+
+    // the counts of the last stored samples, so that a restart doesn't record the classes that didn't change again
+    private void seedRecorded() {
+        try (Transaction tx = db.beginTx();
+             ResourceIterator<Node> nodes = tx.findNodes(DQ_HISTORY)) {
+            while (nodes.hasNext()) {
+                Node history = nodes.next();
+                long[] last = HistorySeries.load(tx, history).last(Long.MAX_VALUE);
+                Object dqClass = history.getProperty(classProperty, null);
+                if (last != null && dqClass instanceof String) recorded.put((String) dqClass, new long[]{last[1], last[2]});
+            }
+            tx.commit();
+        }
+    }
+
+    /**
+     * Moves the samples of every class older than the retention of their tier to the next tier, and drops the expired day samples.
+     */
+    private void downsample(long time) {
+        List<Long> ids = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            try (ResourceIterator<Node> nodes = tx.findNodes(DQ_HISTORY)) {
+                nodes.forEachRemaining(node -> ids.add(node.getId()));
+            }
+            tx.commit();
+        }
+        for (int from = 0; from < ids.size(); from += BATCH_SIZE) {
+            try (Transaction tx = db.beginTx()) {
+                for (long id : ids.subList(from, Math.min(ids.size(), from + BATCH_SIZE))) {
+                    Node history;
+                    try {
+                        history = tx.getNodeById(id);
+                    } catch (NotFoundException e) {
+                        continue;
+                    }
+                    HistorySeries series = HistorySeries.load(tx, history);
+                    series.downsample(HistorySeries.Resolution.MINUTE, time - minuteRetention.getSeconds());
+                    series.downsample(HistorySeries.Resolution.HOUR, time - hourRetention.getSeconds());
+                    if (!dayRetention.isZero()) series.expire(time - dayRetention.getSeconds());
+                    series.store();
+                }
+                tx.commit();
+            }
+        }
+    }
+
+    /**
+     * @return the finest resolution still holding samples from <code>from</code> (epoch seconds) on.
+     */
+    public HistorySeries.Resolution resolutionFor(long from, long now) {
+        if (from >= now - minuteRetention.getSeconds()) return HistorySeries.Resolution.MINUTE;
+        if (from >= now - hourRetention.getSeconds()) return HistorySeries.Resolution.HOUR;
+        return HistorySeries.Resolution.DAY;
+    }
+
+    /**
+     * @return the samples of the class between <code>from</code> and <code>to</code> (epoch seconds), as {time, direct, total}.
+     */
+    public static List<long[]> range(Transaction tx, String dqClass, long from, long to, HistorySeries.Resolution resolution) {
+        Node history = tx.findNode(DQ_HISTORY, classProperty, dqClass);
+        if (history == null) return List.of();
+        return HistorySeries.load(tx, history).range(from, to, resolution);
+    }
+}
@@ -0,0 +1,153 @@
+package neo4j.dq;
+
+import org.neo4j.graphdb.*;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static neo4j.dq.DQ.*;
+
+/**
+ * Flag counts of a whole class (sub)hierarchy, computed in a single pass.
+ */
+public class ClassStatistics {
+
+    // classes counted per transaction by a fork-join leaf task
+    private static final int CLASSES_PER_TASK = 64;
+
+    private final List<ClassTree.Entry> classes;
+    private final Map<Long, Integer> index;
+    private final long[] direct;
+    private final long[] total;
+
+    private ClassStatistics(List<ClassTree.Entry> classes) {
+        this.classes = classes;
+        this.index = new HashMap<>(classes.size() * 2);
+        for (int i = 0; i < classes.size(); i++) {
+            index.put(classes.get(i).getId(), i);
+        }
+        this.direct = new long[classes.size()];
+        this.total = new long[classes.size()];
+    }
+
+    /**
+     * Counts the direct flags of every class of the subtree in parallel, then sums them up bottom-up.
+     */
+    public static ClassStatistics scan(GraphDatabaseService db, ForkJoinPool pool, ClassTree tree, ClassTree.Entry root) {
+        ClassStatistics stats = new ClassStatistics(tree.subtree(root));
+        pool.invoke(new DirectCountTask(db, stats, 0, stats.classes.size()));
+        stats.sumTotals();
+        return stats;
+    }
+
+    /**
+     * Reads the counts of every class of the subtree from the maintained counters.
+     */
+    public static ClassStatistics fromCounters(FlagCounters counters, ClassTree tree, ClassTree.Entry root) {
+        ClassStatistics stats = new ClassStatistics(tree.subtree(root));
+        for (int i = 0; i < stats.classes.size(); i++) {
+            long classId = stats.classes.get(i).getId();
+            stats.direct[i] = counters.getDirect(classId);
+            stats.total[i] = counters.getTotal(classId);
+        }
+        return stats;
+    }
+
+    // classes are in pre-order : walking them backwards visits every child before its parent
+    private void sumTotals() {
+        for (int i = classes.size() - 1; i >= 0; i--) {
+            total[i] += direct[i];
+            ClassTree.Entry parent = classes.get(i).getParent();
+            Integer parentIndex = parent == null ? null : index.get(parent.getId());
+            if (parentIndex != null) total[parentIndex] += total[i];
+        }
+    }
+
+    public int size() {
+        return classes.size();
+    }
+
+    public ClassTree.Entry getClass(int i) {
+        return classes.get(i);
+    }
+
+    public long getDirect(int i) {
+        return direct[i];
+    }
+
+    public long getTotal(int i) {
+        return total[i];
+    }
+
+    /**
+     * @return the number of flags directly linked to the class node, compact or not.
+     */
+    public static long directFlagCount(Node classNode, ClassTree.Entry entry) {
+        // every incoming HAS_DQ_CLASS relationship comes from either a flag or a child class
+        long direct = classNode.getDegree(HAS_DQ_CLASS, Direction.INCOMING) - entry.getChildren().size() + CompactFlags.count(classNode);
+        return entry.getBuckets().length == 0 ? direct : direct + ClassBuckets.bucketFlagCount(classNode);
+    }
+
+    /**
+     * Counts direct and indirect flags of a class by walking the hierarchy below it, without relying on the class cache.
+     * @return {direct, indirect}
+     */
+    public static long[] countFlags(Node classNode) {
+        long[] counts = new long[2];
+        Set<Long> visited = new HashSet<>();
+        Deque<Node> stack = new ArrayDeque<>();
+        stack.push(classNode);
+        visited.add(classNode.getId());
+        while (!stack.isEmpty()) {
+            Node current = stack.pop();
+            int slot = current.equals(classNode) ? 0 : 1;
+            counts[slot] += ClassBuckets.bucketFlagCount(current) + CompactFlags.count(current);
+            for (Relationship rel : current.getRelationships(Direction.INCOMING, HAS_DQ_CLASS)) {
+                Node child = rel.getStartNode();
+                if (child.hasLabel(DQ_FLAG)) {
+                    counts[slot] += 1;
+                } else if (visited.add(child.getId())) {
+                    stack.push(child);
+                }
+            }
+        }
+        return counts;
+    }
+
+    private static class DirectCountTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final GraphDatabaseService db;
+        private final ClassStatistics stats;
+        private final int from;
+        private final int to;
+
+        DirectCountTask(GraphDatabaseService db, ClassStatistics stats, int from, int to) {
+            this.db = db;
+            this.stats = stats;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > CLASSES_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new DirectCountTask(db, stats, from, middle), new DirectCountTask(db, stats, middle, to));
+                return;
+            }
+            try (Transaction tx = db.beginTx()) {
+                for (int i = from; i < to; i++) {
+                    ClassTree.Entry entry = stats.classes.get(i);
+                    try {
+                        stats.direct[i] = directFlagCount(tx.getNodeById(entry.getId()), entry);
+                    } catch (NotFoundException e) {
+                        // deleted since the hierarchy was cached
+                    }
+                }
+                tx.commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package neo4j.dq;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.*;
+
+import static neo4j.dq.DQ.*;
+
+/**
+ * Immutable snapshot of the DQ_Class hierarchy.
+ * Classes are numbered in the order of a depth-first tour of the hierarchy, so that the subtree of a class is the interval
+ * between its own number and the number of its last descendant : subtrees are slices of that order, and subclass checks
+ * compare two numbers. The snapshot is reloaded whenever the hierarchy changes, see {@link ClassCache}.
+ */
+public class ClassTree {
+
+    public static final ClassTree EMPTY = new ClassTree(Collections.emptyMap(), Collections.emptyMap(), Collections.emptySet(), Collections.emptyList());
+
+    private final Map<String, Entry> byName;
+    private final Map<Long, Entry> byId;
+    private final Set<String> duplicates;
+    // classes in depth-first order
+    private final List<Entry> tour;
+
+    private ClassTree(Map<String, Entry> byName, Map<Long, Entry> byId, Set<String> duplicates, List<Entry> tour) {
+        this.byName = byName;
+        this.byId = byId;
+        this.duplicates = duplicates;
+        this.tour = tour;
+    }
+
+    /**
+     * @return the class called <code>name</code>, or null if it doesn't exist or isn't unique.
+     */
+    public Entry get(String name) {
+        return byName.get(name);
+    }
+
+    public Entry get(long id) {
+        return byId.get(id);
+    }
+
+    public boolean isDuplicate(String name) {
+        return duplicates.contains(name);
+    }
+
+    public Collection<Entry> entries() {
+        return byId.values();
+    }
+
+    public int size() {
+        return byId.size();
+    }
+
+    /**
+     * @return the class and all its descendants, in pre-order (every class comes before its children).
+     */
+    public List<Entry> subtree(Entry root) {
+        return Collections.unmodifiableList(tour.subList(root.enter, root.exit + 1));
+    }
+
+    /**
+     * @return whether the class <code>classId</code> is the class <code>ancestorId</code> or one of its descendants.
+     */
+    public boolean isWithin(long classId, long ancestorId) {
+        Entry entry = byId.get(classId);
+        Entry ancestor = byId.get(ancestorId);
+        return entry != null && ancestor != null && entry.isWithin(ancestor);
+    }
+
+    public static ClassTree load(Transaction tx) {
+        Map<Long, Entry> byId = new HashMap<>();
+        Map<Long, Long> parents = new HashMap<>();
+        try (ResourceIterator<Node> classes = tx.findNodes(DQ_CLASS)) {
+            while (classes.hasNext()) {
+                Node classNode = classes.next();
+                Object name = classNode.getProperty(classProperty, null);
+                if (name == null) continue;
+                Entry entry = new Entry(classNode.getId(), name.toString());
+                if (classNode.hasProperty(ClassBuckets.shardsProperty)) entry.buckets = ClassBuckets.bucketIds(classNode);
+                Object limit = classNode.getProperty(alertTriggerLimitProperty, null);
+                if (limit instanceof Number) entry.alertTriggerLimit = ((Number) limit).longValue();
+                Object ttl = classNode.getProperty(ttlSecondsProperty, null);
+                if (ttl instanceof Number) entry.ttlSeconds = ((Number) ttl).longValue();
+                byId.put(classNode.getId(), entry);
+                for (Relationship rel : classNode.getRelationships(Direction.OUTGOING, HAS_DQ_CLASS)) {
+                    Node parent = rel.getEndNode();
+                    if (parent.hasLabel(DQ_CLASS)) {
+                        parents.put(classNode.getId(), parent.getId());
+                        break;
+                    }
+                }
+            }
+        }
+
+        Map<String, Entry> byName = new HashMap<>();
+        Set<String> duplicates = new HashSet<>();
+        for (Entry entry : byId.values()) {
+            Entry parent = byId.get(parents.get(entry.id));
+            if (parent != null && parent != entry) {
+                entry.parent = parent;
+                parent.children.add(entry);
+            }
+            if (byName.putIfAbsent(entry.name, entry) != null) duplicates.add(entry.name);
+        }
+        duplicates.forEach(byName::remove);
+        for (Entry entry : byId.values()) {
+            entry.ancestors = ancestors(entry);
+        }
+        // classes without a TTL of their own inherit the TTL of their closest ancestor having one
+        for (Entry entry : byId.values()) {
+            entry.effectiveTtlSeconds = entry.ttlSeconds;
+            for (int i = 0; i < entry.ancestors.length && entry.effectiveTtlSeconds <= 0; i++) {
+                entry.effectiveTtlSeconds = byId.get(entry.ancestors[i]).ttlSeconds;
+            }
+        }
+
+        // roots first, then classes only reachable through a cycle of parents
+        List<Entry> tour = new ArrayList<>(byId.size());
+        for (Entry entry : byId.values()) {
+            if (entry.parent == null) tour(entry, tour);
+        }
+        for (Entry entry : byId.values()) {
+            if (entry.enter < 0) tour(entry, tour);
+        }
+        return new ClassTree(byName, byId, duplicates, tour);
+    }
+
+    /**
+     * Appends the classes of the subtree of <code>root</code> not toured yet to <code>tour</code>, depth-first,
+     * numbering each class with its position and the position of its last descendant.
+     */
+    private static void tour(Entry root, List<Entry> tour) {
+        Deque<Entry> path = new ArrayDeque<>();
+        Deque<Integer> nextChild = new ArrayDeque<>();
+        root.enter = tour.size();
+        tour.add(root);
+        path.push(root);
+        nextChild.push(0);
+        while (!path.isEmpty()) {
+            Entry entry = path.peek();
+            int i = nextChild.pop();
+            if (i < entry.children.size()) {
+                nextChild.push(i + 1);
+                Entry child = entry.children.get(i);
+                if (child.enter >= 0) continue;
+                child.enter = tour.size();
+                tour.add(child);
+                path.push(child);
+                nextChild.push(0);
+            } else {
+                entry.exit = tour.size() - 1;
+                path.pop();
+            }
+        }
+    }
+
+    private static long[] ancestors(Entry entry) {
+        List<Entry> chain = new ArrayList<>();
+        Set<Entry> visited = new HashSet<>();
+        for (Entry e = entry.parent; e != null && visited.add(e) && e != entry; e = e.parent) {
+            chain.add(e);
+        }
+        long[] ancestors = new long[chain.size()];
+        for (int i = 0; i < ancestors.length; i++) {
+            ancestors[i] = chain.get(i).id;
+        }
+        return ancestors;
+    }
+
+    public static class Entry {
+        private final long id;
+        private final String name;
+        private Entry parent;
+        private final List<Entry> children = new ArrayList<>();
+        private long[] ancestors;
+        private long[] buckets = new long[0];
+        private long alertTriggerLimit = -1;
+        private long ttlSeconds = -1;
+        private long effectiveTtlSeconds = -1;
+        // position of the class, and of its last descendant, in the tour of the hierarchy
+        private int enter = -1;
+        private int exit = -1;
+
+        private Entry(long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Entry getParent() {
+            return parent;
+        }
+
+        public List<Entry> getChildren() {
+            return Collections.unmodifiableList(children);
+        }
+
+        /**
+         * @return ids of the parent, grand-parent, ... up to the root class.
+         */
+        public long[] getAncestors() {
+            return ancestors;
+        }
+
+        public int getDepth() {
+            return ancestors.length;
+        }
+
+        /**
+         * @return whether this class is <code>ancestor</code> or one of its descendants, in constant time.
+         */
+        public boolean isWithin(Entry ancestor) {
+            return ancestor.enter <= enter && enter <= ancestor.exit;
+        }
+
+        /**
+         * @return ids of the bucket nodes of a sharded class, by bucket index. Empty if the class isn't sharded.
+         */
+        public long[] getBuckets() {
+            return buckets;
+        }
+
+        /**
+         * @return the flag count above which the class is alerting, or -1 if it has no limit.
+         */
+        public long getAlertTriggerLimit() {
+            return alertTriggerLimit;
+        }
+
+        /**
+         * @return how long flags of the class are kept, in seconds, as set on the class itself, or -1 if it has no TTL of its own.
+         */
+        public long getTtlSeconds() {
+            return ttlSeconds;
+        }
+
+        /**
+         * @return how long flags of the class are kept, in seconds, inherited from its closest ancestor if it has no TTL of its own,
+         * or -1 if flags of the class never expire.
+         */
+        public long getEffectiveTtlSeconds() {
+            return effectiveTtlSeconds;
+        }
+    }
+}
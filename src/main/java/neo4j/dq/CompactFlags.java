@@ -0,0 +1,118 @@
+package neo4j.dq;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.internal.helpers.collection.Iterables;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static neo4j.dq.DQ.*;
+
+/**
+ * Compact flags : instead of a flag node with its two relationships, a flag of a compact class is a single relationship
+ * <code>(node)-[:HAS_DQ_COMPACT_FLAG {description, created}]->(class)</code>, to the class node or to one of its buckets if it's sharded.
+ * Compact flags can't have attachments. Only classes marked as compact get compact flags, and a class can be converted either way.
+ */
+public class CompactFlags {
+
+    public static final RelationshipType HAS_DQ_COMPACT_FLAG = RelationshipType.withName("HAS_DQ_COMPACT_FLAG");
+
+    public static final String compactProperty = "compact";
+
+    public static boolean isCompact(Node classNode) {
+        return Boolean.TRUE.equals(classNode.getProperty(compactProperty, null));
+    }
+
+    public static void setCompact(Node classNode, boolean compact) {
+        if (compact) classNode.setProperty(compactProperty, true);
+        else classNode.removeProperty(compactProperty);
+    }
+
+    public static Relationship create(Node node, Node parent, String description) {
+        Relationship flag = node.createRelationshipTo(parent, HAS_DQ_COMPACT_FLAG);
+        flag.setProperty(descriptionProperty, description);
+        flag.setProperty(createdProperty, ZonedDateTime.now());
+        return flag;
+    }
+
+    /**
+     * @return the number of compact flags linked to a class node or bucket.
+     */
+    public static long count(Node parent) {
+        return parent.getDegree(HAS_DQ_COMPACT_FLAG, Direction.INCOMING);
+    }
+
+    /**
+     * @return the compact flags of the class, linked to the class node and to its buckets.
+     */
+    public static Iterable<Relationship> flags(Node classNode) {
+        List<Iterable<Relationship>> flags = new ArrayList<>();
+        for (Node parent : ClassBuckets.flagParents(classNode)) {
+            flags.add(parent.getRelationships(Direction.INCOMING, HAS_DQ_COMPACT_FLAG));
+        }
+        return Iterables.concat(flags);
+    }
+
+    /**
+     * @return the class of a compact flag, or null if the relationship isn't one.
+     */
+    public static Node classOf(Relationship flag) {
+        if (!flag.isType(HAS_DQ_COMPACT_FLAG)) return null;
+        return classOfParent(flag.getEndNode());
+    }
+
+    /**
+     * @return the class of the class node or bucket compact flags link to.
+     */
+    public static Node classOfParent(Node parent) {
+        if (!parent.hasLabel(ClassBuckets.DQ_CLASS_BUCKET)) return parent;
+        Relationship bucketRel = parent.getSingleRelationship(ClassBuckets.HAS_DQ_BUCKET, Direction.OUTGOING);
+        return bucketRel == null ? null : bucketRel.getEndNode();
+    }
+
+    /**
+     * Replaces a flag node by a compact flag with the same properties, linked to the same class node or bucket.
+     * Flags with attachments, flags of rules (which look for flag nodes) and orphan flags are left as they are.
+     * @return the compact flag, or null if the flag was left as it is.
+     */
+    public static Relationship compact(Node flag) {
+        if (!flag.hasLabel(DQ_FLAG) || flag.hasProperty(DQRule.ruleProperty) || flag.hasRelationship(Direction.OUTGOING, HAS_ATTACHMENT)) return null;
+        Relationship flagged = single(flag, HAS_DQ_FLAG, Direction.INCOMING);
+        Relationship parent = single(flag, HAS_DQ_CLASS, Direction.OUTGOING);
+        if (flagged == null || parent == null) return null;
+
+        Relationship compact = flagged.getStartNode().createRelationshipTo(parent.getEndNode(), HAS_DQ_COMPACT_FLAG);
+        for (Map.Entry<String, Object> property : flag.getAllProperties().entrySet()) {
+            compact.setProperty(property.getKey(), property.getValue());
+        }
+        flag.getRelationships().forEach(Relationship::delete);
+        flag.delete();
+        return compact;
+    }
+
+    /**
+     * Replaces a compact flag by a flag node with the same properties, linked to the same class node or bucket.
+     * @return the flag node.
+     */
+    public static Node expand(Transaction tx, Relationship compact) {
+        Node classNode = classOf(compact);
+        if (classNode == null) return null;
+        Node flag = tx.createNode(Label.label((String) classNode.getProperty(classProperty)), DQ_FLAG);
+        for (Map.Entry<String, Object> property : compact.getAllProperties().entrySet()) {
+            flag.setProperty(property.getKey(), property.getValue());
+        }
+        flag.createRelationshipTo(compact.getEndNode(), HAS_DQ_CLASS);
+        compact.getStartNode().createRelationshipTo(flag, HAS_DQ_FLAG);
+        compact.delete();
+        return flag;
+    }
+
+    private static Relationship single(Node node, RelationshipType type, Direction direction) {
+        for (Relationship rel : node.getRelationships(direction, type)) {
+            return rel;
+        }
+        return null;
+    }
+}
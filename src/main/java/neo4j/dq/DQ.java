@@ -1,14 +1,25 @@
 package neo4j.dq;
 
+import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
 import org.neo4j.graphdb.*;
 import org.neo4j.internal.helpers.collection.Iterables;
+import org.neo4j.internal.kernel.api.security.SecurityContext;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
 import org.neo4j.logging.Log;
 import org.neo4j.procedure.*;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import org.neo4j.graphdb.Node;
 
 
@@ -25,6 +36,10 @@ public class DQ  {
     public static final String createdProperty = "created" ;
     public static final String descriptionProperty = "description" ;
     public static final String alertTriggerLimitProperty = "alertTriggerLimit" ;
+    public static final String deletingProperty = "deleting" ;
+    public static final String ttlSecondsProperty = "ttlSeconds" ;
+
+    private static final int DEFAULT_RETRIES = 3;
 
     @Context
     public GraphDatabaseService db;
@@ -35,9 +50,18 @@ public class DQ  {
     @Context
     public Log log;
 
+    @Context
+    public SecurityContext securityContext;
+
     @Context
     public ThreadPool threadPool;
 
+    @Context
+    public DQDatabase database;
+
+    @Context
+    public DQMetrics metrics;
+
 
 
     @Procedure(value = "neo4j.dq.createFlag", mode=Mode.WRITE)
@@ -46,19 +70,134 @@ public class DQ  {
                                          @Name(value="flagLabel", defaultValue = "Generic_Flag")  String flagLabel,
                                          @Name(value="description", defaultValue = "")  String description
             ) {
-        Node n = Util.node(tx, node);
+        return metrics.track("createFlag", () -> {
+            Node n = Util.node(tx, node);
 
-        Node parent = findOrCreateClassNode(flagLabel);
-        if (parent == null ) return Stream.empty();
+            Node parent = findOrCreateClassNode(flagLabel);
+            if (parent == null ) return Stream.empty();
 
-        Node flag= tx.createNode(Label.label(flagLabel), DQ_FLAG);
-        flag.createRelationshipTo(parent, HAS_DQ_CLASS);
-        flag.setProperty(descriptionProperty, description);
-        flag.setProperty(createdProperty, ZonedDateTime.now());
-        n.createRelationshipTo(flag, HAS_DQ_FLAG);
-        //to do : update counts/stats on parent. lock?
-        //parent.setProperty("flagCount", (Integer)parent.getProperty("flagCount") +1);
-        return Stream.of( new FlagResult(flag));
+            Entity flag = createFlag(tx, database, n, parent, Label.label(flagLabel), description);
+            return Stream.of( new FlagResult(flag));
+        });
+    }
+
+    @Procedure(value = "neo4j.dq.createFlags", mode=Mode.WRITE)
+    @Description("creates Data Quality flags on the given nodes, in parallel batched transactions")
+    public Stream<BulkResult> createFlags(@Name("nodes") Object nodes,
+                                          @Name(value="flagLabel", defaultValue = "Generic_Flag")  String flagLabel,
+                                          @Name(value="description", defaultValue = "")  String description,
+                                          @Name(value="batchSize", defaultValue="1000") long batchSize,
+                                          @Name(value="parallelism", defaultValue="0") long parallelism
+    ) {
+        return metrics.track("createFlags", () -> {
+            //resolve (and commit) the class once, so that all batches can link to it
+            Long classId = Util.inTx(db, threadPool, (txInThread) -> {
+                Node classNode = findOrCreateClassNode(txInThread, flagLabel, null);
+                return classNode == null ? null : classNode.getId();
+            });
+            if (classId == null) return Stream.empty();
+
+            Label label = Label.label(flagLabel);
+            int maxInFlight = parallelism > 0 ? (int)parallelism : Runtime.getRuntime().availableProcessors();
+            BatchRunner runner = new BatchRunner(db, threadPool, log, maxInFlight).withRetries(DEFAULT_RETRIES)
+                    .expect(Ids.size(nodes));
+
+            // a long array input is sliced without copying : the slices are the caller's ids, only sorted as copies
+            Iterator<Ids.Chunk> chunks = Ids.nodeChunks(nodes, () -> (int)batchSize);
+            while (chunks.hasNext()) {
+                final Ids.Chunk chunk = chunks.next();
+                runner.submit(chunk.size(), (txInThread) -> {
+                    Node classNode = txInThread.getNodeById(classId);
+                    int shards = ClassBuckets.shards(classNode);
+                    // lock the buckets of a sharded class in the same order in every batch, so that concurrent batches can't deadlock
+                    Ids.Chunk batch = shards > 0 ? chunk.sortedBy(id -> ClassBuckets.bucketIndex(id, shards), shards) : chunk;
+                    long created = 0;
+                    for (int i = 0; i < batch.size(); i++) {
+                        long id = batch.get(i);
+                        try {
+                            createFlag(txInThread, database, txInThread.getNodeById(id), classNode, label, description);
+                            created += 1;
+                        } catch (NotFoundException nfe) {
+                            log.warn("Can't flag node "+id+" : "+nfe.getMessage());
+                        }
+                    }
+                    return created;
+                });
+            }
+            runner.finish();
+            return Stream.of(new BulkResult(runner.getSucceeded(), runner.getFailed(), runner.getBatches(), runner.getElapsedMillis()));
+        });
+    }
+
+    @Procedure(value = "neo4j.dq.mergeFlag", mode=Mode.WRITE)
+    @Description("returns the Data Quality flag of the given class on the given node, creating it if there's none yet")
+    public Stream<MergeFlagResult> mergeFlag(@Name("node") Object node,
+                                             @Name(value="flagLabel", defaultValue = "Generic_Flag")  String flagLabel,
+                                             @Name(value="description", defaultValue = "")  String description
+    ) {
+        return metrics.track("mergeFlag", () -> {
+            Node n = Util.node(tx, node);
+            Entity existing = findFlag(tx, n, flagLabel);
+            if (existing != null) return Stream.of(new MergeFlagResult(existing, false));
+
+            Node parent = findOrCreateClassNode(flagLabel);
+            if (parent == null ) return Stream.empty();
+
+            return Stream.of(new MergeFlagResult(createFlag(tx, database, n, parent, Label.label(flagLabel), description), true));
+        });
+    }
+
+    @Procedure(value = "neo4j.dq.mergeFlags", mode=Mode.WRITE)
+    @Description("creates Data Quality flags on the given nodes that don't have one of the given class yet, in parallel batched transactions")
+    public Stream<BulkMergeResult> mergeFlags(@Name("nodes") Object nodes,
+                                              @Name(value="flagLabel", defaultValue = "Generic_Flag")  String flagLabel,
+                                              @Name(value="description", defaultValue = "")  String description,
+                                              @Name(value="batchSize", defaultValue="1000") long batchSize,
+                                              @Name(value="parallelism", defaultValue="0") long parallelism
+    ) {
+        return metrics.track("mergeFlags", () -> {
+            Long classId = Util.inTx(db, threadPool, (txInThread) -> {
+                Node classNode = findOrCreateClassNode(txInThread, flagLabel, null);
+                return classNode == null ? null : classNode.getId();
+            });
+            if (classId == null) return Stream.empty();
+
+            Label label = Label.label(flagLabel);
+            int maxInFlight = parallelism > 0 ? (int)parallelism : Runtime.getRuntime().availableProcessors();
+            BatchRunner runner = new BatchRunner(db, threadPool, log, maxInFlight).withRetries(DEFAULT_RETRIES)
+                    .expect(Ids.size(nodes));
+            LongAdder existing = new LongAdder();
+
+            // a node listed twice in the same batch would be flagged twice, as the index only sees committed flags
+            Iterator<Ids.Chunk> chunks = Ids.chunks(Ids.nodeIds(nodes).filter(Ids.firstSeen()).iterator(), () -> (int)batchSize);
+            while (chunks.hasNext()) {
+                final Ids.Chunk chunk = chunks.next();
+                runner.submit(chunk.size(), (txInThread) -> {
+                    Node classNode = txInThread.getNodeById(classId);
+                    int shards = ClassBuckets.shards(classNode);
+                    Ids.Chunk batch = shards > 0 ? chunk.sortedBy(id -> ClassBuckets.bucketIndex(id, shards), shards) : chunk;
+                    long merged = 0;
+                    for (int i = 0; i < batch.size(); i++) {
+                        long id = batch.get(i);
+                        try {
+                            Node n = txInThread.getNodeById(id);
+                            if (findFlag(txInThread, n, flagLabel) != null) {
+                                existing.increment();
+                            } else {
+                                createFlag(txInThread, database, n, classNode, label, description);
+                            }
+                            merged += 1;
+                        } catch (NotFoundException nfe) {
+                            log.warn("Can't flag node "+id+" : "+nfe.getMessage());
+                        }
+                    }
+                    return merged;
+                });
+            }
+            runner.finish();
+            return Stream.of(new BulkMergeResult(runner.getSucceeded() - existing.sum(), existing.sum(), runner.getFailed(),
+                    runner.getBatches(), runner.getElapsedMillis()));
+        });
     }
 
     @Procedure(value = "neo4j.dq.attachToFlag", mode=Mode.WRITE)
@@ -67,74 +206,200 @@ public class DQ  {
                                          @Name("attachmentNode")  Object attachmentNode,
                                          @Name(value="description", defaultValue = "")  String description
     ) {
-        Node f = Util.node(tx, flag);
-        Node a = Util.node(tx, attachmentNode);
-        Relationship r=f.createRelationshipTo(a, HAS_ATTACHMENT);
-        r.setProperty(descriptionProperty, description);
-        return Stream.of( new FlagAttachmentResult(r));
+        return metrics.track("attachToFlag", () -> {
+            Node f = Util.node(tx, flag);
+            Node a = Util.node(tx, attachmentNode);
+            Relationship r=f.createRelationshipTo(a, HAS_ATTACHMENT);
+            r.setProperty(descriptionProperty, description);
+            return Stream.of( new FlagAttachmentResult(r));
+        });
     }
 
     @Procedure(value = "neo4j.dq.deleteFlags", mode=Mode.WRITE)
     @Description("deletes Data Quality flags")
-    public Stream<LongResult> deleteFlags(@Name("flags") Object flags,
-                                          @Name(value="batchSize", defaultValue="1") long batchSize) {
-        Iterator<Node> it = Util.convertToList(flags).stream().map(id -> Util.node(tx, id)).filter(node -> ((Node) node).hasLabel(DQ_FLAG)).iterator();
-        long count = 0;
-        while (it.hasNext()) {
-            final List<Node> batch = Util.take(it, (int)batchSize);
-            count += Util.inTx(db, threadPool,
-                        (txInThread) -> {
-                            txInThread.execute("FOREACH (n in $nodes | DETACH DELETE n)", Util.map("nodes", batch))
-                                    .close();
-                            return batch.size();
-                        });
-        }
-        return Stream.of(new LongResult(count));
+    public Stream<DeleteResult> deleteFlags(@Name("flags") Object flags,
+                                            @Name(value="batchSize", defaultValue="1000") long batchSize,
+                                            @Name(value="parallelism", defaultValue="0") long parallelism,
+                                            @Name(value="retries", defaultValue="3") long retries,
+                                            @Name(value="targetBatchMillis", defaultValue="500") long targetBatchMillis) {
+        return metrics.track("deleteFlags", () -> {
+            // compact flags are relationships : their ids are set aside while the flag nodes are read, and deleted after them
+            LongArrayList compactIds = new LongArrayList();
+            PrimitiveIterator.OfLong flagIds = Ids.nodeIds(flags, compactIds::add)
+                    .filter(id -> isFlagNode(tx, id))
+                    .iterator();
+            BatchRunner runner = deletionRunner(batchSize, parallelism, retries, targetBatchMillis).expect(Ids.size(flags));
+            deleteFlagNodes(flagIds, runner);
+            return Stream.of(new DeleteResult(deleteCompactFlags(Ids.chunks(compactIds.toArray(), runner::nextBatchSize), runner)));
+        });
     }
 
     @Procedure(value = "neo4j.dq.deleteNodeFlags", mode=Mode.WRITE)
     @Description("deletes all Data Quality flags linked to the given nodes")
-    public Stream<LongResult> deleteNodeFlags(@Name("nodes") Object nodes,
-                                          @Name(value="batchSize", defaultValue="1") long batchSize) {
+    public Stream<DeleteResult> deleteNodeFlags(@Name("nodes") Object nodes,
+                                                @Name(value="batchSize", defaultValue="1000") long batchSize,
+                                                @Name(value="parallelism", defaultValue="0") long parallelism,
+                                                @Name(value="retries", defaultValue="3") long retries,
+                                                @Name(value="targetBatchMillis", defaultValue="500") long targetBatchMillis) {
+        return metrics.track("deleteNodeFlags", () -> {
+            // resolve the flags of each node lazily, as batches get submitted
+            PrimitiveIterator.OfLong flagIds = Ids.nodeIds(nodes)
+                    .flatMap(id -> relationships(tx.getNodeById(id), HAS_DQ_FLAG).mapToLong(Relationship::getEndNodeId))
+                    .iterator();
+            BatchRunner runner = deletionRunner(batchSize, parallelism, retries, targetBatchMillis);
+            deleteFlagNodes(flagIds, runner);
+            PrimitiveIterator.OfLong compactIds = Ids.nodeIds(nodes)
+                    .flatMap(id -> relationships(tx.getNodeById(id), CompactFlags.HAS_DQ_COMPACT_FLAG).mapToLong(Relationship::getId))
+                    .iterator();
+            return Stream.of(new DeleteResult(deleteCompactFlags(compactIds, runner)));
+        });
+    }
 
-        Iterator<Node> it = Util.convertToList(nodes).stream().map(id -> Util.node(tx, id)).iterator();
+    @Procedure(value="neo4j.dq.listFlags")
+    @Description("list DQ flags")
+    public Stream<FlagResult> listFlags(@Name(value="filter", defaultValue="") String filter,
+                                        @Name(value="includeSubclasses", defaultValue="false") boolean includeSubclasses)  {
+        return metrics.track("listFlags", () -> {
+            Stream<FlagResult> flags;
+            Stream<Node> classNodes;
+            if (Util.isNullOrEmpty(filter)) {
+                flags = tx.findNodes(DQ_FLAG).stream().map(c -> new FlagResult(c));
+                classNodes = tx.findNodes(DQ_CLASS).stream();
+            } else {
+                List<Label> labels = flagLabels(filter, includeSubclasses);
+                flags = labels.stream()
+                        .flatMap(label -> tx.findNodes(label).stream().filter(c -> c.hasLabel(DQ_FLAG)))
+                        .map(c -> new FlagResult(c));
+                classNodes = labels.stream().map(label -> findClassNode(tx, label.name())).filter(Objects::nonNull);
+            }
+            // then the compact flags, linked to their class
+            Stream<FlagResult> compactFlags = classNodes
+                    .flatMap(classNode -> StreamSupport.stream(CompactFlags.flags(classNode).spliterator(), false))
+                    .map(FlagResult::new);
+            return Stream.concat(flags, compactFlags);
+        });
+    }
 
-        String query = "UNWIND $nodes as n "
-                    + "MATCH (n)-[:"+HAS_DQ_FLAG.toString()+"]->(flag:"+DQ_FLAG.toString()+") "
-                    + "DETACH DELETE flag ";
+    @Procedure(value="neo4j.dq.nodeFlags")
+    @Description("list the DQ flags of each of the given nodes")
+    public Stream<NodeFlagsResult> nodeFlags(@Name("nodes") Object nodes,
+                                             @Name(value="filter", defaultValue="") String filter,
+                                             @Name(value="includeSubclasses", defaultValue="false") boolean includeSubclasses)  {
+        return metrics.track("nodeFlags", () -> {
+            NodeFlags lookup = nodeFlagsLookup(filter, includeSubclasses)
+                    .run(tx, db, threadPool.getForkJoinPool(), Ids.nodeIds(nodes).toArray(), false);
+            return IntStream.range(0, lookup.size())
+                    .filter(i -> lookup.getCount(i) > 0)
+                    .mapToObj(i -> new NodeFlagsResult(tx, lookup, i));
+        });
+    }
 
-        long count = 0;
-        while (it.hasNext()) {
-            final List<Node> batch = Util.take(it, (int)batchSize);
-
-            count += Util.inTx(db, threadPool,
-                    (txInThread) -> {
-                        txInThread.execute(query, Util.map("nodes", batch))
-                                .close();
-                        return batch.size();
-                    });
-        }
-        return Stream.of(new LongResult(count));
+    @Procedure(value="neo4j.dq.hasFlags")
+    @Description("count the DQ flags of each of the given nodes")
+    public Stream<HasFlagsResult> hasFlags(@Name("nodes") Object nodes,
+                                           @Name(value="filter", defaultValue="") String filter,
+                                           @Name(value="includeSubclasses", defaultValue="false") boolean includeSubclasses)  {
+        return metrics.track("hasFlags", () -> {
+            NodeFlags lookup = nodeFlagsLookup(filter, includeSubclasses)
+                    .run(tx, db, threadPool.getForkJoinPool(), Ids.nodeIds(nodes).toArray(), true);
+            return IntStream.range(0, lookup.size())
+                    .filter(i -> !lookup.isMissing(i))
+                    .mapToObj(i -> new HasFlagsResult(tx.getNodeById(lookup.getNodeId(i)), lookup.getCount(i)));
+        });
     }
 
-    @Procedure(value="neo4j.dq.listFlags")
-    @Description("list DQ flags")
-    public Stream<FlagResult> listFlags(@Name(value="filter", defaultValue="") String filter)  {
-        if (Util.isNullOrEmpty(filter)) {
-            return tx.findNodes(DQ_FLAG).stream().map(c -> new FlagResult(c));
-        } else {
-            return tx.findNodes(DQ_FLAG).stream().filter(c -> c.hasLabel(Label.label(filter))).map(c -> new FlagResult(c));
-        }
+    @Procedure(value="neo4j.dq.listFlagsPage")
+    @Description("list a page of DQ flags, as projected rows")
+    public Stream<FlagRowResult> listFlagsPage(@Name(value="filter", defaultValue="") String filter,
+                                               @Name(value="includeSubclasses", defaultValue="false") boolean includeSubclasses,
+                                               @Name(value="orderBy", defaultValue="id") String orderBy,
+                                               @Name(value="cursor", defaultValue="") String cursor,
+                                               @Name(value="limit", defaultValue="1000") long limit)  {
+        return metrics.track("listFlagsPage", () -> {
+            List<Label> labels = Util.isNullOrEmpty(filter) ? Collections.emptyList() : flagLabels(filter, includeSubclasses);
+            // pages are keyed by flag node, which compact flags aren't : they'd only ever get empty pages
+            for (Label label : labels) {
+                Node classNode = findClassNode(tx, label.name());
+                if (classNode != null && CompactFlags.isCompact(classNode)) {
+                    throw new IllegalArgumentException("Can't page the flags of compact DQ class '"+label.name()+"' : list them with neo4j.dq.listFlags or neo4j.dq.exportFlags");
+                }
+            }
+            return FlagPages.page(db, tx, labels, orderBy, cursor, (int)Math.min(limit, Integer.MAX_VALUE)).stream()
+                    .map(flag -> new FlagRowResult(flag, FlagPages.cursor(flag, orderBy)));
+        });
+    }
+
+    @Procedure(value="neo4j.dq.exportFlags")
+    @Description("Writes DQ flags to a CSV or NDJSON file of the export directory, reading them in parallel")
+    public Stream<ExportResult> exportFlags(@Name("path") String path,
+                                            @Name(value="format", defaultValue="csv") String format,
+                                            @Name(value="filter", defaultValue="") String filter,
+                                            @Name(value="includeSubclasses", defaultValue="false") boolean includeSubclasses,
+                                            @Name(value="parallelism", defaultValue="0") long parallelism) {
+        return metrics.track("exportFlags", () -> {
+            if (database == null) throw new IllegalStateException("DQ is not available for this database");
+            FlagExport.Format exportFormat = FlagExport.format(format);
+            Path file = FlagExport.resolve(database.getExportDirectory(), path);
+            List<Label> labels = Util.isNullOrEmpty(filter) ? Collections.emptyList() : flagLabels(filter, includeSubclasses);
+            int maxInFlight = parallelism > 0 ? (int)parallelism : Runtime.getRuntime().availableProcessors();
+
+            long start = System.nanoTime();
+            FlagExport export = new FlagExport(db, file, exportFormat, log);
+            try {
+                export.run(tx, labels, threadPool.getForkJoinPool(), maxInFlight);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not export flags to "+file+" : "+e.getMessage(), e);
+            }
+            return Stream.of(new ExportResult(export, (System.nanoTime() - start) / 1_000_000));
+        });
+    }
+
+    @Procedure(value="neo4j.dq.importFlags", mode=Mode.WRITE)
+    @Description("Creates DQ flags from the records of a CSV or NDJSON file of the export directory, in parallel batched transactions")
+    public Stream<ImportResult> importFlags(@Name("path") String path,
+                                            @Name(value="format", defaultValue="") String format,
+                                            @Name(value="flagLabel", defaultValue="Generic_Flag") String flagLabel,
+                                            @Name(value="lookupLabel", defaultValue="") String lookupLabel,
+                                            @Name(value="lookupProperty", defaultValue="") String lookupProperty,
+                                            @Name(value="batchSize", defaultValue="1000") long batchSize,
+                                            @Name(value="parallelism", defaultValue="0") long parallelism) {
+        return metrics.track("importFlags", () -> {
+            if (database == null) throw new IllegalStateException("DQ is not available for this database");
+            Path file = FlagExport.resolve(database.getExportDirectory(), path);
+            int maxInFlight = parallelism > 0 ? (int)parallelism : Runtime.getRuntime().availableProcessors();
+            BatchRunner runner = new BatchRunner(db, threadPool, log, maxInFlight).withRetries(DEFAULT_RETRIES);
+
+            // resolve (and commit) each class once, so that all batches can link to it
+            FlagImport flagImport = new FlagImport(db, database, file, FlagImport.format(file, format), dqClass -> Util.inTx(db, threadPool, (txInThread) -> {
+                        Node classNode = findOrCreateClassNode(txInThread, dqClass, null);
+                        return classNode == null ? null : classNode.getId();
+                    }), log)
+                    .withDefaultClass(flagLabel)
+                    .withLookup(lookupLabel, lookupProperty);
+            try {
+                flagImport.run(runner, (int)Math.max(1, Math.min(batchSize, BatchRunner.MAX_BATCH_SIZE)));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not import flags from "+file+" : "+e.getMessage(), e);
+            }
+            return Stream.of(new ImportResult(flagImport, runner));
+        });
     }
 
     @Procedure(value="neo4j.dq.listClasses")
     @Description("list all classes of DQ flags")
-    public Stream<ClassResult> listClasses(@Name(value="filter", defaultValue="") String filter)  {
-        if (Util.isNullOrEmpty(filter)) {
-            return tx.findNodes(DQ_CLASS).stream().map(c -> new ClassResult(c));
-        } else {
+    public Stream<ClassResult> listClasses(@Name(value="filter", defaultValue="") String filter,
+                                           @Name(value="includeSubclasses", defaultValue="false") boolean includeSubclasses)  {
+        return metrics.track("listClasses", () -> {
+            if (Util.isNullOrEmpty(filter)) {
+                return tx.findNodes(DQ_CLASS).stream().map(c -> new ClassResult(c));
+            }
+            ClassTree tree = includeSubclasses ? classTree() : ClassTree.EMPTY;
+            ClassTree.Entry entry = tree.get(filter);
+            if (entry != null) {
+                return classNodes(tree.subtree(entry)).map(c -> new ClassResult(c));
+            }
             return tx.findNodes(DQ_CLASS).stream().filter(c -> c.getProperty(classProperty).equals(filter)).map(c -> new ClassResult(c));
-        }
+        });
     }
 
     @Procedure(value="neo4j.dq.createClass", mode = Mode.WRITE)
@@ -142,26 +407,511 @@ public class DQ  {
     public Stream<ClassResult> createClass(@Name("class") String dqClass,
                                            @Name(value="parentClass", defaultValue = "all") String parentClass,
                                            @Name(value="alertTriggerLimit", defaultValue = "-1") Long alertTriggerLimit,
-                                           @Name(value="description", defaultValue = "") String description)  {
-        Node classNode = findOrCreateClassNode(dqClass, parentClass);
-        if (alertTriggerLimit > 0) classNode.setProperty(alertTriggerLimitProperty, alertTriggerLimit);
-        if (!Util.isNullOrEmpty(description)) classNode.setProperty(descriptionProperty, description);
-        return Stream.of(new ClassResult(classNode));
+                                           @Name(value="description", defaultValue = "") String description,
+                                           @Name(value="shards", defaultValue = "0") long shards,
+                                           @Name(value="compact", defaultValue = "false") boolean compact,
+                                           @Name(value="ttl", defaultValue = "") String ttl)  {
+        return metrics.track("createClass", () -> {
+            long ttlSeconds = FlagReaper.parseTtl(ttl);
+            Node classNode = findOrCreateClassNode(dqClass, parentClass);
+            if (alertTriggerLimit > 0) classNode.setProperty(alertTriggerLimitProperty, alertTriggerLimit);
+            if (!Util.isNullOrEmpty(description)) classNode.setProperty(descriptionProperty, description);
+            if (shards > 0) ClassBuckets.shard(tx, classNode, (int) shards);
+            if (compact) CompactFlags.setCompact(classNode, true);
+            if (ttlSeconds > 0) classNode.setProperty(ttlSecondsProperty, ttlSeconds);
+            return Stream.of(new ClassResult(classNode));
+        });
+    }
+
+    @Procedure(value="neo4j.dq.setClassTtl", mode = Mode.WRITE)
+    @Description("Sets how long the flags of a DQ class, and of its subclasses without a TTL of their own, are kept before being deleted. An empty TTL removes it.")
+    public Stream<ClassResult> setClassTtl(@Name("class") String dqClass,
+                                           @Name(value="ttl", defaultValue = "") String ttl) {
+        return metrics.track("setClassTtl", () -> {
+            long ttlSeconds = FlagReaper.parseTtl(ttl);
+            Node classNode = findClassNode(tx, dqClass);
+            if (classNode == null) return Stream.empty();
+            if (ttlSeconds > 0) classNode.setProperty(ttlSecondsProperty, ttlSeconds);
+            else classNode.removeProperty(ttlSecondsProperty);
+            return Stream.of(new ClassResult(classNode));
+        });
+    }
+
+    @Procedure(value="neo4j.dq.expireFlags", mode = Mode.WRITE)
+    @Description("Deletes the expired flags of the DQ classes with a TTL now, rather than waiting for the next pass of the reaper")
+    public Stream<FlagReaper.ExpireResult> expireFlags() {
+        return metrics.track("expireFlags", () -> {
+            if (database == null) return Stream.empty();
+            return Stream.of(database.getFlagReaper().reap(ZonedDateTime.now()));
+        });
     }
 
     @Procedure(value="neo4j.dq.deleteClass", mode = Mode.WRITE)
-    @Description("Deletes a DQ class and all its flags.")
-    public Stream<LongResult> deleteClass(@Name("class") String dqClass) throws Exception {
-        Node classNode;
-        try {
-            classNode = tx.findNode(DQ_CLASS, classProperty, dqClass);
-        } catch (MultipleFoundException mfe) {
-            log.error("Found multiple 'DQ_Class' nodes with class='"+dqClass+"'.");
-            throw mfe;
+    @Description("Deletes a DQ class and all its flags, and optionally all its subclasses and their flags.")
+    public Stream<DeleteResult> deleteClass(@Name("class") String dqClass,
+                                            @Name(value="batchSize", defaultValue="0") long batchSize,
+                                            @Name(value="parallelism", defaultValue="0") long parallelism,
+                                            @Name(value="includeSubclasses", defaultValue="false") boolean includeSubclasses) throws Exception {
+        return metrics.track("deleteClass", () -> {
+            Node classNode;
+            try {
+                classNode = findClassNode(tx, dqClass);
+            } catch (MultipleFoundException mfe) {
+                log.error("Found multiple 'DQ_Class' nodes with class='"+dqClass+"'.");
+                throw mfe;
+            }
+            if (classNode == null) return Stream.empty();
+
+            // subclasses are deleted before their parent, so that none gets re-attached to the root class
+            List<ClassTree.Entry> classes = new ArrayList<>();
+            ClassTree tree = includeSubclasses ? classTree() : ClassTree.EMPTY;
+            ClassTree.Entry entry = tree.get(classNode.getId());
+            if (entry != null) {
+                classes.addAll(tree.subtree(entry));
+                Collections.reverse(classes);
+            }
+
+            if (batchSize <= 0) {
+                long start = System.nanoTime();
+                long count = classNodes(classes)
+                        .filter(subclass -> subclass.getId() != classNode.getId())
+                        .mapToLong(subclass -> deleteClassNode(tx, subclass))
+                        .sum();
+                count += deleteClassNode(tx, classNode);
+                return Stream.of(new DeleteResult(count, 0, 0, 1, (System.nanoTime() - start) / 1_000_000));
+            }
+            BatchRunner runner = deletionRunner(batchSize, parallelism, DEFAULT_RETRIES, 0);
+            long remaining = 0;
+            long classBatches = 0;
+            for (ClassTree.Entry subclass : classes) {
+                if (subclass == entry) continue;
+                long deleted = deleteClassInBatches(subclass.getName(), subclass.getId(), runner);
+                if (deleted < 0) return Stream.of(new DeleteResult(runner.getSucceeded() + remaining, runner.getRetried(), runner.getFailed(),
+                        runner.getBatches() + classBatches, runner.getElapsedMillis()));
+                remaining += deleted;
+                classBatches += 1;
+            }
+            long deleted = deleteClassInBatches(dqClass, classNode.getId(), runner);
+            if (deleted >= 0) {
+                remaining += deleted;
+                classBatches += 1;
+            }
+            return Stream.of(new DeleteResult(runner.getSucceeded() + remaining, runner.getRetried(), runner.getFailed(),
+                    runner.getBatches() + classBatches, runner.getElapsedMillis()));
+        });
+    }
+
+    @Procedure(value="neo4j.dq.convertFlags", mode = Mode.WRITE)
+    @Description("Makes a DQ class compact (or not), converting its existing flags to compact flags (or back to flag nodes), in parallel batched transactions")
+    public Stream<ConvertResult> convertFlags(@Name("class") String dqClass,
+                                              @Name(value="compact", defaultValue="true") boolean compact,
+                                              @Name(value="batchSize", defaultValue="1000") long batchSize,
+                                              @Name(value="parallelism", defaultValue="0") long parallelism) {
+        return metrics.track("convertFlags", () -> {
+            Node existing = findClassNode(tx, dqClass);
+            if (compact && existing != null && existing.hasRelationship(Direction.INCOMING, DQRule.HAS_DQ_RULE)) {
+                throw new IllegalArgumentException("Can't make DQ class '"+dqClass+"' compact : it has rules, which don't create compact flags");
+            }
+            // new flags get the new representation from now on, the existing ones are converted next
+            Long classId = Util.inTx(db, threadPool, (txInThread) -> {
+                Node classNode = findClassNode(txInThread, dqClass);
+                if (classNode == null) return null;
+                CompactFlags.setCompact(classNode, compact);
+                return classNode.getId();
+            });
+            if (classId == null) return Stream.empty();
+
+            long[] ids = Util.inTx(db, threadPool, (txInThread) -> {
+                Node classNode = txInThread.getNodeById(classId);
+                LongArrayList flagIds = new LongArrayList();
+                if (compact) {
+                    for (Node parent : ClassBuckets.flagParents(classNode)) {
+                        for (Relationship rel : parent.getRelationships(Direction.INCOMING, HAS_DQ_CLASS)) {
+                            if (rel.getStartNode().hasLabel(DQ_FLAG)) flagIds.add(rel.getStartNodeId());
+                        }
+                    }
+                } else {
+                    CompactFlags.flags(classNode).forEach(rel -> flagIds.add(rel.getId()));
+                }
+                return flagIds.toArray();
+            });
+
+            int maxInFlight = parallelism > 0 ? (int)parallelism : Runtime.getRuntime().availableProcessors();
+            BatchRunner runner = new BatchRunner(db, threadPool, log, maxInFlight).withRetries(DEFAULT_RETRIES)
+                    .expect(ids.length);
+            LongAdder skipped = new LongAdder();
+            int size = (int)Math.max(1, Math.min(batchSize, BatchRunner.MAX_BATCH_SIZE));
+            Iterator<Ids.Chunk> chunks = Ids.chunks(ids, () -> size);
+            while (chunks.hasNext()) {
+                final Ids.Chunk batch = chunks.next();
+                // skipped flags are only counted once their batch is committed, as it may be retried
+                final long[] batchSkipped = new long[1];
+                runner.submit(batch.size(), (txInThread) -> {
+                    long done = 0;
+                    batchSkipped[0] = 0;
+                    for (int i = 0; i < batch.size(); i++) {
+                        long id = batch.get(i);
+                        try {
+                            Entity flag = compact
+                                    ? CompactFlags.compact(txInThread.getNodeById(id))
+                                    : CompactFlags.expand(txInThread, txInThread.getRelationshipById(id));
+                            if (flag == null) batchSkipped[0] += 1;
+                        } catch (NotFoundException ignore) {
+                            // deleted meanwhile
+                            batchSkipped[0] += 1;
+                        }
+                        done += 1;
+                    }
+                    return done;
+                }, error -> {
+                    if (error == null) skipped.add(batchSkipped[0]);
+                });
+            }
+            runner.finish();
+            return Stream.of(new ConvertResult(dqClass, compact, runner, skipped.sum()));
+        });
+    }
+
+    @Procedure(value="neo4j.dq.statistics")
+    @Description("Computes statistics about DQ flags in the graph")
+    public Stream<StatsResult> statistics(@Name(value="filter", defaultValue="") String filter,
+                                          @Name(value="mode", defaultValue="counters") String mode,
+                                          @Name(value="includeSubclasses", defaultValue="false") boolean includeSubclasses) throws Exception {
+        return metrics.track("statistics", () -> {
+            String rootClass = Util.isNullOrEmpty(filter) ? "all" : filter;
+            Node root;
+            try {
+                root = findClassNode(tx, rootClass);
+            } catch (MultipleFoundException mfe) {
+                log.error("Found multiple 'DQ_Class' nodes with class='"+rootClass+"'.");
+                throw mfe;
+            }
+            if (root == null) return Stream.empty();
+
+            // one row for the class, followed by one row per subclass
+            ClassTree tree = includeSubclasses ? classTree() : ClassTree.EMPTY;
+            ClassTree.Entry entry = tree.get(root.getId());
+            Stream<Node> classNodes = entry == null ? Stream.of(root) : classNodes(tree.subtree(entry));
+            if (database == null) {
+                return classNodes.map(classNode -> {
+                    long[] counts = ClassStatistics.countFlags(classNode);
+                    return new StatsResult((String)classNode.getProperty(classProperty), counts[0], counts[1]);
+                });
+            }
+
+            FlagCounters counters = database.getFlagCounters();
+            if ("rebuild".equalsIgnoreCase(mode)) {
+                throw new IllegalArgumentException("statistics only reads the flag counters : rebuild them with neo4j.dq.rebuildCounters()");
+            }
+            return classNodes.map(classNode -> {
+                long direct = counters.getDirect(classNode.getId());
+                return new StatsResult((String)classNode.getProperty(classProperty), direct, counters.getTotal(classNode.getId()) - direct);
+            });
+        });
+    }
+
+    @Procedure(value="neo4j.dq.rebuildCounters", mode=Mode.WRITE)
+    @Description("Recomputes the flag counters of every class from the flags in the graph, and persists them")
+    public Stream<LongResult> rebuildCounters() {
+        return metrics.track("rebuildCounters", () -> {
+            if (database == null) throw new IllegalStateException("DQ is not available for this database");
+            // the classes are counted in transactions of their own, which would wait for the locks of this one
+            if (Util.hasChanges(tx)) throw new IllegalStateException("Can't rebuild the flag counters in a transaction with changes");
+            return Stream.of(new LongResult((long) database.getFlagCounters().rebuild()));
+        });
+    }
+
+    @Procedure(value="neo4j.dq.statisticsTree")
+    @Description("Computes statistics about DQ flags for every class of the hierarchy")
+    public Stream<StatsTreeResult> statisticsTree(@Name(value="root", defaultValue="all") String rootClass,
+                                                  @Name(value="mode", defaultValue="counters") String mode) {
+        return metrics.track("statisticsTree", () -> {
+            if (database == null) return Stream.empty();
+            ClassTree tree = database.getClassCache().tree();
+            ClassTree.Entry root = tree.get(Util.isNullOrEmpty(rootClass) ? "all" : rootClass);
+            if (root == null) return Stream.empty();
+
+            ClassStatistics stats = "scan".equalsIgnoreCase(mode)
+                    ? ClassStatistics.scan(db, threadPool.getForkJoinPool(), tree, root)
+                    : ClassStatistics.fromCounters(database.getFlagCounters(), tree, root);
+            return IntStream.range(0, stats.size()).mapToObj(i -> {
+                ClassTree.Entry entry = stats.getClass(i);
+                String parent = entry.getParent() == null ? null : entry.getParent().getName();
+                return new StatsTreeResult(entry.getName(), parent, entry.getDepth(), stats.getDirect(i), stats.getTotal(i) - stats.getDirect(i));
+            });
+        });
+    }
+
+    @Procedure(value="neo4j.dq.schemaStatus")
+    @Description("Reports the state of the indexes backing the DQ model")
+    public Stream<DQSchema.IndexStatusResult> schemaStatus() {
+        return metrics.track("schemaStatus", () -> {
+            return DQSchema.status(tx);
+        });
+    }
+
+    @Procedure(value="neo4j.dq.poolStats")
+    @Description("Reports the activity of the DQ thread pool")
+    public Stream<ThreadPool.PoolStatsResult> poolStats() {
+        return metrics.track("poolStats", () -> {
+            return threadPool.stats();
+        });
+    }
+
+    @Procedure(value="neo4j.dq.submit", mode = Mode.WRITE)
+    @Description("Runs a DQ procedure as a background job, and returns the job at once : poll it with neo4j.dq.jobStatus")
+    public Stream<Jobs.JobResult> submit(@Name("procedure") String procedure,
+                                         @Name(value="args", defaultValue="[]") List<Object> args) {
+        return metrics.track("submit", () -> {
+            return Stream.of(new Jobs.JobResult(threadPool.getJobs().submit((GraphDatabaseAPI) db, securityContext, procedure, args)));
+        });
+    }
+
+    @Procedure(value="neo4j.dq.jobStatus")
+    @Description("Reports the status and progress of a DQ background job")
+    public Stream<Jobs.JobResult> jobStatus(@Name("jobId") long jobId) {
+        return metrics.track("jobStatus", () -> {
+            Jobs.Job job = threadPool.getJobs().get(jobId);
+            return job == null ? Stream.empty() : Stream.of(new Jobs.JobResult(job));
+        });
+    }
+
+    @Procedure(value="neo4j.dq.cancel")
+    @Description("Cancels a DQ background job : a queued job never starts, a running one stops before its next batch")
+    public Stream<Jobs.JobResult> cancel(@Name("jobId") long jobId) {
+        return metrics.track("cancel", () -> {
+            Jobs.Job job = threadPool.getJobs().cancel(jobId);
+            return job == null ? Stream.empty() : Stream.of(new Jobs.JobResult(job));
+        });
+    }
+
+    @Procedure(value="neo4j.dq.listJobs")
+    @Description("Lists the DQ background jobs, queued, running and recently finished")
+    public Stream<Jobs.JobResult> listJobs() {
+        return metrics.track("listJobs", () -> {
+            return threadPool.getJobs().list().map(Jobs.JobResult::new);
+        });
+    }
+
+    @Procedure(value="neo4j.dq.listAlerts")
+    @Description("list DQ alerts, most recent first")
+    public Stream<AlertResult> listAlerts(@Name(value="filter", defaultValue="") String filter,
+                                          @Name(value="includeAcknowledged", defaultValue="true") boolean includeAcknowledged) {
+        return metrics.track("listAlerts", () -> {
+            // make sure alerts raised by already committed transactions are listed
+            if (database != null) database.getAlertEngine().flush();
+            Stream<Node> alerts = Util.isNullOrEmpty(filter)
+                    ? tx.findNodes(AlertEngine.DQ_ALERT).stream()
+                    : tx.findNodes(AlertEngine.DQ_ALERT, classProperty, filter).stream();
+            return alerts
+                    .filter(alert -> includeAcknowledged || !Boolean.TRUE.equals(alert.getProperty(AlertEngine.acknowledgedProperty, false)))
+                    .sorted(Comparator.comparingLong(Node::getId).reversed())
+                    .map(AlertResult::new);
+        });
+    }
+
+    @Procedure(value="neo4j.dq.acknowledgeAlert", mode = Mode.WRITE)
+    @Description("acknowledges a DQ alert")
+    public Stream<AlertResult> acknowledgeAlert(@Name("alert") Object alert) {
+        return metrics.track("acknowledgeAlert", () -> {
+            Node a = Util.node(tx, alert);
+            if (!a.hasLabel(AlertEngine.DQ_ALERT)) return Stream.empty();
+            if (!Boolean.TRUE.equals(a.getProperty(AlertEngine.acknowledgedProperty, false))) {
+                a.setProperty(AlertEngine.acknowledgedProperty, true);
+                a.setProperty(AlertEngine.acknowledgedAtProperty, ZonedDateTime.now());
+            }
+            return Stream.of(new AlertResult(a));
+        });
+    }
+
+    @Procedure(value="neo4j.dq.createRule", mode = Mode.WRITE)
+    @Description("Creates a DQ rule : nodes with the given label breaking it get a flag of the given class when running rules")
+    public Stream<RuleResult> createRule(@Name("name") String name,
+                                         @Name("class") String dqClass,
+                                         @Name("label") String label,
+                                         @Name("type") String type,
+                                         @Name("property") String property,
+                                         @Name(value="parameters", defaultValue="{}") Map<String, Object> parameters,
+                                         @Name(value="description", defaultValue="") String description) {
+        return metrics.track("createRule", () -> {
+            Node classNode = findOrCreateClassNode(dqClass);
+            if (classNode == null) return Stream.empty();
+            return Stream.of(new RuleResult(DQRule.create(tx, name, classNode, label, type, property, parameters, description)));
+        });
+    }
+
+    @Procedure(value="neo4j.dq.listRules")
+    @Description("list DQ rules")
+    public Stream<RuleResult> listRules(@Name(value="filter", defaultValue="") String filter) {
+        return metrics.track("listRules", () -> {
+            Set<String> classes = ruleClasses(filter);
+            return tx.findNodes(DQRule.DQ_RULE).stream()
+                    .filter(rule -> {
+                        Relationship classRel = rule.getSingleRelationship(DQRule.HAS_DQ_RULE, Direction.OUTGOING);
+                        return classes == null || (classRel != null && classes.contains(classRel.getEndNode().getProperty(classProperty, null)));
+                    })
+                    .map(RuleResult::new);
+        });
+    }
+
+    @Procedure(value="neo4j.dq.runRules", mode = Mode.WRITE)
+    @Description("Flags the nodes breaking DQ rules, scanning the nodes of their labels in parallel")
+    public Stream<RuleRunResult> runRules(@Name(value="filter", defaultValue="") String filter,
+                                          @Name(value="batchSize", defaultValue="1000") long batchSize,
+                                          @Name(value="parallelism", defaultValue="0") long parallelism) {
+        return metrics.track("runRules", () -> {
+            List<DQRule> rules = DQRule.load(tx, ruleClasses(filter));
+            int maxInFlight = parallelism > 0 ? (int)parallelism : Runtime.getRuntime().availableProcessors();
+            BatchRunner runner = new BatchRunner(db, threadPool, log, maxInFlight).withRetries(DEFAULT_RETRIES);
+            if (rules.isEmpty()) return Stream.of(new RuleRunResult(0, null, runner));
+
+            FlagIndex flagIndex = database == null ? null : database.getFlagIndex();
+            RuleScan scan = new RuleScan(db, rules, flagIndex, log).start(tx, threadPool.getForkJoinPool(), maxInFlight * 4);
+            try {
+                while (scan.hasNext()) {
+                    final long[] batch = scan.nextBatch((int)batchSize);
+                    runner.submit(batch.length / 2, (txInThread) -> {
+                        Map<Long, Node> classNodes = new HashMap<>();
+                        long created = 0;
+                        for (int i = 0; i < batch.length; i += 2) {
+                            long id = batch[i];
+                            DQRule rule = rules.get((int) batch[i + 1]);
+                            try {
+                                Node classNode = classNodes.computeIfAbsent(rule.getClassId(), txInThread::getNodeById);
+                                // classes with rules can't be compact, see DQRule.create and convertFlags
+                                Node flag = createFlagNode(txInThread, txInThread.getNodeById(id), classNode,
+                                        Label.label(rule.getDqClass()), rule.getFlagDescription());
+                                flag.setProperty(DQRule.ruleProperty, rule.getName());
+                                created += 1;
+                            } catch (NotFoundException nfe) {
+                                log.warn("Can't flag node "+id+" for rule '"+rule.getName()+"' : "+nfe.getMessage());
+                            }
+                        }
+                        return created;
+                    });
+                }
+                runner.finish();
+            } finally {
+                scan.cancel();
+            }
+            return Stream.of(new RuleRunResult(rules.size(), scan, runner));
+        });
+    }
+
+    @Procedure(value="neo4j.dq.metrics")
+    @Description("Reports the calls, rows, errors and latency of every DQ procedure, and of the transactions they commit on the thread pool")
+    public Stream<DQMetrics.MetricsResult> metrics(@Name(value="reset", defaultValue="false") boolean reset) {
+        return metrics.results(reset);
+    }
+
+    @Procedure(value="neo4j.dq.ruleQueueStatus")
+    @Description("Reports whether the incremental rule evaluation keeps up with the committed changes")
+    public Stream<IncrementalRules.StatusResult> ruleQueueStatus() {
+        return metrics.track("ruleQueueStatus", () -> {
+            if (database == null) return Stream.empty();
+            return Stream.of(database.getIncrementalRules().status());
+        });
+    }
+
+    @Procedure(value="neo4j.dq.history")
+    @Description("Flag counts of a class over time, as recorded by the history snapshots")
+    public Stream<HistoryResult> history(@Name("class") String dqClass,
+                                         @Name("from") ZonedDateTime from,
+                                         @Name(value="to", defaultValue="null") ZonedDateTime to,
+                                         @Name(value="resolution", defaultValue="auto") String resolution) {
+        return metrics.track("history", () -> {
+            long now = System.currentTimeMillis() / 1000;
+            long fromSeconds = from.toEpochSecond();
+            long toSeconds = to == null ? now : to.toEpochSecond();
+            HistorySeries.Resolution r;
+            if ("auto".equalsIgnoreCase(resolution)) {
+                r = database == null ? HistorySeries.Resolution.MINUTE : database.getClassHistory().resolutionFor(fromSeconds, now);
+            } else {
+                r = HistorySeries.Resolution.valueOf(resolution.toUpperCase());
+            }
+            return ClassHistory.range(tx, dqClass, fromSeconds, toSeconds, r).stream()
+                    .map(sample -> new HistoryResult(sample, r));
+        });
+    }
+
+    @Procedure(value="neo4j.dq.snapshotHistory", mode = Mode.WRITE)
+    @Description("Records the flag counts of the classes that changed in the history now, without waiting for the next scheduled snapshot")
+    public Stream<LongResult> snapshotHistory() {
+        return metrics.track("snapshotHistory", () -> {
+            if (database == null) return Stream.empty();
+            return Stream.of(new LongResult(database.getClassHistory().snapshot(System.currentTimeMillis() / 1000)));
+        });
+    }
+
+    /**
+     * Deletes the flags of a class in committed batches, then the class itself in a final small transaction.
+     * The class is marked as being deleted first : if interrupted, calling it again resumes with the remaining flags.
+     */
+    private long deleteClassInBatches(String dqClass, long classId, BatchRunner runner) {
+        boolean resumed = Util.inTx(db, threadPool, (txInThread) -> {
+            Node classNode = txInThread.getNodeById(classId);
+            if (classNode.hasProperty(deletingProperty)) return true;
+            classNode.setProperty(deletingProperty, ZonedDateTime.now());
+            return false;
+        });
+        if (resumed) log.info("Resuming the deletion of DQ class '"+dqClass+"'.");
+        if (database != null) runner.expect(database.getFlagCounters().getDirect(classId));
+
+        // collect enough flags to fill all the slots of the runner, and wait for them before collecting the next ones
+        while (true) {
+            int roundSize = runner.nextBatchSize() * runner.getMaxInFlight();
+            long[] flagIds = Util.inTx(db, threadPool, (txInThread) -> {
+                LongArrayList ids = new LongArrayList(roundSize);
+                for (Node parent : ClassBuckets.flagParents(txInThread.getNodeById(classId))) {
+                    Iterator<Relationship> rels = parent.getRelationships(Direction.INCOMING, HAS_DQ_CLASS).iterator();
+                    while (rels.hasNext() && ids.size() < roundSize) {
+                        Node child = rels.next().getStartNode();
+                        if (child.hasLabel(DQ_FLAG)) ids.add(child.getId());
+                    }
+                }
+                return ids.toArray();
+            });
+            if (flagIds.length == 0) break;
+
+            long deletedBefore = runner.getSucceeded();
+            deleteFlagNodes(Ids.chunks(flagIds, runner::nextBatchSize), runner);
+            log.info("Deleting DQ class '"+dqClass+"' : "+runner.getSucceeded()+" flags deleted in "+runner.getElapsedMillis()+" ms.");
+            if (runner.getSucceeded() == deletedBefore) {
+                log.warn("Deleting DQ class '"+dqClass+"' makes no progress, stopping. Call it again to resume.");
+                return -1;
+            }
+        }
+        while (true) {
+            int roundSize = runner.nextBatchSize() * runner.getMaxInFlight();
+            long[] compactIds = Util.inTx(db, threadPool, (txInThread) -> {
+                LongArrayList ids = new LongArrayList(roundSize);
+                Iterator<Relationship> flags = CompactFlags.flags(txInThread.getNodeById(classId)).iterator();
+                while (flags.hasNext() && ids.size() < roundSize) {
+                    ids.add(flags.next().getId());
+                }
+                return ids.toArray();
+            });
+            if (compactIds.length == 0) break;
+
+            long deletedBefore = runner.getSucceeded();
+            deleteCompactFlags(Ids.chunks(compactIds, runner::nextBatchSize), runner);
+            log.info("Deleting DQ class '"+dqClass+"' : "+runner.getSucceeded()+" flags deleted in "+runner.getElapsedMillis()+" ms.");
+            if (runner.getSucceeded() == deletedBefore) {
+                log.warn("Deleting DQ class '"+dqClass+"' makes no progress, stopping. Call it again to resume.");
+                return -1;
+            }
         }
-        if (classNode == null) return Stream.empty();
 
-        Node root=findOrCreateClassNode("all");
+        // flags created in the meantime, if any, are deleted along with the class
+        return Util.inTx(db, threadPool, (txInThread) -> deleteClassNode(txInThread, txInThread.getNodeById(classId)));
+    }
+
+    /**
+     * Deletes a class node, its flags and its rules, re-attaching its child classes to the root class.
+     * @return the number of deleted flags.
+     */
+    private long deleteClassNode(Transaction tx, Node classNode) {
+        Node root=findOrCreateClassNode(tx, "all", null);
 
         Iterator<Relationship> childRels = classNode.getRelationships(Direction.INCOMING, HAS_DQ_CLASS).iterator();
         long count = 0;
@@ -179,71 +929,212 @@ public class DQ  {
             }
         }
 
+        count += ClassBuckets.deleteBuckets(classNode);
+        // compact flags are deleted along with the relationships of the class
+        count += CompactFlags.count(classNode);
+        // rules flag their class only : they'd be left without one
+        for (Relationship ruleRel : classNode.getRelationships(Direction.INCOMING, DQRule.HAS_DQ_RULE)) {
+            Node rule = ruleRel.getStartNode();
+            rule.getRelationships().forEach(Relationship::delete);
+            rule.delete();
+        }
+
         //delete the class
         classNode.getRelationships().forEach(Relationship::delete);
         classNode.delete();
-        return Stream.of(new LongResult(count));
+        return count;
     }
 
-    @Procedure(value="neo4j.dq.statistics")
-    @Description("Computes statistics about DQ flags in the graph")
-    public Stream<StatsResult> statistics(@Name(value="filter", defaultValue="") String filter) throws Exception {
-        if (Util.isNullOrEmpty(filter)) filter= "all";
-        Node root;
+    private BatchRunner deletionRunner(long batchSize, long parallelism, long retries, long targetBatchMillis) {
+        int maxInFlight = parallelism > 0 ? (int)parallelism : Runtime.getRuntime().availableProcessors();
+        return new BatchRunner(db, threadPool, log, maxInFlight)
+                .withBatchSize((int)Math.min(batchSize, BatchRunner.MAX_BATCH_SIZE))
+                .withRetries((int)retries)
+                .withAdaptiveBatchSize(targetBatchMillis);
+    }
+
+    private BatchRunner deleteFlagNodes(PrimitiveIterator.OfLong flagIds, BatchRunner runner) {
+        return deleteFlagNodes(Ids.chunks(flagIds, runner::nextBatchSize), runner);
+    }
+
+    private BatchRunner deleteFlagNodes(Iterator<Ids.Chunk> chunks, BatchRunner runner) {
+        while (chunks.hasNext()) {
+            final Ids.Chunk batch = chunks.next();
+            runner.submit(batch.size(), (txInThread) -> {
+                long deleted = 0;
+                for (int i = 0; i < batch.size(); i++) {
+                    try {
+                        if (deleteFlagNode(txInThread.getNodeById(batch.get(i)))) deleted += 1;
+                    } catch (NotFoundException ignore) {
+                        // already deleted
+                    }
+                }
+                return deleted;
+            });
+        }
+        return runner.finish();
+    }
+
+    private BatchRunner deleteCompactFlags(PrimitiveIterator.OfLong compactIds, BatchRunner runner) {
+        return deleteCompactFlags(Ids.chunks(compactIds, runner::nextBatchSize), runner);
+    }
+
+    private BatchRunner deleteCompactFlags(Iterator<Ids.Chunk> chunks, BatchRunner runner) {
+        while (chunks.hasNext()) {
+            final Ids.Chunk batch = chunks.next();
+            runner.submit(batch.size(), (txInThread) -> {
+                long deleted = 0;
+                for (int i = 0; i < batch.size(); i++) {
+                    try {
+                        Relationship flag = txInThread.getRelationshipById(batch.get(i));
+                        if (!flag.isType(CompactFlags.HAS_DQ_COMPACT_FLAG)) continue;
+                        flag.delete();
+                        deleted += 1;
+                    } catch (NotFoundException ignore) {
+                        // already deleted
+                    }
+                }
+                return deleted;
+            });
+        }
+        return runner.finish();
+    }
+
+    private static boolean isFlagNode(Transaction tx, long id) {
         try {
-            root = tx.findNode(DQ_CLASS, classProperty, filter);
-        } catch (MultipleFoundException mfe) {
-            log.error("Found multiple 'DQ_Class' nodes with class='"+filter+"'.");
-            throw mfe;
+            return tx.getNodeById(id).hasLabel(DQ_FLAG);
+        } catch (NotFoundException e) {
+            return false;
         }
-        if (root == null) return Stream.empty();
+    }
 
-        String dqClass = (String)root.getProperty(classProperty);
-        Map<String, Long> result = countChildrenFlags(root);
-        return Stream.of(new StatsResult(dqClass, result.get("direct"), result.get("indirect")));
+    private static Stream<Relationship> relationships(Node node, RelationshipType type) {
+        return StreamSupport.stream(node.getRelationships(Direction.OUTGOING, type).spliterator(), false);
     }
 
-    //TODO : implement alert system
-    //TODO : implement historical tracking
+    /**
+     * Detach-deletes the node if it is a flag.
+     * @return whether the node was deleted.
+     */
+    static boolean deleteFlagNode(Node flag) {
+        if (!flag.hasLabel(DQ_FLAG)) return false;
+        flag.getRelationships().forEach(Relationship::delete);
+        flag.delete();
+        return true;
+    }
 
-    private Map countChildrenFlags(Node classNode) {
-        long directChildren = 0 ;
-        long indirectChildren = 0;
+    /**
+     * @return a new flag of the class on the node : a compact flag if the class is compact, else a flag node.
+     */
+    static Entity createFlag(Transaction tx, DQDatabase database, Node node, Node classNode, Label label, String description) {
+        if (CompactFlags.isCompact(classNode)) return CompactFlags.create(node, flagParent(tx, database, classNode, node), description);
+        return createFlagNode(tx, database, node, classNode, label, description);
+    }
 
-        Iterator<Relationship> classRels= classNode.getRelationships(Direction.INCOMING, HAS_DQ_CLASS).iterator();
+    private Node createFlagNode(Transaction tx, Node node, Node classNode, Label label, String description) {
+        return createFlagNode(tx, database, node, classNode, label, description);
+    }
 
-        while (classRels.hasNext()) {
-            Relationship classRel = classRels.next();
-            Node startNode = classRel.getStartNode();
-            if (startNode.hasLabel(DQ_FLAG)) {
-                directChildren+=1;
-            } else {
-                Map<String, Long> x = countChildrenFlags(startNode);
-                indirectChildren += x.get("total");
+    static Node createFlagNode(Transaction tx, DQDatabase database, Node node, Node classNode, Label label, String description) {
+        Node flag= tx.createNode(label, DQ_FLAG);
+        flag.createRelationshipTo(flagParent(tx, database, classNode, node), HAS_DQ_CLASS);
+        flag.setProperty(descriptionProperty, description);
+        flag.setProperty(createdProperty, ZonedDateTime.now());
+        node.createRelationshipTo(flag, HAS_DQ_FLAG);
+        return flag;
+    }
+
+    /**
+     * @return the flag of the class on the node, a flag node or a compact flag, or null. The node stays locked until the transaction commits,
+     * so that concurrent merges on the same node wait for the flag to be committed, and indexed.
+     */
+    private Entity findFlag(Transaction tx, Node node, String dqClass) {
+        tx.acquireWriteLock(node);
+        if (database == null) return FlagIndex.scan(node, dqClass);
+        return database.getFlagIndex().find(tx, node, dqClass);
+    }
+
+    /**
+     * @return the node the flag of <code>node</code> links to : the class node, or one of its buckets if the class is sharded.
+     */
+    private static Node flagParent(Transaction tx, DQDatabase database, Node classNode, Node node) {
+        if (ClassBuckets.shards(classNode) == 0) return classNode;
+        ClassTree.Entry entry = database == null ? null : database.getClassCache().tree().get(classNode.getId());
+        return ClassBuckets.target(tx, classNode, node.getId(), entry);
+    }
+
+    /**
+     * @return the class and its subclasses, or null for all classes.
+     */
+    private Set<String> ruleClasses(String filter) {
+        if (Util.isNullOrEmpty(filter)) return null;
+        Set<String> classes = new HashSet<>();
+        flagLabels(filter, true).forEach(label -> classes.add(label.name()));
+        return classes;
+    }
+
+    /**
+     * @return the cached class hierarchy, or the one seen by the current transaction if DQ isn't running for this database.
+     */
+    private ClassTree classTree() {
+        return database != null ? database.getClassCache().tree() : ClassTree.load(tx);
+    }
+
+    /**
+     * @return the nodes of the classes, skipping the ones deleted since the class hierarchy was cached.
+     */
+    private Stream<Node> classNodes(List<ClassTree.Entry> classes) {
+        return classes.stream().map(entry -> {
+            try {
+                return tx.getNodeById(entry.getId());
+            } catch (NotFoundException e) {
+                return null;
             }
+        }).filter(Objects::nonNull);
+    }
+
+    private NodeFlags nodeFlagsLookup(String filter, boolean includeSubclasses) {
+        if (Util.isNullOrEmpty(filter)) return NodeFlags.all();
+        List<Node> classNodes = new ArrayList<>();
+        for (Label label : flagLabels(filter, includeSubclasses)) {
+            Node classNode = findClassNode(tx, label.name());
+            if (classNode != null) classNodes.add(classNode);
         }
-        HashMap<String, Long> stats = new HashMap<>();
-        stats.put("direct", directChildren);
-        stats.put("indirect", indirectChildren);
-        stats.put("total", directChildren + indirectChildren);
+        return NodeFlags.of(classNodes);
+    }
+
+    private List<Label> flagLabels(String dqClass, boolean includeSubclasses) {
+        ClassTree tree = includeSubclasses ? classTree() : ClassTree.EMPTY;
+        ClassTree.Entry entry = tree.get(dqClass);
+        if (entry == null) return Collections.singletonList(Label.label(dqClass));
 
-        return stats ;
+        List<Label> labels = new ArrayList<>();
+        tree.subtree(entry).forEach(c -> labels.add(Label.label(c.getName())));
+        return labels;
     }
+
+    private Node findClassNode(Transaction tx, String label) {
+        if (database == null) return tx.findNode(DQ_CLASS, classProperty, label);
+        return database.getClassCache().find(tx, label);
+    }
+
     private Node findOrCreateClassNode(String label) {
         return findOrCreateClassNode(label, null);
     }
     private Node findOrCreateClassNode(String label, String parentLabel) {
+        return findOrCreateClassNode(tx, label, parentLabel);
+    }
+    private Node findOrCreateClassNode(Transaction tx, String label, String parentLabel) {
         if (Util.isNullOrEmpty(parentLabel)) parentLabel="all";
         Node classNode;
 
         try {
-            classNode = tx.findNode(DQ_CLASS, classProperty, label);
+            classNode = findClassNode(tx, label);
             if (classNode == null) {
                 classNode= tx.createNode(DQ_CLASS);
                 classNode.setProperty(classProperty, label);
-                //classNode.setProperty("flagCount", 0);
                 if (label != "all") {
-                    Node parent = findOrCreateClassNode(parentLabel, "all");
+                    Node parent = findOrCreateClassNode(tx, parentLabel, "all");
                     if (parent != null )  classNode.createRelationshipTo(parent, HAS_DQ_CLASS);
                 }
             }
@@ -258,8 +1149,137 @@ public class DQ  {
     public static class FlagResult {
         // yield
         public final Node flag;
+        public final Relationship compactFlag;
         public FlagResult(Node node) {
             this.flag = node;
+            this.compactFlag = null;
+        }
+        public FlagResult(Relationship compactFlag) {
+            this.flag = null;
+            this.compactFlag = compactFlag;
+        }
+        public FlagResult(Entity flag) {
+            this.flag = flag instanceof Node ? (Node) flag : null;
+            this.compactFlag = flag instanceof Relationship ? (Relationship) flag : null;
+        }
+    }
+    public static class NodeFlagsResult {
+        public final Node node;
+        public final List<Node> flags;
+        public final List<Relationship> compactFlags;
+        public final Long flagCount;
+        public NodeFlagsResult(Transaction tx, NodeFlags lookup, int i) {
+            this.node = tx.getNodeById(lookup.getNodeId(i));
+            // flags deleted since they were looked up are left out
+            this.flags = new ArrayList<>();
+            for (long id : lookup.getFlagIds(i)) {
+                try {
+                    flags.add(tx.getNodeById(id));
+                } catch (NotFoundException ignore) {}
+            }
+            this.compactFlags = new ArrayList<>();
+            for (long id : lookup.getCompactFlagIds(i)) {
+                try {
+                    compactFlags.add(tx.getRelationshipById(id));
+                } catch (NotFoundException ignore) {}
+            }
+            this.flagCount = (long) (flags.size() + compactFlags.size());
+        }
+    }
+    public static class HasFlagsResult {
+        public final Node node;
+        public final Long flagCount;
+        public HasFlagsResult(Node node, long flagCount) {
+            this.node = node;
+            this.flagCount = flagCount;
+        }
+    }
+    public static class FlagRowResult {
+        public final Long flagId;
+        public final String dqClass;
+        public final String description;
+        public final ZonedDateTime created;
+        public final Long nodeId;
+        public final String cursor;
+        public FlagRowResult(Node flag, String cursor) {
+            this.flagId = flag.getId();
+            String dqClass = null;
+            for (Label label : flag.getLabels()) {
+                if (!label.equals(DQ_FLAG)) dqClass = label.name();
+            }
+            this.dqClass = dqClass;
+            this.description = (String) flag.getProperty(descriptionProperty, null);
+            this.created = (ZonedDateTime) flag.getProperty(createdProperty, null);
+            Relationship flagged = flag.getSingleRelationship(HAS_DQ_FLAG, Direction.INCOMING);
+            this.nodeId = flagged == null ? null : flagged.getStartNodeId();
+            this.cursor = cursor;
+        }
+    }
+    public static class ExportResult {
+        public final String file;
+        public final String format;
+        public final Long rows;
+        public final Long bytes;
+        public final Long parts;
+        public final Long elapsedMillis;
+        public ExportResult(FlagExport export, long elapsedMillis) {
+            this.file = export.getFile().toString();
+            this.format = export.getFormat().name().toLowerCase();
+            this.rows = export.getRows();
+            this.bytes = export.getBytes();
+            this.parts = (long) export.getParts();
+            this.elapsedMillis = elapsedMillis;
+        }
+    }
+    public static class ImportResult {
+        public final String file;
+        public final Long rows;
+        public final Long created;
+        public final Long rejected;
+        public final String rejectedFile;
+        public final Long batches;
+        public final Long retried;
+        public final Long elapsedMillis;
+        public final Double rowsPerSecond;
+        public ImportResult(FlagImport flagImport, BatchRunner runner) {
+            this.file = flagImport.getFile().toString();
+            this.rows = flagImport.getRows();
+            this.created = runner.getSucceeded();
+            this.rejected = flagImport.getRejected();
+            this.rejectedFile = rejected > 0 ? flagImport.rejectedFile().toString() : null;
+            this.batches = runner.getBatches();
+            this.retried = runner.getRetried();
+            this.elapsedMillis = runner.getElapsedMillis();
+            this.rowsPerSecond = rows * 1000.0 / Math.max(1, elapsedMillis);
+        }
+    }
+    public static class ConvertResult {
+        public final String dqClass;
+        public final Boolean compact;
+        public final Long converted;
+        public final Long skipped;
+        public final Long failed;
+        public final Long batches;
+        public final Long elapsedMillis;
+        public ConvertResult(String dqClass, boolean compact, BatchRunner runner, long skipped) {
+            this.dqClass = dqClass;
+            this.compact = compact;
+            this.converted = runner.getSucceeded() - skipped;
+            this.skipped = skipped;
+            this.failed = runner.getFailed();
+            this.batches = runner.getBatches();
+            this.elapsedMillis = runner.getElapsedMillis();
+        }
+    }
+    public static class MergeFlagResult {
+        // yield
+        public final Node flag;
+        public final Relationship compactFlag;
+        public final Boolean created;
+        public MergeFlagResult(Entity flag, boolean created) {
+            this.flag = flag instanceof Node ? (Node) flag : null;
+            this.compactFlag = flag instanceof Relationship ? (Relationship) flag : null;
+            this.created = created;
         }
     }
     public static class ClassResult {
@@ -269,6 +1289,41 @@ public class DQ  {
             this.dqClass = node;
         }
     }
+    public static class AlertResult {
+        // yield
+        public final Node alert;
+        public AlertResult(Node node) {
+            this.alert = node;
+        }
+    }
+    public static class RuleResult {
+        // yield
+        public final Node rule;
+        public RuleResult(Node node) {
+            this.rule = node;
+        }
+    }
+    public static class RuleRunResult {
+        public final Long rules;
+        public final Long scanned;
+        public final Long violations;
+        public final Long created;
+        public final Long existing;
+        public final Long failed;
+        public final Long batches;
+        public final Long elapsedMs;
+
+        public RuleRunResult(long rules, RuleScan scan, BatchRunner runner) {
+            this.rules = rules;
+            this.scanned = scan == null ? 0 : scan.getScanned();
+            this.violations = scan == null ? 0 : scan.getViolations() + scan.getExisting();
+            this.existing = scan == null ? 0 : scan.getExisting();
+            this.created = runner.getSucceeded();
+            this.failed = runner.getFailed() + (scan == null ? 0 : scan.getFailedChunks());
+            this.batches = runner.getBatches();
+            this.elapsedMs = runner.getElapsedMillis();
+        }
+    }
     public static class FlagAttachmentResult {
         // yield
         public final Relationship attachment;
@@ -284,6 +1339,81 @@ public class DQ  {
             this.value = value;
         }
     }
+    public static class BulkResult {
+        public final Long created;
+        public final Long failed;
+        public final Long batches;
+        public final Long elapsedMs;
+        public final Double throughput;
+
+        public BulkResult(long created, long failed, long batches, long elapsedMs) {
+            this.created = created;
+            this.failed = failed;
+            this.batches = batches;
+            this.elapsedMs = elapsedMs;
+            this.throughput = elapsedMs == 0 ? (double)created : created * 1000.0 / elapsedMs;
+        }
+    }
+    public static class BulkMergeResult extends BulkResult {
+        public final Long existing;
+
+        public BulkMergeResult(long created, long existing, long failed, long batches, long elapsedMs) {
+            super(created, failed, batches, elapsedMs);
+            this.existing = existing;
+        }
+    }
+    public static class DeleteResult {
+        // deleted flags, as yielded before this summary existed
+        public final Long value;
+        public final Long deleted;
+        public final Long retried;
+        public final Long failed;
+        public final Long batches;
+        public final Long elapsedMs;
+
+        public DeleteResult(long deleted, long retried, long failed, long batches, long elapsedMs) {
+            this.value = deleted;
+            this.deleted = deleted;
+            this.retried = retried;
+            this.failed = failed;
+            this.batches = batches;
+            this.elapsedMs = elapsedMs;
+        }
+
+        public DeleteResult(BatchRunner runner) {
+            this(runner.getSucceeded(), runner.getRetried(), runner.getFailed(), runner.getBatches(), runner.getElapsedMillis());
+        }
+    }
+    public static class HistoryResult {
+        public final ZonedDateTime time;
+        public final String resolution;
+        public final Long directFlagCount;
+        public final Long totalFlagCount;
+
+        public HistoryResult(long[] sample, HistorySeries.Resolution resolution) {
+            this.time = ZonedDateTime.ofInstant(Instant.ofEpochSecond(sample[0]), ZoneOffset.UTC);
+            this.resolution = resolution.name();
+            this.directFlagCount = sample[1];
+            this.totalFlagCount = sample[2];
+        }
+    }
+    public static class StatsTreeResult {
+        public final String dqClass;
+        public final String parentClass;
+        public final Long depth;
+        public final Long directFlagCount;
+        public final Long indirectFlagCount;
+        public final Long totalFlagCount;
+
+        public StatsTreeResult(String dqClass, String parentClass, long depth, long directFlagCount, long indirectFlagCount) {
+            this.dqClass = dqClass;
+            this.parentClass = parentClass;
+            this.depth = depth;
+            this.directFlagCount = directFlagCount;
+            this.indirectFlagCount = indirectFlagCount;
+            this.totalFlagCount = directFlagCount + indirectFlagCount;
+        }
+    }
     public static class StatsResult {
         public final String dqClass;
         public final Long directFlagCount;
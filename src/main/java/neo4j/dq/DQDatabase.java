@@ -0,0 +1,164 @@
+package neo4j.dq;
+
+import org.neo4j.configuration.Config;
+import org.neo4j.configuration.GraphDatabaseSettings;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.logging.Log;
+import org.neo4j.service.Services;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * DQ state kept for a single database : the class hierarchy cache, the flag counters and index, the alert engine, the history recorder,
+ * the incremental rule evaluation, the reaper of expired flags, and the transaction listener maintaining them.
+ */
+public class DQDatabase {
+
+    private final GraphDatabaseAPI db;
+    private final Log log;
+    private final ClassCache classCache;
+    private final FlagCounters flagCounters;
+    private final FlagIndex flagIndex;
+    private final AlertEngine alertEngine;
+    private final ClassHistory classHistory;
+    private final IncrementalRules incrementalRules;
+    private final FlagReaper flagReaper;
+    private final DQTransactionListener transactionListener;
+    private final Path exportDirectory;
+    private final AtomicBoolean starting = new AtomicBoolean();
+    private final CompletableFuture<Void> started = new CompletableFuture<>();
+
+    public DQDatabase(GraphDatabaseAPI db, Supplier<Executor> executor, Log log) {
+        this(db, executor, null, log, Config.defaults());
+    }
+
+    public DQDatabase(GraphDatabaseAPI db, Supplier<Executor> executor, Supplier<ScheduledExecutorService> scheduler, Log log, Config config) {
+        this.db = db;
+        this.log = log;
+        this.classCache = new ClassCache(db, log);
+        this.flagCounters = new FlagCounters(db, classCache, executor, log);
+        this.flagIndex = new FlagIndex(db, executor, log);
+        this.alertEngine = new AlertEngine(db, db.databaseName(), classCache, flagCounters, executor,
+                alertSinks(config, log), config.get(DQSettings.alerts_enabled), log);
+        this.classHistory = new ClassHistory(db, classCache, flagCounters, scheduler, executor,
+                config.get(DQSettings.history_interval), config.get(DQSettings.history_minute_retention),
+                config.get(DQSettings.history_hour_retention), config.get(DQSettings.history_day_retention), log);
+        this.incrementalRules = new IncrementalRules(db, this, executor, config.get(DQSettings.rules_incremental),
+                config.get(DQSettings.rules_batch_size), config.get(DQSettings.rules_queue_size), log);
+        this.flagReaper = new FlagReaper(db, classCache, scheduler, executor, config.get(DQSettings.ttl_interval),
+                config.get(DQSettings.ttl_batch_size), config.get(DQSettings.ttl_max_rate), log);
+        this.transactionListener = new DQTransactionListener(this);
+        this.exportDirectory = exportDirectory(config);
+    }
+
+    private static Path exportDirectory(Config config) {
+        Path directory = config.get(DQSettings.export_directory);
+        if (directory == null) directory = config.get(GraphDatabaseSettings.load_csv_file_url_root);
+        if (directory == null) directory = config.get(GraphDatabaseSettings.neo4j_home).resolve("import");
+        return directory;
+    }
+
+    private static List<AlertSink> alertSinks(Config config, Log log) {
+        List<AlertSink> sinks = new ArrayList<>();
+        sinks.add(new LogAlertSink(log));
+        Path file = config.get(DQSettings.alerts_file);
+        if (file != null) sinks.add(new FileAlertSink(file, log));
+        sinks.addAll(Services.loadAll(AlertSink.class));
+        return sinks;
+    }
+
+    /**
+     * Makes sure the DQ schema exists, and loads the state that can't be lazily built, before transactions start being tracked.
+     */
+    public void start() {
+        DQSchema.ensure(db, log);
+        flagCounters.load();
+        alertEngine.load();
+        classHistory.start();
+        flagReaper.start();
+    }
+
+    /**
+     * Runs <code>startup</code> on the first call ; the other calls wait for it to be done, and fail if it failed.
+     */
+    public void startOnce(Runnable startup) {
+        if (starting.compareAndSet(false, true)) {
+            try {
+                startup.run();
+                started.complete(null);
+            } catch (RuntimeException | Error e) {
+                started.completeExceptionally(e);
+                throw e;
+            }
+            return;
+        }
+        try {
+            started.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Persists whatever state is still only held in memory.
+     */
+    public void stop() {
+        flagReaper.stop();
+        classHistory.stop();
+        incrementalRules.flush();
+        flagCounters.stop();
+        alertEngine.flush();
+    }
+
+    public String getName() {
+        return db.databaseName();
+    }
+
+    public ClassCache getClassCache() {
+        return classCache;
+    }
+
+    public FlagCounters getFlagCounters() {
+        return flagCounters;
+    }
+
+    public FlagIndex getFlagIndex() {
+        return flagIndex;
+    }
+
+    public AlertEngine getAlertEngine() {
+        return alertEngine;
+    }
+
+    public ClassHistory getClassHistory() {
+        return classHistory;
+    }
+
+    public IncrementalRules getIncrementalRules() {
+        return incrementalRules;
+    }
+
+    public FlagReaper getFlagReaper() {
+        return flagReaper;
+    }
+
+    /**
+     * @return the directory flag files are exported to.
+     */
+    public Path getExportDirectory() {
+        return exportDirectory;
+    }
+
+    public DQTransactionListener getTransactionListener() {
+        return transactionListener;
+    }
+}
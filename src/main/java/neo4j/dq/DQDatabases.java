@@ -0,0 +1,124 @@
+package neo4j.dq;
+
+import org.neo4j.configuration.Config;
+import org.neo4j.dbms.api.DatabaseManagementService;
+import org.neo4j.graphdb.event.DatabaseEventContext;
+import org.neo4j.graphdb.event.DatabaseEventListener;
+import org.neo4j.internal.kernel.api.exceptions.ProcedureException;
+import org.neo4j.kernel.api.procedure.GlobalProcedures;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.kernel.lifecycle.LifecycleAdapter;
+import org.neo4j.logging.Log;
+import org.neo4j.logging.internal.LogService;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Supplier;
+
+import static org.neo4j.configuration.GraphDatabaseSettings.SYSTEM_DATABASE_NAME;
+
+/**
+ * Keeps one {@link DQDatabase} per started database, exposed to procedures via `@Context DQDatabase` injection.
+ */
+public class DQDatabases extends LifecycleAdapter implements DatabaseEventListener {
+
+    private final Log log;
+    private final GlobalProcedures globalProceduresRegistry;
+    private final Supplier<DatabaseManagementService> managementService;
+    private final Config config;
+    private final Map<String, DQDatabase> databases = new ConcurrentHashMap<>();
+
+    public DQDatabases(LogService log, GlobalProcedures globalProceduresRegistry, Supplier<DatabaseManagementService> managementService, Config config) {
+        this.log = log.getInternalLog(DQDatabases.class);
+        this.globalProceduresRegistry = globalProceduresRegistry;
+        this.managementService = managementService;
+        this.config = config;
+
+        // expose the per-database state via `@Context DQDatabase database` injection
+        globalProceduresRegistry.registerComponent(DQDatabase.class, ctx -> get(ctx.graphDatabaseAPI()), true);
+        this.log.info("successfully registered DQ databases for @Context");
+    }
+
+    @Override
+    public void init() {
+        managementService.get().registerDatabaseEventListener(this);
+    }
+
+    @Override
+    public void shutdown() {
+        managementService.get().unregisterDatabaseEventListener(this);
+        databases.keySet().forEach(this::remove);
+    }
+
+    public DQDatabase get(GraphDatabaseAPI db) {
+        if (SYSTEM_DATABASE_NAME.equals(db.databaseName())) return null;
+        String name = db.databaseName();
+        // created under the lock of the map, but started outside of it : starting waits for the schema, and loads the state
+        DQDatabase database = databases.computeIfAbsent(name, n -> new DQDatabase(db, this::executor, this::scheduler, log, config));
+        try {
+            database.startOnce(() -> {
+                // tracked before the state is loaded, so that no flag committed meanwhile is missed
+                managementService.get().registerTransactionEventListener(name, database.getTransactionListener());
+                database.start();
+                database.getFlagIndex().load();
+            });
+        } catch (RuntimeException e) {
+            // the next call starts a new one
+            if (databases.remove(name, database)) {
+                try {
+                    managementService.get().unregisterTransactionEventListener(name, database.getTransactionListener());
+                } catch (Exception ignore) {
+                    // not registered
+                }
+            }
+            throw e;
+        }
+        return database;
+    }
+
+    private void remove(String name) {
+        DQDatabase database = databases.remove(name);
+        if (database == null) return;
+        try {
+            managementService.get().unregisterTransactionEventListener(name, database.getTransactionListener());
+            database.stop();
+        } catch (Exception e) {
+            log.warn("Could not stop DQ for database '"+name+"' : "+e.getMessage());
+        }
+    }
+
+    private Executor executor() {
+        return threadPool().getExecutorService();
+    }
+
+    private ScheduledExecutorService scheduler() {
+        return threadPool().getScheduledExecutorService();
+    }
+
+    private ThreadPool threadPool() {
+        try {
+            return globalProceduresRegistry.lookupComponentProvider(ThreadPool.class, true).apply(null);
+        } catch (ProcedureException e) {
+            throw new IllegalStateException("DQ thread pool is not available", e);
+        }
+    }
+
+    @Override
+    public void databaseStart(DatabaseEventContext eventContext) {
+        String name = eventContext.getDatabaseName();
+        if (SYSTEM_DATABASE_NAME.equals(name)) return;
+        get((GraphDatabaseAPI) managementService.get().database(name));
+    }
+
+    @Override
+    public void databaseShutdown(DatabaseEventContext eventContext) {
+        remove(eventContext.getDatabaseName());
+    }
+
+    @Override
+    public void databasePanic(DatabaseEventContext eventContext) {
+        remove(eventContext.getDatabaseName());
+    }
+}
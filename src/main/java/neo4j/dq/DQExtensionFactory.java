@@ -0,0 +1,32 @@
+package neo4j.dq;
+
+import org.neo4j.annotations.service.ServiceProvider;
+import org.neo4j.configuration.Config;
+import org.neo4j.dbms.api.DatabaseManagementService;
+import org.neo4j.kernel.api.procedure.GlobalProcedures;
+import org.neo4j.kernel.extension.ExtensionFactory;
+import org.neo4j.kernel.extension.ExtensionType;
+import org.neo4j.kernel.extension.context.ExtensionContext;
+import org.neo4j.kernel.lifecycle.Lifecycle;
+import org.neo4j.logging.internal.LogService;
+
+@ServiceProvider
+public class DQExtensionFactory extends ExtensionFactory<DQExtensionFactory.Dependencies> {
+
+    public DQExtensionFactory() {
+        super(ExtensionType.GLOBAL, "DQ_DATABASES");
+    }
+
+    public interface Dependencies {
+        GlobalProcedures globalProceduresRegistry();
+        DatabaseManagementService databaseManagementService();
+        LogService log();
+        Config config();
+    }
+
+    @Override
+    public Lifecycle newInstance(ExtensionContext context, Dependencies dependencies) {
+        return new DQDatabases(dependencies.log(), dependencies.globalProceduresRegistry(), dependencies::databaseManagementService, dependencies.config());
+    }
+
+}
@@ -0,0 +1,229 @@
+package neo4j.dq;
+
+import org.neo4j.logging.Log;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Calls, rows, errors and latency of every DQ procedure and of the transactions they commit on the thread pool,
+ * kept in lock-free counters and histograms. Reported by <code>neo4j.dq.metrics</code>, and optionally appended to CSV files.
+ */
+public class DQMetrics {
+
+    public static final String PROCEDURES_FILE = "dq.procedures.csv";
+    public static final String POOL_FILE = "dq.pool.csv";
+
+    private final boolean enabled;
+    private final Log log;
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    private ScheduledFuture<?> reporter;
+
+    public DQMetrics(boolean enabled, Log log) {
+        this.enabled = enabled;
+        this.log = log;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Runs a procedure, timing it until its result stream is exhausted or closed, and counting its rows.
+     * Failures, whether thrown by the procedure itself or while streaming its results, are counted as errors.
+     */
+    public <T> Stream<T> track(String name, Supplier<Stream<T>> procedure) {
+        if (!enabled) return procedure.get();
+        Timer timer = timer(name);
+        long start = System.nanoTime();
+        Stream<T> stream;
+        try {
+            stream = procedure.get();
+        } catch (RuntimeException | Error e) {
+            timer.record(System.nanoTime() - start, 0, true);
+            throw e;
+        }
+        TrackedSpliterator<T> tracked = new TrackedSpliterator<>(stream.iterator(), timer, start);
+        return StreamSupport.stream(tracked, false).onClose(() -> {
+            tracked.done(false);
+            stream.close();
+        });
+    }
+
+    /**
+     * Records a unit of work that isn't a procedure call, e.g. a batch committed on the thread pool.
+     */
+    public void record(String name, long nanos, long rows, boolean error) {
+        if (enabled) timer(name).record(nanos, rows, error);
+    }
+
+    private Timer timer(String name) {
+        Timer timer = timers.get(name);
+        return timer != null ? timer : timers.computeIfAbsent(name, n -> new Timer());
+    }
+
+    public Stream<MetricsResult> results(boolean reset) {
+        List<MetricsResult> results = new ArrayList<>();
+        new TreeMap<>(timers).forEach((name, timer) -> {
+            results.add(new MetricsResult(name, timer));
+            if (reset) timer.reset();
+        });
+        return results.stream();
+    }
+
+    /**
+     * Appends the metrics to the CSV files of <code>directory</code> every <code>interval</code>.
+     */
+    public synchronized void startReporting(ScheduledExecutorService scheduler, Path directory, Duration interval, Supplier<ThreadPool.PoolStatsResult> pool) {
+        if (!enabled || interval.isZero() || interval.isNegative() || reporter != null) return;
+        long millis = interval.toMillis();
+        reporter = scheduler.scheduleAtFixedRate(() -> {
+            try {
+                report(directory, System.currentTimeMillis() / 1000, pool.get());
+            } catch (Exception e) {
+                log.warn("Could not write DQ metrics to "+directory+" : "+e.getMessage());
+            }
+        }, millis, millis, TimeUnit.MILLISECONDS);
+        log.info("DQ metrics written to "+directory+" every "+interval);
+    }
+
+    public synchronized void stopReporting() {
+        if (reporter != null) reporter.cancel(false);
+        reporter = null;
+    }
+
+    /**
+     * Appends a line per procedure to {@value #PROCEDURES_FILE}, and a line of thread pool statistics to {@value #POOL_FILE}.
+     */
+    public void report(Path directory, long time, ThreadPool.PoolStatsResult pool) throws IOException {
+        Files.createDirectories(directory);
+        append(directory.resolve(PROCEDURES_FILE), "t,name,calls,rows,errors,mean_ms,p50_ms,p95_ms,p99_ms,max_ms", writer -> {
+            results(false).forEach(m -> line(writer, time, m.name, m.calls, m.rows, m.errors, m.meanMs, m.p50Ms, m.p95Ms, m.p99Ms, m.maxMs));
+        });
+        if (pool == null) return;
+        append(directory.resolve(POOL_FILE), "t,pool_size,active_threads,queue_size,completed_tasks,rejected_tasks", writer ->
+                line(writer, time, pool.poolSize, pool.activeThreads, pool.queueSize, pool.completedTasks, pool.rejectedTasks));
+    }
+
+    private static void append(Path file, String header, Consumer<Writer> lines) throws IOException {
+        boolean exists = Files.exists(file);
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            if (!exists) writer.write(header + "\n");
+            lines.accept(writer);
+        }
+    }
+
+    private static void line(Writer writer, Object... values) {
+        StringJoiner line = new StringJoiner(",", "", "\n");
+        for (Object value : values) {
+            line.add(value instanceof Double ? String.format(Locale.ROOT, "%.3f", value) : String.valueOf(value));
+        }
+        try {
+            writer.write(line.toString());
+        } catch (IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+    }
+
+    static class Timer {
+        final LongAdder calls = new LongAdder();
+        final LongAdder rows = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        void record(long nanos, long rowCount, boolean error) {
+            calls.increment();
+            rows.add(rowCount);
+            if (error) errors.increment();
+            latency.record(nanos);
+        }
+
+        void reset() {
+            calls.reset();
+            rows.reset();
+            errors.reset();
+            latency.reset();
+        }
+    }
+
+    /**
+     * Counts the rows of a result stream, and records the call once the stream is exhausted, fails, or is closed.
+     */
+    private static class TrackedSpliterator<T> extends Spliterators.AbstractSpliterator<T> {
+        private final Iterator<T> iterator;
+        private final Timer timer;
+        private final long start;
+        private long rows;
+        private boolean done;
+
+        TrackedSpliterator(Iterator<T> iterator, Timer timer, long start) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED);
+            this.iterator = iterator;
+            this.timer = timer;
+            this.start = start;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            try {
+                if (!iterator.hasNext()) {
+                    done(false);
+                    return false;
+                }
+                T row = iterator.next();
+                rows++;
+                action.accept(row);
+                return true;
+            } catch (RuntimeException | Error e) {
+                done(true);
+                throw e;
+            }
+        }
+
+        void done(boolean error) {
+            if (done) return;
+            done = true;
+            timer.record(System.nanoTime() - start, rows, error);
+        }
+    }
+
+    public static class MetricsResult {
+        public final String name;
+        public final Long calls;
+        public final Long rows;
+        public final Long errors;
+        public final Double meanMs;
+        public final Double p50Ms;
+        public final Double p95Ms;
+        public final Double p99Ms;
+        public final Double maxMs;
+
+        MetricsResult(String name, Timer timer) {
+            this.name = name;
+            this.calls = timer.calls.sum();
+            this.rows = timer.rows.sum();
+            this.errors = timer.errors.sum();
+            this.meanMs = timer.latency.getMean() / 1e6;
+            this.p50Ms = timer.latency.getPercentile(50) / 1e6;
+            this.p95Ms = timer.latency.getPercentile(95) / 1e6;
+            this.p99Ms = timer.latency.getPercentile(99) / 1e6;
+            this.maxMs = timer.latency.getMax() / 1e6;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package neo4j.dq;
+
+import org.neo4j.graphdb.*;
+
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static neo4j.dq.DQ.*;
+
+/**
+ * A data quality rule on the nodes with a given label, stored as a <code>(:DQ_Rule)-[:HAS_DQ_RULE]->(:DQ_Class)</code> node.
+ * Nodes breaking the rule get a flag of that class.
+ */
+public class DQRule {
+
+    public static final Label DQ_RULE = Label.label("DQ_Rule");
+    public static final RelationshipType HAS_DQ_RULE = RelationshipType.withName("HAS_DQ_RULE");
+
+    public static final String nameProperty = "name";
+    public static final String labelProperty = "label";
+    public static final String typeProperty = "type";
+    public static final String propertyProperty = "property";
+    public static final String patternProperty = "pattern";
+    public static final String minProperty = "min";
+    public static final String maxProperty = "max";
+    // set on the flags created by a rule
+    public static final String ruleProperty = "rule";
+
+    public enum Type {
+        /** the property must exist */
+        EXISTS,
+        /** the property, if it exists, must match the regular expression <code>pattern</code> */
+        REGEX,
+        /** the property, if it exists, must be a number between <code>min</code> and <code>max</code> (inclusive, each optional) */
+        RANGE
+    }
+
+    private final long id;
+    private final String name;
+    private final long classId;
+    private final String dqClass;
+    private final String label;
+    private final Type type;
+    private final String property;
+    private final Pattern pattern;
+    private final Double min;
+    private final Double max;
+    private final String description;
+
+    private DQRule(long id, String name, long classId, String dqClass, String label, Type type, String property,
+                   Pattern pattern, Double min, Double max, String description) {
+        this.id = id;
+        this.name = name;
+        this.classId = classId;
+        this.dqClass = dqClass;
+        this.label = label;
+        this.type = type;
+        this.property = property;
+        this.pattern = pattern;
+        this.min = min;
+        this.max = max;
+        this.description = description;
+    }
+
+    /**
+     * @return whether the node breaks the rule. The node is expected to have the label of the rule.
+     */
+    public boolean isViolatedBy(Node node) {
+        Object value = node.getProperty(property, null);
+        switch (type) {
+            case EXISTS:
+                return value == null;
+            case REGEX:
+                return value != null && !pattern.matcher(value.toString()).matches();
+            case RANGE:
+                if (value == null) return false;
+                if (!(value instanceof Number)) return true;
+                double number = ((Number) value).doubleValue();
+                return (min != null && number < min) || (max != null && number > max);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Validates and stores a new rule.
+     */
+    public static Node create(Transaction tx, String name, Node classNode, String label, String type, String property,
+                              Map<String, Object> parameters, String description) {
+        if (Util.isNullOrEmpty(name)) throw new IllegalArgumentException("A DQ rule needs a name");
+        if (tx.findNode(DQ_RULE, nameProperty, name) != null) throw new IllegalArgumentException("DQ rule '"+name+"' already exists");
+        // rule flags are flag nodes, marked with the rule that created them
+        if (CompactFlags.isCompact(classNode)) {
+            throw new IllegalArgumentException("DQ rule '"+name+"' can't flag class '"+classNode.getProperty(classProperty, "")+"' : rules don't create compact flags");
+        }
+        Node rule = tx.createNode(DQ_RULE);
+        rule.setProperty(nameProperty, name);
+        rule.setProperty(labelProperty, label);
+        rule.setProperty(typeProperty, parseType(type).name());
+        rule.setProperty(propertyProperty, property);
+        for (String key : List.of(patternProperty, minProperty, maxProperty)) {
+            Object value = parameters.get(key);
+            if (value != null) rule.setProperty(key, value);
+        }
+        if (!Util.isNullOrEmpty(description)) rule.setProperty(descriptionProperty, description);
+        rule.createRelationshipTo(classNode, HAS_DQ_RULE);
+        // fail now rather than when running rules
+        of(rule);
+        return rule;
+    }
+
+    /**
+     * @return the rules of the given classes, or all rules if <code>classes</code> is null.
+     */
+    public static List<DQRule> load(Transaction tx, Set<String> classes) {
+        List<DQRule> rules = new ArrayList<>();
+        try (ResourceIterator<Node> nodes = tx.findNodes(DQ_RULE)) {
+            while (nodes.hasNext()) {
+                DQRule rule = of(nodes.next());
+                if (rule != null && (classes == null || classes.contains(rule.dqClass))) rules.add(rule);
+            }
+        }
+        return rules;
+    }
+
+    /**
+     * @return the rule stored on the node, or null if it isn't linked to a class.
+     */
+    public static DQRule of(Node rule) {
+        Relationship classRel = rule.getSingleRelationship(HAS_DQ_RULE, Direction.OUTGOING);
+        if (classRel == null) return null;
+        Node classNode = classRel.getEndNode();
+        Type type = parseType((String) rule.getProperty(typeProperty, null));
+        String property = (String) rule.getProperty(propertyProperty, null);
+        if (Util.isNullOrEmpty(property)) throw new IllegalArgumentException("DQ rule '"+rule.getProperty(nameProperty, "")+"' needs a property");
+
+        Pattern pattern = null;
+        if (type == Type.REGEX) {
+            Object regex = rule.getProperty(patternProperty, null);
+            if (regex == null) throw new IllegalArgumentException("DQ rule of type REGEX needs a 'pattern' parameter");
+            try {
+                pattern = Pattern.compile(regex.toString());
+            } catch (PatternSyntaxException e) {
+                throw new IllegalArgumentException("Invalid 'pattern' for DQ rule : "+e.getMessage(), e);
+            }
+        }
+        Double min = number(rule.getProperty(minProperty, null));
+        Double max = number(rule.getProperty(maxProperty, null));
+        if (type == Type.RANGE && min == null && max == null) throw new IllegalArgumentException("DQ rule of type RANGE needs a 'min' or 'max' parameter");
+
+        return new DQRule(rule.getId(), (String) rule.getProperty(nameProperty, ""), classNode.getId(),
+                (String) classNode.getProperty(classProperty, null), (String) rule.getProperty(labelProperty, null),
+                type, property, pattern, min, max, (String) rule.getProperty(descriptionProperty, null));
+    }
+
+    private static Type parseType(String type) {
+        try {
+            return Type.valueOf(String.valueOf(type).toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown DQ rule type '"+type+"', expected one of "+Arrays.toString(Type.values()));
+        }
+    }
+
+    private static Double number(Object value) {
+        if (value == null) return null;
+        if (value instanceof Number) return ((Number) value).doubleValue();
+        throw new IllegalArgumentException("Expected a number, got '"+value+"'");
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getClassId() {
+        return classId;
+    }
+
+    public String getDqClass() {
+        return dqClass;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getProperty() {
+        return property;
+    }
+
+    /**
+     * @return the description given to the flags of the rule.
+     */
+    public String getFlagDescription() {
+        if (!Util.isNullOrEmpty(description)) return description;
+        switch (type) {
+            case EXISTS:
+                return label+"."+property+" is missing";
+            case REGEX:
+                return label+"."+property+" doesn't match "+pattern.pattern();
+            default:
+                return label+"."+property+" is out of range ["+(min == null ? "" : min)+", "+(max == null ? "" : max)+"]";
+        }
+    }
+}
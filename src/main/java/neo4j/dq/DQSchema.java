@@ -0,0 +1,152 @@
+package neo4j.dq;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.schema.ConstraintDefinition;
+import org.neo4j.graphdb.schema.ConstraintType;
+import org.neo4j.graphdb.schema.IndexDefinition;
+import org.neo4j.graphdb.schema.Schema;
+import org.neo4j.internal.helpers.collection.Iterables;
+import org.neo4j.logging.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static neo4j.dq.DQ.*;
+
+/**
+ * Schema the DQ procedures rely on : a uniqueness constraint on DQ_Class(class), so that every class lookup is an index seek
+ * and classes can't be duplicated, an index on DQ_Flag(created) for range queries on flag creation time,
+ * and an index on DQ_History(class) for the lookups of the history snapshots.
+ */
+public class DQSchema {
+
+    public static final String CLASS_CONSTRAINT = "dq_class_unique";
+    public static final String CREATED_INDEX = "dq_flag_created";
+    public static final String HISTORY_INDEX = "dq_history_class";
+
+    private static final long ONLINE_TIMEOUT_SECONDS = 300;
+
+    /**
+     * Creates the DQ constraint and index if they don't exist, and waits for them to be online.
+     */
+    public static void ensure(GraphDatabaseService db, Log log) {
+        try (Transaction tx = db.beginTx()) {
+            if (!hasUniqueClassConstraint(tx)) {
+                tx.schema().constraintFor(DQ_CLASS).assertPropertyIsUnique(classProperty).withName(CLASS_CONSTRAINT).create();
+                log.info("Creating DQ constraint '"+CLASS_CONSTRAINT+"'");
+            }
+            tx.commit();
+        } catch (Exception e) {
+            log.error("Could not create DQ constraint on :"+DQ_CLASS.name()+"("+classProperty+") ; check for duplicate classes : "+e.getMessage());
+        }
+
+        try (Transaction tx = db.beginTx()) {
+            if (!hasIndex(tx, DQ_FLAG, createdProperty)) {
+                tx.schema().indexFor(DQ_FLAG).on(createdProperty).withName(CREATED_INDEX).create();
+                log.info("Creating DQ index '"+CREATED_INDEX+"'");
+            }
+            tx.commit();
+        } catch (Exception e) {
+            log.error("Could not create DQ index on :"+DQ_FLAG.name()+"("+createdProperty+") : "+e.getMessage());
+        }
+
+        try (Transaction tx = db.beginTx()) {
+            if (!hasIndex(tx, ClassHistory.DQ_HISTORY, classProperty)) {
+                tx.schema().indexFor(ClassHistory.DQ_HISTORY).on(classProperty).withName(HISTORY_INDEX).create();
+                log.info("Creating DQ index '"+HISTORY_INDEX+"'");
+            }
+            tx.commit();
+        } catch (Exception e) {
+            log.error("Could not create DQ index on :"+ClassHistory.DQ_HISTORY.name()+"("+classProperty+") : "+e.getMessage());
+        }
+
+        try (Transaction tx = db.beginTx()) {
+            tx.schema().awaitIndexesOnline(ONLINE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            tx.commit();
+        } catch (Exception e) {
+            log.warn("DQ indexes are not online yet : "+e.getMessage());
+        }
+    }
+
+    /**
+     * Creates an index on the <code>created</code> property of the flags of a class, for the range seeks of the flag reaper,
+     * if it doesn't exist. The index is populated in the background.
+     * @return whether the index is online.
+     */
+    public static boolean ensureCreatedIndex(GraphDatabaseService db, Label label, Log log) {
+        try (Transaction tx = db.beginTx()) {
+            for (IndexDefinition index : tx.schema().getIndexes(label)) {
+                if (Iterables.asList(index.getPropertyKeys()).equals(List.of(createdProperty))) {
+                    return tx.schema().getIndexState(index) == Schema.IndexState.ONLINE;
+                }
+            }
+            tx.schema().indexFor(label).on(createdProperty).create();
+            tx.commit();
+            log.info("Creating DQ index on :"+label.name()+"("+createdProperty+")");
+        } catch (Exception e) {
+            log.warn("Could not create DQ index on :"+label.name()+"("+createdProperty+") : "+e.getMessage());
+        }
+        return false;
+    }
+
+    private static boolean hasUniqueClassConstraint(Transaction tx) {
+        for (ConstraintDefinition constraint : tx.schema().getConstraints(DQ_CLASS)) {
+            if (constraint.isConstraintType(ConstraintType.UNIQUENESS)
+                    && Iterables.asList(constraint.getPropertyKeys()).equals(List.of(classProperty))) return true;
+        }
+        return false;
+    }
+
+    private static boolean hasIndex(Transaction tx, Label label, String property) {
+        for (IndexDefinition index : tx.schema().getIndexes(label)) {
+            List<String> keys = Iterables.asList(index.getPropertyKeys());
+            if (!keys.isEmpty() && keys.get(0).equals(property)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the state of every index on DQ labels.
+     */
+    public static Stream<IndexStatusResult> status(Transaction tx) {
+        List<IndexStatusResult> result = new ArrayList<>();
+        for (Label label : List.of(DQ_CLASS, DQ_FLAG, ClassHistory.DQ_HISTORY)) {
+            for (IndexDefinition index : tx.schema().getIndexes(label)) {
+                Schema.IndexState state = tx.schema().getIndexState(index);
+                result.add(new IndexStatusResult(
+                        index.getName(),
+                        label.name(),
+                        Iterables.asList(index.getPropertyKeys()),
+                        index.isConstraintIndex() ? "UNIQUENESS" : index.getIndexType().name(),
+                        state.name(),
+                        (double) tx.schema().getIndexPopulationProgress(index).getCompletedPercentage(),
+                        state == Schema.IndexState.FAILED ? tx.schema().getIndexFailure(index) : null));
+            }
+        }
+        return result.stream();
+    }
+
+    public static class IndexStatusResult {
+        public final String name;
+        public final String label;
+        public final List<String> properties;
+        public final String type;
+        public final String state;
+        public final Double progress;
+        public final String failure;
+
+        public IndexStatusResult(String name, String label, List<String> properties, String type, String state, Double progress, String failure) {
+            this.name = name;
+            this.label = label;
+            this.properties = properties;
+            this.type = type;
+            this.state = state;
+            this.progress = progress;
+            this.failure = failure;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package neo4j.dq;
+
+import org.neo4j.annotations.service.ServiceProvider;
+import org.neo4j.configuration.Description;
+import org.neo4j.configuration.SettingsDeclaration;
+import org.neo4j.graphdb.config.Setting;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.neo4j.configuration.SettingConstraints.min;
+import static org.neo4j.configuration.SettingImpl.newBuilder;
+import static org.neo4j.configuration.SettingValueParsers.BOOL;
+import static org.neo4j.configuration.SettingValueParsers.DURATION;
+import static org.neo4j.configuration.SettingValueParsers.INT;
+import static org.neo4j.configuration.SettingValueParsers.PATH;
+import static org.neo4j.configuration.SettingValueParsers.ofEnum;
+
+/**
+ * neo4j.conf settings of the DQ procedures.
+ */
+@ServiceProvider
+public class DQSettings implements SettingsDeclaration {
+
+    public enum SaturationPolicy {
+        /** the submitting thread runs the task itself */
+        CALLER_RUNS,
+        /** the submitting thread waits for room in the queue */
+        BLOCK,
+        /** the task is rejected with a RejectedExecutionException */
+        ABORT
+    }
+
+    @Description("Maximum number of threads of the DQ thread pool. 0 means twice the number of processors.")
+    public static final Setting<Integer> pool_size = newBuilder("dq.pool.size", INT, 0).addConstraint(min(0)).build();
+
+    @Description("Number of tasks the DQ thread pool can queue when all its threads are busy. 0 means 5 times the pool size.")
+    public static final Setting<Integer> pool_queue_size = newBuilder("dq.pool.queue_size", INT, 0).addConstraint(min(0)).build();
+
+    @Description("How long threads above half the DQ pool size are kept alive when idle.")
+    public static final Setting<Duration> pool_keep_alive = newBuilder("dq.pool.keep_alive", DURATION, Duration.ofSeconds(30)).build();
+
+    @Description("What to do with a task submitted to the DQ thread pool when its queue is full : CALLER_RUNS, BLOCK or ABORT.")
+    public static final Setting<SaturationPolicy> pool_saturation_policy =
+            newBuilder("dq.pool.saturation_policy", ofEnum(SaturationPolicy.class), SaturationPolicy.CALLER_RUNS).build();
+
+    @Description("Number of DQ jobs submitted with neo4j.dq.submit that can run at the same time. Others wait in a queue.")
+    public static final Setting<Integer> jobs_concurrency = newBuilder("dq.jobs.concurrency", INT, 2).addConstraint(min(1)).build();
+
+    @Description("Number of finished DQ jobs kept for neo4j.dq.jobStatus and neo4j.dq.listJobs.")
+    public static final Setting<Integer> jobs_history = newBuilder("dq.jobs.history", INT, 100).addConstraint(min(0)).build();
+
+    @Description("Whether classes crossing their alertTriggerLimit raise and clear alerts.")
+    public static final Setting<Boolean> alerts_enabled = newBuilder("dq.alerts.enabled", BOOL, true).build();
+
+    @Description("File that alerts are appended to, on top of the Neo4j log. Not set by default.")
+    public static final Setting<Path> alerts_file = newBuilder("dq.alerts.file", PATH, null).build();
+
+    @Description("Interval between two records of the flag counts of every class, for neo4j.dq.history. 0 disables the recording.")
+    public static final Setting<Duration> history_interval = newBuilder("dq.history.interval", DURATION, Duration.ofMinutes(1)).build();
+
+    @Description("How long flag count history is kept at the recording interval, before being downsampled to one sample per hour.")
+    public static final Setting<Duration> history_minute_retention = newBuilder("dq.history.minute_retention", DURATION, Duration.ofDays(1)).build();
+
+    @Description("How long flag count history is kept with one sample per hour, before being downsampled to one sample per day.")
+    public static final Setting<Duration> history_hour_retention = newBuilder("dq.history.hour_retention", DURATION, Duration.ofDays(30)).build();
+
+    @Description("How long flag count history is kept with one sample per day. 0 keeps it forever.")
+    public static final Setting<Duration> history_day_retention = newBuilder("dq.history.day_retention", DURATION, Duration.ZERO).build();
+
+    @Description("Interval between two passes of the reaper deleting the flags of classes with a TTL once they expire. 0 disables the reaper.")
+    public static final Setting<Duration> ttl_interval = newBuilder("dq.ttl.interval", DURATION, Duration.ofMinutes(1)).build();
+
+    @Description("Maximum number of expired flags deleted per transaction by the reaper.")
+    public static final Setting<Integer> ttl_batch_size = newBuilder("dq.ttl.batch_size", INT, 100).addConstraint(min(1)).build();
+
+    @Description("Maximum number of expired flags deleted per second by the reaper. 0 means no limit.")
+    public static final Setting<Integer> ttl_max_rate = newBuilder("dq.ttl.max_rate", INT, 1000).addConstraint(min(0)).build();
+
+    @Description("Whether the DQ rules are re-evaluated on the nodes changed by each committed transaction, flagging and clearing them asynchronously.")
+    public static final Setting<Boolean> rules_incremental = newBuilder("dq.rules.incremental", BOOL, false).build();
+
+    @Description("Maximum number of nodes re-evaluated per transaction by the incremental rule evaluation.")
+    public static final Setting<Integer> rules_batch_size = newBuilder("dq.rules.batch_size", INT, 1000).addConstraint(min(1)).build();
+
+    @Description("Maximum number of changed nodes waiting for the incremental rule evaluation. Changes beyond it are dropped, and counted.")
+    public static final Setting<Integer> rules_queue_size = newBuilder("dq.rules.queue_size", INT, 1_000_000).addConstraint(min(1)).build();
+
+    @Description("Whether the calls of the DQ procedures are timed and counted, for neo4j.dq.metrics.")
+    public static final Setting<Boolean> metrics_enabled = newBuilder("dq.metrics.enabled", BOOL, true).build();
+
+    @Description("Interval between two writes of the DQ metrics to CSV files. 0 disables the CSV files.")
+    public static final Setting<Duration> metrics_csv_interval = newBuilder("dq.metrics.csv.interval", DURATION, Duration.ZERO).build();
+
+    @Description("Directory of the DQ metrics CSV files. Defaults to the metrics directory of the Neo4j home.")
+    public static final Setting<Path> metrics_csv_path = newBuilder("dq.metrics.csv.path", PATH, null).build();
+
+    @Description("Directory flags are exported to by neo4j.dq.exportFlags, and imported from by neo4j.dq.importFlags. Defaults to the import directory.")
+    public static final Setting<Path> export_directory = newBuilder("dq.export.directory", PATH, null).build();
+}
@@ -0,0 +1,185 @@
+package neo4j.dq;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventListener;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static neo4j.dq.DQ.*;
+
+/**
+ * Inspects each transaction of a database for changes to the DQ model, and keeps the {@link DQDatabase} state in sync once they're committed.
+ */
+public class DQTransactionListener implements TransactionEventListener<DQTransactionListener.Changes> {
+
+    private final DQDatabase database;
+
+    public DQTransactionListener(DQDatabase database) {
+        this.database = database;
+    }
+
+    @Override
+    public Changes beforeCommit(TransactionData data, Transaction transaction, GraphDatabaseService databaseService) {
+        Changes changes = new Changes();
+        changes.hierarchyChanged = hierarchyChanged(data, transaction);
+        changes.flagDeltas = flagDeltas(data, transaction);
+        changes.flagLinks = FlagIndex.collect(data, transaction);
+        changes.rulesChanged = IncrementalRules.rulesChanged(data);
+        changes.ruleChanges = database.getIncrementalRules().collect(data);
+        return changes;
+    }
+
+    @Override
+    public void afterCommit(TransactionData data, Changes changes, GraphDatabaseService databaseService) {
+        if (changes == null) return;
+        if (changes.hierarchyChanged) database.getClassCache().invalidate();
+        database.getFlagCounters().apply(transactionId(data), changes.flagDeltas, changes.hierarchyChanged);
+        database.getFlagIndex().apply(changes.flagLinks);
+        if (changes.hierarchyChanged) database.getFlagIndex().retainClasses(database.getClassCache().tree());
+        database.getAlertEngine().check(changes.flagDeltas, changes.hierarchyChanged);
+        // rules hold the names of their classes
+        if (changes.rulesChanged || changes.hierarchyChanged) database.getIncrementalRules().invalidate();
+        database.getIncrementalRules().enqueue(changes.ruleChanges);
+    }
+
+    // the id of the committed transaction, or -1 where it isn't known
+    private static long transactionId(TransactionData data) {
+        try {
+            return data.getTransactionId();
+        } catch (UnsupportedOperationException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public void afterRollback(TransactionData data, Changes changes, GraphDatabaseService databaseService) {
+    }
+
+    private boolean hierarchyChanged(TransactionData data, Transaction transaction) {
+        for (LabelEntry entry : data.assignedLabels()) {
+            if (entry.label().equals(DQ_CLASS)) return true;
+        }
+        for (LabelEntry entry : data.removedLabels()) {
+            if (entry.label().equals(DQ_CLASS)) return true;
+        }
+        for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+            if (isCachedClassProperty(entry.key()) && entry.entity().hasLabel(DQ_CLASS)) return true;
+        }
+        for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+            // removed properties of deleted class nodes are already caught by their removed label
+            if (isCachedClassProperty(entry.key()) && !data.isDeleted(entry.entity()) && entry.entity().hasLabel(DQ_CLASS)) return true;
+        }
+        for (Relationship rel : data.createdRelationships()) {
+            if (rel.isType(HAS_DQ_CLASS) && rel.getStartNode().hasLabel(DQ_CLASS)) return true;
+            if (rel.isType(ClassBuckets.HAS_DQ_BUCKET)) return true;
+        }
+        Set<Long> deletedNodes = null;
+        for (Relationship rel : data.deletedRelationships()) {
+            if (rel.isType(ClassBuckets.HAS_DQ_BUCKET)) return true;
+            if (!rel.isType(HAS_DQ_CLASS)) continue;
+            if (deletedNodes == null) deletedNodes = deletedNodeIds(data);
+            // deleted class nodes are already caught by their removed label
+            if (deletedNodes.contains(rel.getStartNodeId())) continue;
+            if (transaction.getNodeById(rel.getStartNodeId()).hasLabel(DQ_CLASS)) return true;
+        }
+        return false;
+    }
+
+    private static boolean isCachedClassProperty(String key) {
+        return key.equals(classProperty) || key.equals(alertTriggerLimitProperty) || key.equals(ttlSecondsProperty);
+    }
+
+    /**
+     * @return the change in flag count of each class node (by id), from created/deleted flag-to-class relationships and compact flags.
+     */
+    private Map<Long, Long> flagDeltas(TransactionData data, Transaction transaction) {
+        Map<Long, Long> deltas = new HashMap<>();
+        for (Relationship rel : data.createdRelationships()) {
+            if (rel.isType(CompactFlags.HAS_DQ_COMPACT_FLAG) || rel.isType(HAS_DQ_CLASS) && rel.getStartNode().hasLabel(DQ_FLAG)) {
+                Node parent = rel.getEndNode();
+                if (parent.hasLabel(ClassBuckets.DQ_CLASS_BUCKET)) {
+                    Relationship bucketRel = parent.getSingleRelationship(ClassBuckets.HAS_DQ_BUCKET, Direction.OUTGOING);
+                    if (bucketRel == null) continue;
+                    parent = bucketRel.getEndNode();
+                }
+                deltas.merge(parent.getId(), 1L, Long::sum);
+            }
+        }
+        Set<Long> deletedNodes = null;
+        Set<Long> deletedFlags = null;
+        Map<Long, Long> deletedBuckets = null;
+        for (Relationship rel : data.deletedRelationships()) {
+            boolean compact = rel.isType(CompactFlags.HAS_DQ_COMPACT_FLAG);
+            if (!compact && !rel.isType(HAS_DQ_CLASS)) continue;
+            if (deletedNodes == null) {
+                deletedNodes = deletedNodeIds(data);
+                deletedFlags = removedLabelNodeIds(data, DQ_FLAG);
+                deletedBuckets = deletedBuckets(data);
+            }
+            long startId = rel.getStartNodeId();
+            boolean isFlag = compact || (deletedNodes.contains(startId)
+                    ? deletedFlags.contains(startId)
+                    : transaction.getNodeById(startId).hasLabel(DQ_FLAG));
+            if (!isFlag) continue;
+            long parentId = rel.getEndNodeId();
+            if (deletedNodes.contains(parentId)) {
+                parentId = deletedBuckets.getOrDefault(parentId, parentId);
+            } else {
+                Node parent = transaction.getNodeById(parentId);
+                if (parent.hasLabel(ClassBuckets.DQ_CLASS_BUCKET)) {
+                    Relationship bucketRel = parent.getSingleRelationship(ClassBuckets.HAS_DQ_BUCKET, Direction.OUTGOING);
+                    if (bucketRel == null) continue;
+                    parentId = bucketRel.getEndNodeId();
+                }
+            }
+            deltas.merge(parentId, -1L, Long::sum);
+        }
+        deltas.values().removeIf(delta -> delta == 0);
+        return deltas;
+    }
+
+    /**
+     * @return the class id of each bucket deleted along with its link to the class.
+     */
+    private static Map<Long, Long> deletedBuckets(TransactionData data) {
+        Map<Long, Long> buckets = new HashMap<>();
+        for (Relationship rel : data.deletedRelationships()) {
+            if (rel.isType(ClassBuckets.HAS_DQ_BUCKET)) buckets.put(rel.getStartNodeId(), rel.getEndNodeId());
+        }
+        return buckets;
+    }
+
+    private static Set<Long> removedLabelNodeIds(TransactionData data, Label label) {
+        Set<Long> ids = new HashSet<>();
+        for (LabelEntry entry : data.removedLabels()) {
+            if (entry.label().equals(label)) ids.add(entry.node().getId());
+        }
+        return ids;
+    }
+
+    private static Set<Long> deletedNodeIds(TransactionData data) {
+        Set<Long> ids = new HashSet<>();
+        data.deletedNodes().forEach(node -> ids.add(node.getId()));
+        return ids;
+    }
+
+    public static class Changes {
+        boolean hierarchyChanged;
+        Map<Long, Long> flagDeltas;
+        List<FlagIndex.Change> flagLinks;
+        boolean rulesChanged;
+        IncrementalRules.Pending ruleChanges;
+    }
+}
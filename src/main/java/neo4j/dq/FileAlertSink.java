@@ -0,0 +1,36 @@
+package neo4j.dq;
+
+import org.neo4j.logging.Log;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Appends alerts to a file, one tab-separated line per alert : created, database, class, event, flag count, limit, alert id.
+ */
+public class FileAlertSink implements AlertSink {
+
+    private final Path path;
+    private final Log log;
+
+    public FileAlertSink(Path path, Log log) {
+        this.path = path;
+        this.log = log;
+    }
+
+    @Override
+    public synchronized void notify(Alert alert) {
+        String line = String.join("\t", alert.getCreated().toString(), alert.getDatabase(), alert.getDqClass(),
+                alert.getEvent().name(), Long.toString(alert.getFlagCount()), Long.toString(alert.getLimit()),
+                Long.toString(alert.getAlertId())) + System.lineSeparator();
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(line);
+        } catch (IOException e) {
+            log.warn("Could not write DQ alert to "+path+" : "+e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package neo4j.dq;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.logging.Log;
+import org.neo4j.storageengine.api.TransactionIdStore;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+import static neo4j.dq.DQ.*;
+
+/**
+ * Direct and total flag counts of every DQ_Class, maintained in memory from the flag deltas of committed transactions.
+ * Counts are kept in striped accumulators, so that concurrent commits don't contend on a single counter,
+ * and persisted as properties of the class nodes by a single asynchronous flush after commits.
+ * As flushes lag behind commits, the persisted counts are only trusted at startup if the last run flushed them all when it stopped,
+ * as recorded on the <code>(:DQ_Counters {flushed})</code> node ; otherwise they're rebuilt from the flags.
+ * Rebuilds count each class under the locks of its class node and buckets, which writers of its flags hold until they're committed :
+ * the id of the last closed transaction then tells which deltas are already counted, and those are dropped.
+ */
+public class FlagCounters {
+
+    public static final String directFlagCountProperty = "directFlagCount";
+    public static final String totalFlagCountProperty = "totalFlagCount";
+    public static final Label DQ_COUNTERS = Label.label("DQ_Counters");
+    public static final String flushedProperty = "flushed";
+
+    private final GraphDatabaseService db;
+    private final ClassCache classCache;
+    private final Supplier<Executor> executor;
+    private final Log log;
+
+    private final Map<Long, Counter> counters = new ConcurrentHashMap<>();
+    private final Set<Long> dirty = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // deltas applied before the counts are loaded are kept, but not flushed
+    private volatile boolean loaded;
+    // deltas are applied concurrently under the read lock ; recomputing totals needs exclusive access
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // by class : the last transaction counted by the last rebuild
+    private final Map<Long, Long> countedUpTo = new ConcurrentHashMap<>();
+    // the deltas committed while a rebuild is counting, or null
+    private List<Delta> pending;
+    private final Object rebuilds = new Object();
+    private static final int REBUILD_RETRIES = 3;
+
+    public FlagCounters(GraphDatabaseService db, ClassCache classCache, Supplier<Executor> executor, Log log) {
+        this.db = db;
+        this.classCache = classCache;
+        this.executor = executor;
+        this.log = log;
+    }
+
+    public long getDirect(long classId) {
+        Counter counter = counters.get(classId);
+        return counter == null ? 0 : counter.direct.sum();
+    }
+
+    public long getTotal(long classId) {
+        Counter counter = counters.get(classId);
+        return counter == null ? 0 : counter.total.sum();
+    }
+
+    /**
+     * Loads the persisted counts if they were all flushed when the database last stopped, or rebuilds them.
+     * The transaction listener is expected to be registered already : the deltas of the transactions committed meanwhile
+     * add up with the loaded counts.
+     */
+    public void load() {
+        boolean complete;
+        lock.writeLock().lock();
+        try (Transaction tx = db.beginTx()) {
+            Node marker = marker(tx);
+            complete = Boolean.TRUE.equals(marker.getProperty(flushedProperty, null));
+            Map<Long, long[]> persisted = new HashMap<>();
+            try (ResourceIterator<Node> classes = tx.findNodes(DQ_CLASS)) {
+                while (complete && classes.hasNext()) {
+                    Node classNode = classes.next();
+                    Object direct = classNode.getProperty(directFlagCountProperty, null);
+                    Object total = classNode.getProperty(totalFlagCountProperty, null);
+                    if (!(direct instanceof Number) || !(total instanceof Number)) {
+                        complete = false;
+                        break;
+                    }
+                    persisted.put(classNode.getId(), new long[]{((Number) direct).longValue(), ((Number) total).longValue()});
+                }
+            }
+            if (complete) {
+                persisted.forEach((classId, counts) -> {
+                    Counter counter = counter(classId);
+                    counter.direct.add(counts[0]);
+                    counter.total.add(counts[1]);
+                });
+                loaded = true;
+            }
+            // from now on, the persisted counts lag behind until the next clean stop
+            marker.setProperty(flushedProperty, false);
+            tx.commit();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (complete) flush();
+        else rebuild();
+    }
+
+    /**
+     * Flushes the counts, and records that the persisted counts are complete if nothing is left to flush.
+     * The transaction listener is expected to be unregistered already.
+     */
+    public synchronized void stop() {
+        flush();
+        if (!loaded || !dirty.isEmpty()) return;
+        try (Transaction tx = db.beginTx()) {
+            marker(tx).setProperty(flushedProperty, true);
+            tx.commit();
+        } catch (Exception e) {
+            log.warn("Could not mark DQ flag counters as flushed : "+e.getMessage());
+        }
+    }
+
+    private static Node marker(Transaction tx) {
+        try (ResourceIterator<Node> markers = tx.findNodes(DQ_COUNTERS)) {
+            return markers.hasNext() ? markers.next() : tx.createNode(DQ_COUNTERS);
+        }
+    }
+
+    /**
+     * Recomputes all counts from the flags in the graph, and persists them. Each class is counted in a transaction of its own,
+     * so that only the writers of its flags wait, and only while it's counted ; deltas keep being applied meanwhile.
+     * @return the number of classes counted.
+     */
+    public int rebuild() {
+        synchronized (rebuilds) {
+            lock.writeLock().lock();
+            try {
+                pending = new ArrayList<>();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            Map<Long, long[]> counted = new HashMap<>();
+            try {
+                List<Long> classIds = new ArrayList<>();
+                try (Transaction tx = db.beginTx();
+                     ResourceIterator<Node> classes = tx.findNodes(DQ_CLASS)) {
+                    classes.forEachRemaining(classNode -> classIds.add(classNode.getId()));
+                }
+                for (long classId : classIds) {
+                    long[] count = count(classId);
+                    if (count != null) counted.put(classId, count);
+                }
+            } catch (RuntimeException e) {
+                lock.writeLock().lock();
+                pending = null;
+                lock.writeLock().unlock();
+                throw e;
+            }
+
+            lock.writeLock().lock();
+            try {
+                counters.clear();
+                countedUpTo.clear();
+                counted.forEach((classId, count) -> {
+                    counter(classId).direct.add(count[0]);
+                    countedUpTo.put(classId, count[1]);
+                });
+                // the deltas of the transactions the counts couldn't see
+                for (Delta delta : pending) {
+                    delta.deltas.forEach((classId, value) -> {
+                        if (!isCounted(delta.transactionId, classId)) counter(classId).direct.add(value);
+                    });
+                }
+                pending = null;
+                recomputeTotals();
+                loaded = true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            flush();
+            return counted.size();
+        }
+    }
+
+    /**
+     * @return the direct flag count of the class, and the last transaction it includes, or null if the class is gone.
+     */
+    private long[] count(long classId) {
+        for (int attempt = 1; ; attempt++) {
+            try (Transaction tx = db.beginTx()) {
+                Node classNode;
+                try {
+                    classNode = tx.getNodeById(classId);
+                } catch (NotFoundException e) {
+                    return null;
+                }
+                if (!classNode.hasLabel(DQ_CLASS)) return null;
+                // the writers of the flags of the class lock the class node or a bucket until they're committed and closed
+                List<Node> parents = ClassBuckets.flagParents(classNode);
+                parents.sort(Comparator.comparingLong(Node::getId));
+                parents.forEach(tx::acquireWriteLock);
+                long countedUpTo = lastClosedTransactionId();
+
+                long direct = ClassBuckets.bucketFlagCount(classNode) + CompactFlags.count(classNode);
+                for (Relationship rel : classNode.getRelationships(Direction.INCOMING, HAS_DQ_CLASS)) {
+                    if (rel.getStartNode().hasLabel(DQ_FLAG)) direct += 1;
+                }
+                tx.commit();
+                return new long[]{direct, countedUpTo};
+            } catch (TransientFailureException e) {
+                // e.g. a deadlock with a writer
+                if (attempt == REBUILD_RETRIES) throw e;
+            }
+        }
+    }
+
+    private long lastClosedTransactionId() {
+        try {
+            return ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(TransactionIdStore.class).getLastClosedTransactionId();
+        } catch (Exception e) {
+            // unknown : no delta is taken as counted
+            return -1;
+        }
+    }
+
+    private boolean isCounted(long transactionId, long classId) {
+        Long upTo = countedUpTo.get(classId);
+        return transactionId > 0 && upTo != null && transactionId <= upTo;
+    }
+
+    /**
+     * Applies the flag count deltas (by class node id) of a committed transaction, unless the last rebuild already counted them.
+     * A <code>transactionId</code> of -1 is never taken as counted.
+     */
+    public void apply(long transactionId, Map<Long, Long> deltas, boolean hierarchyChanged) {
+        if (hierarchyChanged) {
+            lock.writeLock().lock();
+            try {
+                if (pending != null) pending.add(new Delta(transactionId, deltas));
+                deltas.forEach((classId, delta) -> {
+                    if (!isCounted(transactionId, classId)) counter(classId).direct.add(delta);
+                });
+                recomputeTotals();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } else if (!deltas.isEmpty()) {
+            ClassTree tree = classCache.tree();
+            lock.readLock().lock();
+            try {
+                if (pending != null) {
+                    synchronized (pending) {
+                        pending.add(new Delta(transactionId, deltas));
+                    }
+                }
+                deltas.forEach((classId, delta) -> {
+                    if (isCounted(transactionId, classId)) return;
+                    Counter counter = counter(classId);
+                    counter.direct.add(delta);
+                    counter.total.add(delta);
+                    dirty.add(classId);
+                    ClassTree.Entry entry = tree.get(classId);
+                    if (entry == null) return;
+                    for (long ancestor : entry.getAncestors()) {
+                        counter(ancestor).total.add(delta);
+                        dirty.add(ancestor);
+                    }
+                });
+            } finally {
+                lock.readLock().unlock();
+            }
+        } else {
+            return;
+        }
+        scheduleFlush();
+    }
+
+    // must be called under the write lock
+    private void recomputeTotals() {
+        ClassTree tree = classCache.tree();
+        counters.keySet().retainAll(idsOf(tree));
+
+        List<ClassTree.Entry> bottomUp = new ArrayList<>(tree.entries());
+        bottomUp.sort(Comparator.comparingInt(ClassTree.Entry::getDepth).reversed());
+        Map<Long, Long> totals = new HashMap<>();
+        for (ClassTree.Entry entry : bottomUp) {
+            long total = totals.getOrDefault(entry.getId(), 0L) + getDirect(entry.getId());
+            totals.put(entry.getId(), total);
+            if (entry.getParent() != null) totals.merge(entry.getParent().getId(), total, Long::sum);
+        }
+        totals.forEach((classId, total) -> {
+            Counter counter = counter(classId);
+            counter.total.reset();
+            counter.total.add(total);
+        });
+        dirty.addAll(totals.keySet());
+    }
+
+    private static Set<Long> idsOf(ClassTree tree) {
+        Set<Long> ids = new HashSet<>();
+        tree.entries().forEach(entry -> ids.add(entry.getId()));
+        return ids;
+    }
+
+    private Counter counter(long classId) {
+        return counters.computeIfAbsent(classId, id -> new Counter());
+    }
+
+    private void scheduleFlush() {
+        if (!flushScheduled.compareAndSet(false, true)) return;
+        try {
+            executor.get().execute(() -> {
+                flushScheduled.set(false);
+                flush();
+            });
+        } catch (Exception e) {
+            // left dirty, for the next commit to flush
+            flushScheduled.set(false);
+            log.debug("Could not schedule DQ flag counters flush : "+e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the current counts of all classes changed since the last flush to their class nodes.
+     */
+    public synchronized void flush() {
+        if (!loaded) return;
+        List<Long> ids = new ArrayList<>(dirty);
+        if (ids.isEmpty()) return;
+        dirty.removeAll(ids);
+        // always lock class nodes in the same order
+        Collections.sort(ids);
+        try (Transaction tx = db.beginTx()) {
+            for (long classId : ids) {
+                Node classNode;
+                try {
+                    classNode = tx.getNodeById(classId);
+                } catch (NotFoundException e) {
+                    continue;
+                }
+                classNode.setProperty(directFlagCountProperty, getDirect(classId));
+                classNode.setProperty(totalFlagCountProperty, getTotal(classId));
+            }
+            tx.commit();
+        } catch (Exception e) {
+            dirty.addAll(ids);
+            log.warn("Could not flush DQ flag counters : "+e.getMessage());
+        }
+    }
+
+    private static class Delta {
+        final long transactionId;
+        final Map<Long, Long> deltas;
+
+        Delta(long transactionId, Map<Long, Long> deltas) {
+            this.transactionId = transactionId;
+            this.deltas = deltas;
+        }
+    }
+
+    private static class Counter {
+        final LongAdder direct = new LongAdder();
+        final LongAdder total = new LongAdder();
+    }
+}
@@ -0,0 +1,345 @@
+package neo4j.dq;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.internal.helpers.collection.Iterables;
+import org.neo4j.logging.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import static neo4j.dq.DQ.*;
+
+/**
+ * Writes flags to a file, one row per flag : id, class, description, created, flagged node id and attachment ids.
+ * Compact flags get a row too, with the id of their relationship as <code>compactFlagId</code> instead of a <code>flagId</code>.
+ * Flag ids are read from the label index, then compact flag ids from the class nodes, in chunks ; each chunk is read and written to its own part file on the fork-join pool,
+ * through a large buffer, and the parts are then concatenated in order.
+ */
+public class FlagExport {
+
+    public enum Format { CSV, NDJSON }
+
+    static final String[] COLUMNS = {"flagId", "class", "description", "created", "nodeId", "attachmentIds", "compactFlagId"};
+
+    private static final int PART_SIZE = 100_000;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final GraphDatabaseService db;
+    private final Path file;
+    private final Format format;
+    private final Log log;
+
+    private int partSize = PART_SIZE;
+    private final LongAdder rows = new LongAdder();
+    private int parts;
+    private long bytes;
+
+    public FlagExport(GraphDatabaseService db, Path file, Format format, Log log) {
+        this.db = db;
+        this.file = file;
+        this.format = format;
+        this.log = log;
+    }
+
+    /**
+     * Sets the number of flags per part file.
+     */
+    public FlagExport withPartSize(int partSize) {
+        this.partSize = Math.max(1, partSize);
+        return this;
+    }
+
+    /**
+     * @return <code>file</code> within <code>directory</code>, which it can't escape.
+     */
+    public static Path resolve(Path directory, String file) {
+        if (Util.isNullOrEmpty(file)) throw new IllegalArgumentException("No export file given");
+        Path root = directory.toAbsolutePath().normalize();
+        Path resolved = root.resolve(file).normalize();
+        if (!resolved.startsWith(root) || resolved.equals(root)) {
+            throw new IllegalArgumentException("Export file '"+file+"' is not within the export directory "+root);
+        }
+        return resolved;
+    }
+
+    public static Format format(String format) {
+        try {
+            return Format.valueOf((Util.isNullOrEmpty(format) ? "csv" : format.trim()).toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown export format '"+format+"' : expected 'csv' or 'ndjson'");
+        }
+    }
+
+    /**
+     * Exports the flags of the labels, and the compact flags of their classes, or all flags if there are none, with at most <code>parallelism</code> parts being written at once.
+     * The file is replaced ; if any part fails, no file is left behind and the failure is rethrown.
+     */
+    public FlagExport run(Transaction tx, List<Label> labels, ForkJoinPool pool, int parallelism) throws IOException {
+        Files.createDirectories(file.getParent());
+        List<Path> partFiles = new ArrayList<>();
+        List<Future<?>> futures = new ArrayList<>();
+        Semaphore inFlight = new Semaphore(parallelism);
+        try {
+            long[] ids = new long[partSize];
+            int size = 0;
+            try (LongStream flagIds = LongStream.concat(flagNodeIds(tx, labels), compactFlagIds(tx, labels))) {
+                PrimitiveIterator.OfLong flags = flagIds.iterator();
+                while (flags.hasNext()) {
+                    ids[size++] = flags.nextLong();
+                    if (size == ids.length) {
+                        submit(ids, size, partFiles, futures, pool, inFlight);
+                        ids = new long[partSize];
+                        size = 0;
+                    }
+                }
+            }
+            if (size > 0 || partFiles.isEmpty()) submit(ids, size, partFiles, futures, pool, inFlight);
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            bytes = concatenate(partFiles);
+            parts = partFiles.size();
+            return this;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Flag export to "+file+" interrupted", e);
+        } catch (ExecutionException e) {
+            Files.deleteIfExists(file);
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException("Flag export to "+file+" failed : "+cause.getMessage(), cause);
+        } finally {
+            // parts already being written are waited for, so that their files can be deleted
+            for (Future<?> future : futures) {
+                future.cancel(false);
+                try {
+                    future.get();
+                } catch (Exception ignore) {
+                    // cancelled, or already reported
+                }
+            }
+            for (Path part : partFiles) {
+                try {
+                    Files.deleteIfExists(part);
+                } catch (IOException e) {
+                    log.warn("Could not delete flag export part "+part+" : "+e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static LongStream flagNodeIds(Transaction tx, List<Label> labels) {
+        return (labels.isEmpty() ? List.of(DQ_FLAG) : labels).stream()
+                .flatMapToLong(label -> tx.findNodes(label).stream().mapToLong(Node::getId));
+    }
+
+    // compact flags are relationships : their ids are encoded as negative ids, -1 - id, so that parts can hold both
+    private static LongStream compactFlagIds(Transaction tx, List<Label> labels) {
+        Stream<Node> classNodes = labels.isEmpty()
+                ? tx.findNodes(DQ_CLASS).stream()
+                : labels.stream().map(label -> tx.findNode(DQ_CLASS, classProperty, label.name())).filter(Objects::nonNull);
+        return classNodes.flatMapToLong(classNode -> Iterables.stream(CompactFlags.flags(classNode)).mapToLong(flag -> -1 - flag.getId()));
+    }
+
+    private void submit(long[] ids, int size, List<Path> partFiles, List<Future<?>> futures, ForkJoinPool pool, Semaphore inFlight) throws InterruptedException {
+        boolean first = partFiles.isEmpty();
+        Path part = file.resolveSibling(file.getFileName() + ".part-" + partFiles.size());
+        partFiles.add(part);
+        // bounds the memory held by parts waiting to be written
+        inFlight.acquire();
+        futures.add(pool.submit(() -> {
+            try {
+                writePart(part, ids, size, first);
+            } finally {
+                inFlight.release();
+            }
+            return null;
+        }));
+    }
+
+    private void writePart(Path part, long[] ids, int size, boolean header) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        StringBuilder row = new StringBuilder(256);
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             Transaction tx = db.beginTx()) {
+            if (header && format == Format.CSV) {
+                write(channel, buffer, String.join(",", COLUMNS) + "\n");
+            }
+            for (int i = 0; i < size; i++) {
+                try {
+                    row.setLength(0);
+                    if (ids[i] >= 0) {
+                        Node flag = tx.getNodeById(ids[i]);
+                        if (!flag.hasLabel(DQ_FLAG)) continue;
+                        appendRow(row, flag);
+                    } else {
+                        Relationship flag = tx.getRelationshipById(-1 - ids[i]);
+                        if (!flag.isType(CompactFlags.HAS_DQ_COMPACT_FLAG)) continue;
+                        appendRow(row, flag);
+                    }
+                } catch (NotFoundException e) {
+                    // deleted since the ids were read
+                    continue;
+                }
+                write(channel, buffer, row.toString());
+                rows.increment();
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            tx.commit();
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, String text) throws IOException {
+        byte[] encoded = text.getBytes(StandardCharsets.UTF_8);
+        if (encoded.length > buffer.remaining()) {
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+        if (encoded.length > buffer.capacity()) {
+            ByteBuffer large = ByteBuffer.wrap(encoded);
+            while (large.hasRemaining()) channel.write(large);
+        } else {
+            buffer.put(encoded);
+        }
+    }
+
+    private void appendRow(StringBuilder row, Node flag) {
+        Object created = flag.getProperty(createdProperty, null);
+        Object description = flag.getProperty(descriptionProperty, null);
+        Long nodeId = null;
+        for (Relationship rel : flag.getRelationships(Direction.INCOMING, HAS_DQ_FLAG)) {
+            nodeId = rel.getStartNodeId();
+            break;
+        }
+        List<Long> attachments = new ArrayList<>();
+        for (Relationship rel : flag.getRelationships(Direction.OUTGOING, HAS_ATTACHMENT)) {
+            attachments.add(rel.getEndNodeId());
+        }
+        Object[] values = {flag.getId(), FlagIndex.flagClass(flag), description, created == null ? null : created.toString(), nodeId, attachments, null};
+        appendRow(row, values);
+    }
+
+    private void appendRow(StringBuilder row, Relationship compactFlag) {
+        Object created = compactFlag.getProperty(createdProperty, null);
+        Object description = compactFlag.getProperty(descriptionProperty, null);
+        Node classNode = CompactFlags.classOf(compactFlag);
+        Object dqClass = classNode == null ? null : classNode.getProperty(classProperty, null);
+        Object[] values = {null, dqClass, description, created == null ? null : created.toString(), compactFlag.getStartNodeId(), List.of(), compactFlag.getId()};
+        appendRow(row, values);
+    }
+
+    private void appendRow(StringBuilder row, Object[] values) {
+        if (format == Format.CSV) {
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) row.append(',');
+                appendCsv(row, values[i]);
+            }
+        } else {
+            row.append('{');
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) row.append(',');
+                row.append('"').append(COLUMNS[i]).append("\":");
+                appendJson(row, values[i]);
+            }
+            row.append('}');
+        }
+        row.append('\n');
+    }
+
+    static void appendCsv(StringBuilder row, Object value) {
+        if (value == null) return;
+        if (value instanceof List) {
+            StringJoiner ids = new StringJoiner(";");
+            ((List<?>) value).forEach(id -> ids.add(id.toString()));
+            value = ids.toString();
+        }
+        String text = value.toString();
+        if (text.indexOf(',') < 0 && text.indexOf('"') < 0 && text.indexOf('\n') < 0 && text.indexOf('\r') < 0) {
+            row.append(text);
+        } else {
+            row.append('"').append(text.replace("\"", "\"\"")).append('"');
+        }
+    }
+
+    private static void appendJson(StringBuilder row, Object value) {
+        if (value == null || value instanceof Number) {
+            row.append(value);
+        } else if (value instanceof List) {
+            row.append('[');
+            List<?> list = (List<?>) value;
+            for (int i = 0; i < list.size(); i++) {
+                if (i > 0) row.append(',');
+                appendJson(row, list.get(i));
+            }
+            row.append(']');
+        } else {
+            String text = value.toString();
+            row.append('"');
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                switch (c) {
+                    case '"': row.append("\\\""); break;
+                    case '\\': row.append("\\\\"); break;
+                    case '\n': row.append("\\n"); break;
+                    case '\r': row.append("\\r"); break;
+                    case '\t': row.append("\\t"); break;
+                    default:
+                        if (c < 0x20) row.append(String.format("\\u%04x", (int) c));
+                        else row.append(c);
+                }
+            }
+            row.append('"');
+        }
+    }
+
+    /**
+     * Replaces the file with the parts, in order, copied channel to channel.
+     * @return the size of the file.
+     */
+    private long concatenate(List<Path> partFiles) throws IOException {
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Path part : partFiles) {
+                try (FileChannel in = FileChannel.open(part, StandardOpenOption.READ)) {
+                    long position = 0, size = in.size();
+                    while (position < size) {
+                        position += in.transferTo(position, size - position, out);
+                    }
+                }
+            }
+            return out.size();
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public long getRows() {
+        return rows.sum();
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public int getParts() {
+        return parts;
+    }
+}
@@ -0,0 +1,391 @@
+package neo4j.dq;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.neo4j.graphdb.*;
+import org.neo4j.logging.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Function;
+
+import static neo4j.dq.DQ.*;
+
+/**
+ * Creates flags from the records of a CSV or NDJSON file, streamed in batches committed in parallel by a {@link BatchRunner}.
+ * Each record names the flagged node, by id (<code>nodeId</code>) or by the value of a lookup property (<code>key</code>),
+ * and optionally the <code>class</code>, <code>description</code> and <code>attachmentIds</code> of its flag :
+ * the columns written by {@link FlagExport}. Classes are resolved (or created) once, when first seen.
+ * Records that can't be imported are written to a rejected file next to the imported one, with the reason why.
+ */
+public class FlagImport {
+
+    public static final String REJECTED_SUFFIX = ".rejected";
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final ObjectReader JSON_READER = JSON.readerFor(Map.class);
+
+    private final GraphDatabaseService db;
+    private final DQDatabase database;
+    private final Path file;
+    private final FlagExport.Format format;
+    private final Function<String, Long> classResolver;
+    private final Log log;
+
+    private String defaultClass = "Generic_Flag";
+    private Label lookupLabel;
+    private String lookupProperty;
+
+    // only used by the reading thread
+    private final Map<String, Long> classIds = new HashMap<>();
+    private List<String> header;
+    private Writer rejects;
+    private long rows;
+    private long rejected;
+
+    /**
+     * @param classResolver returns the id of the class node of a class name, created if needed and committed, or null if there's none.
+     */
+    public FlagImport(GraphDatabaseService db, DQDatabase database, Path file, FlagExport.Format format, Function<String, Long> classResolver, Log log) {
+        this.db = db;
+        this.database = database;
+        this.file = file;
+        this.format = format;
+        this.classResolver = classResolver;
+        this.log = log;
+    }
+
+    /**
+     * @return the format given, or else the one of the file extension : NDJSON for .ndjson, .jsonl and .json files, CSV otherwise.
+     */
+    public static FlagExport.Format format(Path file, String format) {
+        if (!Util.isNullOrEmpty(format)) return FlagExport.format(format);
+        String name = file.getFileName().toString().toLowerCase();
+        return name.endsWith(".ndjson") || name.endsWith(".jsonl") || name.endsWith(".json") ? FlagExport.Format.NDJSON : FlagExport.Format.CSV;
+    }
+
+    /**
+     * Sets the class of the records without one.
+     */
+    public FlagImport withDefaultClass(String dqClass) {
+        if (!Util.isNullOrEmpty(dqClass)) this.defaultClass = dqClass;
+        return this;
+    }
+
+    /**
+     * Sets how the <code>key</code> of a record is looked up : as the value of <code>property</code> on nodes with <code>label</code>.
+     */
+    public FlagImport withLookup(String label, String property) {
+        if (!Util.isNullOrEmpty(label) && !Util.isNullOrEmpty(property)) {
+            this.lookupLabel = Label.label(label);
+            this.lookupProperty = property;
+        }
+        return this;
+    }
+
+    public FlagImport run(BatchRunner runner, int batchSize) throws IOException {
+        if (!Files.isRegularFile(file)) throw new IllegalArgumentException("No file to import at "+file);
+        Files.deleteIfExists(rejectedFile());
+        try (BufferedReader reader = new BufferedReader(Files.newBufferedReader(file, StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            List<Record> batch = new ArrayList<>(batchSize);
+            Record record;
+            while ((record = next(reader)) != null) {
+                rows++;
+                if (record.error == null) prepare(record);
+                if (record.error != null) {
+                    reject(record, record.error);
+                    continue;
+                }
+                batch.add(record);
+                if (batch.size() >= batchSize) {
+                    submit(runner, batch);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) submit(runner, batch);
+        } finally {
+            runner.finish();
+            if (rejects != null) rejects.close();
+        }
+        if (rejected > 0) log.warn(rejected+" of the "+rows+" flags imported from "+file+" were rejected, see "+rejectedFile());
+        return this;
+    }
+
+    private void submit(BatchRunner runner, List<Record> batch) {
+        runner.submit(batch.size(), txInThread -> createFlags(txInThread, batch), error -> {
+            for (Record record : batch) {
+                if (error != null) reject(record, "batch failed : "+error.getMessage());
+                else if (record.error != null) reject(record, record.error);
+            }
+        });
+    }
+
+    /**
+     * Reads the node, class and attachments of a record.
+     */
+    private void prepare(Record record) {
+        Object nodeId = record.fields.get("nodeId");
+        Object key = record.fields.get("key");
+        try {
+            if (!isEmpty(nodeId)) {
+                record.nodeId = id(nodeId);
+            } else if (isEmpty(key)) {
+                record.error = "no nodeId nor key";
+                return;
+            } else if (lookupLabel == null) {
+                record.error = "no lookup label and property to find the node of key '"+key+"'";
+                return;
+            }
+            record.attachmentIds = attachmentIds(record.fields.get("attachmentIds"));
+        } catch (NumberFormatException e) {
+            record.error = e.getMessage();
+            return;
+        }
+
+        Object dqClass = record.fields.get("class");
+        record.dqClass = isEmpty(dqClass) ? defaultClass : dqClass.toString();
+        Long classId;
+        try {
+            classId = classIds.computeIfAbsent(record.dqClass, classResolver);
+        } catch (RuntimeException e) {
+            classId = null;
+        }
+        if (classId == null) {
+            record.error = "can't resolve class '"+record.dqClass+"'";
+            return;
+        }
+        record.classId = classId;
+        Object description = record.fields.get("description");
+        record.description = description == null ? "" : description.toString();
+    }
+
+    private static long[] attachmentIds(Object value) {
+        if (isEmpty(value)) return new long[0];
+        List<?> ids = value instanceof List ? (List<?>) value : Arrays.asList(value.toString().split(";"));
+        return ids.stream()
+                .filter(id -> !isEmpty(id))
+                .mapToLong(FlagImport::id)
+                .toArray();
+    }
+
+    private static long id(Object id) {
+        if (id instanceof Number) return ((Number) id).longValue();
+        try {
+            return Long.parseLong(id.toString().trim());
+        } catch (NumberFormatException e) {
+            throw new NumberFormatException("invalid id '"+id+"'");
+        }
+    }
+
+    private static boolean isEmpty(Object value) {
+        return value == null || (value instanceof String && ((String) value).trim().isEmpty());
+    }
+
+    /**
+     * @return the number of flags created. Records that can't be imported are given an error, and reported once the batch is done.
+     */
+    private long createFlags(Transaction tx, List<Record> batch) {
+        List<Record> found = new ArrayList<>(batch.size());
+        for (Record record : batch) {
+            record.error = null;
+            try {
+                Node node = record.nodeId != null
+                        ? tx.getNodeById(record.nodeId)
+                        : tx.findNode(lookupLabel, lookupProperty, record.fields.get("key"));
+                if (node == null) {
+                    record.error = "no :"+lookupLabel.name()+" node with "+lookupProperty+" = '"+record.fields.get("key")+"'";
+                    continue;
+                }
+                for (long attachmentId : record.attachmentIds) {
+                    tx.getNodeById(attachmentId);
+                }
+                record.node = node.getId();
+                found.add(record);
+            } catch (NotFoundException e) {
+                record.error = e.getMessage();
+            } catch (MultipleFoundException e) {
+                record.error = "several :"+lookupLabel.name()+" nodes with "+lookupProperty+" = '"+record.fields.get("key")+"'";
+            }
+        }
+
+        Map<Long, Node> classNodes = new HashMap<>();
+        for (Record record : found) {
+            classNodes.computeIfAbsent(record.classId, tx::getNodeById);
+        }
+        // lock the buckets of sharded classes in the same order in every batch, so that concurrent batches can't deadlock
+        found.sort(Comparator.<Record>comparingLong(record -> record.classId)
+                .thenComparingInt(record -> {
+                    int shards = ClassBuckets.shards(classNodes.get(record.classId));
+                    return shards > 0 ? ClassBuckets.bucketIndex(record.node, shards) : 0;
+                }));
+
+        long created = 0;
+        for (Record record : found) {
+            Node classNode = classNodes.get(record.classId);
+            if (record.attachmentIds.length > 0 && CompactFlags.isCompact(classNode)) {
+                record.error = "compact flags of class '"+record.dqClass+"' can't have attachments";
+                continue;
+            }
+            Entity flag = createFlag(tx, database, tx.getNodeById(record.node), classNode, Label.label(record.dqClass), record.description);
+            for (long attachmentId : record.attachmentIds) {
+                ((Node) flag).createRelationshipTo(tx.getNodeById(attachmentId), HAS_ATTACHMENT).setProperty(descriptionProperty, "");
+            }
+            created += 1;
+        }
+        return created;
+    }
+
+    private Record next(BufferedReader reader) throws IOException {
+        if (format == FlagExport.Format.NDJSON) {
+            String line;
+            do {
+                line = reader.readLine();
+                if (line == null) return null;
+            } while (line.trim().isEmpty());
+            Record record = new Record(rows + 1);
+            try {
+                record.fields = JSON_READER.readValue(line);
+            } catch (JsonProcessingException e) {
+                record.fields = Map.of("line", line);
+                record.error = "invalid JSON : "+e.getOriginalMessage();
+            }
+            return record;
+        }
+
+        if (header == null) {
+            header = readCsv(reader);
+            if (header == null) return null;
+        }
+        List<String> values;
+        do {
+            values = readCsv(reader);
+            if (values == null) return null;
+        } while (values.size() == 1 && values.get(0).isEmpty());
+        Record record = new Record(rows + 1);
+        record.values = values;
+        record.fields = new HashMap<>();
+        for (int i = 0; i < Math.min(header.size(), values.size()); i++) {
+            record.fields.put(header.get(i), values.get(i));
+        }
+        if (values.size() != header.size()) record.error = "expected "+header.size()+" fields, found "+values.size();
+        return record;
+    }
+
+    /**
+     * @return the fields of the next CSV record, which may span several lines when quoted, or null at the end of the file.
+     */
+    static List<String> readCsv(BufferedReader reader) throws IOException {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        boolean read = false;
+        int c;
+        while ((c = reader.read()) != -1) {
+            read = true;
+            if (quoted) {
+                if (c != '"') {
+                    field.append((char) c);
+                    continue;
+                }
+                reader.mark(1);
+                int next = reader.read();
+                if (next == '"') {
+                    field.append('"');
+                } else {
+                    quoted = false;
+                    if (next != -1) reader.reset();
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\n') {
+                break;
+            } else if (c != '\r') {
+                field.append((char) c);
+            }
+        }
+        if (!read) return null;
+        fields.add(field.toString());
+        return fields;
+    }
+
+    /**
+     * Appends a record to the rejected file, in the format of the imported file, with its row number and the reason why.
+     */
+    private void reject(Record record, String reason) {
+        rejected++;
+        try {
+            if (rejects == null) {
+                rejects = Files.newBufferedWriter(rejectedFile(), StandardCharsets.UTF_8);
+                if (format == FlagExport.Format.CSV) rejects.write(csvLine(List.of("row", "reason"), header));
+            }
+            if (format == FlagExport.Format.CSV) {
+                rejects.write(csvLine(List.of(String.valueOf(record.row), reason), record.values));
+            } else {
+                Map<String, Object> line = new LinkedHashMap<>();
+                line.put("row", record.row);
+                line.put("reason", reason);
+                line.putAll(record.fields);
+                rejects.write(JSON.writeValueAsString(line) + "\n");
+            }
+        } catch (IOException e) {
+            log.warn("Could not write rejected flag at row "+record.row+" of "+file+" ("+reason+") : "+e.getMessage());
+        }
+    }
+
+    private static String csvLine(List<String> first, List<String> values) {
+        StringBuilder line = new StringBuilder();
+        for (String value : first) {
+            if (line.length() > 0) line.append(',');
+            FlagExport.appendCsv(line, value);
+        }
+        for (String value : values) {
+            line.append(',');
+            FlagExport.appendCsv(line, value);
+        }
+        return line.append('\n').toString();
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public Path rejectedFile() {
+        return file.resolveSibling(file.getFileName() + REJECTED_SUFFIX);
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    private static class Record {
+        final long row;
+        List<String> values;
+        Map<String, Object> fields;
+        Long nodeId;
+        long[] attachmentIds;
+        String dqClass;
+        long classId;
+        String description;
+        // set when importing
+        long node;
+        String error;
+
+        Record(long row) {
+            this.row = row;
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package neo4j.dq;
+
+import org.eclipse.collections.impl.map.mutable.primitive.LongLongHashMap;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.logging.Log;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+import static neo4j.dq.DQ.*;
+
+/**
+ * In-memory index of the flagged nodes of every class : for each class (by name), a primitive map from flagged node id to flag id,
+ * the id of the flag node, or the encoded id of the relationship of a compact flag.
+ * It is built asynchronously at startup, and kept current from the flag links created and deleted by committed transactions.
+ * Lookups are only hints, checked against the transaction state : a missing entry means there's no flag once the index is built,
+ * an entry whose flag was deleted is marked unknown, and resolved from the relationships of the node on the next lookup.
+ */
+public class FlagIndex {
+
+    private static final long NONE = -1;
+    private static final long UNKNOWN = -2;
+    // compact flag relationship ids are stored as negative entries below UNKNOWN
+    private static final long COMPACT = -3;
+
+    private final GraphDatabaseService db;
+    private final Supplier<Executor> executor;
+    private final Log log;
+
+    private final Map<String, LongLongHashMap> classes = new ConcurrentHashMap<>();
+    private volatile boolean ready;
+
+    public FlagIndex(GraphDatabaseService db, Supplier<Executor> executor, Log log) {
+        this.db = db;
+        this.executor = executor;
+        this.log = log;
+    }
+
+    /**
+     * Builds the index in the background ; lookups fall back on the relationships of the node until it's done.
+     */
+    public void load() {
+        try {
+            executor.get().execute(this::build);
+        } catch (Exception e) {
+            log.warn("Could not schedule the DQ flag index build : "+e.getMessage());
+        }
+    }
+
+    /**
+     * Adds every flag in the graph to the index. Links created or deleted concurrently are applied by the transaction listener,
+     * so entries are only added if missing.
+     */
+    public void build() {
+        long start = System.currentTimeMillis();
+        long flags = 0;
+        try (Transaction tx = db.beginTx()) {
+            try (ResourceIterator<Node> nodes = tx.findNodes(DQ_FLAG)) {
+                while (nodes.hasNext()) {
+                    Node flag = nodes.next();
+                    String dqClass = flagClass(flag);
+                    if (dqClass == null) continue;
+                    LongLongHashMap flagged = flagged(dqClass);
+                    for (Relationship rel : flag.getRelationships(Direction.INCOMING, HAS_DQ_FLAG)) {
+                        synchronized (flagged) {
+                            if (!flagged.containsKey(rel.getStartNodeId())) flagged.put(rel.getStartNodeId(), flag.getId());
+                        }
+                    }
+                    flags++;
+                }
+            }
+            try (ResourceIterator<Node> classNodes = tx.findNodes(DQ_CLASS)) {
+                while (classNodes.hasNext()) {
+                    Node classNode = classNodes.next();
+                    LongLongHashMap flagged = null;
+                    for (Relationship flag : CompactFlags.flags(classNode)) {
+                        if (flagged == null) flagged = flagged((String) classNode.getProperty(classProperty, ""));
+                        synchronized (flagged) {
+                            if (!flagged.containsKey(flag.getStartNodeId())) flagged.put(flag.getStartNodeId(), compactEntry(flag.getId()));
+                        }
+                        flags++;
+                    }
+                }
+            }
+            tx.commit();
+            ready = true;
+            log.info("DQ flag index built with "+flags+" flags in "+(System.currentTimeMillis() - start)+" ms.");
+        } catch (Exception e) {
+            log.warn("Could not build the DQ flag index : "+e.getMessage());
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * @return the flag of the class on the node, a flag node or a compact flag, or null.
+     * The caller should hold a lock on the node, so that the answer holds until it commits.
+     * The index only knows committed flags : a node without an entry is looked up from its relationships
+     * when the transaction has changes of its own, which may include a flag.
+     */
+    public Entity find(Transaction tx, Node node, String dqClass) {
+        LongLongHashMap flagged = classes.get(dqClass);
+        long flagId = NONE;
+        if (flagged != null) {
+            synchronized (flagged) {
+                flagId = flagged.getIfAbsent(node.getId(), NONE);
+            }
+        }
+        if (flagId == NONE && ready) return Util.hasChanges(tx) ? scan(node, dqClass) : null;
+        if (flagId >= 0 || flagId <= COMPACT) {
+            Entity flag = flagId >= 0 ? flagOf(tx, node, flagId, dqClass) : compactFlagOf(tx, node, compactEntry(flagId), dqClass);
+            if (flag != null) return flag;
+        }
+
+        // not built yet, or out of date : look for it, and fix the entry
+        Entity found = scan(node, dqClass);
+        if (found != null || flagged != null) {
+            LongLongHashMap entries = flagged(dqClass);
+            synchronized (entries) {
+                if (found != null) entries.put(node.getId(), found instanceof Node ? found.getId() : compactEntry(found.getId()));
+                else entries.remove(node.getId());
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the first flag of the class on the node, a flag node or a compact flag, found from its relationships.
+     */
+    public static Entity scan(Node node, String dqClass) {
+        Label label = Label.label(dqClass);
+        for (Relationship rel : node.getRelationships(Direction.OUTGOING, HAS_DQ_FLAG)) {
+            Node flag = rel.getEndNode();
+            if (flag.hasLabel(label) && flag.hasLabel(DQ_FLAG)) return flag;
+        }
+        for (Relationship rel : node.getRelationships(Direction.OUTGOING, CompactFlags.HAS_DQ_COMPACT_FLAG)) {
+            if (isOfClass(CompactFlags.classOf(rel), dqClass)) return rel;
+        }
+        return null;
+    }
+
+    private static Node flagOf(Transaction tx, Node node, long flagId, String dqClass) {
+        try {
+            Node flag = tx.getNodeById(flagId);
+            if (!flag.hasLabel(DQ_FLAG) || !flag.hasLabel(Label.label(dqClass))) return null;
+            for (Relationship rel : flag.getRelationships(Direction.INCOMING, HAS_DQ_FLAG)) {
+                if (rel.getStartNodeId() == node.getId()) return flag;
+            }
+        } catch (NotFoundException e) {
+            // deleted
+        }
+        return null;
+    }
+
+    private static Relationship compactFlagOf(Transaction tx, Node node, long relationshipId, String dqClass) {
+        try {
+            Relationship flag = tx.getRelationshipById(relationshipId);
+            if (flag.getStartNodeId() == node.getId() && isOfClass(CompactFlags.classOf(flag), dqClass)) return flag;
+        } catch (NotFoundException e) {
+            // deleted
+        }
+        return null;
+    }
+
+    private static boolean isOfClass(Node classNode, String dqClass) {
+        return classNode != null && dqClass.equals(classNode.getProperty(classProperty, null));
+    }
+
+    /**
+     * @return the index entry of a compact flag relationship id, and the relationship id of an entry : the encoding is its own inverse.
+     */
+    private static long compactEntry(long id) {
+        return COMPACT - id;
+    }
+
+    /**
+     * Collects the flag links created and deleted by a transaction, before it commits.
+     * @return the changes to apply once committed, or null if there are none.
+     */
+    public static List<Change> collect(TransactionData data, Transaction transaction) {
+        List<Change> changes = null;
+        Map<Long, String> createdFlags = null;
+        for (Relationship rel : data.createdRelationships()) {
+            if (rel.isType(CompactFlags.HAS_DQ_COMPACT_FLAG)) {
+                Node classNode = CompactFlags.classOf(rel);
+                if (classNode == null) continue;
+                if (changes == null) changes = new ArrayList<>();
+                changes.add(new Change(true, (String) classNode.getProperty(classProperty, ""), rel.getStartNodeId(), compactEntry(rel.getId()), false));
+                continue;
+            }
+            if (!rel.isType(HAS_DQ_FLAG)) continue;
+            if (createdFlags == null) createdFlags = labelledFlags(data.assignedLabels());
+            String dqClass = createdFlags.get(rel.getEndNodeId());
+            if (dqClass == null) dqClass = flagClass(rel.getEndNode());
+            if (dqClass == null) continue;
+            if (changes == null) changes = new ArrayList<>();
+            changes.add(new Change(true, dqClass, rel.getStartNodeId(), rel.getEndNodeId(), false));
+        }
+        Map<Long, String> deletedFlags = null;
+        Set<Long> deletedNodes = null;
+        for (Relationship rel : data.deletedRelationships()) {
+            boolean compact = rel.isType(CompactFlags.HAS_DQ_COMPACT_FLAG);
+            if (!compact && !rel.isType(HAS_DQ_FLAG)) continue;
+            if (deletedFlags == null) {
+                deletedFlags = labelledFlags(data.removedLabels());
+                deletedNodes = new HashSet<>();
+                for (Node node : data.deletedNodes()) deletedNodes.add(node.getId());
+            }
+            String dqClass;
+            if (compact) {
+                // the flags of a deleted class or bucket go with its entries
+                Node classNode = deletedNodes.contains(rel.getEndNodeId()) ? null : CompactFlags.classOfParent(transaction.getNodeById(rel.getEndNodeId()));
+                dqClass = classNode == null ? null : (String) classNode.getProperty(classProperty, null);
+            } else {
+                dqClass = deletedNodes.contains(rel.getEndNodeId())
+                        ? deletedFlags.get(rel.getEndNodeId())
+                        : flagClass(transaction.getNodeById(rel.getEndNodeId()));
+            }
+            if (dqClass == null) continue;
+            if (changes == null) changes = new ArrayList<>();
+            changes.add(new Change(false, dqClass, rel.getStartNodeId(), compact ? compactEntry(rel.getId()) : rel.getEndNodeId(),
+                    deletedNodes.contains(rel.getStartNodeId())));
+        }
+        return changes;
+    }
+
+    /**
+     * @return the class of each flag that the label entries are about.
+     */
+    private static Map<Long, String> labelledFlags(Iterable<LabelEntry> entries) {
+        Set<Long> flags = new HashSet<>();
+        Map<Long, String> labels = new HashMap<>();
+        for (LabelEntry entry : entries) {
+            if (entry.label().equals(DQ_FLAG)) flags.add(entry.node().getId());
+            else labels.put(entry.node().getId(), entry.label().name());
+        }
+        labels.keySet().retainAll(flags);
+        return labels;
+    }
+
+    /**
+     * Applies the flag link changes of a committed transaction.
+     */
+    public void apply(List<Change> changes) {
+        if (changes == null) return;
+        for (Change change : changes) {
+            LongLongHashMap flagged = change.created ? flagged(change.dqClass) : classes.get(change.dqClass);
+            if (flagged == null) continue;
+            synchronized (flagged) {
+                if (change.created) {
+                    // a node flagged twice keeps its first flag
+                    if (!flagged.containsKey(change.node)) flagged.put(change.node, change.flag);
+                } else if (change.nodeDeleted) {
+                    flagged.remove(change.node);
+                } else if (flagged.getIfAbsent(change.node, NONE) == change.flag) {
+                    // the node may have other flags of the class
+                    flagged.put(change.node, UNKNOWN);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the entries of the classes that don't exist anymore.
+     */
+    public void retainClasses(ClassTree tree) {
+        classes.keySet().removeIf(dqClass -> tree.get(dqClass) == null);
+    }
+
+    /**
+     * @return the number of flagged nodes indexed for the class.
+     */
+    public long size(String dqClass) {
+        LongLongHashMap flagged = classes.get(dqClass);
+        if (flagged == null) return 0;
+        synchronized (flagged) {
+            return flagged.size();
+        }
+    }
+
+    private LongLongHashMap flagged(String dqClass) {
+        return classes.computeIfAbsent(dqClass, name -> new LongLongHashMap());
+    }
+
+    static String flagClass(Node flag) {
+        if (!flag.hasLabel(DQ_FLAG)) return null;
+        for (Label label : flag.getLabels()) {
+            if (!label.equals(DQ_FLAG)) return label.name();
+        }
+        return null;
+    }
+
+    public static class Change {
+        final boolean created;
+        final String dqClass;
+        final long node;
+        final long flag;
+        final boolean nodeDeleted;
+
+        Change(boolean created, String dqClass, long node, long flag, boolean nodeDeleted) {
+            this.created = created;
+            this.dqClass = dqClass;
+            this.node = node;
+            this.flag = flag;
+            this.nodeDeleted = nodeDeleted;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package neo4j.dq;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.internal.id.IdGeneratorFactory;
+import org.neo4j.internal.id.IdType;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+
+import java.time.ZonedDateTime;
+import java.util.*;
+
+import static neo4j.dq.DQ.*;
+
+/**
+ * Keyset pagination over flag nodes, either in node id order (seeking the ids following the cursor) or in creation order
+ * (from an index on the created property, per flag class).
+ */
+public class FlagPages {
+
+    public static final String ORDER_BY_ID = "id";
+    public static final String ORDER_BY_CREATED = "created";
+
+    private static final String CURSOR_SEPARATOR = "|";
+    // ids seeked from the cursor before returning a page that isn't full, at least, and per query at most
+    private static final long SEEK_BUDGET = 100_000;
+    private static final long MAX_SEEK_WINDOW = 10_000;
+
+    /**
+     * @param labels flag class labels to list, or empty for all flags.
+     */
+    public static List<Node> page(GraphDatabaseService db, Transaction tx, List<Label> labels, String orderBy, String cursor, int limit) {
+        if (ORDER_BY_CREATED.equalsIgnoreCase(orderBy)) {
+            return pageByCreated(tx, labels, cursor, limit);
+        } else if (ORDER_BY_ID.equalsIgnoreCase(orderBy)) {
+            return pageById(db, tx, labels, cursor, limit);
+        }
+        throw new IllegalArgumentException("Unknown order '"+orderBy+"' : expected '"+ORDER_BY_ID+"' or '"+ORDER_BY_CREATED+"'");
+    }
+
+    public static String cursor(Node flag, String orderBy) {
+        if (ORDER_BY_CREATED.equalsIgnoreCase(orderBy)) {
+            return flag.getProperty(createdProperty, "") + CURSOR_SEPARATOR + flag.getId();
+        }
+        return String.valueOf(flag.getId());
+    }
+
+    private static List<Node> pageById(GraphDatabaseService db, Transaction tx, List<Label> labels, String cursor, int limit) {
+        long afterId = Util.isNullOrEmpty(cursor) ? -1 : Long.parseLong(cursor.trim());
+        List<Node> page = new ArrayList<>(Math.min(limit, 10_000));
+        seekById(tx, labels, afterId, nodeHighId(db), limit, page);
+        return page;
+    }
+
+    /**
+     * Label scans can't start from an id : seek the ids following the cursor, in growing windows, up to the highest node id.
+     * Once a budget of ids is seeked, a page that has flags is returned as it is, shorter than the limit : the next page goes on from its cursor.
+     */
+    private static void seekById(Transaction tx, List<Label> labels, long afterId, long highId, int limit, List<Node> page) {
+        String query = "UNWIND range($from, $to) AS id MATCH (flag:" + DQ_FLAG.name() + ") WHERE id(flag) = id "
+                + (labels.isEmpty() ? "" : "AND (" + labelPredicate(labels) + ") ")
+                + "RETURN flag";
+        long budget = Math.max(SEEK_BUDGET, (long) limit * 16);
+        long window = Math.min(MAX_SEEK_WINDOW, Math.max(64, limit));
+        long last = afterId;
+        while (page.size() < limit && last + 1 < highId && (page.isEmpty() || last - afterId < budget)) {
+            long to = Math.min(last + window, highId - 1);
+            try (Result result = tx.execute(query, Util.map("from", last + 1, "to", to))) {
+                while (result.hasNext() && page.size() < limit) {
+                    Node flag = (Node) result.next().get("flag");
+                    page.add(flag);
+                    last = flag.getId();
+                }
+            }
+            if (page.size() < limit) last = to;
+            window = Math.min(window * 2, MAX_SEEK_WINDOW);
+        }
+    }
+
+    // node ids are below the high id, including the ids of nodes created by uncommitted transactions
+    private static long nodeHighId(GraphDatabaseService db) {
+        return ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(IdGeneratorFactory.class).get(IdType.NODE).getHighId();
+    }
+
+    private static List<Node> pageByCreated(Transaction tx, List<Label> labels, String cursor, int limit) {
+        ZonedDateTime afterCreated = null;
+        long afterId = -1;
+        if (!Util.isNullOrEmpty(cursor)) {
+            int separator = cursor.lastIndexOf(CURSOR_SEPARATOR);
+            afterCreated = ZonedDateTime.parse(cursor.substring(0, separator));
+            afterId = Long.parseLong(cursor.substring(separator + 1));
+        }
+
+        // one query per class label, so that each reads the flags of its class only ; results are read lazily, and merged
+        List<Result> results = new ArrayList<>();
+        PriorityQueue<PeekingIterator> queue = new PriorityQueue<>(
+                Comparator.<PeekingIterator, ZonedDateTime>comparing(it -> (ZonedDateTime) it.peek().getProperty(createdProperty))
+                        .thenComparingLong(it -> it.peek().getId()));
+        List<Node> page = new ArrayList<>(Math.min(limit, 10_000));
+        try {
+            for (Label label : labels.isEmpty() ? List.of(DQ_FLAG) : labels) {
+                // a range predicate on created lets the planner seek an index, and read it in order
+                String query = "MATCH (flag:" + DQ_FLAG.name() + (label.equals(DQ_FLAG) ? "" : ":" + Util.quote(label.name())) + ") "
+                        + "WHERE " + (afterCreated == null ? "flag." + createdProperty + " IS NOT NULL " : "flag." + createdProperty + " >= $after ")
+                        + "RETURN flag ORDER BY flag." + createdProperty + ", id(flag)";
+                Result result = tx.execute(query, Util.map("after", afterCreated));
+                results.add(result);
+                PeekingIterator it = new PeekingIterator(result.<Node>columnAs("flag"));
+                if (it.hasNext()) queue.add(it);
+            }
+            Node previous = null;
+            while (!queue.isEmpty() && page.size() < limit) {
+                PeekingIterator it = queue.poll();
+                Node flag = it.next();
+                if (it.hasNext()) queue.add(it);
+                // a flag with several class labels is in several results
+                if (previous != null && previous.getId() == flag.getId()) continue;
+                previous = flag;
+                // skip flags created at the same time as the cursor flag, but already returned
+                if (afterCreated != null && afterCreated.equals(flag.getProperty(createdProperty)) && flag.getId() <= afterId) continue;
+                page.add(flag);
+            }
+        } finally {
+            results.forEach(Result::close);
+        }
+        return page;
+    }
+
+    private static String labelPredicate(List<Label> labels) {
+        StringJoiner predicate = new StringJoiner(" OR ");
+        labels.forEach(label -> predicate.add("flag:" + Util.quote(label.name())));
+        return predicate.toString();
+    }
+
+    private static class PeekingIterator implements Iterator<Node> {
+        private final Iterator<Node> iterator;
+        private Node next;
+
+        PeekingIterator(Iterator<Node> iterator) {
+            this.iterator = iterator;
+        }
+
+        Node peek() {
+            if (next == null) next = iterator.next();
+            return next;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null || iterator.hasNext();
+        }
+
+        @Override
+        public Node next() {
+            Node current = peek();
+            next = null;
+            return current;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package neo4j.dq;
+
+import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
+import org.neo4j.graphdb.*;
+import org.neo4j.logging.Log;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import static neo4j.dq.DQ.*;
+
+/**
+ * Deletes the flags of classes with a TTL once they expire, at a regular interval.
+ * The expired flag nodes of each class are read oldest first, by a range seek on an index on the <code>created</code>
+ * property of the class label, created by the reaper ; compact flags are relationships, which can't be indexed,
+ * so the compact flags of the classes with a TTL are scanned instead. Expired flags are deleted in small batches,
+ * each in its own transaction, and flags are read no faster than the maximum rate, so that the reaper doesn't compete
+ * with the writes of the procedures.
+ */
+public class FlagReaper {
+
+    private final GraphDatabaseService db;
+    private final ClassCache classCache;
+    private final Supplier<ScheduledExecutorService> scheduler;
+    private final Supplier<Executor> executor;
+    private final Duration interval;
+    private final int batchSize;
+    private final int maxRate;
+    private final Log log;
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private ScheduledFuture<?> scheduled;
+    private volatile boolean stopped;
+
+    public FlagReaper(GraphDatabaseService db, ClassCache classCache, Supplier<ScheduledExecutorService> scheduler, Supplier<Executor> executor,
+                      Duration interval, int batchSize, int maxRate, Log log) {
+        this.db = db;
+        this.classCache = classCache;
+        this.scheduler = scheduler;
+        this.executor = executor;
+        this.interval = interval;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxRate = maxRate;
+        this.log = log;
+    }
+
+    public synchronized void start() {
+        stopped = false;
+        if (interval.isZero() || interval.isNegative() || scheduler == null || scheduled != null) return;
+        try {
+            long millis = interval.toMillis();
+            // passes run on the executor, so that a long one doesn't hold the scheduler thread, and never overlap
+            scheduled = scheduler.get().scheduleWithFixedDelay(() -> {
+                if (running.compareAndSet(false, true)) executor.get().execute(this::reapQuietly);
+            }, millis, millis, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            log.warn("Could not schedule the DQ flag reaper : "+e.getMessage());
+        }
+    }
+
+    /**
+     * Stops the reaper, interrupting a pass in progress between two batches.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if (scheduled != null) scheduled.cancel(false);
+        scheduled = null;
+    }
+
+    private void reapQuietly() {
+        try {
+            ExpireResult result = reap(ZonedDateTime.now());
+            if (result.expired > 0) log.info("DQ flag reaper : "+result.expired+" expired flags deleted in "+result.elapsedMillis+" ms.");
+        } catch (Exception e) {
+            log.warn("Could not delete expired DQ flags : "+e.getMessage());
+        } finally {
+            running.set(false);
+        }
+    }
+
+    /**
+     * Deletes the flags expired at <code>now</code>.
+     */
+    public synchronized ExpireResult reap(ZonedDateTime now) {
+        Pacer pacer = new Pacer();
+        ClassTree tree = classCache.tree();
+        List<ClassTree.Entry> expiring = new ArrayList<>();
+        for (ClassTree.Entry entry : tree.entries()) {
+            if (entry.getEffectiveTtlSeconds() > 0 && !tree.isDuplicate(entry.getName())) expiring.add(entry);
+        }
+        if (expiring.isEmpty()) return pacer.result();
+
+        for (ClassTree.Entry entry : expiring) {
+            if (pacer.isDone()) break;
+            Label label = Label.label(entry.getName());
+            ZonedDateTime cutoff = now.minusSeconds(entry.getEffectiveTtlSeconds());
+            reapFlagNodes(label, DQSchema.ensureCreatedIndex(db, label, log), cutoff, pacer);
+            if (!pacer.isDone()) reapCompactFlags(entry.getId(), cutoff.toInstant(), pacer);
+        }
+        return pacer.result();
+    }
+
+    /**
+     * Deletes the flag nodes of the class created before <code>cutoff</code>, oldest first.
+     * Every flag read is expired and deleted, so each batch seeks the index from its start again.
+     */
+    private void reapFlagNodes(Label label, boolean indexed, ZonedDateTime cutoff, Pacer pacer) {
+        // the range seek reads the flags of the class only, from the index on its own label when it's online
+        String query = "MATCH (flag:" + DQ_FLAG.name() + ":" + Util.quote(label.name()) + ") "
+                + (indexed ? "USING INDEX flag:" + Util.quote(label.name()) + "(" + createdProperty + ") " : "")
+                + "WHERE flag." + createdProperty + " < $cutoff "
+                + "RETURN flag ORDER BY flag." + createdProperty + " LIMIT $limit";
+        int read = batchSize;
+        while (read == batchSize && !pacer.isDone()) {
+            read = 0;
+            long deleted = 0;
+            try (Transaction tx = db.beginTx()) {
+                List<Node> expired = new ArrayList<>(batchSize);
+                try (Result result = tx.execute(query, Util.map("cutoff", cutoff, "limit", batchSize))) {
+                    while (result.hasNext()) {
+                        expired.add((Node) result.next().get("flag"));
+                    }
+                }
+                for (Node flag : expired) {
+                    if (deleteFlagNode(flag)) deleted += 1;
+                }
+                read = expired.size();
+                tx.commit();
+            }
+            pacer.batch(read, deleted);
+        }
+    }
+
+    private void reapCompactFlags(long classId, Instant expiry, Pacer pacer) {
+        long[] expired;
+        long scanned = 0;
+        try (Transaction tx = db.beginTx()) {
+            LongArrayList ids = new LongArrayList();
+            for (Relationship flag : CompactFlags.flags(tx.getNodeById(classId))) {
+                scanned += 1;
+                Object created = flag.getProperty(createdProperty, null);
+                if (created instanceof ZonedDateTime && ((ZonedDateTime) created).toInstant().isBefore(expiry)) ids.add(flag.getId());
+            }
+            expired = ids.toArray();
+            tx.commit();
+        } catch (NotFoundException e) {
+            // class deleted meanwhile
+            return;
+        }
+        // the scan counts against the rate as much as the deletes
+        pacer.batch(scanned, 0);
+        Iterator<Ids.Chunk> chunks = Ids.chunks(expired, () -> batchSize);
+        while (chunks.hasNext() && !pacer.isDone()) {
+            Ids.Chunk batch = chunks.next();
+            long deleted = 0;
+            try (Transaction tx = db.beginTx()) {
+                for (int i = 0; i < batch.size(); i++) {
+                    try {
+                        tx.getRelationshipById(batch.get(i)).delete();
+                        deleted += 1;
+                    } catch (NotFoundException ignore) {
+                        // already deleted
+                    }
+                }
+                tx.commit();
+            }
+            pacer.batch(batch.size(), deleted);
+        }
+    }
+
+    /**
+     * @return the TTL in seconds of an ISO-8601 duration, e.g. P30D or PT12H, or -1 if it's empty (no TTL).
+     */
+    public static long parseTtl(String ttl) {
+        if (Util.isNullOrEmpty(ttl)) return -1;
+        Duration duration;
+        try {
+            duration = Duration.parse(ttl.trim());
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid TTL '"+ttl+"' : expected an ISO-8601 duration, e.g. P30D or PT12H");
+        }
+        if (duration.isNegative() || duration.getSeconds() < 1) {
+            throw new IllegalArgumentException("Invalid TTL '"+ttl+"' : expected at least one second");
+        }
+        return duration.getSeconds();
+    }
+
+    /**
+     * Counts deleted flags, and sleeps after each batch as long as needed to keep the flags read under the maximum rate.
+     * A pass ends when the reaper is stopped, or when the thread running it is interrupted.
+     */
+    private class Pacer {
+        private final long start = System.nanoTime();
+        private long read = 0;
+        private long expired = 0;
+        private long batches = 0;
+        private boolean interrupted = false;
+
+        void batch(long rows, long deleted) {
+            if (rows == 0) return;
+            read += rows;
+            expired += deleted;
+            if (deleted > 0) batches += 1;
+            if (maxRate <= 0) return;
+            long ahead = read * 1000 / maxRate - (System.nanoTime() - start) / 1_000_000;
+            if (ahead <= 0) return;
+            try {
+                Thread.sleep(ahead);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                interrupted = true;
+            }
+        }
+
+        boolean isDone() {
+            return stopped || interrupted;
+        }
+
+        ExpireResult result() {
+            return new ExpireResult(expired, batches, (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+
+    public static class ExpireResult {
+        public final Long expired;
+        public final Long batches;
+        public final Long elapsedMillis;
+
+        public ExpireResult(long expired, long batches, long elapsedMillis) {
+            this.expired = expired;
+            this.batches = batches;
+            this.elapsedMillis = elapsedMillis;
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package neo4j.dq;
+
+import org.neo4j.graphdb.*;
+
+import java.util.*;
+
+/**
+ * Flag count time series of a class, in 3 tiers of decreasing resolution, stored in append-only chunks.
+ * Each tier is split in chunks of a fixed span (an hour of minute samples, a day of hour samples, 64 days of day samples).
+ * The open chunk of each tier is stored as 3 packed arrays on the class DQ_History node : sample times (epoch seconds),
+ * direct and total counts. When a sample opens the next chunk, the open one is moved to a DQ_HistoryChunk node linked
+ * from the history node, which is never written again : appending only rewrites the arrays of the open chunk.
+ * Samples are appended to the minute tier ; as they age, they're downsampled to one sample per hour, then per day,
+ * keeping the last sample of each period (the count at the end of the period), a whole chunk at a time.
+ */
+public class HistorySeries {
+
+    public static final Label DQ_HISTORY_CHUNK = Label.label("DQ_HistoryChunk");
+    public static final RelationshipType HAS_DQ_HISTORY_CHUNK = RelationshipType.withName("HAS_DQ_HISTORY_CHUNK");
+
+    private static final String resolutionProperty = "resolution";
+    private static final String startProperty = "start";
+
+    public enum Resolution {
+        MINUTE(60, 3_600), HOUR(3_600, 86_400), DAY(86_400, 64 * 86_400);
+
+        private final long seconds;
+        private final long chunkSeconds;
+
+        Resolution(long seconds, long chunkSeconds) {
+            this.seconds = seconds;
+            this.chunkSeconds = chunkSeconds;
+        }
+
+        public long getSeconds() {
+            return seconds;
+        }
+
+        long periodStart(long time) {
+            return Math.floorDiv(time, seconds) * seconds;
+        }
+
+        long chunkStart(long time) {
+            return Math.floorDiv(time, chunkSeconds) * chunkSeconds;
+        }
+
+        String property(String suffix) {
+            return name().toLowerCase() + suffix;
+        }
+    }
+
+    private final Transaction tx;
+    private final Node history;
+    private final EnumMap<Resolution, Tier> heads = new EnumMap<>(Resolution.class);
+    private final EnumMap<Resolution, long[]> chunkStarts = new EnumMap<>(Resolution.class);
+    private final EnumSet<Resolution> changed = EnumSet.noneOf(Resolution.class);
+    private Map<String, Node> chunks;
+
+    private HistorySeries(Transaction tx, Node history) {
+        this.tx = tx;
+        this.history = history;
+        for (Resolution resolution : Resolution.values()) {
+            long[] times = (long[]) history.getProperty(resolution.property("Times"), new long[0]);
+            long[] direct = (long[]) history.getProperty(resolution.property("Direct"), new long[0]);
+            long[] total = (long[]) history.getProperty(resolution.property("Total"), new long[0]);
+            int size = Math.min(times.length, Math.min(direct.length, total.length));
+            Tier head = new Tier();
+            for (int i = 0; i < size; i++) {
+                head.add(times[i], direct[i], total[i]);
+            }
+            heads.put(resolution, head);
+            chunkStarts.put(resolution, (long[]) history.getProperty(resolution.property("Chunks"), new long[0]));
+        }
+    }
+
+    /**
+     * @return the series of the history node, reading only the open chunk of each tier.
+     */
+    public static HistorySeries load(Transaction tx, Node history) {
+        return new HistorySeries(tx, history);
+    }
+
+    /**
+     * Writes the open chunks of the tiers that changed.
+     */
+    public void store() {
+        for (Resolution resolution : changed) {
+            Tier head = heads.get(resolution);
+            history.setProperty(resolution.property("Times"), Arrays.copyOf(head.times, head.size));
+            history.setProperty(resolution.property("Direct"), Arrays.copyOf(head.direct, head.size));
+            history.setProperty(resolution.property("Total"), Arrays.copyOf(head.total, head.size));
+            history.setProperty(resolution.property("Chunks"), chunkStarts.get(resolution));
+        }
+        changed.clear();
+    }
+
+    /**
+     * Appends a sample to the minute tier. A sample at the time of the last one replaces it, older samples are ignored.
+     */
+    public void append(long time, long direct, long total) {
+        Tier minutes = heads.get(Resolution.MINUTE);
+        if (minutes.size > 0) {
+            long last = minutes.times[minutes.size - 1];
+            if (time < last) return;
+            if (time == last) {
+                minutes.direct[minutes.size - 1] = direct;
+                minutes.total[minutes.size - 1] = total;
+                changed.add(Resolution.MINUTE);
+                return;
+            }
+        } else if (time <= lastChunkTime(Resolution.MINUTE)) {
+            return;
+        }
+        push(Resolution.MINUTE, time, direct, total);
+    }
+
+    /**
+     * Moves the samples of a tier older than <code>before</code> to the next coarser tier : whole chunks, then the
+     * samples of the open chunk.
+     */
+    public void downsample(Resolution from, long before) {
+        if (from == Resolution.DAY) return;
+        Resolution to = Resolution.values()[from.ordinal() + 1];
+        long[] starts = chunkStarts.get(from);
+        int folded = 0;
+        while (folded < starts.length && starts[folded] + from.chunkSeconds <= before) {
+            Node chunk = chunk(from, starts[folded]);
+            if (chunk != null) {
+                long[] times = (long[]) chunk.getProperty("times");
+                long[] direct = (long[]) chunk.getProperty("direct");
+                long[] total = (long[]) chunk.getProperty("total");
+                for (int i = 0; i < times.length; i++) {
+                    fold(to, times[i], direct[i], total[i]);
+                }
+                deleteChunk(from, starts[folded]);
+            }
+            folded++;
+        }
+        removeChunkStarts(from, folded);
+
+        Tier head = heads.get(from);
+        int moved = 0;
+        while (moved < head.size && head.times[moved] < before) {
+            fold(to, head.times[moved], head.direct[moved], head.total[moved]);
+            moved++;
+        }
+        if (moved > 0) {
+            head.removeFirst(moved);
+            changed.add(from);
+        }
+    }
+
+    /**
+     * Drops the day samples older than <code>before</code>.
+     */
+    public void expire(long before) {
+        Resolution days = Resolution.DAY;
+        long[] starts = chunkStarts.get(days);
+        int expired = 0;
+        while (expired < starts.length && starts[expired] + days.chunkSeconds <= before) {
+            deleteChunk(days, starts[expired]);
+            expired++;
+        }
+        removeChunkStarts(days, expired);
+
+        Tier head = heads.get(days);
+        int trimmed = 0;
+        while (trimmed < head.size && head.times[trimmed] < before) trimmed++;
+        if (trimmed > 0) {
+            head.removeFirst(trimmed);
+            changed.add(days);
+        }
+    }
+
+    /**
+     * @return the samples between <code>from</code> and <code>to</code> (inclusive), with one sample per period of the resolution at most.
+     * Samples only available at a coarser resolution are returned as they are. Only the chunks overlapping the range are read,
+     * and the last chunk of each tier before it. The counts at <code>from</code> are those of the last earlier sample,
+     * carried forward to <code>from</code> when the range has no sample of its own at its start.
+     */
+    public List<long[]> range(long from, long to, Resolution resolution) {
+        if (from > to) return List.of();
+        TreeMap<Long, long[]> samples = new TreeMap<>();
+        // coarser tiers hold the older samples : read them first, so that finer samples of the same period win
+        for (int r = Resolution.values().length - 1; r >= 0; r--) {
+            Resolution tierResolution = Resolution.values()[r];
+            boolean bucket = tierResolution.ordinal() <= resolution.ordinal();
+            for (long start : chunkStarts.get(tierResolution)) {
+                if (start > to || start + tierResolution.chunkSeconds <= from) continue;
+                Node chunk = chunk(tierResolution, start);
+                if (chunk == null) continue;
+                long[] times = (long[]) chunk.getProperty("times");
+                long[] direct = (long[]) chunk.getProperty("direct");
+                long[] total = (long[]) chunk.getProperty("total");
+                for (int i = 0; i < times.length; i++) {
+                    addSample(samples, times[i], direct[i], total[i], from, to, bucket ? resolution : null);
+                }
+            }
+            Tier head = heads.get(tierResolution);
+            for (int i = 0; i < head.size; i++) {
+                addSample(samples, head.times[i], head.direct[i], head.total[i], from, to, bucket ? resolution : null);
+            }
+        }
+        if (samples.floorKey(from) == null) {
+            long[] before = last(from);
+            if (before != null) samples.put(from, new long[]{from, before[1], before[2]});
+        }
+        return new ArrayList<>(samples.values());
+    }
+
+    /**
+     * @return the last sample before <code>before</code> in any tier, as {time, direct, total}, or null.
+     */
+    public long[] last(long before) {
+        long[] last = null;
+        for (Resolution resolution : Resolution.values()) {
+            long[] sample = last(resolution, before);
+            if (sample != null && (last == null || sample[0] > last[0])) last = sample;
+        }
+        return last;
+    }
+
+    // the open chunk holds the last samples of the tier, the closed chunks are read backwards from the last one
+    private long[] last(Resolution resolution, long before) {
+        Tier head = heads.get(resolution);
+        for (int i = head.size - 1; i >= 0; i--) {
+            if (head.times[i] < before) return new long[]{head.times[i], head.direct[i], head.total[i]};
+        }
+        long[] starts = chunkStarts.get(resolution);
+        for (int c = starts.length - 1; c >= 0; c--) {
+            if (starts[c] >= before) continue;
+            Node chunk = chunk(resolution, starts[c]);
+            if (chunk == null) continue;
+            long[] times = (long[]) chunk.getProperty("times");
+            for (int i = times.length - 1; i >= 0; i--) {
+                if (times[i] < before) return new long[]{times[i], ((long[]) chunk.getProperty("direct"))[i], ((long[]) chunk.getProperty("total"))[i]};
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of samples of a tier, in all its chunks.
+     */
+    public int size(Resolution resolution) {
+        int size = heads.get(resolution).size;
+        for (long start : chunkStarts.get(resolution)) {
+            Node chunk = chunk(resolution, start);
+            if (chunk != null) size += ((long[]) chunk.getProperty("times")).length;
+        }
+        return size;
+    }
+
+    private static void addSample(TreeMap<Long, long[]> samples, long time, long direct, long total, long from, long to, Resolution bucket) {
+        if (time < from || time > to) return;
+        long key = bucket == null ? time : bucket.periodStart(time);
+        samples.put(key, new long[]{key, direct, total});
+    }
+
+    // the last sample of a period wins, even if the period was partly moved already
+    private void fold(Resolution to, long time, long direct, long total) {
+        long period = to.periodStart(time);
+        Tier head = heads.get(to);
+        if (head.size > 0 && head.times[head.size - 1] == period) {
+            head.direct[head.size - 1] = direct;
+            head.total[head.size - 1] = total;
+            changed.add(to);
+        } else if (head.size == 0 ? period > lastChunkTime(to) : head.times[head.size - 1] < period) {
+            push(to, period, direct, total);
+        }
+    }
+
+    /**
+     * Adds a sample to the open chunk of a tier, closing it first if the sample belongs to a later chunk.
+     */
+    private void push(Resolution resolution, long time, long direct, long total) {
+        Tier head = heads.get(resolution);
+        if (head.size > 0 && resolution.chunkStart(head.times[head.size - 1]) != resolution.chunkStart(time)) close(resolution);
+        head.add(time, direct, total);
+        changed.add(resolution);
+    }
+
+    private void close(Resolution resolution) {
+        Tier head = heads.get(resolution);
+        long[] starts = chunkStarts.get(resolution);
+        int from = 0;
+        while (from < head.size) {
+            long start = resolution.chunkStart(head.times[from]);
+            int to = from;
+            while (to < head.size && resolution.chunkStart(head.times[to]) == start) to++;
+            Node chunk = tx.createNode(DQ_HISTORY_CHUNK);
+            chunk.setProperty(resolutionProperty, resolution.name());
+            chunk.setProperty(startProperty, start);
+            chunk.setProperty("times", Arrays.copyOfRange(head.times, from, to));
+            chunk.setProperty("direct", Arrays.copyOfRange(head.direct, from, to));
+            chunk.setProperty("total", Arrays.copyOfRange(head.total, from, to));
+            history.createRelationshipTo(chunk, HAS_DQ_HISTORY_CHUNK);
+            chunks().put(key(resolution, start), chunk);
+            starts = Arrays.copyOf(starts, starts.length + 1);
+            starts[starts.length - 1] = start;
+            from = to;
+        }
+        chunkStarts.put(resolution, starts);
+        head.removeFirst(head.size);
+        changed.add(resolution);
+    }
+
+    private long lastChunkTime(Resolution resolution) {
+        long[] starts = chunkStarts.get(resolution);
+        if (starts.length == 0) return Long.MIN_VALUE;
+        Node chunk = chunk(resolution, starts[starts.length - 1]);
+        if (chunk == null) return Long.MIN_VALUE;
+        long[] times = (long[]) chunk.getProperty("times");
+        return times.length == 0 ? Long.MIN_VALUE : times[times.length - 1];
+    }
+
+    private void deleteChunk(Resolution resolution, long start) {
+        Node chunk = chunks().remove(key(resolution, start));
+        if (chunk == null) return;
+        for (Relationship rel : chunk.getRelationships()) {
+            rel.delete();
+        }
+        chunk.delete();
+    }
+
+    private void removeChunkStarts(Resolution resolution, int count) {
+        if (count == 0) return;
+        long[] starts = chunkStarts.get(resolution);
+        chunkStarts.put(resolution, Arrays.copyOfRange(starts, count, starts.length));
+        changed.add(resolution);
+    }
+
+    private Node chunk(Resolution resolution, long start) {
+        return chunks().get(key(resolution, start));
+    }
+
+    // the chunks are only read from the history node's relationships when a closed chunk is needed
+    private Map<String, Node> chunks() {
+        if (chunks == null) {
+            chunks = new HashMap<>();
+            for (Relationship rel : history.getRelationships(Direction.OUTGOING, HAS_DQ_HISTORY_CHUNK)) {
+                Node chunk = rel.getEndNode();
+                chunks.put(chunk.getProperty(resolutionProperty, "") + ":" + chunk.getProperty(startProperty, 0L), chunk);
+            }
+        }
+        return chunks;
+    }
+
+    private static String key(Resolution resolution, long start) {
+        return resolution.name() + ":" + start;
+    }
+
+    private static class Tier {
+        long[] times = new long[16];
+        long[] direct = new long[16];
+        long[] total = new long[16];
+        int size;
+
+        void add(long time, long d, long t) {
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                direct = Arrays.copyOf(direct, size * 2);
+                total = Arrays.copyOf(total, size * 2);
+            }
+            times[size] = time;
+            direct[size] = d;
+            total[size] = t;
+            size++;
+        }
+
+        void removeFirst(int count) {
+            if (count == 0) return;
+            System.arraycopy(times, count, times, 0, size - count);
+            System.arraycopy(direct, count, direct, 0, size - count);
+            System.arraycopy(total, count, total, 0, size - count);
+            size -= count;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package neo4j.dq;
+
+import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
+import org.neo4j.graphdb.Entity;
+import org.neo4j.graphdb.Relationship;
+
+import java.util.*;
+import java.util.function.IntSupplier;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
+import java.util.function.LongToIntFunction;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Node and relationship ids of bulk procedure inputs, handled as primitive longs.
+ * Inputs are read lazily, element by element, and cut into {@link Chunk}s : slices of a long array,
+ * shared with the input when it is already one, so that the heap doesn't grow with the size of the input.
+ */
+public class Ids {
+
+    /**
+     * A batch of ids : <code>size()</code> ids of an array, starting at <code>from</code>.
+     */
+    public static class Chunk {
+        private final long[] ids;
+        private final int from;
+        private final int to;
+
+        public Chunk(long[] ids, int from, int to) {
+            this.ids = ids;
+            this.from = from;
+            this.to = to;
+        }
+
+        public int size() {
+            return to - from;
+        }
+
+        public long get(int i) {
+            return ids[from + i];
+        }
+
+        public void forEach(LongConsumer consumer) {
+            for (int i = from; i < to; i++) {
+                consumer.accept(ids[i]);
+            }
+        }
+
+        /**
+         * @return a copy of the chunk, sorted by a key between 0 and <code>keys</code>, keeping the order of ids with the same key.
+         * The array the chunk is a slice of is left as it is : it may be the caller's.
+         */
+        public Chunk sortedBy(LongToIntFunction key, int keys) {
+            int[] starts = new int[keys + 1];
+            for (int i = from; i < to; i++) {
+                starts[key.applyAsInt(ids[i]) + 1] += 1;
+            }
+            for (int k = 0; k < keys; k++) {
+                starts[k + 1] += starts[k];
+            }
+            long[] sorted = new long[size()];
+            for (int i = from; i < to; i++) {
+                sorted[starts[key.applyAsInt(ids[i])]++] = ids[i];
+            }
+            return new Chunk(sorted, 0, sorted.length);
+        }
+    }
+
+    /**
+     * @return the ids of the nodes (or node ids) of the input : a node, an id, or a list, array or iterable of them.
+     * Relationships are skipped.
+     */
+    public static LongStream nodeIds(Object input) {
+        return elements(input, false, null);
+    }
+
+    /**
+     * @return the ids of the nodes (or node ids) of the input, like {@link #nodeIds(Object)}, handing the ids of its relationships
+     * to <code>relationshipIds</code> as they are read : inputs that can only be iterated once are read in a single pass.
+     */
+    public static LongStream nodeIds(Object input, LongConsumer relationshipIds) {
+        return elements(input, false, relationshipIds);
+    }
+
+    /**
+     * @return the ids of the relationships of the input, which can also hold nodes or node ids : those are skipped.
+     */
+    public static LongStream relationshipIds(Object input) {
+        return elements(input, true, null);
+    }
+
+    private static LongStream elements(Object input, boolean relationships, LongConsumer skipped) {
+        if (input == null) return LongStream.empty();
+        // arrays of primitives can only hold node ids
+        if (input instanceof long[]) return relationships ? LongStream.empty() : LongStream.of((long[]) input);
+        if (input instanceof int[]) return relationships ? LongStream.empty() : Arrays.stream((int[]) input).asLongStream();
+        Iterator<?> elements;
+        if (input instanceof Iterable) elements = ((Iterable<?>) input).iterator();
+        else if (input instanceof Iterator) elements = (Iterator<?>) input;
+        else if (input instanceof Object[]) elements = Arrays.asList((Object[]) input).iterator();
+        else elements = Collections.singletonList(input).iterator();
+
+        PrimitiveIterator.OfLong ids = new PrimitiveIterator.OfLong() {
+            private Object next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && elements.hasNext()) {
+                    Object element = elements.next();
+                    if (element == null) continue;
+                    if ((element instanceof Relationship) == relationships) next = element;
+                    else if (skipped != null) skipped.accept(skipped(element));
+                }
+                return next != null;
+            }
+
+            @Override
+            public long nextLong() {
+                if (!hasNext()) throw new NoSuchElementException();
+                Object element = next;
+                next = null;
+                if (element instanceof Entity) return ((Entity) element).getId();
+                return Util.nodeId(element);
+            }
+        };
+        return StreamSupport.longStream(Spliterators.spliteratorUnknownSize(ids, Spliterator.ORDERED), false);
+    }
+
+    private static long skipped(Object element) {
+        return element instanceof Entity ? ((Entity) element).getId() : Util.nodeId(element);
+    }
+
+    /**
+     * @return the number of elements of the input, without reading it, or -1 if it can't be known beforehand.
+     */
+    public static long size(Object input) {
+        if (input == null) return 0;
+        if (input instanceof long[]) return ((long[]) input).length;
+        if (input instanceof int[]) return ((int[]) input).length;
+        if (input instanceof Object[]) return ((Object[]) input).length;
+        if (input instanceof Collection) return ((Collection<?>) input).size();
+        if (input instanceof Iterable || input instanceof Iterator) return -1;
+        return 1;
+    }
+
+    /**
+     * @return the ids the first time they're seen only.
+     */
+    public static LongPredicate firstSeen() {
+        LongHashSet seen = new LongHashSet();
+        return seen::add;
+    }
+
+    /**
+     * Cuts the ids into chunks of the given sizes, each filled in its own array as the ids are read.
+     */
+    public static Iterator<Chunk> chunks(PrimitiveIterator.OfLong ids, IntSupplier chunkSize) {
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return ids.hasNext();
+            }
+
+            @Override
+            public Chunk next() {
+                if (!ids.hasNext()) throw new NoSuchElementException();
+                int max = Math.max(1, chunkSize.getAsInt());
+                // grown as needed, so that large chunk sizes don't cost anything for small inputs
+                long[] chunk = new long[Math.min(max, 1024)];
+                int size = 0;
+                while (size < max && ids.hasNext()) {
+                    if (size == chunk.length) chunk = Arrays.copyOf(chunk, (int) Math.min(max, 2L * chunk.length));
+                    chunk[size++] = ids.nextLong();
+                }
+                return new Chunk(chunk, 0, size);
+            }
+        };
+    }
+
+    /**
+     * Cuts the node ids of the input into chunks of the given sizes : slices of the input when it's already a long array,
+     * filled as the input is read otherwise.
+     */
+    public static Iterator<Chunk> nodeChunks(Object input, IntSupplier chunkSize) {
+        if (input instanceof long[]) return chunks((long[]) input, chunkSize);
+        return chunks(nodeIds(input).iterator(), chunkSize);
+    }
+
+    /**
+     * Cuts the ids into chunks of the given sizes, without copying them : the chunks are slices of the array.
+     */
+    public static Iterator<Chunk> chunks(long[] ids, IntSupplier chunkSize) {
+        return new Iterator<>() {
+            private int from = 0;
+
+            @Override
+            public boolean hasNext() {
+                return from < ids.length;
+            }
+
+            @Override
+            public Chunk next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                int to = (int) Math.min(ids.length, (long) from + Math.max(1, chunkSize.getAsInt()));
+                Chunk chunk = new Chunk(ids, from, to);
+                from = to;
+                return chunk;
+            }
+        };
+    }
+}
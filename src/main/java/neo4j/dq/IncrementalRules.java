@@ -0,0 +1,413 @@
+package neo4j.dq;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.logging.Log;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import static neo4j.dq.DQ.*;
+
+/**
+ * Re-evaluates the DQ rules on the nodes changed by committed transactions, instead of scanning the whole graph with runRules.
+ * {@link DQTransactionListener} collects the nodes whose labels or rule properties changed, and the rule flags left behind
+ * by deleted nodes ; they're queued after commit, and processed asynchronously in batched transactions on the executor.
+ * Each node is checked in its current state, against all the rules of its labels : missing flags are created,
+ * flags of rules it no longer breaks are deleted.
+ */
+public class IncrementalRules {
+
+    private static final int MAX_RETRIES = 3;
+    private static final long BACKOFF_MILLIS = 10;
+
+    private final GraphDatabaseService db;
+    private final DQDatabase database;
+    private final Supplier<Executor> executor;
+    private final boolean enabled;
+    private final int batchSize;
+    private final int queueSize;
+    private final Log log;
+
+    private final VersionedCache<RuleSet> rules = new VersionedCache<>(this::load);
+
+    private final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+    // queued node and flag ids, including the batch being processed
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final AtomicBoolean overflowing = new AtomicBoolean();
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder deleted = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private volatile long lastLagMillis;
+
+    public IncrementalRules(GraphDatabaseService db, DQDatabase database, Supplier<Executor> executor,
+                            boolean enabled, int batchSize, int queueSize, Log log) {
+        this.db = db;
+        this.database = database;
+        this.executor = executor;
+        this.enabled = enabled;
+        this.batchSize = Math.max(1, batchSize);
+        this.queueSize = queueSize;
+        this.log = log;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the committed rules, lazily reloaded after {@link #invalidate()}.
+     */
+    public RuleSet rules() {
+        try {
+            return rules.get();
+        } catch (Exception e) {
+            log.warn("Could not load DQ rules : "+e.getMessage());
+            return RuleSet.EMPTY;
+        }
+    }
+
+    private RuleSet load() {
+        try (Transaction tx = db.beginTx()) {
+            RuleSet loaded = new RuleSet(DQRule.load(tx, null));
+            tx.commit();
+            return loaded;
+        }
+    }
+
+    public void invalidate() {
+        rules.invalidate();
+    }
+
+    /**
+     * @return whether the transaction changes rules, or anything they're loaded from.
+     */
+    public static boolean rulesChanged(TransactionData data) {
+        for (LabelEntry entry : data.assignedLabels()) {
+            if (entry.label().equals(DQRule.DQ_RULE)) return true;
+        }
+        for (LabelEntry entry : data.removedLabels()) {
+            if (entry.label().equals(DQRule.DQ_RULE)) return true;
+        }
+        for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+            if (entry.entity().hasLabel(DQRule.DQ_RULE)) return true;
+        }
+        for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+            if (!data.isDeleted(entry.entity()) && entry.entity().hasLabel(DQRule.DQ_RULE)) return true;
+        }
+        for (Relationship rel : data.createdRelationships()) {
+            if (rel.isType(DQRule.HAS_DQ_RULE)) return true;
+        }
+        for (Relationship rel : data.deletedRelationships()) {
+            if (rel.isType(DQRule.HAS_DQ_RULE)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Collects what the transaction changed that rules may have to be re-evaluated on, before it commits.
+     * @return the changes, or null if there's nothing to re-evaluate.
+     */
+    public Pending collect(TransactionData data) {
+        if (!enabled) return null;
+        RuleSet ruleSet = rules();
+        if (ruleSet.isEmpty()) return null;
+
+        Set<Long> nodes = new HashSet<>();
+        for (LabelEntry entry : data.assignedLabels()) {
+            if (ruleSet.hasLabel(entry.label().name())) nodes.add(entry.node().getId());
+        }
+        for (LabelEntry entry : data.removedLabels()) {
+            if (ruleSet.hasLabel(entry.label().name()) && !data.isDeleted(entry.node())) nodes.add(entry.node().getId());
+        }
+        for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+            if (ruleSet.hasProperty(entry.key())) nodes.add(entry.entity().getId());
+        }
+        for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+            if (ruleSet.hasProperty(entry.key()) && !data.isDeleted(entry.entity())) nodes.add(entry.entity().getId());
+        }
+        // the flags of deleted nodes are left behind, unless they're deleted in the same transaction
+        Set<Long> flags = new HashSet<>();
+        Set<Long> deletedNodes = null;
+        for (Relationship rel : data.deletedRelationships()) {
+            if (!rel.isType(HAS_DQ_FLAG)) continue;
+            if (deletedNodes == null) {
+                deletedNodes = new HashSet<>();
+                for (Node node : data.deletedNodes()) deletedNodes.add(node.getId());
+            }
+            if (deletedNodes.contains(rel.getStartNodeId()) && !deletedNodes.contains(rel.getEndNodeId())) flags.add(rel.getEndNodeId());
+        }
+        if (nodes.isEmpty() && flags.isEmpty()) return null;
+        return new Pending(toArray(nodes), toArray(flags));
+    }
+
+    /**
+     * Queues the changes of a committed transaction, split in batches, and makes sure they get processed.
+     */
+    public void enqueue(Pending changes) {
+        if (changes == null) return;
+        long committed = System.currentTimeMillis();
+        int size = changes.size();
+        if (queued.get() + size > queueSize) {
+            dropped.add(size);
+            if (overflowing.compareAndSet(false, true)) {
+                log.warn("DQ incremental rule queue is full ("+queueSize+" nodes) : changes are dropped until it drains, run neo4j.dq.runRules to catch up.");
+            }
+            return;
+        }
+        queued.addAndGet(size);
+        for (int from = 0; from < changes.nodes.length; from += batchSize) {
+            queue.add(new Pending(Arrays.copyOfRange(changes.nodes, from, Math.min(changes.nodes.length, from + batchSize)), new long[0], committed));
+        }
+        for (int from = 0; from < changes.flags.length; from += batchSize) {
+            queue.add(new Pending(new long[0], Arrays.copyOfRange(changes.flags, from, Math.min(changes.flags.length, from + batchSize)), committed));
+        }
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if (queue.isEmpty() || !drainScheduled.compareAndSet(false, true)) return;
+        try {
+            executor.get().execute(() -> {
+                try {
+                    flush();
+                } finally {
+                    drainScheduled.set(false);
+                }
+                // changes queued after the last batch was taken
+                scheduleDrain();
+            });
+        } catch (Exception e) {
+            // left queued, for the next commit to process
+            drainScheduled.set(false);
+            log.debug("Could not schedule DQ incremental rule evaluation : "+e.getMessage());
+        }
+    }
+
+    /**
+     * Processes the queued changes, batch by batch.
+     */
+    public synchronized void flush() {
+        while (true) {
+            List<Pending> batch = new ArrayList<>();
+            int size = 0;
+            for (Pending next = queue.peek(); next != null && (size == 0 || size + next.size() <= batchSize); next = queue.peek()) {
+                batch.add(queue.poll());
+                size += next.size();
+            }
+            if (batch.isEmpty()) break;
+            process(batch);
+            queued.addAndGet(-size);
+            if (queued.get() == 0) overflowing.set(false);
+        }
+    }
+
+    private void process(List<Pending> batch) {
+        RuleSet ruleSet = rules();
+        long size = batch.stream().mapToLong(Pending::size).sum();
+        for (int attempt = 0; ; attempt++) {
+            try (Transaction tx = db.beginTx()) {
+                long[] counts = new long[2];
+                Map<Long, Node> classNodes = new HashMap<>();
+                for (Pending pending : batch) {
+                    for (long id : pending.nodes) evaluate(tx, ruleSet, id, classNodes, counts);
+                    for (long id : pending.flags) {
+                        if (deleteOrphanFlag(tx, id)) counts[1] += 1;
+                    }
+                }
+                tx.commit();
+                processed.add(size);
+                created.add(counts[0]);
+                deleted.add(counts[1]);
+                lastLagMillis = System.currentTimeMillis() - batch.get(0).committed;
+                return;
+            } catch (RuntimeException e) {
+                if (attempt < MAX_RETRIES && BatchRunner.isTransient(e)) {
+                    long backoff = (BACKOFF_MILLIS << attempt);
+                    try {
+                        Thread.sleep(backoff + ThreadLocalRandom.current().nextLong(backoff));
+                        continue;
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                failed.add(size);
+                log.warn("DQ incremental rule evaluation of "+size+" nodes failed : "+e.getMessage());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Flags the node for the rules it breaks, and clears the flags of the rules it doesn't break anymore.
+     */
+    private void evaluate(Transaction tx, RuleSet ruleSet, long id, Map<Long, Node> classNodes, long[] counts) {
+        Node node;
+        try {
+            node = tx.getNodeById(id);
+        } catch (NotFoundException e) {
+            return;
+        }
+        // flags written concurrently, e.g. by runRules, lock the node too : read its flags once they're committed
+        tx.acquireWriteLock(node);
+        Map<String, Node> ruleFlags = new HashMap<>();
+        for (Relationship rel : node.getRelationships(Direction.OUTGOING, HAS_DQ_FLAG)) {
+            Object rule = rel.getEndNode().getProperty(DQRule.ruleProperty, null);
+            if (rule != null) ruleFlags.putIfAbsent(rule.toString(), rel.getEndNode());
+        }
+        Set<String> broken = new HashSet<>();
+        for (Label label : node.getLabels()) {
+            for (DQRule rule : ruleSet.forLabel(label.name())) {
+                if (!rule.isViolatedBy(node)) continue;
+                broken.add(rule.getName());
+                if (ruleFlags.containsKey(rule.getName())) continue;
+                Node classNode;
+                try {
+                    classNode = classNodes.computeIfAbsent(rule.getClassId(), tx::getNodeById);
+                } catch (NotFoundException e) {
+                    // the class was deleted since the rules were loaded
+                    continue;
+                }
+                // classes with rules can't be compact, see DQRule.create
+                Node flag = DQ.createFlagNode(tx, database, node, classNode, Label.label(rule.getDqClass()), rule.getFlagDescription());
+                flag.setProperty(DQRule.ruleProperty, rule.getName());
+                counts[0] += 1;
+            }
+        }
+        for (Map.Entry<String, Node> entry : ruleFlags.entrySet()) {
+            // flags of rules that don't exist anymore are left alone
+            if (broken.contains(entry.getKey()) || !ruleSet.hasRule(entry.getKey())) continue;
+            if (DQ.deleteFlagNode(entry.getValue())) counts[1] += 1;
+        }
+    }
+
+    private static boolean deleteOrphanFlag(Transaction tx, long id) {
+        Node flag;
+        try {
+            flag = tx.getNodeById(id);
+        } catch (NotFoundException e) {
+            return false;
+        }
+        if (!flag.hasProperty(DQRule.ruleProperty) || flag.hasRelationship(Direction.INCOMING, HAS_DQ_FLAG)) return false;
+        return DQ.deleteFlagNode(flag);
+    }
+
+    public StatusResult status() {
+        Pending oldest = queue.peek();
+        long lag = oldest == null ? 0 : System.currentTimeMillis() - oldest.committed;
+        return new StatusResult(enabled, enabled ? rules().size() : 0, queued.get(), lag, lastLagMillis, processed.sum(),
+                created.sum(), deleted.sum(), dropped.sum(), failed.sum());
+    }
+
+    private static long[] toArray(Set<Long> ids) {
+        long[] array = new long[ids.size()];
+        int i = 0;
+        for (long id : ids) array[i++] = id;
+        Arrays.sort(array);
+        return array;
+    }
+
+    /**
+     * Node ids to re-evaluate, and ids of flags left behind by deleted nodes.
+     */
+    public static class Pending {
+        final long[] nodes;
+        final long[] flags;
+        final long committed;
+
+        Pending(long[] nodes, long[] flags) {
+            this(nodes, flags, 0);
+        }
+
+        Pending(long[] nodes, long[] flags, long committed) {
+            this.nodes = nodes;
+            this.flags = flags;
+            this.committed = committed;
+        }
+
+        int size() {
+            return nodes.length + flags.length;
+        }
+    }
+
+    /**
+     * Rules indexed by label, and the properties they read.
+     */
+    public static class RuleSet {
+        static final RuleSet EMPTY = new RuleSet(List.of());
+
+        private final Map<String, List<DQRule>> byLabel = new HashMap<>();
+        private final Set<String> properties = new HashSet<>();
+        private final Set<String> names = new HashSet<>();
+
+        RuleSet(List<DQRule> rules) {
+            for (DQRule rule : rules) {
+                byLabel.computeIfAbsent(rule.getLabel(), label -> new ArrayList<>()).add(rule);
+                properties.add(rule.getProperty());
+                names.add(rule.getName());
+            }
+        }
+
+        public List<DQRule> forLabel(String label) {
+            return byLabel.getOrDefault(label, List.of());
+        }
+
+        public boolean hasLabel(String label) {
+            return byLabel.containsKey(label);
+        }
+
+        public boolean hasProperty(String property) {
+            return properties.contains(property);
+        }
+
+        public boolean hasRule(String name) {
+            return names.contains(name);
+        }
+
+        public boolean isEmpty() {
+            return names.isEmpty();
+        }
+
+        public int size() {
+            return names.size();
+        }
+    }
+
+    public static class StatusResult {
+        public final Boolean enabled;
+        public final Long rules;
+        public final Long queued;
+        public final Long lagMs;
+        public final Long lastLagMs;
+        public final Long processed;
+        public final Long created;
+        public final Long deleted;
+        public final Long dropped;
+        public final Long failed;
+
+        public StatusResult(boolean enabled, long rules, long queued, long lagMs, long lastLagMs, long processed,
+                            long created, long deleted, long dropped, long failed) {
+            this.enabled = enabled;
+            this.rules = rules;
+            this.queued = queued;
+            this.lagMs = lagMs;
+            this.lastLagMs = lastLagMs;
+            this.processed = processed;
+            this.created = created;
+            this.deleted = deleted;
+            this.dropped = dropped;
+            this.failed = failed;
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package neo4j.dq;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.internal.kernel.api.security.LoginContext;
+import org.neo4j.kernel.api.KernelTransaction;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.logging.Log;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs DQ procedures as background jobs, so that they outlive the client session that submitted them.
+ * Jobs run on threads of their own, rather than on the executor service, so that they can't take the threads
+ * the batches they submit need. The {@link BatchRunner}s created by a job report their progress to it,
+ * and stop submitting batches once it's cancelled.
+ */
+public class Jobs {
+
+    public enum Status { QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED }
+
+    static final int MAX_RESULT_ROWS = 100;
+    private static final Pattern PROCEDURE_NAME = Pattern.compile("[A-Za-z]+");
+    private static final Set<String> JOB_PROCEDURES = Set.of("submit", "jobStatus", "cancel", "listJobs");
+    private static final ThreadLocal<Job> CURRENT = new ThreadLocal<>();
+
+    private final ThreadPoolExecutor executor;
+    private final int history;
+    private final Log log;
+    private final AtomicLong ids = new AtomicLong();
+    private final Map<Long, Job> jobs = new ConcurrentHashMap<>();
+
+    public Jobs(int concurrency, int history, Log log) {
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "dq-job-" + threads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.history = history;
+        this.log = log;
+    }
+
+    public interface Task {
+        /**
+         * @return the result rows of the job.
+         */
+        List<Map<String, Object>> run(Job job) throws Exception;
+    }
+
+    /**
+     * @return the job the current thread is running, or null.
+     */
+    public static Job current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Queues a job calling the DQ procedure <code>procedure</code> with <code>args</code>, in a transaction of its own.
+     * Nodes and relationships of the arguments are passed on by id, and returned as ids in the results.
+     * The transaction of the job is opened with the <code>login</code> of the user who submitted it, so the job has the
+     * same access as a direct call of the procedure by that user.
+     */
+    public Job submit(GraphDatabaseAPI db, LoginContext login, String procedure, List<Object> args) {
+        String name = procedure == null ? "" : procedure.trim();
+        if (name.startsWith("neo4j.dq.")) name = name.substring("neo4j.dq.".length());
+        if (!PROCEDURE_NAME.matcher(name).matches() || JOB_PROCEDURES.contains(name)) {
+            throw new IllegalArgumentException("Can't run '"+procedure+"' as a DQ job : expected the name of a DQ procedure");
+        }
+        List<Object> arguments = args == null ? Collections.emptyList() : args;
+        StringJoiner parameters = new StringJoiner(", ");
+        for (int i = 0; i < arguments.size(); i++) {
+            parameters.add("$args[" + i + "]");
+        }
+        String query = "CALL neo4j.dq." + name + "(" + parameters + ")";
+        Object detached = detach(arguments);
+
+        return submit("neo4j.dq." + name, job -> {
+            try (Transaction tx = db.beginTransaction(KernelTransaction.Type.EXPLICIT, login)) {
+                List<Map<String, Object>> rows = new ArrayList<>();
+                try (Result result = tx.execute(query, Map.of("args", attach(tx, detached)))) {
+                    while (result.hasNext()) {
+                        Map<String, Object> row = result.next();
+                        if (rows.size() < MAX_RESULT_ROWS) rows.add(detach(row));
+                    }
+                }
+                tx.commit();
+                return rows;
+            }
+        });
+    }
+
+    public Job submit(String operation, Task task) {
+        Job job = new Job(ids.incrementAndGet(), operation);
+        jobs.put(job.id, job);
+        job.future = executor.submit(() -> run(job, task));
+        return job;
+    }
+
+    private void run(Job job, Task task) {
+        synchronized (job) {
+            if (job.status != Status.QUEUED) return;
+            job.status = Status.RUNNING;
+            job.started = Instant.now();
+        }
+        CURRENT.set(job);
+        Status status;
+        try {
+            job.results = task.run(job);
+            status = Status.SUCCEEDED;
+        } catch (Throwable e) {
+            if (job.cancelRequested) {
+                status = Status.CANCELLED;
+            } else {
+                status = Status.FAILED;
+                job.error = rootCause(e).getMessage();
+                log.warn("DQ job "+job.id+" ("+job.operation+") failed : "+job.error);
+            }
+        } finally {
+            CURRENT.remove();
+        }
+        synchronized (job) {
+            job.status = status;
+            job.finished = Instant.now();
+        }
+        log.info("DQ job "+job.id+" ("+job.operation+") "+status+" : "+job.processed.sum()+" items processed in "+job.elapsedMillis()+" ms.");
+        forgetOldJobs();
+    }
+
+    // finished jobs are only kept up to the history size, the oldest are dropped first
+    private void forgetOldJobs() {
+        List<Job> finished = jobs.values().stream()
+                .filter(Job::isFinished)
+                .sorted(Comparator.comparingLong(job -> job.id))
+                .collect(Collectors.toList());
+        for (int i = 0; i < finished.size() - history; i++) {
+            jobs.remove(finished.get(i).id);
+        }
+    }
+
+    public Job get(long id) {
+        return jobs.get(id);
+    }
+
+    public Stream<Job> list() {
+        return jobs.values().stream().sorted(Comparator.comparingLong(job -> job.id));
+    }
+
+    /**
+     * Cancels a queued job, or asks a running one to stop before its next batch.
+     * @return the job, or null if there's none with that id.
+     */
+    public Job cancel(long id) {
+        Job job = jobs.get(id);
+        if (job == null) return null;
+        synchronized (job) {
+            if (job.isFinished()) return job;
+            job.cancelRequested = true;
+            if (job.status == Status.QUEUED) {
+                job.status = Status.CANCELLED;
+                job.finished = Instant.now();
+                job.future.cancel(false);
+            }
+        }
+        if (job.isFinished()) forgetOldJobs();
+        return job;
+    }
+
+    public void shutdown() {
+        list().forEach(job -> cancel(job.id));
+        executor.shutdown();
+    }
+
+    private static Throwable rootCause(Throwable e) {
+        Throwable cause = e;
+        while (cause.getCause() != null && cause.getCause() != cause) cause = cause.getCause();
+        return cause.getMessage() == null ? e : cause;
+    }
+
+    /**
+     * @return the value with nodes and relationships replaced by references, which outlive the transaction.
+     */
+    private static Object detach(Object value) {
+        if (value instanceof Node) return new EntityRef(((Node) value).getId(), false);
+        if (value instanceof Relationship) return new EntityRef(((Relationship) value).getId(), true);
+        if (value instanceof List) return ((List<?>) value).stream().map(Jobs::detach).collect(Collectors.toList());
+        if (value instanceof Map) return detach((Map<?, ?>) value);
+        return value;
+    }
+
+    private static Map<String, Object> detach(Map<?, ?> value) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        value.forEach((k, v) -> map.put(String.valueOf(k), detach(v)));
+        return map;
+    }
+
+    /**
+     * @return the detached value, with the references bound to <code>tx</code>, or replaced by their ids if <code>tx</code> is null.
+     */
+    private static Object attach(Transaction tx, Object value) {
+        if (value instanceof EntityRef) {
+            EntityRef ref = (EntityRef) value;
+            if (tx == null) return ref.id;
+            return ref.relationship ? tx.getRelationshipById(ref.id) : tx.getNodeById(ref.id);
+        }
+        if (value instanceof List) return ((List<?>) value).stream().map(v -> attach(tx, v)).collect(Collectors.toList());
+        if (value instanceof Map) return attach(tx, (Map<?, ?>) value);
+        return value;
+    }
+
+    private static Map<String, Object> attach(Transaction tx, Map<?, ?> value) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        value.forEach((k, v) -> map.put(String.valueOf(k), attach(tx, v)));
+        return map;
+    }
+
+    private static class EntityRef {
+        final long id;
+        final boolean relationship;
+
+        EntityRef(long id, boolean relationship) {
+            this.id = id;
+            this.relationship = relationship;
+        }
+    }
+
+    public static class JobCancelledException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public JobCancelledException(Job job) {
+            super("DQ job "+job.id+" ("+job.operation+") was cancelled");
+        }
+    }
+
+    public static class Job {
+        private final long id;
+        private final String operation;
+        private final Instant submitted = Instant.now();
+        private volatile Status status = Status.QUEUED;
+        private volatile Instant started;
+        private volatile Instant finished;
+        private volatile boolean cancelRequested;
+        private volatile String error;
+        private volatile List<Map<String, Object>> results = Collections.emptyList();
+        private final LongAdder processed = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final LongAdder expected = new LongAdder();
+        private volatile boolean totalKnown;
+        private Future<?> future;
+
+        private Job(long id, String operation) {
+            this.id = id;
+            this.operation = operation;
+        }
+
+        /**
+         * Adds <code>items</code> to the number of items the job is expected to process.
+         */
+        public void expect(long items) {
+            expected.add(items);
+            totalKnown = true;
+        }
+
+        /**
+         * Records a batch of <code>done</code> items processed, and <code>failed</code> items that couldn't be.
+         */
+        public void progress(long done, long failed) {
+            this.processed.add(done + failed);
+            this.failed.add(failed);
+        }
+
+        public boolean isCancelRequested() {
+            return cancelRequested;
+        }
+
+        public void checkCancelled() {
+            if (cancelRequested) throw new JobCancelledException(this);
+        }
+
+        public boolean isFinished() {
+            return finished != null;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        private long elapsedMillis() {
+            if (started == null) return 0;
+            return (finished == null ? Instant.now() : finished).toEpochMilli() - started.toEpochMilli();
+        }
+    }
+
+    public static class JobResult {
+        public final Long jobId;
+        public final String operation;
+        public final String status;
+        public final ZonedDateTime submitted;
+        public final ZonedDateTime started;
+        public final ZonedDateTime finished;
+        public final Long processed;
+        public final Long failed;
+        public final Long total;
+        public final Double progress;
+        public final Double rowsPerSecond;
+        public final Double etaSeconds;
+        public final Long elapsedMillis;
+        public final String error;
+        public final List<Map<String, Object>> results;
+
+        public JobResult(Job job) {
+            this.jobId = job.id;
+            this.operation = job.operation;
+            this.status = job.status.name();
+            this.submitted = time(job.submitted);
+            this.started = time(job.started);
+            this.finished = time(job.finished);
+            this.processed = job.processed.sum();
+            this.failed = job.failed.sum();
+            this.total = job.totalKnown ? job.expected.sum() : null;
+            this.elapsedMillis = job.elapsedMillis();
+            this.progress = total == null || total == 0 ? null : Math.min(1.0, (double) processed / total);
+            this.rowsPerSecond = elapsedMillis == 0 ? null : processed * 1000.0 / elapsedMillis;
+            this.etaSeconds = total == null || job.status != Status.RUNNING || rowsPerSecond == null || rowsPerSecond == 0
+                    ? null : Math.max(0, total - processed) / rowsPerSecond;
+            this.error = job.error;
+            this.results = job.results.stream().map(row -> attach(null, row)).collect(Collectors.toList());
+        }
+
+        private static ZonedDateTime time(Instant instant) {
+            return instant == null ? null : ZonedDateTime.ofInstant(instant, ZoneOffset.UTC);
+        }
+    }
+}
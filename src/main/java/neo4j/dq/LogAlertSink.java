@@ -0,0 +1,24 @@
+package neo4j.dq;
+
+import org.neo4j.logging.Log;
+
+/**
+ * Default sink : writes alerts to the Neo4j log.
+ */
+public class LogAlertSink implements AlertSink {
+
+    private final Log log;
+
+    public LogAlertSink(Log log) {
+        this.log = log;
+    }
+
+    @Override
+    public void notify(Alert alert) {
+        if (alert.getEvent() == Alert.Event.RAISED) {
+            log.warn(alert.toString());
+        } else {
+            log.info(alert.toString());
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package neo4j.dq;
+
+import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
+import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
+import org.neo4j.graphdb.*;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static neo4j.dq.CompactFlags.HAS_DQ_COMPACT_FLAG;
+import static neo4j.dq.DQ.*;
+
+/**
+ * Looks up the flags of many data nodes. Only the outgoing <code>HAS_DQ_FLAG</code> and <code>HAS_DQ_COMPACT_FLAG</code>
+ * relationships of the nodes are read, so a dense node costs no more than its flags ; counts of all flags are read
+ * from the relationship degrees of the nodes, without reading any relationship.
+ * Nodes are read in chunks, in parallel on the fork-join pool, each chunk in its own transaction, unless the caller's
+ * transaction has uncommitted changes : those transactions couldn't see them, so all nodes are then read in the caller's one.
+ * Results are kept by input position, and nodes that don't exist are marked as missing.
+ */
+public class NodeFlags {
+
+    static final int NODES_PER_TASK = 1000;
+    private static final long[] NONE = new long[0];
+
+    // null to match the flags of all classes
+    private final Set<String> classes;
+    // the class nodes and buckets compact flags of the classes link to
+    private final LongHashSet flagParents;
+
+    private long[] nodeIds = NONE;
+    private boolean[] missing;
+    private long[] counts;
+    private long[][] flagIds;
+    private long[][] compactFlagIds;
+
+    private NodeFlags(Set<String> classes, LongHashSet flagParents) {
+        this.classes = classes;
+        this.flagParents = flagParents;
+    }
+
+    /**
+     * @return a lookup of the flags of all classes.
+     */
+    public static NodeFlags all() {
+        return new NodeFlags(null, null);
+    }
+
+    /**
+     * @return a lookup of the flags of the given classes only.
+     */
+    public static NodeFlags of(Collection<Node> classNodes) {
+        Set<String> classes = new HashSet<>();
+        LongHashSet flagParents = new LongHashSet();
+        for (Node classNode : classNodes) {
+            classes.add((String) classNode.getProperty(classProperty));
+            for (Node parent : ClassBuckets.flagParents(classNode)) {
+                flagParents.add(parent.getId());
+            }
+        }
+        return new NodeFlags(classes, flagParents);
+    }
+
+    /**
+     * Counts the flags of the nodes, or also collects their ids if <code>countOnly</code> is false.
+     * Inputs of a single chunk, or of a transaction with uncommitted changes, are read in the caller's transaction.
+     */
+    public NodeFlags run(Transaction tx, GraphDatabaseService db, ForkJoinPool pool, long[] nodeIds, boolean countOnly) {
+        this.nodeIds = nodeIds;
+        this.missing = new boolean[nodeIds.length];
+        this.counts = new long[nodeIds.length];
+        if (!countOnly) {
+            this.flagIds = new long[nodeIds.length][];
+            this.compactFlagIds = new long[nodeIds.length][];
+        }
+        if (nodeIds.length <= NODES_PER_TASK || Util.hasChanges(tx)) {
+            lookup(tx, 0, nodeIds.length, countOnly);
+        } else {
+            pool.invoke(new LookupTask(db, 0, nodeIds.length, countOnly));
+        }
+        return this;
+    }
+
+    private void lookup(Transaction tx, int from, int to, boolean countOnly) {
+        LongArrayList ids = new LongArrayList();
+        LongArrayList compactIds = new LongArrayList();
+        for (int i = from; i < to; i++) {
+            Node node;
+            try {
+                node = tx.getNodeById(nodeIds[i]);
+            } catch (NotFoundException e) {
+                missing[i] = true;
+                continue;
+            }
+            if (countOnly && classes == null) {
+                counts[i] = node.getDegree(HAS_DQ_FLAG, Direction.OUTGOING) + node.getDegree(HAS_DQ_COMPACT_FLAG, Direction.OUTGOING);
+                continue;
+            }
+            ids.clear();
+            compactIds.clear();
+            for (Relationship rel : node.getRelationships(Direction.OUTGOING, HAS_DQ_FLAG)) {
+                if (classes == null || classes.contains(FlagIndex.flagClass(rel.getEndNode()))) ids.add(rel.getEndNodeId());
+            }
+            for (Relationship rel : node.getRelationships(Direction.OUTGOING, HAS_DQ_COMPACT_FLAG)) {
+                if (classes == null || flagParents.contains(rel.getEndNodeId())) compactIds.add(rel.getId());
+            }
+            counts[i] = ids.size() + compactIds.size();
+            if (!countOnly) {
+                flagIds[i] = ids.isEmpty() ? NONE : ids.toArray();
+                compactFlagIds[i] = compactIds.isEmpty() ? NONE : compactIds.toArray();
+            }
+        }
+    }
+
+    public int size() {
+        return nodeIds.length;
+    }
+
+    public long getNodeId(int i) {
+        return nodeIds[i];
+    }
+
+    public boolean isMissing(int i) {
+        return missing[i];
+    }
+
+    public long getCount(int i) {
+        return counts[i];
+    }
+
+    public long[] getFlagIds(int i) {
+        return flagIds[i] == null ? NONE : flagIds[i];
+    }
+
+    public long[] getCompactFlagIds(int i) {
+        return compactFlagIds[i] == null ? NONE : compactFlagIds[i];
+    }
+
+    private class LookupTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final GraphDatabaseService db;
+        private final int from;
+        private final int to;
+        private final boolean countOnly;
+
+        LookupTask(GraphDatabaseService db, int from, int to, boolean countOnly) {
+            this.db = db;
+            this.from = from;
+            this.to = to;
+            this.countOnly = countOnly;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > NODES_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new LookupTask(db, from, middle, countOnly), new LookupTask(db, middle, to, countOnly));
+                return;
+            }
+            try (Transaction tx = db.beginTx()) {
+                lookup(tx, from, to, countOnly);
+                tx.commit();
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package neo4j.dq;
 
 import org.neo4j.annotations.service.ServiceProvider;
+import org.neo4j.configuration.Config;
 import org.neo4j.kernel.api.procedure.GlobalProcedures;
 import org.neo4j.kernel.extension.ExtensionFactory;
 import org.neo4j.kernel.extension.ExtensionType;
@@ -18,11 +19,12 @@ public class PoolExtensionFactory extends ExtensionFactory<PoolExtensionFactory.
     public interface Dependencies {
         GlobalProcedures globalProceduresRegistry();
         LogService log();
+        Config config();
     }
 
     @Override
     public Lifecycle newInstance(ExtensionContext context, Dependencies dependencies) {
-        return new ThreadPool(dependencies.log(), dependencies.globalProceduresRegistry());
+        return new ThreadPool(dependencies.log(), dependencies.globalProceduresRegistry(), dependencies.config());
     }
 
 }
@@ -0,0 +1,253 @@
+package neo4j.dq;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Entity;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.logging.Log;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Evaluates rules over the nodes of their labels, read from the label scans of the caller's transaction, and checked
+ * in chunks in parallel on the fork-join pool, each chunk in its own transaction. A node is checked against all the rules
+ * of the label it was found by ; nodes already flagged by a rule are skipped, looked up in the flag index when there's one.
+ * Violations are handed over to the consumer as chunks of {node id, rule index} pairs, through a bounded queue.
+ * Node ids are only read, and chunks submitted, as the consumer (writing the flags) asks for violations : it paces the scan.
+ */
+public class RuleScan {
+
+    // nodes per chunk, so that a single read transaction doesn't live too long
+    private static final int NODES_PER_TASK = 10_000;
+    private static final int CHUNK_SIZE = 512;
+    private static final int QUEUE_CHUNKS = 64;
+    // put by every chunk when it's done, so that the consumer submits the next one at once
+    private static final long[] DONE = new long[0];
+
+    private final GraphDatabaseService db;
+    private final List<DQRule> rules;
+    private final Map<String, int[]> rulesByLabel = new LinkedHashMap<>();
+    private final FlagIndex flagIndex;
+    private final Log log;
+
+    private final BlockingQueue<long[]> violations = new ArrayBlockingQueue<>(QUEUE_CHUNKS);
+    // chunks being checked, and chunks that haven't handed over all their violations yet
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger unfinished = new AtomicInteger();
+    private final LongAdder scanned = new LongAdder();
+    private final LongAdder violationCount = new LongAdder();
+    private final LongAdder existing = new LongAdder();
+    private final LongAdder failedChunks = new LongAdder();
+    private volatile boolean cancelled;
+
+    // read on the consumer's thread only
+    private Transaction tx;
+    private ForkJoinPool pool;
+    private int maxInFlight;
+    private Iterator<String> labels = Collections.emptyIterator();
+    private String label;
+    private ResourceIterator<Node> nodes;
+    private Iterator<Ids.Chunk> chunks;
+
+    private long[] current;
+    private int position;
+
+    public RuleScan(GraphDatabaseService db, List<DQRule> rules, FlagIndex flagIndex, Log log) {
+        this.db = db;
+        this.rules = rules;
+        this.flagIndex = flagIndex;
+        this.log = log;
+        Map<String, List<Integer>> byLabel = new LinkedHashMap<>();
+        for (int i = 0; i < rules.size(); i++) {
+            byLabel.computeIfAbsent(rules.get(i).getLabel(), label -> new ArrayList<>()).add(i);
+        }
+        byLabel.forEach((label, indexes) -> rulesByLabel.put(label, indexes.stream().mapToInt(Integer::intValue).toArray()));
+    }
+
+    /**
+     * Starts scanning the labels of the rules in <code>tx</code>, with at most <code>maxInFlight</code> chunks being checked at once.
+     */
+    public RuleScan start(Transaction tx, ForkJoinPool pool, int maxInFlight) {
+        this.tx = tx;
+        this.pool = pool;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.labels = rulesByLabel.keySet().iterator();
+        return this;
+    }
+
+    private void submitChunks() {
+        while (!cancelled && running.get() < maxInFlight && nextChunks()) {
+            final Ids.Chunk chunk = chunks.next();
+            final String chunkLabel = label;
+            running.incrementAndGet();
+            unfinished.incrementAndGet();
+            pool.execute(() -> scan(chunkLabel, chunk));
+        }
+    }
+
+    // moves on to the next label once the nodes of the current one are all submitted
+    private boolean nextChunks() {
+        while (chunks == null || !chunks.hasNext()) {
+            closeNodes();
+            if (!labels.hasNext()) return false;
+            label = labels.next();
+            nodes = tx.findNodes(Label.label(label));
+            chunks = Ids.chunks(nodes.stream().mapToLong(Node::getId).iterator(), () -> NODES_PER_TASK);
+        }
+        return true;
+    }
+
+    private boolean isExhausted() {
+        return cancelled || (chunks == null && !labels.hasNext());
+    }
+
+    private void closeNodes() {
+        if (nodes != null) nodes.close();
+        nodes = null;
+        chunks = null;
+    }
+
+    private void scan(String label, Ids.Chunk chunk) {
+        int[] indexes = rulesByLabel.get(label);
+        long[] found = new long[CHUNK_SIZE * 2];
+        int size = 0;
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < chunk.size() && !cancelled; i++) {
+                long id = chunk.get(i);
+                Node node;
+                try {
+                    node = tx.getNodeById(id);
+                } catch (NotFoundException e) {
+                    // deleted since its id was read
+                    continue;
+                }
+                scanned.increment();
+                for (int index : indexes) {
+                    DQRule rule = rules.get(index);
+                    if (!rule.isViolatedBy(node)) continue;
+                    if (isFlaggedBy(tx, node, rule)) {
+                        existing.increment();
+                        continue;
+                    }
+                    found[size++] = id;
+                    found[size++] = index;
+                    if (size == found.length) {
+                        put(found);
+                        found = new long[CHUNK_SIZE * 2];
+                        size = 0;
+                    }
+                }
+            }
+            tx.commit();
+        } catch (Exception e) {
+            failedChunks.increment();
+            log.warn("DQ rule scan of "+chunk.size()+" :"+label+" nodes failed : "+e.getMessage());
+        } finally {
+            running.decrementAndGet();
+            put(size > 0 ? Arrays.copyOf(found, size) : DONE);
+            unfinished.decrementAndGet();
+        }
+    }
+
+    /**
+     * A node without a flag of the rule's class isn't flagged by the rule : that's an in-memory lookup once the flag index is built.
+     */
+    private boolean isFlaggedBy(Transaction tx, Node node, DQRule rule) {
+        if (flagIndex != null) {
+            Entity flag = flagIndex.find(tx, node, rule.getDqClass());
+            if (flag == null) return false;
+            if (rule.getName().equals(flag.getProperty(DQRule.ruleProperty, null))) return true;
+        } else if (node.getDegree(DQ.HAS_DQ_FLAG, Direction.OUTGOING) == 0) {
+            return false;
+        }
+        // other flags of the class : look for the rule's one
+        for (Relationship rel : node.getRelationships(Direction.OUTGOING, DQ.HAS_DQ_FLAG)) {
+            if (rule.getName().equals(rel.getEndNode().getProperty(DQRule.ruleProperty, null))) return true;
+        }
+        return false;
+    }
+
+    private void put(long[] chunk) {
+        violationCount.add(chunk.length / 2);
+        try {
+            while (!cancelled && !violations.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                // wait for the consumer
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancelled = true;
+        }
+    }
+
+    /**
+     * Stops the scans, e.g. when the consumer fails.
+     */
+    public void cancel() {
+        cancelled = true;
+        closeNodes();
+    }
+
+    /**
+     * Blocks until a violation is available, or all the scans are done.
+     */
+    public boolean hasNext() {
+        try {
+            while (current == null || position == current.length) {
+                submitChunks();
+                // chunks hand their violations over before they're counted as finished
+                if (unfinished.get() == 0 && isExhausted() && violations.isEmpty()) return false;
+                current = violations.poll(100, TimeUnit.MILLISECONDS);
+                position = 0;
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+            return false;
+        }
+    }
+
+    /**
+     * @return the next violations, <code>size</code> at most, as a flat array of {node id, rule index} pairs.
+     */
+    public long[] nextBatch(int size) {
+        if (!hasNext()) throw new NoSuchElementException();
+        long[] batch = new long[Math.min(size, CHUNK_SIZE) * 2];
+        int length = 0;
+        while (length < size * 2L && hasNext()) {
+            int count = (int) Math.min(current.length - position, size * 2L - length);
+            if (length + count > batch.length) batch = Arrays.copyOf(batch, (int) Math.min(size * 2L, Math.max(2L * batch.length, length + count)));
+            System.arraycopy(current, position, batch, length, count);
+            position += count;
+            length += count;
+        }
+        return length == batch.length ? batch : Arrays.copyOf(batch, length);
+    }
+
+    public long getScanned() {
+        return scanned.sum();
+    }
+
+    public long getViolations() {
+        return violationCount.sum();
+    }
+
+    /**
+     * @return the number of violations already flagged by an earlier run.
+     */
+    public long getExisting() {
+        return existing.sum();
+    }
+
+    public long getFailedChunks() {
+        return failedChunks.sum();
+    }
+}
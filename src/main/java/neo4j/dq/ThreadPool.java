@@ -1,26 +1,41 @@
 package neo4j.dq;
 
+import org.neo4j.configuration.Config;
+import org.neo4j.configuration.GraphDatabaseSettings;
 import org.neo4j.kernel.api.procedure.GlobalProcedures;
 import org.neo4j.kernel.lifecycle.LifecycleAdapter;
 import org.neo4j.logging.Log;
 import org.neo4j.logging.internal.LogService;
 
+import java.nio.file.Path;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Stream;
 
 public class ThreadPool extends LifecycleAdapter  {
 
-    private ExecutorService executorService;
+    private ThreadPoolExecutor executorService;
+    private ForkJoinPool forkJoinPool;
+    private ScheduledExecutorService scheduledExecutorService;
     private final Log log;
+    private final Config config;
     private final GlobalProcedures globalProceduresRegistry;
+    private final LongAdder rejected = new LongAdder();
+    private DQSettings.SaturationPolicy policy;
+    private final DQMetrics metrics;
+    private Jobs jobs;
 
-    public ThreadPool (LogService log, GlobalProcedures globalProceduresRegistry) {
+    public ThreadPool (LogService log, GlobalProcedures globalProceduresRegistry, Config config) {
         this.log = log.getInternalLog(ThreadPool.class);
         this.globalProceduresRegistry = globalProceduresRegistry;
+        this.config = config;
 
         // expose this config instance via `@Context ThreadPool pool` injection
         globalProceduresRegistry.registerComponent((Class<ThreadPool>) getClass(), ctx -> this, true);
         this.log.info("successfully registered Pools for @Context");
+
+        this.metrics = new DQMetrics(config.get(DQSettings.metrics_enabled), this.log);
+        globalProceduresRegistry.registerComponent(DQMetrics.class, ctx -> metrics, true);
     }
 
     @Override
@@ -30,17 +45,64 @@ public class ThreadPool extends LifecycleAdapter  {
             t.setDaemon(true);
             return t;
         };
-        int threads = Runtime.getRuntime().availableProcessors() * 2;
-        int queueSize = threads * 5;
-        this.executorService = new ThreadPoolExecutor(threads / 2, threads, 30L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize),
-                threadFactory);
+        int threads = config.get(DQSettings.pool_size);
+        if (threads == 0) threads = Runtime.getRuntime().availableProcessors() * 2;
+        int queueSize = config.get(DQSettings.pool_queue_size);
+        if (queueSize == 0) queueSize = threads * 5;
+        this.policy = config.get(DQSettings.pool_saturation_policy);
+        this.executorService = new ThreadPoolExecutor(Math.max(1, threads / 2), threads,
+                config.get(DQSettings.pool_keep_alive).toMillis(), TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize),
+                threadFactory, rejectionHandler(policy));
+        this.forkJoinPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        this.scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        this.jobs = new Jobs(config.get(DQSettings.jobs_concurrency), config.get(DQSettings.jobs_history), log);
+        log.info("DQ thread pool : "+threads+" threads, queue of "+queueSize+", "+policy+" when saturated");
+
+        Path metricsPath = config.get(DQSettings.metrics_csv_path);
+        if (metricsPath == null) metricsPath = config.get(GraphDatabaseSettings.neo4j_home).resolve("metrics");
+        metrics.startReporting(scheduledExecutorService, metricsPath, config.get(DQSettings.metrics_csv_interval),
+                () -> new PoolStatsResult(executorService, forkJoinPool, policy, rejected.sum()));
+    }
+
+    /**
+     * Counts every task that doesn't fit in the queue, before applying the saturation policy.
+     */
+    private RejectedExecutionHandler rejectionHandler(DQSettings.SaturationPolicy policy) {
+        switch (policy) {
+            case CALLER_RUNS:
+                return (r, executor) -> {
+                    rejected.increment();
+                    if (!executor.isShutdown()) r.run();
+                };
+            case BLOCK:
+                return (r, executor) -> {
+                    rejected.increment();
+                    if (executor.isShutdown()) throw new RejectedExecutionException("DQ thread pool is shut down");
+                    try {
+                        executor.getQueue().put(r);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("Interrupted while waiting for the DQ thread pool", e);
+                    }
+                };
+            default:
+                return (r, executor) -> {
+                    rejected.increment();
+                    throw new RejectedExecutionException("DQ thread pool is saturated ("+executor.getQueue().size()+" queued tasks)");
+                };
+        }
     }
 
     @Override
     public void shutdown() throws Exception {
         try {
+            metrics.stopReporting();
+            jobs.shutdown();
+            scheduledExecutorService.shutdown();
             executorService.shutdown();
+            forkJoinPool.shutdown();
             executorService.awaitTermination(10, TimeUnit.SECONDS);
+            forkJoinPool.awaitTermination(10, TimeUnit.SECONDS);
         } catch (InterruptedException ignore) {
 
         }
@@ -49,4 +111,60 @@ public class ThreadPool extends LifecycleAdapter  {
     public ExecutorService getExecutorService() {
         return executorService;
     }
+
+    public ForkJoinPool getForkJoinPool() {
+        return forkJoinPool;
+    }
+
+    /**
+     * For periodic tasks, which should hand any long work over to the executor service.
+     */
+    public ScheduledExecutorService getScheduledExecutorService() {
+        return scheduledExecutorService;
+    }
+
+    /**
+     * Background jobs, run on threads of their own.
+     */
+    public Jobs getJobs() {
+        return jobs;
+    }
+
+    public DQMetrics getMetrics() {
+        return metrics;
+    }
+
+    public Stream<PoolStatsResult> stats() {
+        return Stream.of(new PoolStatsResult(executorService, forkJoinPool, policy, rejected.sum()));
+    }
+
+    public static class PoolStatsResult {
+        public final Long poolSize;
+        public final Long corePoolSize;
+        public final Long maxPoolSize;
+        public final Long largestPoolSize;
+        public final Long activeThreads;
+        public final Long queueSize;
+        public final Long queueRemainingCapacity;
+        public final Long completedTasks;
+        public final Long rejectedTasks;
+        public final String saturationPolicy;
+        public final Long forkJoinActiveThreads;
+        public final Long forkJoinQueuedTasks;
+
+        public PoolStatsResult(ThreadPoolExecutor executor, ForkJoinPool forkJoinPool, DQSettings.SaturationPolicy policy, long rejected) {
+            this.poolSize = (long) executor.getPoolSize();
+            this.corePoolSize = (long) executor.getCorePoolSize();
+            this.maxPoolSize = (long) executor.getMaximumPoolSize();
+            this.largestPoolSize = (long) executor.getLargestPoolSize();
+            this.activeThreads = (long) executor.getActiveCount();
+            this.queueSize = (long) executor.getQueue().size();
+            this.queueRemainingCapacity = (long) executor.getQueue().remainingCapacity();
+            this.completedTasks = executor.getCompletedTaskCount();
+            this.rejectedTasks = rejected;
+            this.saturationPolicy = policy.name();
+            this.forkJoinActiveThreads = (long) forkJoinPool.getActiveThreadCount();
+            this.forkJoinQueuedTasks = forkJoinPool.getQueuedTaskCount();
+        }
+    }
 }
@@ -4,9 +4,11 @@ import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Transaction;
 import org.neo4j.internal.helpers.collection.Iterators;
+import org.neo4j.kernel.impl.coreapi.InternalTransaction;
 
 import java.lang.reflect.Array;
 import java.util.*;
+import java.util.concurrent.Future;
 import java.util.function.Function;
 
 public class Util {
@@ -17,10 +19,23 @@ public class Util {
         throw new RuntimeException("Can't convert "+id.getClass()+" to a Node");
     }
 
+    public static long nodeId(Object id) {
+        if (id instanceof Node) return ((Node)id).getId();
+        if (id instanceof Number) return ((Number)id).longValue();
+        throw new RuntimeException("Can't convert "+id.getClass()+" to a Node id");
+    }
+
     public static boolean isNullOrEmpty(String s) {
         return s==null || s.trim().length()==0;
     }
 
+    /**
+     * @return the name quoted as a Cypher identifier, e.g. a label.
+     */
+    public static String quote(String name) {
+        return "`" + name.replace("`", "``") + "`";
+    }
+
     public static List convertToList(Object list) {
         if (list == null) return null;
         else if (list instanceof List) return (List) list;
@@ -65,18 +80,37 @@ public class Util {
     public static <T> T inTx(GraphDatabaseService db, ThreadPool threadPool, Function<Transaction, T> function) {
         try {
 
-            return threadPool.getExecutorService().submit(() -> {
-                try (Transaction tx = db.beginTx()) {
-                    T result = function.apply(tx);
-                    tx.commit();
-                    return result;
-                } catch (Exception e) {
-                    throw e;
-                }
-            }).get();
+            return inTxFuture(db, threadPool, function).get();
 
         } catch (Exception e) {
             throw new RuntimeException("Error executing in separate transaction: "+e.getMessage(), e);
         }
     }
+
+    /**
+     * @return whether the transaction has uncommitted changes, that other transactions (and the in-memory state) can't see yet.
+     */
+    public static boolean hasChanges(Transaction tx) {
+        try {
+            return ((InternalTransaction) tx).kernelTransaction().dataRead().transactionStateHasChanges();
+        } catch (Exception e) {
+            // not a kernel transaction : assume it has some, to be safe
+            return true;
+        }
+    }
+
+    public static <T> Future<T> inTxFuture(GraphDatabaseService db, ThreadPool threadPool, Function<Transaction, T> function) {
+        return threadPool.getExecutorService().submit(() -> {
+            long start = System.nanoTime();
+            boolean failed = true;
+            try (Transaction tx = db.beginTx()) {
+                T result = function.apply(tx);
+                tx.commit();
+                failed = false;
+                return result;
+            } finally {
+                threadPool.getMetrics().record("inTx", System.nanoTime() - start, 0, failed);
+            }
+        });
+    }
 }
@@ -0,0 +1,44 @@
+package neo4j.dq;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * A value loaded lazily from the graph, and dropped on {@link #invalidate()} when a committed transaction changes what it's loaded from.
+ * The value and the version it was loaded at are published together, and only if the version didn't change during the load :
+ * a load that may have missed a concurrent change is returned to its caller, but not kept.
+ */
+public class VersionedCache<T> {
+
+    private final Supplier<T> loader;
+    private final AtomicReference<Snapshot<T>> snapshot = new AtomicReference<>(new Snapshot<>(0, null));
+
+    public VersionedCache(Supplier<T> loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * @return the cached value, or a newly loaded one. Failures of the loader are thrown as they are.
+     */
+    public T get() {
+        Snapshot<T> current = snapshot.get();
+        if (current.value != null) return current.value;
+        T value = loader.get();
+        snapshot.compareAndSet(current, new Snapshot<>(current.version, value));
+        return value;
+    }
+
+    public void invalidate() {
+        snapshot.updateAndGet(current -> new Snapshot<>(current.version + 1, null));
+    }
+
+    private static class Snapshot<T> {
+        final long version;
+        final T value;
+
+        Snapshot(long version, T value) {
+            this.version = version;
+            this.value = value;
+        }
+    }
+}
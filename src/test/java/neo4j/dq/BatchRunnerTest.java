@@ -0,0 +1,82 @@
+package neo4j.dq;
+
+import org.junit.*;
+import org.neo4j.kernel.DeadlockDetectedException;
+import org.neo4j.kernel.api.procedure.GlobalProcedures;
+import org.neo4j.logging.NullLog;
+import org.neo4j.test.rule.DbmsRule;
+import org.neo4j.test.rule.ImpermanentDbmsRule;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BatchRunnerTest {
+    @Rule
+    public DbmsRule db = new ImpermanentDbmsRule();
+
+    private ThreadPool threadPool;
+
+    @Before
+    public void setUp() throws Exception {
+        GlobalProcedures globalProcedures = db.getDependencyResolver().resolveDependency(GlobalProcedures.class);
+        threadPool = globalProcedures.lookupComponentProvider(ThreadPool.class, true).apply(null);
+    }
+
+    @After
+    public void tearDown() {
+        db.shutdown();
+    }
+
+    @Test
+    public void testRetriesOnDeadlock() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        BatchRunner runner = new BatchRunner(db, threadPool, NullLog.getInstance(), 2).withRetries(3);
+        runner.submit(10, tx -> {
+            tx.createNode();
+            if (attempts.incrementAndGet() < 3) throw new DeadlockDetectedException("test deadlock");
+            return 10L;
+        });
+        runner.finish();
+
+        assertEquals(10, runner.getSucceeded());
+        assertEquals(0, runner.getFailed());
+        assertEquals(2, runner.getRetried());
+        assertEquals("expected rolled back attempts to leave nothing behind", 1L,
+                (long) TestUtil.singleResultFirstColumn(db, "MATCH (n) WHERE NOT n:DQ_Counters RETURN count(n)", java.util.Map.of()));
+    }
+
+    @Test
+    public void testFailsWithoutRetry() throws Exception {
+        BatchRunner runner = new BatchRunner(db, threadPool, NullLog.getInstance(), 2).withRetries(3);
+        runner.submit(10, tx -> { throw new IllegalStateException("not transient"); });
+        runner.submit(5, tx -> 4L);
+        runner.finish();
+
+        assertEquals(4, runner.getSucceeded());
+        assertEquals(11, runner.getFailed());
+        assertEquals(0, runner.getRetried());
+        assertEquals(2, runner.getBatches());
+    }
+
+    @Test
+    public void testAdaptiveBatchSize() throws Exception {
+        BatchRunner runner = new BatchRunner(db, threadPool, NullLog.getInstance(), 1)
+                .withBatchSize(100)
+                .withAdaptiveBatchSize(50);
+        runner.submit(100, tx -> 100L);
+        runner.finish();
+        assertTrue("expected fast batches to grow", runner.nextBatchSize() > 100);
+
+        int grown = runner.nextBatchSize();
+        runner.submit(grown, tx -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ignore) {
+            }
+            return (long) grown;
+        });
+        runner.finish();
+        assertEquals("expected slow batches to shrink", grown / 2, runner.nextBatchSize());
+    }
+}
@@ -0,0 +1,103 @@
+package neo4j.dq;
+
+import org.junit.*;
+import org.neo4j.configuration.GraphDatabaseSettings;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.logging.NullLog;
+import org.neo4j.test.rule.DbmsRule;
+import org.neo4j.test.rule.ImpermanentDbmsRule;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.*;
+
+public class ClassCacheTest {
+    @Rule
+    public DbmsRule db = new ImpermanentDbmsRule()
+            .withSetting(GraphDatabaseSettings.procedure_unrestricted, singletonList("neo4j.dq.*"));
+
+    private DQDatabase database;
+
+    @Before
+    public void setUp() throws Exception {
+        TestUtil.registerProcedure(db, DQ.class);
+        db.executeTransactionally("CREATE (:Person {name:'Keanu Reeves'}), (:Person {name:'Carrie-Anne Moss'})");
+        database = new DQDatabase((GraphDatabaseAPI) db, ForkJoinPool::commonPool, NullLog.getInstance());
+        database.start();
+        db.getManagementService().registerTransactionEventListener(db.databaseName(), database.getTransactionListener());
+    }
+
+    @After
+    public void tearDown() {
+        db.shutdown();
+    }
+
+    @Test
+    public void testHierarchy() throws Exception {
+        db.executeTransactionally("CALL neo4j.dq.createClass('SomeClass', 'ParentClass')");
+        ClassTree tree = database.getClassCache().tree();
+
+        ClassTree.Entry someClass = tree.get("SomeClass");
+        ClassTree.Entry parentClass = tree.get("ParentClass");
+        ClassTree.Entry root = tree.get("all");
+        assertNotNull(someClass);
+        assertEquals("ParentClass", someClass.getParent().getName());
+        assertArrayEquals(new long[]{parentClass.getId(), root.getId()}, someClass.getAncestors());
+        assertEquals(2, someClass.getDepth());
+        assertEquals(1, root.getChildren().size());
+        assertNull(root.getParent());
+    }
+
+    @Test
+    public void testSubtree() throws Exception {
+        db.executeTransactionally("CALL neo4j.dq.createClass('SomeClass', 'ParentClass')");
+        db.executeTransactionally("CALL neo4j.dq.createClass('OtherClass', 'ParentClass')");
+        db.executeTransactionally("CALL neo4j.dq.createClass('GrandChildClass', 'SomeClass')");
+        db.executeTransactionally("CALL neo4j.dq.createClass('UnrelatedClass')");
+        ClassTree tree = database.getClassCache().tree();
+
+        ClassTree.Entry parentClass = tree.get("ParentClass");
+        ClassTree.Entry someClass = tree.get("SomeClass");
+        ClassTree.Entry grandChild = tree.get("GrandChildClass");
+        ClassTree.Entry unrelated = tree.get("UnrelatedClass");
+        List<ClassTree.Entry> subtree = tree.subtree(parentClass);
+        assertEquals(4, subtree.size());
+        assertSame("expected the class first", parentClass, subtree.get(0));
+        assertTrue("expected every class before its children", subtree.indexOf(someClass) < subtree.indexOf(grandChild));
+        assertFalse(subtree.contains(unrelated));
+        assertEquals(tree.size(), tree.subtree(tree.get("all")).size());
+
+        assertTrue(grandChild.isWithin(parentClass));
+        assertTrue(grandChild.isWithin(grandChild));
+        assertTrue(tree.isWithin(grandChild.getId(), tree.get("all").getId()));
+        assertFalse(parentClass.isWithin(grandChild));
+        assertFalse(unrelated.isWithin(parentClass));
+        assertFalse(tree.get("OtherClass").isWithin(someClass));
+        assertFalse(tree.isWithin(grandChild.getId(), -1));
+    }
+
+    @Test
+    public void testInvalidatedOnHierarchyChange() throws Exception {
+        db.executeTransactionally("CALL neo4j.dq.createClass('SomeClass', 'ParentClass')");
+        ClassTree tree = database.getClassCache().tree();
+        assertSame("expected cached snapshot", tree, database.getClassCache().tree());
+
+        db.executeTransactionally("CALL neo4j.dq.deleteClass('ParentClass')");
+        ClassTree updated = database.getClassCache().tree();
+        assertNotSame(tree, updated);
+        assertNull(updated.get("ParentClass"));
+        assertEquals("all", updated.get("SomeClass").getParent().getName());
+    }
+
+    @Test
+    public void testNotInvalidatedByFlags() throws Exception {
+        db.executeTransactionally("CALL neo4j.dq.createClass('SomeClass')");
+        ClassTree tree = database.getClassCache().tree();
+
+        db.executeTransactionally("MATCH (p:Person) CALL neo4j.dq.createFlag(p, 'SomeClass', 'desc') yield flag RETURN flag");
+        db.executeTransactionally("MATCH (f:DQ_Flag) DETACH DELETE f");
+        assertSame("expected cached snapshot", tree, database.getClassCache().tree());
+    }
+}
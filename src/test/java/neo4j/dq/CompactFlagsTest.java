@@ -0,0 +1,204 @@
+package neo4j.dq;
+
+import org.junit.*;
+import org.neo4j.configuration.GraphDatabaseSettings;
+import org.neo4j.graphdb.QueryExecutionException;
+import org.neo4j.test.rule.DbmsRule;
+import org.neo4j.test.rule.ImpermanentDbmsRule;
+
+import java.util.Map;
+
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.*;
+
+public class CompactFlagsTest {
+
+    @Rule
+    public DbmsRule db = new ImpermanentDbmsRule()
+            .withSetting(GraphDatabaseSettings.procedure_unrestricted, singletonList("neo4j.dq.*"));
+
+    @Before
+    public void setUp() throws Exception {
+        TestUtil.registerProcedure(db, DQ.class);
+        db.executeTransactionally("UNWIND range(1, 5) AS i CREATE (:Person {name:'p'+i})");
+        db.executeTransactionally("CALL neo4j.dq.createClass('BadName', 'all', -1, '', 0, true)");
+    }
+
+    @After
+    public void tearDown() {
+        db.shutdown();
+    }
+
+    @Test
+    public void testCreateFlag() throws Exception {
+        TestUtil.testResult(db, "MATCH (p:Person {name:'p1'}) CALL neo4j.dq.createFlag(p, 'BadName', 'desc') yield flag, compactFlag RETURN flag, compactFlag", null, r -> {
+            Map<String, Object> row = r.next();
+            assertNull(row.get("flag"));
+            assertNotNull(row.get("compactFlag"));
+        });
+        TestUtil.testResult(db, "MATCH (p:Person) WHERE p.name <> 'p1' WITH collect(p) as nodes CALL neo4j.dq.createFlags(nodes, 'BadName', 'bulk', 3) yield created RETURN created", null,
+                r -> assertEquals(4L, r.next().get("created")));
+
+        TestUtil.testResult(db, "MATCH (:Person)-[f:HAS_DQ_COMPACT_FLAG]->(:DQ_Class {class:'BadName'}) RETURN count(f) as flags", null,
+                r -> assertEquals(5L, r.next().get("flags")));
+        TestUtil.testResult(db, "MATCH (f:DQ_Flag) RETURN count(f) as flags", null,
+                r -> assertEquals("expected no flag nodes", 0L, r.next().get("flags")));
+        TestUtil.testResult(db, "CALL neo4j.dq.statistics('BadName') yield directFlagCount RETURN directFlagCount", null,
+                r -> assertEquals(5L, r.next().get("directFlagCount")));
+        TestUtil.testResult(db, "CALL neo4j.dq.listFlags('BadName') yield compactFlag RETURN compactFlag", null,
+                r -> assertEquals(5, r.stream().count()));
+        TestUtil.testResult(db, "CALL neo4j.dq.listFlags() yield compactFlag WHERE compactFlag IS NOT NULL RETURN compactFlag", null,
+                r -> assertEquals(5, r.stream().count()));
+    }
+
+    @Test
+    public void testShardedClass() throws Exception {
+        db.executeTransactionally("CALL neo4j.dq.createClass('Sharded', 'all', -1, '', 2, true)");
+        db.executeTransactionally("MATCH (p:Person) CALL neo4j.dq.createFlag(p, 'Sharded') yield compactFlag RETURN compactFlag");
+
+        TestUtil.testResult(db, "MATCH (:Person)-[f:HAS_DQ_COMPACT_FLAG]->(:DQ_ClassBucket) RETURN count(f) as flags", null,
+                r -> assertEquals(5L, r.next().get("flags")));
+        TestUtil.testResult(db, "CALL neo4j.dq.statistics('Sharded') yield directFlagCount RETURN directFlagCount", null,
+                r -> assertEquals(5L, r.next().get("directFlagCount")));
+        TestUtil.testResult(db, "CALL neo4j.dq.listFlags('Sharded')", null,
+                r -> assertEquals(5, r.stream().count()));
+        TestUtil.testResult(db, "CALL neo4j.dq.deleteClass('Sharded', 2) yield value RETURN value", null,
+                r -> assertEquals(5L, r.next().get("value")));
+        TestUtil.testResult(db, "MATCH ()-[f:HAS_DQ_COMPACT_FLAG]->() RETURN count(f) as flags", null,
+                r -> assertEquals(0L, r.next().get("flags")));
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        db.executeTransactionally("MATCH (p:Person) CALL neo4j.dq.createFlag(p, 'BadName') yield compactFlag RETURN compactFlag");
+
+        TestUtil.testResult(db, "MATCH (:Person {name:'p1'})-[f:HAS_DQ_COMPACT_FLAG]->() CALL neo4j.dq.deleteFlags(f) yield deleted RETURN deleted", null,
+                r -> assertEquals(1L, r.next().get("deleted")));
+        TestUtil.testResult(db, "MATCH (p:Person {name:'p2'}) CALL neo4j.dq.deleteNodeFlags(p) yield value RETURN value", null,
+                r -> assertEquals(1L, r.next().get("value")));
+        TestUtil.testResult(db, "CALL neo4j.dq.statistics('BadName') yield directFlagCount RETURN directFlagCount", null,
+                r -> assertEquals(3L, r.next().get("directFlagCount")));
+        TestUtil.testResult(db, "CALL neo4j.dq.deleteClass('BadName') yield value RETURN value", null,
+                r -> assertEquals(3L, r.next().get("value")));
+        TestUtil.testResult(db, "MATCH ()-[f:HAS_DQ_COMPACT_FLAG]->() RETURN count(f) as flags", null,
+                r -> assertEquals(0L, r.next().get("flags")));
+    }
+
+    @Test
+    public void testDeleteMixedFlags() throws Exception {
+        db.executeTransactionally("CALL neo4j.dq.createClass('Full')");
+        db.executeTransactionally("MATCH (p:Person) WHERE p.name IN ['p1', 'p2'] CALL neo4j.dq.createFlag(p, 'Full') yield flag RETURN flag");
+        db.executeTransactionally("MATCH (p:Person) CALL neo4j.dq.createFlag(p, 'BadName') yield compactFlag RETURN compactFlag");
+
+        // flag nodes and compact flags are read from the same input, in a single pass
+        TestUtil.testResult(db, "MATCH (f:Full) WITH collect(f) AS flags MATCH ()-[c:HAS_DQ_COMPACT_FLAG]->() WITH flags + collect(c) AS flags " +
+                        "CALL neo4j.dq.deleteFlags(flags, 2) yield deleted RETURN deleted", null,
+                r -> assertEquals(7L, r.next().get("deleted")));
+        TestUtil.testResult(db, "MATCH ()-[f:HAS_DQ_COMPACT_FLAG|HAS_DQ_FLAG]->() RETURN count(f) as flags", null,
+                r -> assertEquals(0L, r.next().get("flags")));
+    }
+
+    @Test
+    public void testConvertFlags() throws Exception {
+        db.executeTransactionally("CALL neo4j.dq.createClass('Full')");
+        db.executeTransactionally("MATCH (p:Person) CALL neo4j.dq.createFlag(p, 'Full', 'desc') yield flag RETURN flag");
+        // flags with attachments stay flag nodes
+        db.executeTransactionally("MATCH (p:Person {name:'p1'})-[:HAS_DQ_FLAG]->(f:Full), (a:Person {name:'p2'}) CALL neo4j.dq.attachToFlag(f, a, '') yield attachment RETURN attachment");
+
+        TestUtil.testResult(db, "CALL neo4j.dq.convertFlags('Full', true, 2)", null, r -> {
+            Map<String, Object> row = r.next();
+            assertEquals(true, row.get("compact"));
+            assertEquals(4L, row.get("converted"));
+            assertEquals(1L, row.get("skipped"));
+            assertEquals(0L, row.get("failed"));
+            assertEquals(3L, row.get("batches"));
+        });
+        TestUtil.testResult(db, "MATCH (:Person)-[f:HAS_DQ_COMPACT_FLAG {description:'desc'}]->(:DQ_Class {class:'Full'}) WHERE f.created IS NOT NULL RETURN count(f) as flags", null,
+                r -> assertEquals(4L, r.next().get("flags")));
+        TestUtil.testResult(db, "CALL neo4j.dq.statistics('Full') yield directFlagCount RETURN directFlagCount", null,
+                r -> assertEquals(5L, r.next().get("directFlagCount")));
+        // new flags are compact once the class is
+        TestUtil.testResult(db, "MATCH (p:Person {name:'p3'}) CALL neo4j.dq.createFlag(p, 'Full', 'more') yield compactFlag RETURN compactFlag", null,
+                r -> assertNotNull(r.next().get("compactFlag")));
+
+        TestUtil.testResult(db, "CALL neo4j.dq.convertFlags('Full', false)", null, r -> {
+            Map<String, Object> row = r.next();
+            assertEquals(false, row.get("compact"));
+            assertEquals(5L, row.get("converted"));
+            assertEquals(0L, row.get("skipped"));
+        });
+        TestUtil.testResult(db, "MATCH (:Person)-[:HAS_DQ_FLAG]->(f:Full:DQ_Flag)-[:HAS_DQ_CLASS]->(:DQ_Class {class:'Full'}) RETURN count(f) as flags", null,
+                r -> assertEquals(6L, r.next().get("flags")));
+        TestUtil.testResult(db, "MATCH ()-[f:HAS_DQ_COMPACT_FLAG]->() RETURN count(f) as flags", null,
+                r -> assertEquals(0L, r.next().get("flags")));
+        TestUtil.testResult(db, "CALL neo4j.dq.statistics('Full') yield directFlagCount RETURN directFlagCount", null,
+                r -> assertEquals(6L, r.next().get("directFlagCount")));
+        TestUtil.testResult(db, "CALL neo4j.dq.convertFlags('Unknown')", null,
+                r -> assertFalse(r.hasNext()));
+    }
+
+    @Test
+    public void testMergeCompactFlags() throws Exception {
+        TestUtil.testResult(db, "MATCH (p:Person {name:'p1'}) CALL neo4j.dq.mergeFlag(p, 'BadName', 'desc') yield flag, compactFlag, created RETURN flag, compactFlag, created", null, r -> {
+            Map<String, Object> row = r.next();
+            assertNull(row.get("flag"));
+            assertNotNull(row.get("compactFlag"));
+            assertEquals(true, row.get("created"));
+        });
+        TestUtil.testResult(db, "MATCH (p:Person {name:'p1'}) CALL neo4j.dq.mergeFlag(p, 'BadName') yield compactFlag, created RETURN compactFlag, created", null, r -> {
+            Map<String, Object> row = r.next();
+            assertNotNull(row.get("compactFlag"));
+            assertEquals(false, row.get("created"));
+        });
+        TestUtil.testResult(db, "MATCH (p:Person) WITH collect(p) AS nodes CALL neo4j.dq.mergeFlags(nodes, 'BadName', '', 2) yield created, existing RETURN created, existing", null, r -> {
+            Map<String, Object> row = r.next();
+            assertEquals(4L, row.get("created"));
+            assertEquals(1L, row.get("existing"));
+        });
+        TestUtil.testResult(db, "MATCH (p:Person)-[f:HAS_DQ_COMPACT_FLAG]->() RETURN count(f) as flags, count(DISTINCT p) as nodes", null, r -> {
+            Map<String, Object> row = r.next();
+            assertEquals(5L, row.get("flags"));
+            assertEquals(5L, row.get("nodes"));
+        });
+        TestUtil.testResult(db, "MATCH ()-[:HAS_DQ_FLAG]->(f) RETURN count(f) as flags", null,
+                r -> assertEquals(0L, r.next().get("flags")));
+    }
+
+    @Test
+    public void testListFlagsPage() throws Exception {
+        db.executeTransactionally("MATCH (p:Person) CALL neo4j.dq.createFlag(p, 'BadName') yield compactFlag RETURN compactFlag");
+        db.executeTransactionally("CALL neo4j.dq.createClass('Named', 'BadName')");
+        db.executeTransactionally("MATCH (p:Person {name:'p1'}) CALL neo4j.dq.createFlag(p, 'Named') yield flag RETURN flag");
+
+        // compact flags have no page of their own
+        for (String query : new String[]{"CALL neo4j.dq.listFlagsPage('BadName')", "CALL neo4j.dq.listFlagsPage('BadName', true)",
+                "CALL neo4j.dq.listFlagsPage('all', true)"}) {
+            try {
+                db.executeTransactionally(query, Map.of(), r -> r.next());
+                fail("expected compact classes not to be paged : "+query);
+            } catch (QueryExecutionException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("compact DQ class 'BadName'"));
+            }
+        }
+        // flag nodes only
+        TestUtil.testResult(db, "CALL neo4j.dq.listFlagsPage('Named')", null, r -> assertEquals(1, r.stream().count()));
+        TestUtil.testResult(db, "CALL neo4j.dq.listFlagsPage()", null, r -> assertEquals(1, r.stream().count()));
+    }
+
+    @Test
+    public void testRulesOnCompactClasses() throws Exception {
+        try {
+            db.executeTransactionally("CALL neo4j.dq.createRule('name', 'BadName', 'Person', 'exists', 'nickname')", Map.of(), r -> r.next());
+            fail("expected rules not to flag compact classes");
+        } catch (QueryExecutionException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("rules don't create compact flags"));
+        }
+        db.executeTransactionally("CALL neo4j.dq.createRule('nickname', 'MissingNickname', 'Person', 'exists', 'nickname')");
+        try {
+            db.executeTransactionally("CALL neo4j.dq.convertFlags('MissingNickname')", Map.of(), r -> r.next());
+            fail("expected classes with rules not to be made compact");
+        } catch (QueryExecutionException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("it has rules"));
+        }
+    }
+}
@@ -10,14 +10,24 @@ import org.neo4j.graphdb.Result;
 import org.neo4j.graphdb.Transaction;
 
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 import org.neo4j.internal.helpers.collection.Iterators;
 import org.neo4j.kernel.api.procedure.GlobalProcedures;
 import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.logging.NullLog;
 import org.neo4j.test.rule.DbmsRule;
 import org.neo4j.test.rule.ImpermanentDbmsRule;
 
@@ -66,6 +76,73 @@ public class DQTest {
                 r -> assertClassResult(r, "BadName") );
     }
 
+    @Test
+    public void testCreateFlags() throws Exception {
+        String CREATE_FLAGS ="MATCH (p:Person) WITH collect(p) as nodes " +
+                "CALL neo4j.dq.createFlags(nodes, 'BadName', 'bulk flag', 3) yield created, failed, batches " +
+                "RETURN created, failed, batches";
+        TestUtil.testResult(db, CREATE_FLAGS, null, r -> {
+            Map<String, Object> row = r.next();
+            assertEquals(4L, row.get("created"));
+            assertEquals(0L, row.get("failed"));
+            assertEquals(2L, row.get("batches"));
+        });
+
+        TestUtil.testResult(db, "MATCH (a:Person)-[r:HAS_DQ_FLAG]->(flag:BadName) RETURN flag" , null,
+                r -> assertFlagResult(r, "bulk flag") );
+        TestUtil.testResult(db, "MATCH (flag:BadName)-[:HAS_DQ_CLASS]->(c:DQ_Class) RETURN count(DISTINCT c) as classes, count(flag) as flags" , null,
+                r -> { Map<String, Object> row = r.next(); assertEquals(1L, row.get("classes")); assertEquals(4L, row.get("flags")); });
+    }
+
+    @Test
+    public void testMergeFlag() throws Exception {
+        String MERGE_FLAG = "MATCH (a:Person {name:'Keanu Reeves'}) CALL neo4j.dq.mergeFlag(a, 'BadName', 'desc') yield flag, created RETURN id(flag) as id, created";
+        Map<String, Object> first = db.executeTransactionally(MERGE_FLAG, Map.of(), r -> r.next());
+        assertEquals(true, first.get("created"));
+        Map<String, Object> second = db.executeTransactionally(MERGE_FLAG, Map.of(), r -> r.next());
+        assertEquals(false, second.get("created"));
+        assertEquals(first.get("id"), second.get("id"));
+
+        // a flag of another class, and a flag created without merging, are found as well
+        db.executeTransactionally("MATCH (a:Person {name:'Keanu Reeves'}) CALL neo4j.dq.createFlag(a, 'OtherClass') yield flag RETURN flag");
+        TestUtil.testResult(db, MERGE_FLAG, null, r -> assertEquals(false, r.next().get("created")));
+
+        db.executeTransactionally("MATCH (:Person)-[:HAS_DQ_FLAG]->(f:BadName) CALL neo4j.dq.deleteFlags(f) yield deleted RETURN deleted");
+        TestUtil.testResult(db, MERGE_FLAG, null, r -> assertEquals(true, r.next().get("created")));
+        TestUtil.testResult(db, "MATCH (:Person)-[:HAS_DQ_FLAG]->(f:DQ_Flag) RETURN count(f) as flags", null,
+                r -> assertEquals(2L, r.next().get("flags")));
+
+        // the flag index only knows committed flags : those of the transaction are found too
+        FlagIndex flagIndex = TestUtil.database(db).getFlagIndex();
+        for (int i = 0; i < 100 && !flagIndex.isReady(); i++) Thread.sleep(50);
+        assertTrue(flagIndex.isReady());
+        TestUtil.testResult(db, "MATCH (p:Person {name:'Carrie-Anne Moss'}) UNWIND [1,2] AS i CALL neo4j.dq.mergeFlag(p, 'BadName', 'x') yield created RETURN collect(created) as created", null,
+                r -> assertEquals(List.of(true, false), r.next().get("created")));
+        TestUtil.testResult(db, "MATCH (:Person {name:'Carrie-Anne Moss'})-[:HAS_DQ_FLAG]->(f:BadName) RETURN count(f) as flags", null,
+                r -> assertEquals(1L, r.next().get("flags")));
+    }
+
+    @Test
+    public void testMergeFlags() throws Exception {
+        db.executeTransactionally("MATCH (a:Person {name:'Keanu Reeves'}) CALL neo4j.dq.createFlag(a, 'BadName') yield flag RETURN flag");
+        String MERGE_FLAGS = "MATCH (p:Person) WITH collect(p) + collect(p) as nodes " +
+                "CALL neo4j.dq.mergeFlags(nodes, 'BadName', 'bulk flag', 2) yield created, existing, failed RETURN created, existing, failed";
+        TestUtil.testResult(db, MERGE_FLAGS, null, r -> {
+            Map<String, Object> row = r.next();
+            assertEquals(3L, row.get("created"));
+            assertEquals(1L, row.get("existing"));
+            assertEquals(0L, row.get("failed"));
+        });
+        TestUtil.testResult(db, MERGE_FLAGS, null, r -> {
+            Map<String, Object> row = r.next();
+            assertEquals(0L, row.get("created"));
+            assertEquals(4L, row.get("existing"));
+        });
+        TestUtil.testResult(db, "call neo4j.dq.statistics('BadName')" , null,
+                r -> {Long[] expected={4L,0L,4L}; assertStatsResult(r, "BadName", expected);}
+        );
+    }
+
     @Test
     public void testAttachToFlag() throws Exception {
         String ATTACH_TO_FLAG = "MATCH (a:Person) WHERE a.name='Keanu Reeves' " +
@@ -96,6 +173,26 @@ public class DQTest {
                 r -> assertFalse("Expected no results", r.hasNext()) );
     }
 
+    @Test
+    public void testDeleteFlags_summary() throws Exception {
+        String CREATE_FLAGS = "MATCH (p:Person) " +
+                "CALL neo4j.dq.createFlag(p, 'BadName', 'nodes should not be called A') yield flag RETURN flag";
+        db.executeTransactionally(CREATE_FLAGS);
+        String DELETE_FLAGS = "MATCH (f:DQ_Flag) MATCH (m:Movie) " +
+                "WITH collect(f) + m as flags " +
+                "CALL neo4j.dq.deleteFlags(flags, 1, 2, 3, 0) yield deleted, retried, failed, batches " +
+                "RETURN deleted, retried, failed, batches";
+        TestUtil.testResult(db, DELETE_FLAGS, null, r -> {
+            Map<String, Object> row = r.next();
+            assertEquals(4L, row.get("deleted"));
+            assertEquals(0L, row.get("retried"));
+            assertEquals(0L, row.get("failed"));
+            assertEquals("expected the non-flag node to be ignored", 4L, row.get("batches"));
+        });
+        TestUtil.testResult(db, "MATCH (m:Movie) RETURN m" , null,
+                r -> assertTrue("Expected non-flag node to be kept", r.hasNext()) );
+    }
+
     @Test
     public void testDeleteNodeFlags() throws Exception {
         String CREATE_FLAGS = "MATCH (p:Person) " +
@@ -105,7 +202,8 @@ public class DQTest {
                 "WITH collect(n) as nodes " +
                 "CALL neo4j.dq.deleteNodeFlags(nodes, 2) yield value " +
                 "RETURN  value";
-        db.executeTransactionally(DELETE_NODE_FLAGS);
+        TestUtil.testResult(db, DELETE_NODE_FLAGS, null,
+                r -> assertEquals(4L, r.next().get("value")));
 
 
         TestUtil.testResult(db, "MATCH (flag:DQ_Flag) RETURN flag" , null,
@@ -127,6 +225,66 @@ public class DQTest {
                 r ->  assertEquals(1, r.stream().count()));
     }
 
+    @Test
+    public void testListFlags_includeSubclasses() throws Exception {
+        db.executeTransactionally("CALL neo4j.dq.createClass('BadName', 'BadData')");
+        db.executeTransactionally("MATCH (p:Person) CALL neo4j.dq.createFlag(p, 'BadName', 'desc') yield flag RETURN flag");
+        db.executeTransactionally("MATCH (m:Movie) CALL neo4j.dq.createFlag(m, 'BadData', 'desc') yield flag RETURN flag");
+
+        TestUtil.testResult(db, "CALL neo4j.dq.listFlags('BadData')" , null,
+                r ->  assertEquals(1, r.stream().count()));
+        TestUtil.testResult(db, "CALL neo4j.dq.listFlags('BadData', true)" , null,
+                r ->  assertEquals(5, r.stream().count()));
+    }
+
+    @Test
+    public void testListFlagsPage() throws Exception {
+        db.executeTransactionally("CALL neo4j.dq.createClass('BadName', 'BadData')");
+        db.executeTransactionally("MATCH (p:Person) CALL neo4j.dq.createFlag(p, 'BadName', 'desc') yield flag RETURN flag");
+        db.executeTransactionally("MATCH (m:Movie) CALL neo4j.dq.createFlag(m, 'BadData', 'movie') yield flag RETURN flag");
+
+        for (String orderBy : new String[]{"id", "created"}) {
+            List<Long> flagIds = new java.util.ArrayList<>();
+            String cursor = "";
+            for (int page = 0; page < 3; page++) {
+                List<Map<String, Object>> rows = db.executeTransactionally(
+                        "CALL neo4j.dq.listFlagsPage('BadData', true, $orderBy, $cursor, 2)",
+                        Map.of("orderBy", orderBy, "cursor", cursor), Iterators::asList);
+                assertEquals(page < 2 ? 2 : 1, rows.size());
+                for (Map<String, Object> row : rows) {
+                    flagIds.add((Long) row.get("flagId"));
+                    assertNotNull(row.get("nodeId"));
+                    assertNotNull(row.get("created"));
+                    assertTrue(row.get("dqClass").equals("BadName") || row.get("dqClass").equals("BadData"));
+                }
+                cursor = (String) rows.get(rows.size() - 1).get("cursor");
+            }
+            assertEquals("expected every flag exactly once", 5, flagIds.stream().distinct().count());
+        }
+
+        TestUtil.testResult(db, "CALL neo4j.dq.listFlagsPage('BadData') YIELD description RETURN description" , null,
+                r ->  assertEquals("movie", r.next().get("description")));
+    }
+
+    @Test
+    public void testListFlagsPage_sparse() throws Exception {
+        db.executeTransactionally("CALL neo4j.dq.createClass('Sparse', 'BadData')");
+        db.executeTransactionally("CREATE (n:Spread) WITH n CALL neo4j.dq.createFlag(n, 'Sparse', 'first') yield flag RETURN flag");
+        // more node ids than a page seeks before returning what it found
+        db.executeTransactionally("UNWIND range(1, 120000) AS i CREATE (:Filler)");
+        db.executeTransactionally("UNWIND range(1, 2) AS i CREATE (n:Spread) WITH n CALL neo4j.dq.createFlag(n, 'Sparse', 'next') yield flag RETURN flag");
+
+        String query = "CALL neo4j.dq.listFlagsPage('Sparse', false, 'id', $cursor, 2) YIELD description, cursor RETURN description, cursor";
+        List<Map<String, Object>> rows = db.executeTransactionally(query, Map.of("cursor", ""), Iterators::asList);
+        assertEquals(1, rows.size());
+        assertEquals("first", rows.get(0).get("description"));
+        rows = db.executeTransactionally(query, Map.of("cursor", rows.get(0).get("cursor")), Iterators::asList);
+        assertEquals(2, rows.size());
+        assertEquals("next", rows.get(1).get("description"));
+        rows = db.executeTransactionally(query, Map.of("cursor", rows.get(1).get("cursor")), Iterators::asList);
+        assertEquals(0, rows.size());
+    }
+
     @Test
     public void testListClasses() throws Exception {
         String CREATE_FLAGS = "MATCH (p:Person) " +
@@ -142,6 +300,20 @@ public class DQTest {
                 r ->  assertEquals(1, r.stream().count()));
     }
 
+    @Test
+    public void testListClasses_includeSubclasses() throws Exception {
+        db.executeTransactionally("CALL neo4j.dq.createClass('ChildClass', 'ParentClass')");
+        db.executeTransactionally("CALL neo4j.dq.createClass('GrandChildClass', 'ChildClass')");
+        db.executeTransactionally("CALL neo4j.dq.createClass('OtherClass')");
+
+        TestUtil.testResult(db, "CALL neo4j.dq.listClasses('ParentClass', true) yield dqClass RETURN dqClass.class as class" , null,
+                r ->  assertEquals(List.of("ParentClass", "ChildClass", "GrandChildClass"), Iterators.asList(r.columnAs("class"))));
+        TestUtil.testResult(db, "CALL neo4j.dq.listClasses('ChildClass', false)" , null,
+                r ->  assertEquals(1, r.stream().count()));
+        TestUtil.testResult(db, "CALL neo4j.dq.listClasses('UnknownClass', true)" , null,
+                r ->  assertFalse(r.hasNext()));
+    }
+
     @Test
     public void testCreateClass_generic() throws Exception {
         String CREATE_GENERIC_CLASS =  "CALL neo4j.dq.createClass('SomeClass') yield dqClass RETURN dqClass";
@@ -221,6 +393,59 @@ public class DQTest {
                 r -> assertTrue("Expected child class re-attached to root", r.hasNext()) );
     }
 
+    @Test
+    public void testDeleteClass_batched() throws Exception {
+        db.executeTransactionally("CALL neo4j.dq.createClass('ChildClass', 'ParentClass')");
+        db.executeTransactionally("MATCH (p:Person) CALL neo4j.dq.createFlag(p, 'ParentClass', 'desc') yield flag RETURN flag");
+        db.executeTransactionally("MATCH (m:Movie) CALL neo4j.dq.createFlag(m, 'ChildClass', 'desc') yield flag RETURN flag");
+        //as left by an interrupted deletion
+        db.executeTransactionally("MATCH (c:DQ_Class{class:'ParentClass'}) SET c.deleting = datetime()");
+
+        TestUtil.testResult(db, "CALL neo4j.dq.deleteClass('ParentClass', 1, 2)" , null,
+                r -> {
+                    Map<String, Object> row = r.next();
+                    assertEquals(4L, row.get("deleted"));
+                    assertEquals(0L, row.get("failed"));
+                    assertEquals(5L, row.get("batches"));
+                });
+
+        TestUtil.testResult(db, "MATCH (flag:ParentClass) RETURN flag" , null,
+                r -> assertFalse("Expected no parent flag results", r.hasNext()) );
+        TestUtil.testResult(db, "MATCH (c:DQ_Class{class:'ParentClass'}) RETURN c" , null,
+                r -> assertFalse("Expected no parent class results", r.hasNext()) );
+        TestUtil.testResult(db, "MATCH (c:DQ_Class{class:'ChildClass'})-[:HAS_DQ_CLASS]->(root:DQ_Class{class:'all'}) RETURN c" , null,
+                r -> assertTrue("Expected child class re-attached to root", r.hasNext()) );
+        TestUtil.testResult(db, "call neo4j.dq.statistics" , null,
+                r -> {Long[] expected={0L,1L,1L}; assertStatsResult(r, "all", expected);}
+        );
+    }
+
+    @Test
+    public void testDeleteClass_includeSubclasses() throws Exception {
+        db.executeTransactionally("CALL neo4j.dq.createClass('ChildClass', 'ParentClass')");
+        db.executeTransactionally("CALL neo4j.dq.createClass('GrandChildClass', 'ChildClass')");
+        db.executeTransactionally("MATCH (p:Person) CALL neo4j.dq.createFlag(p, 'GrandChildClass', 'desc') yield flag RETURN flag");
+        db.executeTransactionally("MATCH (m:Movie) CALL neo4j.dq.createFlag(m, 'ParentClass', 'desc') yield flag RETURN flag");
+        db.executeTransactionally("MATCH (m:Movie) CALL neo4j.dq.createFlag(m, 'OtherClass', 'desc') yield flag RETURN flag");
+
+        TestUtil.testResult(db, "CALL neo4j.dq.deleteClass('ChildClass', 0, 0, true) yield deleted RETURN deleted" , null,
+                r -> assertEquals(4L, r.next().get("deleted")));
+        TestUtil.testResult(db, "MATCH (c:DQ_Class) WHERE c.class IN ['ChildClass', 'GrandChildClass'] RETURN c" , null,
+                r -> assertFalse("Expected no subclass left", r.hasNext()) );
+        TestUtil.testResult(db, "MATCH (c:DQ_Class)-[:HAS_DQ_CLASS]->(:DQ_Class{class:'all'}) RETURN count(c) as classes" , null,
+                r -> assertEquals("Expected no subclass re-attached to root", 2L, r.next().get("classes")));
+
+        TestUtil.testResult(db, "CALL neo4j.dq.deleteClass('all', 1, 2, true)" , null,
+                r -> {
+                    Map<String, Object> row = r.next();
+                    assertEquals(2L, row.get("deleted"));
+                    assertEquals(0L, row.get("failed"));
+                    assertEquals("expected a batch per flag and per class", 5L, row.get("batches"));
+                });
+        TestUtil.testResult(db, "MATCH (n) WHERE n:DQ_Class OR n:DQ_Flag RETURN n" , null,
+                r -> assertFalse("Expected no classes nor flags left", r.hasNext()) );
+    }
+
     @Test
     public void testStatistics() throws Exception {
         String CREATE_CLASS =  "CALL neo4j.dq.createClass('SomeClass', 'ParentClass', 100, 'description') yield dqClass RETURN dqClass";
@@ -242,12 +467,393 @@ public class DQTest {
         );
     }
 
+    @Test
+    public void testStatistics_includeSubclasses() throws Exception {
+        db.executeTransactionally("CALL neo4j.dq.createClass('ChildClass', 'ParentClass')");
+        db.executeTransactionally("CALL neo4j.dq.createClass('OtherChildClass', 'ParentClass')");
+        db.executeTransactionally("MATCH (p:Person) CALL neo4j.dq.createFlag(p, 'ChildClass', 'desc') yield flag RETURN flag");
+        db.executeTransactionally("MATCH (m:Movie) CALL neo4j.dq.createFlag(m, 'ParentClass', 'desc') yield flag RETURN flag");
+
+        TestUtil.testResult(db, "call neo4j.dq.statistics('ParentClass', 'counters', true)" , null, r -> {
+            assertStatsResult(r, "ParentClass", new Long[]{1L,4L,5L});
+            Map<String, Map<String, Object>> subclasses = new HashMap<>();
+            r.forEachRemaining(row -> subclasses.put((String) row.get("dqClass"), row));
+            assertEquals(Set.of("ChildClass", "OtherChildClass"), subclasses.keySet());
+            assertEquals(4L, subclasses.get("ChildClass").get("directFlagCount"));
+            assertEquals(0L, subclasses.get("OtherChildClass").get("totalFlagCount"));
+        });
+    }
+
+    @Test
+    public void testStatistics_afterDeletions() throws Exception {
+        String CREATE_CLASS =  "CALL neo4j.dq.createClass('SomeClass', 'ParentClass', 100, 'description') yield dqClass RETURN dqClass";
+        db.executeTransactionally(CREATE_CLASS);
+        db.executeTransactionally("MATCH (p:Person) CALL neo4j.dq.createFlag(p, 'SomeClass', 'desc') yield flag RETURN flag");
+        db.executeTransactionally("MATCH (m:Movie) CALL neo4j.dq.createFlag(m, 'ParentClass', 'desc') yield flag RETURN flag");
+
+        db.executeTransactionally("MATCH (p:Person {name:'Keanu Reeves'})-[:HAS_DQ_FLAG]->(f) DETACH DELETE f");
+        TestUtil.testResult(db, "call neo4j.dq.statistics('ParentClass')" , null,
+                r -> {Long[] expected={1L,3L,4L}; assertStatsResult(r, "ParentClass", expected);}
+        );
+
+        db.executeTransactionally("CALL neo4j.dq.deleteClass('ParentClass')");
+        TestUtil.testResult(db, "call neo4j.dq.statistics" , null,
+                r -> {Long[] expected={0L,3L,3L}; assertStatsResult(r, "all", expected);}
+        );
+        TestUtil.testResult(db, "call neo4j.dq.statistics('SomeClass')" , null,
+                r -> {Long[] expected={3L,0L,3L}; assertStatsResult(r, "SomeClass", expected);}
+        );
+    }
+
+    @Test
+    public void testStatistics_rebuild() throws Exception {
+        db.executeTransactionally("CALL neo4j.dq.createClass('SomeClass', 'ParentClass')");
+        db.executeTransactionally("MATCH (p:Person) CALL neo4j.dq.createFlag(p, 'SomeClass', 'desc') yield flag RETURN flag");
+
+        long classes = (long) TestUtil.singleResultFirstColumn(db, "MATCH (c:DQ_Class) RETURN count(c)", Map.of());
+        TestUtil.testResult(db, "CALL neo4j.dq.rebuildCounters()", null, r -> assertEquals(classes, r.next().get("value")));
+        TestUtil.testResult(db, "call neo4j.dq.statistics('ParentClass')" , null,
+                r -> {Long[] expected={0L,4L,4L}; assertStatsResult(r, "ParentClass", expected);}
+        );
+        TestUtil.testResult(db, "MATCH (c:DQ_Class {class:'SomeClass'}) RETURN c.directFlagCount as direct, c.totalFlagCount as total" , null,
+                r -> { Map<String, Object> row = r.next(); assertEquals(4L, row.get("direct")); assertEquals(4L, row.get("total")); });
+
+        // statistics is a read procedure
+        try {
+            TestUtil.testResult(db, "call neo4j.dq.statistics('ParentClass', 'rebuild')", null, r -> r.stream().count());
+            fail("Expected the rebuild mode to be rejected");
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("rebuildCounters"));
+        }
+    }
+
+    @Test
+    public void testRebuildCountersConcurrently() throws Exception {
+        db.executeTransactionally("CALL neo4j.dq.createClass('SomeClass', 'ParentClass')");
+        ExecutorService writers = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int w = 0; w < 2; w++) {
+                futures.add(writers.submit(() -> {
+                    for (int i = 0; i < 20; i++) {
+                        db.executeTransactionally("CREATE (n:Rebuilt) WITH n CALL neo4j.dq.createFlag(n, 'SomeClass', 'desc') yield flag RETURN flag");
+                    }
+                }));
+            }
+            for (int i = 0; i < 5; i++) db.executeTransactionally("CALL neo4j.dq.rebuildCounters()");
+            for (Future<?> future : futures) future.get();
+        } finally {
+            writers.shutdown();
+        }
+        // every flag counted once, whether the rebuilds saw it or not
+        TestUtil.testResult(db, "call neo4j.dq.statistics('SomeClass')" , null,
+                r -> {Long[] expected={40L,0L,40L}; assertStatsResult(r, "SomeClass", expected);}
+        );
+    }
+
+    @Test
+    public void testCountersLoad() throws Exception {
+        db.executeTransactionally("CALL neo4j.dq.createClass('SomeClass', 'ParentClass')");
+        db.executeTransactionally("MATCH (p:Person) CALL neo4j.dq.createFlag(p, 'SomeClass', 'desc') yield flag RETURN flag");
+        long classId = (long) TestUtil.singleResultFirstColumn(db, "MATCH (c:DQ_Class {class:'SomeClass'}) RETURN id(c)", Map.of());
+        // persisted counts lagging behind, as after a crash
+        db.executeTransactionally("MATCH (c:DQ_Class) SET c.directFlagCount = 99, c.totalFlagCount = 99");
+
+        FlagCounters counters = new FlagCounters(db, new ClassCache(db, NullLog.getInstance()), () -> Runnable::run, NullLog.getInstance());
+        counters.load();
+        assertEquals("not flushed at stop : rebuilt", 4L, counters.getDirect(classId));
+
+        db.executeTransactionally("MATCH (c:DQ_Class {class:'SomeClass'}) SET c.directFlagCount = 5");
+        db.executeTransactionally("MATCH (m:DQ_Counters) SET m.flushed = true");
+        counters = new FlagCounters(db, new ClassCache(db, NullLog.getInstance()), () -> Runnable::run, NullLog.getInstance());
+        counters.load();
+        assertEquals("flushed at stop : loaded", 5L, counters.getDirect(classId));
+        TestUtil.testResult(db, "MATCH (m:DQ_Counters) RETURN m.flushed AS flushed", null,
+                r -> assertEquals(false, r.next().get("flushed")));
+        counters.stop();
+        TestUtil.testResult(db, "MATCH (m:DQ_Counters) RETURN m.flushed AS flushed", null,
+                r -> assertEquals(true, r.next().get("flushed")));
+    }
+
+    @Test
+    public void testStartOnce() throws Exception {
+        DQDatabase database = new DQDatabase((GraphDatabaseAPI) db, () -> Runnable::run, NullLog.getInstance());
+        AtomicInteger starts = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        Thread first = new Thread(() -> database.startOnce(() -> {
+            starts.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        first.start();
+        while (starts.get() == 0) Thread.sleep(10);
+        // a later call waits for the first one, without starting again
+        Thread second = new Thread(() -> database.startOnce(starts::incrementAndGet));
+        second.start();
+        Thread.sleep(100);
+        assertTrue(second.isAlive());
+        release.countDown();
+        first.join(10_000);
+        second.join(10_000);
+        assertEquals(1, starts.get());
+    }
+
+    @Test
+    public void testStatisticsTree() throws Exception {
+        db.executeTransactionally("CALL neo4j.dq.createClass('SomeClass', 'ParentClass')");
+        db.executeTransactionally("MATCH (p:Person) CALL neo4j.dq.createFlag(p, 'SomeClass', 'desc') yield flag RETURN flag");
+        db.executeTransactionally("MATCH (m:Movie) CALL neo4j.dq.createFlag(m, 'ParentClass', 'desc') yield flag RETURN flag");
+
+        for (String mode : new String[]{"counters", "scan"}) {
+            TestUtil.testResult(db, "CALL neo4j.dq.statisticsTree('all', $mode)", Map.of("mode", mode), r -> {
+                List<Map<String, Object>> rows = Iterators.asList(r);
+                assertEquals(3, rows.size());
+                assertStatsTreeRow(rows.get(0), "all", null, 0L, new Long[]{0L, 5L, 5L});
+                assertStatsTreeRow(rows.get(1), "ParentClass", "all", 1L, new Long[]{1L, 4L, 5L});
+                assertStatsTreeRow(rows.get(2), "SomeClass", "ParentClass", 2L, new Long[]{4L, 0L, 4L});
+            });
+        }
+        TestUtil.testResult(db, "CALL neo4j.dq.statisticsTree('ParentClass', 'scan')", null,
+                r -> assertEquals(2, r.stream().count()));
+    }
+
+    @Test
+    public void testShardedClass() throws Exception {
+        db.executeTransactionally("CALL neo4j.dq.createClass('HotClass', 'ParentClass', -1, '', 4)");
+        db.executeTransactionally("MATCH (p:Person) CALL neo4j.dq.createFlag(p, 'HotClass', 'desc') yield flag RETURN flag");
+        db.executeTransactionally("MATCH (m:Movie) WITH collect(m) as nodes CALL neo4j.dq.createFlags(nodes, 'HotClass') yield created RETURN created");
+
+        TestUtil.testResult(db, "MATCH (:HotClass)-[:HAS_DQ_CLASS]->(b:DQ_ClassBucket)-[:HAS_DQ_BUCKET]->(:DQ_Class {class:'HotClass'}) " +
+                        "RETURN count(*) as flags, count(distinct b) > 1 as spread", null, r -> {
+            Map<String, Object> row = r.next();
+            assertEquals(5L, row.get("flags"));
+            assertEquals(true, row.get("spread"));
+        });
+        TestUtil.testResult(db, "CALL neo4j.dq.listFlags('HotClass')", null, r -> assertEquals(5, r.stream().count()));
+        for (boolean rebuild : new boolean[]{false, true}) {
+            if (rebuild) db.executeTransactionally("CALL neo4j.dq.rebuildCounters()");
+            TestUtil.testResult(db, "call neo4j.dq.statistics('ParentClass')" , null,
+                    r -> {Long[] expected={0L,5L,5L}; assertStatsResult(r, "ParentClass", expected);}
+            );
+        }
+        TestUtil.testResult(db, "CALL neo4j.dq.statisticsTree('HotClass', 'scan')", null,
+                r -> assertStatsTreeRow(r.next(), "HotClass", "ParentClass", 2L, new Long[]{5L, 0L, 5L}));
+
+        db.executeTransactionally("MATCH (m:Movie)-[:HAS_DQ_FLAG]->(f) CALL neo4j.dq.deleteFlags(f) yield deleted RETURN deleted");
+        TestUtil.testResult(db, "call neo4j.dq.statistics('HotClass')" , null,
+                r -> {Long[] expected={4L,0L,4L}; assertStatsResult(r, "HotClass", expected);}
+        );
+
+        TestUtil.testResult(db, "CALL neo4j.dq.deleteClass('HotClass')", null, r -> assertEquals(4L, r.next().get("deleted")));
+        TestUtil.testResult(db, "MATCH (n) WHERE n:DQ_ClassBucket OR n:HotClass RETURN n", null,
+                r -> assertFalse("Expected no bucket or flag left", r.hasNext()));
+        TestUtil.testResult(db, "call neo4j.dq.statistics('ParentClass')" , null,
+                r -> {Long[] expected={0L,0L,0L}; assertStatsResult(r, "ParentClass", expected);}
+        );
+    }
+
+    @Test
+    public void testAlerts() throws Exception {
+        db.executeTransactionally("CALL neo4j.dq.createClass('ParentClass', 'all', 3)");
+        db.executeTransactionally("CALL neo4j.dq.createClass('SomeClass', 'ParentClass')");
+        db.executeTransactionally("MATCH (p:Person) CALL neo4j.dq.createFlag(p, 'SomeClass', 'desc') yield flag RETURN flag");
+
+        TestUtil.testResult(db, "CALL neo4j.dq.listAlerts() yield alert RETURN alert", null, r -> {
+            List<Map<String, Object>> rows = Iterators.asList(r);
+            assertEquals(1, rows.size());
+            Node alert = (Node) rows.get(0).get("alert");
+            assertEquals("ParentClass", alert.getProperty("class"));
+            assertEquals("RAISED", alert.getProperty("event"));
+            assertEquals(4L, alert.getProperty("flagCount"));
+            assertEquals(3L, alert.getProperty("limit"));
+        });
+
+        db.executeTransactionally("MATCH (f:SomeClass) WITH f LIMIT 2 CALL neo4j.dq.deleteFlags(f) yield deleted RETURN deleted");
+        TestUtil.testResult(db, "CALL neo4j.dq.listAlerts('ParentClass') yield alert RETURN alert.event as event", null,
+                r -> assertEquals(List.of("CLEARED", "RAISED"), Iterators.asList(r.columnAs("event"))));
+
+        db.executeTransactionally("MATCH (a:DQ_Alert {event:'RAISED'}) CALL neo4j.dq.acknowledgeAlert(a) yield alert RETURN alert");
+        TestUtil.testResult(db, "CALL neo4j.dq.listAlerts('', false) yield alert RETURN alert.event as event", null,
+                r -> assertEquals(List.of("CLEARED"), Iterators.asList(r.columnAs("event"))));
+    }
+
+    @Test
+    public void testHistory() throws Exception {
+        db.executeTransactionally("CALL neo4j.dq.createClass('SomeClass', 'ParentClass')");
+        db.executeTransactionally("MATCH (p:Person) CALL neo4j.dq.createFlag(p, 'SomeClass', 'desc') yield flag RETURN flag");
+        TestUtil.testResult(db, "CALL neo4j.dq.snapshotHistory()", null, r -> assertEquals(3L, r.next().get("value")));
+
+        TestUtil.testResult(db, "CALL neo4j.dq.history('ParentClass', datetime() - duration('PT1H'))", null, r -> {
+            Map<String, Object> row = r.next();
+            assertEquals("MINUTE", row.get("resolution"));
+            assertEquals(0L, row.get("directFlagCount"));
+            assertEquals(4L, row.get("totalFlagCount"));
+            assertFalse(r.hasNext());
+        });
+        TestUtil.testResult(db, "CALL neo4j.dq.history('ParentClass', datetime() - duration('P90D'), datetime(), 'day')", null,
+                r -> assertEquals("DAY", r.next().get("resolution")));
+        TestUtil.testResult(db, "CALL neo4j.dq.history('ParentClass', datetime() + duration('PT1H'))", null,
+                r -> assertFalse(r.hasNext()));
+
+        // only the classes whose counts changed are recorded again : ParentClass and its parent
+        TestUtil.testResult(db, "CALL neo4j.dq.snapshotHistory()", null, r -> assertEquals(0L, r.next().get("value")));
+        db.executeTransactionally("MATCH (p:Person) WITH p LIMIT 1 CALL neo4j.dq.createFlag(p, 'ParentClass', 'desc') yield flag RETURN flag");
+        TestUtil.testResult(db, "CALL neo4j.dq.snapshotHistory()", null, r -> assertEquals(2L, r.next().get("value")));
+        // the two snapshots can fall in different minutes : the last row has the current counts
+        TestUtil.testResult(db, "CALL neo4j.dq.history('ParentClass', datetime() - duration('PT1H')) yield totalFlagCount RETURN totalFlagCount", null, r -> {
+            List<Object> totals = Iterators.asList(r.columnAs("totalFlagCount"));
+            assertEquals(5L, totals.get(totals.size() - 1));
+        });
+
+        // a restarted history reads the last records back : nothing changed since
+        DQDatabase database = TestUtil.database(db);
+        ClassHistory restarted = new ClassHistory(db, database.getClassCache(), database.getFlagCounters(), null, null,
+                Duration.ZERO, Duration.ofHours(1), Duration.ofDays(1), Duration.ZERO, NullLog.getInstance());
+        assertEquals(0L, restarted.snapshot(System.currentTimeMillis() / 1000));
+    }
+
+    @Test
+    public void testRunRules() throws Exception {
+        db.executeTransactionally("CALL neo4j.dq.createRule('nickname', 'MissingNickname', 'Person', 'exists', 'nickname')");
+        db.executeTransactionally("CALL neo4j.dq.createRule('name', 'BadName', 'Person', 'regex', 'name', {pattern:'[A-K].*'}, 'names from A to K')");
+        db.executeTransactionally("CALL neo4j.dq.createRule('released', 'OldMovie', 'Movie', 'range', 'released', {min:2000})");
+        TestUtil.testResult(db, "CALL neo4j.dq.listRules()", null, r -> assertEquals(3, r.stream().count()));
+
+        TestUtil.testResult(db, "CALL neo4j.dq.runRules('', 2, 2)", null, r -> {
+            Map<String, Object> row = r.next();
+            assertEquals(3L, row.get("rules"));
+            // the nodes of the rule labels only
+            assertEquals(5L, row.get("scanned"));
+            assertEquals(6L, row.get("violations"));
+            assertEquals(6L, row.get("created"));
+            assertEquals(0L, row.get("failed"));
+            assertEquals(3L, row.get("batches"));
+        });
+        TestUtil.testResult(db, "MATCH (p:Person {name:'Laurence Fishburne'})-[:HAS_DQ_FLAG]->(f:BadName) RETURN f.rule as rule, f.description as description", null, r -> {
+            Map<String, Object> row = r.next();
+            assertEquals("name", row.get("rule"));
+            assertEquals("names from A to K", row.get("description"));
+        });
+        TestUtil.testResult(db, "MATCH (m:Movie)-[:HAS_DQ_FLAG]->(f:OldMovie) RETURN count(f) as flags", null,
+                r -> assertEquals(1L, r.next().get("flags")));
+
+        // already flagged nodes aren't flagged again
+        TestUtil.testResult(db, "CALL neo4j.dq.runRules('BadName')", null, r -> {
+            Map<String, Object> row = r.next();
+            assertEquals(1L, row.get("rules"));
+            assertEquals(1L, row.get("existing"));
+            assertEquals(0L, row.get("created"));
+        });
+        TestUtil.testResult(db, "call neo4j.dq.statistics" , null,
+                r -> {Long[] expected={0L,6L,6L}; assertStatsResult(r, "all", expected);}
+        );
+    }
+
+    @Test
+    public void testRunRulesChunks() throws Exception {
+        db.executeTransactionally("UNWIND range(1, 25000) AS i CREATE (:Item {i:i})");
+        db.executeTransactionally("CALL neo4j.dq.createRule('code', 'MissingCode', 'Item', 'exists', 'code')");
+
+        // more nodes than a chunk, read from the label scan as flags get created
+        TestUtil.testResult(db, "CALL neo4j.dq.runRules('', 1000, 2)", null, r -> {
+            Map<String, Object> row = r.next();
+            assertEquals(25000L, row.get("scanned"));
+            assertEquals(25000L, row.get("created"));
+            assertEquals(0L, row.get("failed"));
+        });
+        TestUtil.testResult(db, "CALL neo4j.dq.runRules('MissingCode', 1000, 2)", null, r -> {
+            Map<String, Object> row = r.next();
+            assertEquals(25000L, row.get("existing"));
+            assertEquals(0L, row.get("created"));
+        });
+    }
+
+    @Test
+    public void testDeleteClassWithRule() throws Exception {
+        db.executeTransactionally("CALL neo4j.dq.createRule('nickname', 'MissingNickname', 'Person', 'exists', 'nickname')");
+        TestUtil.testResult(db, "CALL neo4j.dq.runRules()", null, r -> assertEquals(4L, r.next().get("created")));
+
+        TestUtil.testResult(db, "CALL neo4j.dq.deleteClass('MissingNickname') yield value RETURN value", null,
+                r -> assertEquals(4L, r.next().get("value")));
+        TestUtil.testResult(db, "MATCH (r:DQ_Rule) RETURN r", null, r -> assertFalse("Expected the rule to be deleted with its class", r.hasNext()));
+        TestUtil.testResult(db, "CALL neo4j.dq.listRules()", null, r -> assertFalse(r.hasNext()));
+
+        db.executeTransactionally("CALL neo4j.dq.createRule('nickname', 'MissingNickname', 'Person', 'exists', 'nickname')");
+        TestUtil.testResult(db, "CALL neo4j.dq.runRules()", null, r -> assertEquals(4L, r.next().get("created")));
+    }
+
+    @Test
+    public void testCreateRule_invalid() throws Exception {
+        try {
+            db.executeTransactionally("CALL neo4j.dq.createRule('bad', 'BadRule', 'Person', 'range', 'born')");
+            fail("Expected a range rule without bounds to be rejected");
+        } catch (QueryExecutionException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("'min' or 'max'"));
+        }
+        TestUtil.testResult(db, "CALL neo4j.dq.listRules()", null, r -> assertFalse(r.hasNext()));
+    }
+
     @Test
     public void testStatistics_empty() throws Exception {
         TestUtil.testResult(db, "call neo4j.dq.statistics" , null,
                 r -> assertFalse("Expected no parent flag results", r.hasNext()) );
     }
 
+    @Test
+    public void testPoolStats() throws Exception {
+        int processors = Runtime.getRuntime().availableProcessors();
+        TestUtil.testResult(db, "CALL neo4j.dq.poolStats()", null, r -> {
+            Map<String, Object> row = r.next();
+            assertEquals((long) processors * 2, row.get("maxPoolSize"));
+            assertEquals((long) processors * 10, (long) row.get("queueSize") + (long) row.get("queueRemainingCapacity"));
+            assertEquals("CALLER_RUNS", row.get("saturationPolicy"));
+            assertEquals(0L, row.get("rejectedTasks"));
+        });
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        db.executeTransactionally("MATCH (n:Person) CALL neo4j.dq.createFlag(n, 'Generic_Flag', 'metrics') YIELD flag RETURN count(*)");
+        TestUtil.testResult(db, "CALL neo4j.dq.listFlags('Generic_Flag') YIELD flag RETURN count(*) AS count", null,
+                r -> assertEquals(4L, r.next().get("count")));
+        try {
+            db.executeTransactionally("CALL neo4j.dq.createRule('bad', 'BadRule', 'Person', 'range', 'born')");
+        } catch (QueryExecutionException e) {
+            // counted as an error
+        }
+
+        TestUtil.testResult(db, "CALL neo4j.dq.metrics(true)", null, r -> {
+            Map<String, Map<String, Object>> metrics = new java.util.HashMap<>();
+            r.forEachRemaining(row -> metrics.put((String) row.get("name"), row));
+            assertEquals(4L, metrics.get("createFlag").get("calls"));
+            assertEquals(4L, metrics.get("createFlag").get("rows"));
+            assertEquals(1L, metrics.get("listFlags").get("calls"));
+            assertEquals(4L, metrics.get("listFlags").get("rows"));
+            assertEquals(1L, metrics.get("createRule").get("errors"));
+            assertTrue((double) metrics.get("createFlag").get("maxMs") >= (double) metrics.get("createFlag").get("p50Ms"));
+        });
+        TestUtil.testResult(db, "CALL neo4j.dq.metrics() YIELD name, calls WHERE name = 'createFlag' RETURN calls", null,
+                r -> assertEquals("reset", 0L, r.next().get("calls")));
+    }
+
+    @Test
+    public void testSchemaStatus() throws Exception {
+        TestUtil.testResult(db, "CALL neo4j.dq.schemaStatus() YIELD name, label, properties, type, state RETURN * ORDER BY name" , null, r -> {
+            List<Map<String, Object>> rows = Iterators.asList(r);
+            assertEquals(3, rows.size());
+            assertEquals(DQSchema.CLASS_CONSTRAINT, rows.get(0).get("name"));
+            assertEquals("UNIQUENESS", rows.get(0).get("type"));
+            assertEquals(List.of(DQ.classProperty), rows.get(0).get("properties"));
+            assertEquals(DQSchema.CREATED_INDEX, rows.get(1).get("name"));
+            assertEquals("DQ_Flag", rows.get(1).get("label"));
+            assertEquals(DQSchema.HISTORY_INDEX, rows.get(2).get("name"));
+            rows.forEach(row -> assertEquals("ONLINE", row.get("state")));
+        });
+    }
+
     private void assertFlagResult(Result r, String expectedDescription) {
         Node flag;
         for (Map<String, Object> map : Iterators.asList(r)) {
@@ -317,6 +923,14 @@ public class DQTest {
             assertTrue("expected HAS_DQ_CLASS relationship", classNode.hasRelationship(Direction.OUTGOING, DQ.HAS_DQ_CLASS));
         }
     }
+    private void assertStatsTreeRow(Map<String, Object> row, String expectedClass, String expectedParent, Long expectedDepth, Long[] expectedStats) {
+        assertEquals("expected dqClass column", expectedClass, row.get("dqClass")) ;
+        assertEquals("expected parentClass column", expectedParent, row.get("parentClass")) ;
+        assertEquals("expected depth column", expectedDepth, row.get("depth")) ;
+        assertEquals("expected directFlagCount column", expectedStats[0], row.get("directFlagCount")) ;
+        assertEquals("expected indirectFlagCount column", expectedStats[1], row.get("indirectFlagCount")) ;
+        assertEquals("expected totalFlagCount column", expectedStats[2], row.get("totalFlagCount")) ;
+    }
     private void assertStatsResult(Result r, String expectedClass, Long[] expectedStats) {
         if (!r.hasNext()) assert(false);
         Map res = r.next();
@@ -0,0 +1,136 @@
+package neo4j.dq;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.configuration.GraphDatabaseSettings;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.QueryExecutionException;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.logging.NullLog;
+import org.neo4j.test.rule.DbmsRule;
+import org.neo4j.test.rule.ImpermanentDbmsRule;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.*;
+
+public class FlagExportTest {
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private final Path exportDirectory = folder.getRoot().toPath();
+
+    @Rule
+    public DbmsRule db = new ImpermanentDbmsRule()
+            .withSetting(GraphDatabaseSettings.procedure_unrestricted, singletonList("neo4j.dq.*"))
+            .withSetting(DQSettings.export_directory, exportDirectory);
+
+    @Before
+    public void setUp() throws Exception {
+        TestUtil.registerProcedure(db, DQ.class);
+        db.executeTransactionally("UNWIND range(1, 5) AS i CREATE (:Person {name:'p'+i})");
+        db.executeTransactionally("MATCH (p:Person) WHERE p.name <> 'p5' CALL neo4j.dq.createFlag(p, 'MissingName', 'no \"name\", really') YIELD flag RETURN count(*)");
+        db.executeTransactionally("CALL neo4j.dq.createClass('Duplicate', 'MissingName')");
+        db.executeTransactionally("MATCH (p:Person {name:'p5'}) CALL neo4j.dq.createFlag(p, 'Duplicate', 'twice') YIELD flag " +
+                "CREATE (a:Evidence) WITH flag, a CALL neo4j.dq.attachToFlag(flag, a) YIELD attachment RETURN count(*)");
+    }
+
+    @After
+    public void tearDown() {
+        db.shutdown();
+    }
+
+    @Test
+    public void testExportCsv() throws Exception {
+        TestUtil.testResult(db, "CALL neo4j.dq.exportFlags('flags.csv')", null, r -> {
+            Map<String, Object> row = r.next();
+            assertEquals(5L, row.get("rows"));
+            assertEquals(1L, row.get("parts"));
+            assertEquals("csv", row.get("format"));
+            assertEquals(size(exportDirectory.resolve("flags.csv")), row.get("bytes"));
+        });
+        List<String> lines = Files.readAllLines(exportDirectory.resolve("flags.csv"));
+        assertEquals(6, lines.size());
+        assertEquals("flagId,class,description,created,nodeId,attachmentIds,compactFlagId", lines.get(0));
+        assertTrue(lines.get(1), lines.get(1).contains(",MissingName,\"no \"\"name\"\", really\","));
+        String duplicate = lines.stream().filter(line -> line.contains(",Duplicate,")).findFirst().get();
+        long attachment = TestUtil.singleResultFirstColumn(db, "MATCH (a:Evidence) RETURN id(a)", Map.of());
+        assertTrue(duplicate, duplicate.endsWith("," + attachment + ","));
+        assertFalse("part files are removed", Files.exists(exportDirectory.resolve("flags.csv.part-0")));
+    }
+
+    @Test
+    public void testExportNdjson() throws Exception {
+        TestUtil.testResult(db, "CALL neo4j.dq.exportFlags('sub/flags.ndjson', 'ndjson', 'MissingName')", null,
+                r -> assertEquals(4L, r.next().get("rows")));
+        List<String> lines = Files.readAllLines(exportDirectory.resolve("sub/flags.ndjson"));
+        assertEquals(4, lines.size());
+        assertTrue(lines.get(0), lines.get(0).matches("\\{\"flagId\":\\d+,\"class\":\"MissingName\",\"description\":\"no \\\\\"name\\\\\", really\",\"created\":\"[^\"]+\",\"nodeId\":\\d+,\"attachmentIds\":\\[],\"compactFlagId\":null}"));
+
+        TestUtil.testResult(db, "CALL neo4j.dq.exportFlags('sub/flags.ndjson', 'ndjson', 'MissingName', true)", null,
+                r -> assertEquals("with subclasses", 5L, r.next().get("rows")));
+    }
+
+    @Test
+    public void testExportCompactFlags() throws Exception {
+        db.executeTransactionally("CALL neo4j.dq.createClass('Compact', 'MissingName', -1, '', 0, true)");
+        db.executeTransactionally("MATCH (p:Person {name:'p1'}) CALL neo4j.dq.createFlag(p, 'Compact', 'small') YIELD compactFlag RETURN count(*)");
+        long compactFlagId = TestUtil.singleResultFirstColumn(db, "MATCH ()-[f:HAS_DQ_COMPACT_FLAG]->() RETURN id(f)", Map.of());
+        long nodeId = TestUtil.singleResultFirstColumn(db, "MATCH (p:Person {name:'p1'}) RETURN id(p)", Map.of());
+
+        TestUtil.testResult(db, "CALL neo4j.dq.exportFlags('compact.ndjson', 'ndjson', 'Compact')", null,
+                r -> assertEquals(1L, r.next().get("rows")));
+        List<String> lines = Files.readAllLines(exportDirectory.resolve("compact.ndjson"));
+        assertTrue(lines.get(0), lines.get(0).matches("\\{\"flagId\":null,\"class\":\"Compact\",\"description\":\"small\",\"created\":\"[^\"]+\"," +
+                "\"nodeId\":" + nodeId + ",\"attachmentIds\":\\[],\"compactFlagId\":" + compactFlagId + "}"));
+
+        TestUtil.testResult(db, "CALL neo4j.dq.exportFlags('all.csv')", null,
+                r -> assertEquals("compact flags are exported with flag nodes", 6L, r.next().get("rows")));
+        TestUtil.testResult(db, "CALL neo4j.dq.exportFlags('sub.csv', 'csv', 'MissingName', true)", null,
+                r -> assertEquals("with compact subclasses", 6L, r.next().get("rows")));
+    }
+
+    @Test
+    public void testExportParts() throws Exception {
+        Path file = exportDirectory.resolve("parts.csv");
+        FlagExport export;
+        try (Transaction tx = db.beginTx()) {
+            export = new FlagExport(db, file, FlagExport.Format.CSV, NullLog.getInstance())
+                    .withPartSize(2)
+                    .run(tx, List.of(Label.label("MissingName"), Label.label("Duplicate")), ForkJoinPool.commonPool(), 2);
+            tx.commit();
+        }
+        assertEquals(5, export.getRows());
+        assertEquals(3, export.getParts());
+        List<String> lines = Files.readAllLines(file);
+        assertEquals("a single header", 6, lines.size());
+        assertEquals(1, lines.stream().filter(line -> line.startsWith("flagId")).count());
+        assertEquals(Files.size(file), export.getBytes());
+    }
+
+    @Test
+    public void testExportOutsideDirectory() throws Exception {
+        for (String path : new String[]{"../flags.csv", "/tmp/flags.csv", ""}) {
+            try {
+                TestUtil.testResult(db, "CALL neo4j.dq.exportFlags($path)", Map.of("path", path), r -> r.next());
+                fail("Expected "+path+" to be rejected");
+            } catch (QueryExecutionException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("export"));
+            }
+        }
+    }
+
+    private static long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
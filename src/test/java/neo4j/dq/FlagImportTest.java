@@ -0,0 +1,141 @@
+package neo4j.dq;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.configuration.GraphDatabaseSettings;
+import org.neo4j.test.rule.DbmsRule;
+import org.neo4j.test.rule.ImpermanentDbmsRule;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.*;
+
+public class FlagImportTest {
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private final Path importDirectory = folder.getRoot().toPath();
+
+    @Rule
+    public DbmsRule db = new ImpermanentDbmsRule()
+            .withSetting(GraphDatabaseSettings.procedure_unrestricted, singletonList("neo4j.dq.*"))
+            .withSetting(DQSettings.export_directory, importDirectory);
+
+    @Before
+    public void setUp() throws Exception {
+        TestUtil.registerProcedure(db, DQ.class);
+        db.executeTransactionally("UNWIND range(1, 5) AS i CREATE (:Person {name:'p'+i})");
+        db.executeTransactionally("CREATE (:Evidence)");
+    }
+
+    @After
+    public void tearDown() {
+        db.shutdown();
+    }
+
+    @Test
+    public void testImportCsv() throws Exception {
+        List<Long> people = TestUtil.firstColumn(db, "MATCH (p:Person) RETURN id(p) ORDER BY p.name", Map.of());
+        long evidence = TestUtil.singleResultFirstColumn(db, "MATCH (e:Evidence) RETURN id(e)", Map.of());
+        Files.writeString(importDirectory.resolve("flags.csv"), String.join("\n",
+                "nodeId,class,description,attachmentIds",
+                people.get(0) + ",MissingName,\"no name, \"\"really\"\"\n(two lines)\"," + evidence,
+                people.get(1) + ",MissingName,,",
+                people.get(2) + ",,default class,",
+                "123456,MissingName,unknown node,",
+                "x,MissingName,invalid id,",
+                people.get(3) + ",MissingName,unknown attachment,123456",
+                people.get(4) + ",too,many,fields,here",
+                ""));
+
+        TestUtil.testResult(db, "CALL neo4j.dq.importFlags('flags.csv', '', 'Imported', '', '', 2)", null, r -> {
+            Map<String, Object> row = r.next();
+            assertEquals(7L, row.get("rows"));
+            assertEquals(3L, row.get("created"));
+            assertEquals(4L, row.get("rejected"));
+            assertEquals(importDirectory.resolve("flags.csv.rejected").toString(), row.get("rejectedFile"));
+        });
+
+        TestUtil.testResult(db, "MATCH (p:Person)-[:HAS_DQ_FLAG]->(f:MissingName) OPTIONAL MATCH (f)-[:HAS_ATTACHMENT]->(a) " +
+                "RETURN p.name AS name, f.description AS description, id(a) AS attachment ORDER BY name", null, r -> {
+            Map<String, Object> row = r.next();
+            assertEquals("p1", row.get("name"));
+            assertEquals("no name, \"really\"\n(two lines)", row.get("description"));
+            assertEquals(evidence, row.get("attachment"));
+            assertEquals("p2", r.next().get("name"));
+            assertFalse(r.hasNext());
+        });
+        assertEquals(1L, (long) TestUtil.singleResultFirstColumn(db, "MATCH (:Person {name:'p3'})-[:HAS_DQ_FLAG]->(f:Imported:DQ_Flag) RETURN count(f)", Map.of()));
+
+        List<String> rejected = Files.readAllLines(importDirectory.resolve("flags.csv.rejected"));
+        assertEquals(5, rejected.size());
+        assertEquals("row,reason,nodeId,class,description,attachmentIds", rejected.get(0));
+        // records rejected when read come before those rejected by their batch
+        assertRejected(rejected, "4,Node 123456 not found,123456,MissingName,unknown node,");
+        assertRejected(rejected, "5,invalid id 'x',x,MissingName,invalid id,");
+        assertRejected(rejected, "6,Node 123456 not found," + people.get(3) + ",MissingName,unknown attachment,123456");
+        assertRejected(rejected, "7,\"expected 4 fields, found 5\"," + people.get(4) + ",too,many,fields,here");
+    }
+
+    @Test
+    public void testImportNdjsonByKey() throws Exception {
+        Files.writeString(importDirectory.resolve("flags.ndjson"), String.join("\n",
+                "{\"key\":\"p1\",\"class\":\"BadName\",\"description\":\"d1\"}",
+                "{\"key\":\"p2\"}",
+                "{\"key\":\"nobody\"}",
+                "{\"key\":",
+                ""));
+
+        TestUtil.testResult(db, "CALL neo4j.dq.importFlags('flags.ndjson', '', 'Imported', 'Person', 'name')", null, r -> {
+            Map<String, Object> row = r.next();
+            assertEquals(4L, row.get("rows"));
+            assertEquals(2L, row.get("created"));
+            assertEquals(2L, row.get("rejected"));
+        });
+        assertEquals(1L, (long) TestUtil.singleResultFirstColumn(db, "MATCH (:Person {name:'p1'})-[:HAS_DQ_FLAG]->(f:BadName {description:'d1'}) RETURN count(f)", Map.of()));
+        List<String> rejected = Files.readAllLines(importDirectory.resolve("flags.ndjson.rejected"));
+        assertEquals(2, rejected.size());
+        assertRejected(rejected, "{\"row\":3,\"reason\":\"no :Person node with name = 'nobody'\",\"key\":\"nobody\"}");
+        assertTrue(rejected.toString(), rejected.stream().anyMatch(line -> line.startsWith("{\"row\":4,\"reason\":\"invalid JSON")));
+
+        // without a lookup, keys can't be resolved
+        TestUtil.testResult(db, "CALL neo4j.dq.importFlags('flags.ndjson')", null,
+                r -> assertEquals(0L, r.next().get("created")));
+    }
+
+    @Test
+    public void testExportImportRoundTrip() throws Exception {
+        db.executeTransactionally("MATCH (p:Person) CALL neo4j.dq.createFlag(p, 'MissingName', 'desc of '+p.name) YIELD flag RETURN count(*)");
+        TestUtil.testResult(db, "CALL neo4j.dq.exportFlags('roundtrip.csv')", null, r -> assertEquals(5L, r.next().get("rows")));
+        db.executeTransactionally("MATCH (f:DQ_Flag) DETACH DELETE f");
+
+        TestUtil.testResult(db, "CALL neo4j.dq.importFlags('roundtrip.csv')", null, r -> {
+            Map<String, Object> row = r.next();
+            assertEquals(5L, row.get("created"));
+            assertEquals(0L, row.get("rejected"));
+            assertNull(row.get("rejectedFile"));
+        });
+        TestUtil.testResult(db, "MATCH (p:Person)-[:HAS_DQ_FLAG]->(f:MissingName) WHERE f.description = 'desc of '+p.name RETURN count(*) AS count", null,
+                r -> assertEquals(5L, r.next().get("count")));
+        assertFalse(Files.exists(importDirectory.resolve("roundtrip.csv.rejected")));
+    }
+
+    private static void assertRejected(List<String> rejected, String line) {
+        assertTrue(line + " in " + rejected, rejected.contains(line));
+    }
+
+    @Test
+    public void testImportMissingFile() throws Exception {
+        try {
+            TestUtil.testResult(db, "CALL neo4j.dq.importFlags('missing.csv')", null, r -> r.next());
+            fail("Expected a missing file to be reported");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("No file to import"));
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package neo4j.dq;
+
+import org.junit.*;
+import org.neo4j.configuration.GraphDatabaseSettings;
+import org.neo4j.graphdb.QueryExecutionException;
+import org.neo4j.logging.NullLog;
+import org.neo4j.test.rule.DbmsRule;
+import org.neo4j.test.rule.ImpermanentDbmsRule;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.*;
+
+public class FlagReaperTest {
+
+    @Rule
+    public DbmsRule db = new ImpermanentDbmsRule()
+            .withSetting(GraphDatabaseSettings.procedure_unrestricted, singletonList("neo4j.dq.*"))
+            .withSetting(DQSettings.ttl_interval, Duration.ZERO)
+            .withSetting(DQSettings.ttl_batch_size, 2)
+            .withSetting(DQSettings.ttl_max_rate, 0);
+
+    @Before
+    public void setUp() throws Exception {
+        TestUtil.registerProcedure(db, DQ.class);
+        db.executeTransactionally("UNWIND range(1, 6) AS i CREATE (:Person {name:'p'+i})");
+        db.executeTransactionally("CALL neo4j.dq.createClass('Expiring', 'all', -1, '', 0, false, 'P1D')");
+        db.executeTransactionally("CALL neo4j.dq.createClass('Inheriting', 'Expiring')");
+        db.executeTransactionally("CALL neo4j.dq.createClass('Kept', 'Expiring', -1, '', 0, false, 'P30D')");
+    }
+
+    @After
+    public void tearDown() {
+        db.shutdown();
+    }
+
+    @Test
+    public void testExpireFlags() throws Exception {
+        db.executeTransactionally("MATCH (p:Person) WHERE p.name IN ['p1', 'p2'] CALL neo4j.dq.createFlag(p, 'Expiring') yield flag RETURN flag");
+        db.executeTransactionally("MATCH (p:Person) WHERE p.name IN ['p3', 'p4'] CALL neo4j.dq.createFlag(p, 'Kept') yield flag RETURN flag");
+        db.executeTransactionally("MATCH (p:Person) WHERE p.name IN ['p5', 'p6'] CALL neo4j.dq.createFlag(p, 'Inheriting') yield flag RETURN flag");
+        // all flags are two days old, but p6's : created at the same time, so that batches split flags with the same creation time
+        db.executeTransactionally("WITH datetime() - duration('P2D') AS created MATCH (f:DQ_Flag) SET f.created = created");
+        db.executeTransactionally("MATCH (:Person {name:'p6'})-[:HAS_DQ_FLAG]->(f) SET f.created = datetime()");
+
+        TestUtil.testResult(db, "CALL neo4j.dq.expireFlags()", null, r -> {
+            Map<String, Object> row = r.next();
+            assertEquals(3L, row.get("expired"));
+            assertEquals(2L, row.get("batches"));
+        });
+        TestUtil.testResult(db, "MATCH (p:Person)-[:HAS_DQ_FLAG]->(:DQ_Flag) RETURN p.name AS name ORDER BY name", null,
+                r -> assertEquals(List.of("p3", "p4", "p6"), r.stream().map(row -> row.get("name")).collect(Collectors.toList())));
+
+        // without a TTL, nothing expires
+        db.executeTransactionally("CALL neo4j.dq.setClassTtl('Kept')");
+        db.executeTransactionally("CALL neo4j.dq.setClassTtl('Expiring')");
+        TestUtil.testResult(db, "CALL neo4j.dq.expireFlags()", null,
+                r -> assertEquals(0L, r.next().get("expired")));
+        db.executeTransactionally("CALL neo4j.dq.setClassTtl('Expiring', 'PT1H')");
+        TestUtil.testResult(db, "CALL neo4j.dq.expireFlags()", null,
+                r -> assertEquals(2L, r.next().get("expired")));
+    }
+
+    @Test
+    public void testExpireCompactFlags() throws Exception {
+        db.executeTransactionally("CALL neo4j.dq.convertFlags('Inheriting')");
+        db.executeTransactionally("MATCH (p:Person) CALL neo4j.dq.createFlag(p, 'Inheriting') yield compactFlag RETURN compactFlag");
+        db.executeTransactionally("MATCH (p:Person)-[f:HAS_DQ_COMPACT_FLAG]->() WHERE p.name <> 'p1' SET f.created = datetime() - duration('P2D')");
+
+        TestUtil.testResult(db, "CALL neo4j.dq.expireFlags()", null,
+                r -> assertEquals(5L, r.next().get("expired")));
+        TestUtil.testResult(db, "MATCH (p:Person)-[:HAS_DQ_COMPACT_FLAG]->() RETURN collect(p.name) AS names", null,
+                r -> assertEquals(singletonList("p1"), r.next().get("names")));
+        TestUtil.testResult(db, "CALL neo4j.dq.statistics('Inheriting') yield directFlagCount RETURN directFlagCount", null,
+                r -> assertEquals(1L, r.next().get("directFlagCount")));
+    }
+
+    @Test
+    public void testInterruptedPass() throws Exception {
+        db.executeTransactionally("MATCH (p:Person) WHERE p.name IN ['p1', 'p2', 'p3'] CALL neo4j.dq.createFlag(p, 'Expiring') yield flag RETURN flag");
+        db.executeTransactionally("MATCH (f:DQ_Flag) SET f.created = datetime() - duration('P2D')");
+        // one flag read per second : the pass sleeps after each batch of 2
+        FlagReaper reaper = new FlagReaper(db, new ClassCache(db, NullLog.getInstance()), null, null, Duration.ZERO, 2, 1, NullLog.getInstance());
+
+        // an interrupted pass ends after its current batch, without stopping the reaper
+        FlagReaper.ExpireResult[] interrupted = new FlagReaper.ExpireResult[1];
+        Thread pass = new Thread(() -> interrupted[0] = reaper.reap(ZonedDateTime.now()));
+        pass.start();
+        Thread.sleep(500);
+        pass.interrupt();
+        pass.join(10_000);
+        assertEquals(2L, (long) interrupted[0].expired);
+        assertEquals(1L, (long) reaper.reap(ZonedDateTime.now()).expired);
+    }
+
+    @Test
+    public void testParseTtl() {
+        assertEquals(-1, FlagReaper.parseTtl(""));
+        assertEquals(86400, FlagReaper.parseTtl("P1D"));
+        assertEquals(5400, FlagReaper.parseTtl(" PT1H30M "));
+        try {
+            db.executeTransactionally("CALL neo4j.dq.setClassTtl('Kept', '30 days')", Map.of(), r -> r.next());
+            fail("expected an invalid TTL to be rejected");
+        } catch (QueryExecutionException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Invalid TTL '30 days'"));
+        }
+    }
+}
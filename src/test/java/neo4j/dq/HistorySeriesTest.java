@@ -0,0 +1,135 @@
+package neo4j.dq;
+
+import org.junit.*;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.internal.helpers.collection.Iterables;
+import org.neo4j.test.rule.DbmsRule;
+import org.neo4j.test.rule.ImpermanentDbmsRule;
+
+import java.util.List;
+
+import static neo4j.dq.HistorySeries.Resolution.*;
+import static org.junit.Assert.*;
+
+public class HistorySeriesTest {
+
+    private static final long ONE_HOUR = 3_600;
+    private static final long ONE_DAY = 86_400;
+
+    @Rule
+    public DbmsRule db = new ImpermanentDbmsRule();
+
+    private Transaction tx;
+    private Node history;
+
+    @Before
+    public void setUp() {
+        tx = db.beginTx();
+        history = tx.createNode(ClassHistory.DQ_HISTORY);
+    }
+
+    @After
+    public void tearDown() {
+        tx.close();
+        db.shutdown();
+    }
+
+    @Test
+    public void testDownsample() {
+        HistorySeries series = HistorySeries.load(tx, history);
+        // one sample every 10 minutes for 3 hours, counting up
+        for (long t = 0; t < 3 * ONE_HOUR; t += 600) {
+            series.append(t, t / 600, t / 600 * 2);
+        }
+        series.append(0, 100, 100);
+        assertEquals("older samples are ignored", 18, series.size(MINUTE));
+
+        series.downsample(MINUTE, 2 * ONE_HOUR);
+        assertEquals(6, series.size(MINUTE));
+        assertEquals(2, series.size(HOUR));
+        assertSample(series.range(0, 0, HOUR).get(0), 0, 5, 10);
+        assertSample(series.range(ONE_HOUR, ONE_HOUR, HOUR).get(0), ONE_HOUR, 11, 22);
+
+        series.downsample(HOUR, ONE_DAY);
+        assertEquals(0, series.size(HOUR));
+        assertEquals(1, series.size(DAY));
+        assertSample(series.range(0, ONE_DAY, DAY).get(0), 0, 17, 34);
+    }
+
+    @Test
+    public void testRange() {
+        HistorySeries series = HistorySeries.load(tx, history);
+        for (long t = 0; t < 2 * ONE_DAY; t += ONE_HOUR) {
+            series.append(t, t / ONE_HOUR, 0);
+        }
+        series.downsample(MINUTE, ONE_DAY + ONE_HOUR);
+        series.downsample(HOUR, ONE_DAY);
+
+        // the first day is only available per day, then per hour, then per minute
+        List<long[]> hours = series.range(0, 2 * ONE_DAY, HOUR);
+        assertEquals(1 + 24, hours.size());
+        assertSample(hours.get(0), 0, 23, 0);
+        assertSample(hours.get(1), ONE_DAY, 24, 0);
+        assertSample(hours.get(24), 2 * ONE_DAY - ONE_HOUR, 47, 0);
+
+        List<long[]> days = series.range(0, 2 * ONE_DAY, DAY);
+        assertEquals(2, days.size());
+        assertSample(days.get(1), ONE_DAY, 47, 0);
+
+        series.expire(ONE_DAY);
+        assertEquals(0, series.size(DAY));
+    }
+
+    @Test
+    public void testChunks() {
+        HistorySeries series = HistorySeries.load(tx, history);
+        for (long t = 0; t < 2 * ONE_HOUR; t += 600) {
+            series.append(t, t / 600, 0);
+        }
+        series.store();
+        // the first hour is a closed chunk, the second one is still open on the history node
+        assertEquals(1, Iterables.count(history.getRelationships(HistorySeries.HAS_DQ_HISTORY_CHUNK)));
+        Node chunk = history.getRelationships(HistorySeries.HAS_DQ_HISTORY_CHUNK).iterator().next().getEndNode();
+        assertArrayEquals(new long[]{0, 600, 1200, 1800, 2400, 3000}, (long[]) chunk.getProperty("times"));
+        assertArrayEquals(new long[]{3600, 4200, 4800, 5400, 6000, 6600}, (long[]) history.getProperty("minuteTimes"));
+
+        // a series loaded again appends to the open chunk, and reads closed ones
+        series = HistorySeries.load(tx, history);
+        series.append(6600, 42, 0);
+        series.append(7200, 12, 0);
+        series.store();
+        assertEquals(2, Iterables.count(history.getRelationships(HistorySeries.HAS_DQ_HISTORY_CHUNK)));
+        assertArrayEquals(new long[]{0, 600, 1200, 1800, 2400, 3000}, (long[]) chunk.getProperty("times"));
+        assertSample(series.range(ONE_HOUR, 2 * ONE_HOUR, HOUR).get(0), ONE_HOUR, 42, 0);
+        assertEquals(3, HistorySeries.load(tx, history).range(0, 2 * ONE_HOUR, HOUR).size());
+
+        series.downsample(MINUTE, ONE_HOUR);
+        series.store();
+        assertEquals("the first chunk is folded into the hour tier", 1, Iterables.count(history.getRelationships(HistorySeries.HAS_DQ_HISTORY_CHUNK)));
+        assertArrayEquals(new long[]{0}, (long[]) history.getProperty("hourTimes"));
+    }
+
+    @Test
+    public void testRangeStartsWithEarlierSample() {
+        HistorySeries series = HistorySeries.load(tx, history);
+        series.append(0, 1, 2);
+        series.append(600, 3, 6);
+        series.append(3 * ONE_HOUR, 5, 10);
+        series.downsample(MINUTE, ONE_HOUR);
+
+        // the counts at the start of the range are those of the last sample before it, in a coarser tier here
+        List<long[]> samples = series.range(ONE_HOUR + 60, 4 * ONE_HOUR, MINUTE);
+        assertEquals(2, samples.size());
+        assertSample(samples.get(0), ONE_HOUR + 60, 3, 6);
+        assertSample(samples.get(1), 3 * ONE_HOUR, 5, 10);
+        assertSample(series.last(Long.MAX_VALUE), 3 * ONE_HOUR, 5, 10);
+        assertTrue(series.range(-ONE_HOUR, -1, MINUTE).isEmpty());
+    }
+
+    private static void assertSample(long[] sample, long time, long direct, long total) {
+        assertEquals(time, sample[0]);
+        assertEquals(direct, sample[1]);
+        assertEquals(total, sample[2]);
+    }
+}
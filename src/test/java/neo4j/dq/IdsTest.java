@@ -0,0 +1,86 @@
+package neo4j.dq;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.LongStream;
+
+import static org.junit.Assert.*;
+
+public class IdsTest {
+
+    @Test
+    public void testNodeIds() {
+        assertArrayEquals(new long[]{1, 2, 3}, Ids.nodeIds(List.of(1L, 2, 3L)).toArray());
+        assertArrayEquals(new long[]{4}, Ids.nodeIds(4L).toArray());
+        assertArrayEquals(new long[]{5, 6}, Ids.nodeIds(new long[]{5, 6}).toArray());
+        assertArrayEquals(new long[]{7, 8}, Ids.nodeIds(new int[]{7, 8}).toArray());
+        assertArrayEquals(new long[0], Ids.nodeIds(null).toArray());
+        assertArrayEquals(new long[0], Ids.relationshipIds(List.of(1L, 2L)).toArray());
+    }
+
+    @Test
+    public void testFirstSeen() {
+        assertArrayEquals(new long[]{3, 1, 2}, LongStream.of(3, 1, 3, 2, 1).filter(Ids.firstSeen()).toArray());
+    }
+
+    @Test
+    public void testChunks() {
+        Iterator<Ids.Chunk> chunks = Ids.chunks(LongStream.range(0, 2500).iterator(), () -> 1000);
+        List<Integer> sizes = new ArrayList<>();
+        long expected = 0;
+        while (chunks.hasNext()) {
+            Ids.Chunk chunk = chunks.next();
+            sizes.add(chunk.size());
+            for (int i = 0; i < chunk.size(); i++) {
+                assertEquals(expected++, chunk.get(i));
+            }
+        }
+        assertEquals(List.of(1000, 1000, 500), sizes);
+        assertFalse(Ids.chunks(LongStream.empty().iterator(), () -> 10).hasNext());
+    }
+
+    @Test
+    public void testSlices() {
+        long[] ids = LongStream.range(0, 10).toArray();
+        int[] size = {3};
+        Iterator<Ids.Chunk> chunks = Ids.chunks(ids, () -> size[0]++);
+        List<Long> firsts = new ArrayList<>();
+        int total = 0;
+        while (chunks.hasNext()) {
+            Ids.Chunk chunk = chunks.next();
+            firsts.add(chunk.get(0));
+            total += chunk.size();
+        }
+        assertEquals("expected chunk sizes read as chunks are cut", List.of(0L, 3L, 7L), firsts);
+        assertEquals(10, total);
+    }
+
+    @Test
+    public void testNodeChunks() {
+        long[] ids = {1, 2, 3};
+        Ids.Chunk chunk = Ids.nodeChunks(ids, () -> 2).next();
+        ids[0] = 42;
+        assertEquals("expected a slice of the input array", 42, chunk.get(0));
+        assertEquals(2, chunk.size());
+        assertEquals(List.of(2, 1), sizes(Ids.nodeChunks(List.of(1L, 2L, 3L), () -> 2)));
+    }
+
+    private static List<Integer> sizes(Iterator<Ids.Chunk> chunks) {
+        List<Integer> sizes = new ArrayList<>();
+        chunks.forEachRemaining(chunk -> sizes.add(chunk.size()));
+        return sizes;
+    }
+
+    @Test
+    public void testSortBy() {
+        long[] ids = {9, 1, 10, 2, 4, 7, 5};
+        Ids.Chunk chunk = new Ids.Chunk(ids, 1, 6).sortedBy(id -> (int) (id % 3), 3);
+        long[] sorted = new long[chunk.size()];
+        for (int i = 0; i < chunk.size(); i++) sorted[i] = chunk.get(i);
+        assertArrayEquals("expected a stable sort of the slice", new long[]{1, 10, 4, 7, 2}, sorted);
+        assertArrayEquals("expected the array to be left as it is", new long[]{9, 1, 10, 2, 4, 7, 5}, ids);
+    }
+}
@@ -0,0 +1,87 @@
+package neo4j.dq;
+
+import org.junit.*;
+import org.neo4j.configuration.GraphDatabaseSettings;
+import org.neo4j.test.rule.DbmsRule;
+import org.neo4j.test.rule.ImpermanentDbmsRule;
+
+import java.util.Map;
+
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.*;
+
+public class IncrementalRulesTest {
+    @Rule
+    public DbmsRule db = new ImpermanentDbmsRule()
+            .withSetting(GraphDatabaseSettings.procedure_unrestricted, singletonList("neo4j.dq.*"))
+            .withSetting(DQSettings.rules_incremental, true)
+            .withSetting(DQSettings.rules_batch_size, 2);
+
+    @Before
+    public void setUp() throws Exception {
+        TestUtil.registerProcedure(db, DQ.class);
+        db.executeTransactionally("CALL neo4j.dq.createRule('nickname', 'MissingNickname', 'Person', 'exists', 'nickname')");
+        db.executeTransactionally("CALL neo4j.dq.createRule('born', 'BadBirthYear', 'Person', 'range', 'born', {min:1900})");
+    }
+
+    @After
+    public void tearDown() {
+        db.shutdown();
+    }
+
+    @Test
+    public void testFlagsFollowChanges() throws Exception {
+        db.executeTransactionally("UNWIND range(1, 5) as i CREATE (:Person {name:'p'+i, born:1800+i*50})");
+        Map<String, Object> status = awaitQueue();
+        assertEquals(2L, status.get("rules"));
+        assertEquals(5L, status.get("processed"));
+        // 5 missing nicknames, and 1850
+        assertEquals(6L, status.get("created"));
+        assertEquals(0L, status.get("failed"));
+        assertEquals(6L, flags());
+
+        db.executeTransactionally("MATCH (p:Person) WHERE p.name IN ['p1', 'p2'] SET p.nickname = 'nick'");
+        db.executeTransactionally("MATCH (p:Person {name:'p1'}) SET p.born = 1950");
+        awaitQueue();
+        assertEquals(3L, flags());
+
+        // removing the label clears the flags, deleting the node clears the flags left behind
+        db.executeTransactionally("MATCH (p:Person {name:'p3'}) REMOVE p:Person");
+        db.executeTransactionally("MATCH (p:Person {name:'p4'})-[r:HAS_DQ_FLAG]->() DELETE r, p");
+        status = awaitQueue();
+        assertEquals(1L, flags());
+        assertEquals(5L, status.get("deleted"));
+        TestUtil.testResult(db, "MATCH (n:DQ_Flag) WHERE NOT (n)<-[:HAS_DQ_FLAG]-() RETURN n", null,
+                r -> assertFalse("Expected no orphan flag", r.hasNext()));
+
+        // unrelated changes aren't queued
+        long processed = (Long) status.get("processed");
+        db.executeTransactionally("MATCH (p:Person) SET p.title = 'x'");
+        assertEquals(processed, awaitQueue().get("processed"));
+    }
+
+    @Test
+    public void testRulesReloaded() throws Exception {
+        db.executeTransactionally("CREATE (:Movie {title:'The Matrix', released:1999})");
+        assertEquals(0L, awaitQueue().get("processed"));
+
+        db.executeTransactionally("CALL neo4j.dq.createRule('released', 'OldMovie', 'Movie', 'range', 'released', {min:2000})");
+        db.executeTransactionally("MATCH (m:Movie) SET m.released = 1998");
+        Map<String, Object> status = awaitQueue();
+        assertEquals(3L, status.get("rules"));
+        assertEquals(1L, flags());
+    }
+
+    private long flags() {
+        return TestUtil.singleResultFirstColumn(db, "MATCH (n)-[:HAS_DQ_FLAG]->(f) WHERE n:Person OR n:Movie RETURN count(f)", Map.of());
+    }
+
+    private Map<String, Object> awaitQueue() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (true) {
+            Map<String, Object> status = db.executeTransactionally("CALL neo4j.dq.ruleQueueStatus()", Map.of(), r -> r.next());
+            if ((Long) status.get("queued") == 0 || System.currentTimeMillis() > deadline) return status;
+            Thread.sleep(20);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package neo4j.dq;
+
+import org.junit.*;
+import org.neo4j.configuration.GraphDatabaseSettings;
+import org.neo4j.graphdb.QueryExecutionException;
+import org.neo4j.internal.kernel.api.security.AccessMode;
+import org.neo4j.internal.kernel.api.security.SecurityContext;
+import org.neo4j.kernel.api.procedure.GlobalProcedures;
+import org.neo4j.logging.NullLog;
+import org.neo4j.test.rule.DbmsRule;
+import org.neo4j.test.rule.ImpermanentDbmsRule;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.*;
+
+public class JobsTest {
+
+    @Rule
+    public DbmsRule db = new ImpermanentDbmsRule()
+            .withSetting(GraphDatabaseSettings.procedure_unrestricted, singletonList("neo4j.dq.*"));
+
+    private ThreadPool threadPool;
+
+    @Before
+    public void setUp() throws Exception {
+        TestUtil.registerProcedure(db, DQ.class);
+        GlobalProcedures globalProcedures = db.getDependencyResolver().resolveDependency(GlobalProcedures.class);
+        threadPool = globalProcedures.lookupComponentProvider(ThreadPool.class, true).apply(null);
+        db.executeTransactionally("UNWIND range(1, 5) AS i CREATE (:Person {name:'p'+i})");
+    }
+
+    @After
+    public void tearDown() {
+        db.shutdown();
+    }
+
+    @Test
+    public void testSubmit() throws Exception {
+        long jobId = (long) TestUtil.singleResultFirstColumn(db,
+                "MATCH (p:Person) WITH collect(p) AS nodes CALL neo4j.dq.submit('neo4j.dq.createFlags', [nodes, 'BadName', 'bulk', 2]) yield jobId RETURN jobId",
+                Map.of());
+
+        Map<String, Object> status = awaitJob(jobId);
+        assertEquals(String.valueOf(status.get("error")), "SUCCEEDED", status.get("status"));
+        assertEquals("neo4j.dq.createFlags", status.get("operation"));
+        assertEquals(5L, status.get("processed"));
+        assertEquals(5L, status.get("total"));
+        assertEquals(1.0, status.get("progress"));
+        List<Map<String, Object>> results = (List<Map<String, Object>>) status.get("results");
+        assertEquals(1, results.size());
+        assertEquals(5L, results.get(0).get("created"));
+        assertEquals(3L, results.get(0).get("batches"));
+
+        TestUtil.testResult(db, "MATCH (:Person)-[:HAS_DQ_FLAG]->(f:BadName) RETURN count(f) as flags", null,
+                r -> assertEquals(5L, r.next().get("flags")));
+        TestUtil.testResult(db, "CALL neo4j.dq.listJobs() yield jobId RETURN jobId", null,
+                r -> assertEquals(jobId, r.next().get("jobId")));
+        TestUtil.testResult(db, "CALL neo4j.dq.jobStatus(-1)", null,
+                r -> assertFalse(r.hasNext()));
+    }
+
+    @Test
+    public void testSubmitterAccess() throws Exception {
+        // a submitter that can only read : the job can't write either
+        Jobs.Job job = threadPool.getJobs().submit(db, SecurityContext.AUTH_DISABLED.withMode(AccessMode.Static.READ),
+                "createClass", List.of("ReadOnlyClass"));
+        Map<String, Object> status = awaitJob(job.getId());
+        assertEquals("FAILED", status.get("status"));
+        TestUtil.testResult(db, "MATCH (c:DQ_Class {class:'ReadOnlyClass'}) RETURN c", null,
+                r -> assertFalse("expected no class to be created", r.hasNext()));
+    }
+
+    @Test
+    public void testFailedJob() throws Exception {
+        long jobId = (long) TestUtil.singleResultFirstColumn(db,
+                "CALL neo4j.dq.submit('noSuchProcedure', [1]) yield jobId RETURN jobId", Map.of());
+        Map<String, Object> status = awaitJob(jobId);
+        assertEquals("FAILED", status.get("status"));
+        assertNotNull(status.get("error"));
+
+        try {
+            db.executeTransactionally("CALL neo4j.dq.submit('cancel', [1])", Map.of(), r -> r.next());
+            fail("expected the job procedures not to run as jobs");
+        } catch (QueryExecutionException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Can't run 'cancel' as a DQ job"));
+        }
+    }
+
+    @Test
+    public void testCancelRunningJob() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        Jobs.Job job = threadPool.getJobs().submit("test", j -> {
+            BatchRunner runner = new BatchRunner(db, threadPool, NullLog.getInstance(), 1).expect(1_000_000);
+            while (true) {
+                runner.submit(1, tx -> {
+                    started.countDown();
+                    return 1L;
+                });
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        TestUtil.testResult(db, "CALL neo4j.dq.cancel($jobId)", Map.of("jobId", job.getId()), r -> r.next());
+        Map<String, Object> status = awaitJob(job.getId());
+        assertEquals("CANCELLED", status.get("status"));
+        assertEquals(1_000_000L, status.get("total"));
+        assertTrue((long) status.get("processed") > 0);
+        assertNull(status.get("error"));
+    }
+
+    @Test
+    public void testCancelQueuedJob() throws Exception {
+        Jobs jobs = new Jobs(1, 1, NullLog.getInstance());
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            AtomicBoolean ran = new AtomicBoolean();
+            Jobs.Job first = jobs.submit("first", j -> {
+                release.await();
+                return Collections.emptyList();
+            });
+            Jobs.Job second = jobs.submit("second", j -> {
+                ran.set(true);
+                return Collections.emptyList();
+            });
+            assertEquals(Jobs.Status.QUEUED, second.getStatus());
+            jobs.cancel(second.getId());
+            assertEquals(Jobs.Status.CANCELLED, second.getStatus());
+
+            release.countDown();
+            Jobs.Job third = jobs.submit("third", j -> Collections.emptyList());
+            for (int i = 0; i < 100 && !third.isFinished(); i++) Thread.sleep(50);
+            assertEquals(Jobs.Status.SUCCEEDED, first.getStatus());
+            assertEquals(Jobs.Status.SUCCEEDED, third.getStatus());
+            assertFalse("expected the cancelled job never to start", ran.get());
+            assertNull("expected only the last finished job to be kept", jobs.get(first.getId()));
+            assertNotNull(jobs.get(third.getId()));
+        } finally {
+            jobs.shutdown();
+        }
+    }
+
+    private Map<String, Object> awaitJob(long jobId) throws InterruptedException {
+        for (int i = 0; i < 200; i++) {
+            Map<String, Object> status = db.executeTransactionally("CALL neo4j.dq.jobStatus($jobId)", Map.of("jobId", jobId),
+                    r -> r.next());
+            if (status.get("finished") != null) return status;
+            Thread.sleep(50);
+        }
+        throw new AssertionError("job "+jobId+" didn't finish");
+    }
+}
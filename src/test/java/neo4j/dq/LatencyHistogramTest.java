@@ -0,0 +1,98 @@
+package neo4j.dq;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.logging.NullLog;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testBuckets() {
+        for (long value : new long[]{0, 1, 7, 8, 9, 15, 16, 100, 1_000, 123_456_789, Long.MAX_VALUE}) {
+            int bucket = LatencyHistogram.bucket(value);
+            assertTrue(value + " within its bucket", value <= LatencyHistogram.bucketMax(bucket));
+            if (bucket > 0) assertTrue(value + " above the previous bucket", value > LatencyHistogram.bucketMax(bucket - 1));
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(99));
+        // 1..10000 µs
+        for (long i = 1; i <= 10_000; i++) histogram.record(i * 1_000);
+
+        assertEquals(10_000, histogram.getCount());
+        assertEquals(10_000_000, histogram.getMax());
+        assertEquals(5_000_500, histogram.getMean(), 1);
+        assertWithin(5_000_000, histogram.getPercentile(50));
+        assertWithin(9_500_000, histogram.getPercentile(95));
+        assertWithin(9_900_000, histogram.getPercentile(99));
+        assertEquals(10_000_000, histogram.getPercentile(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void testTrack() {
+        DQMetrics metrics = new DQMetrics(true, NullLog.getInstance());
+        assertEquals(3, metrics.track("list", () -> Stream.of(1, 2, 3)).count());
+        try (Stream<Integer> stream = metrics.track("list", () -> Stream.of(1, 2, 3))) {
+            assertEquals(1, stream.limit(1).count());
+        }
+        try {
+            metrics.track("fail", () -> { throw new IllegalStateException(); });
+            fail("expected the failure to be rethrown");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        Map<String, DQMetrics.MetricsResult> results = metrics.results(true).collect(Collectors.toMap(m -> m.name, m -> m));
+        assertEquals(2L, (long) results.get("list").calls);
+        assertEquals(4L, (long) results.get("list").rows);
+        assertEquals(0L, (long) results.get("list").errors);
+        assertEquals(1L, (long) results.get("fail").errors);
+        assertEquals("reset", 0L, (long) metrics.results(false).filter(m -> m.name.equals("list")).findFirst().get().calls);
+    }
+
+    @Test
+    public void testDisabled() {
+        DQMetrics metrics = new DQMetrics(false, NullLog.getInstance());
+        assertEquals(3, metrics.track("list", () -> Stream.of(1, 2, 3)).count());
+        assertEquals(0, metrics.results(false).count());
+    }
+
+    @Test
+    public void testReport() throws Exception {
+        DQMetrics metrics = new DQMetrics(true, NullLog.getInstance());
+        metrics.record("batch", 2_000_000, 10, false);
+        Path directory = folder.getRoot().toPath().resolve("metrics");
+        metrics.report(directory, 1, null);
+        metrics.report(directory, 2, null);
+
+        List<String> lines = Files.readAllLines(directory.resolve(DQMetrics.PROCEDURES_FILE));
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(0).startsWith("t,name,calls,rows,errors"));
+        assertTrue(lines.get(2).startsWith("2,batch,1,10,0,2.000,"));
+        assertFalse("no pool statistics", Files.exists(directory.resolve(DQMetrics.POOL_FILE)));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected " + expected + " within 12.5%, was " + actual, Math.abs(actual - expected) <= expected / 8);
+    }
+}
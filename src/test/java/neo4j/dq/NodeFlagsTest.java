@@ -0,0 +1,105 @@
+package neo4j.dq;
+
+import org.junit.*;
+import org.neo4j.configuration.GraphDatabaseSettings;
+import org.neo4j.test.rule.DbmsRule;
+import org.neo4j.test.rule.ImpermanentDbmsRule;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.*;
+
+public class NodeFlagsTest {
+
+    @Rule
+    public DbmsRule db = new ImpermanentDbmsRule()
+            .withSetting(GraphDatabaseSettings.procedure_unrestricted, singletonList("neo4j.dq.*"));
+
+    @Before
+    public void setUp() throws Exception {
+        TestUtil.registerProcedure(db, DQ.class);
+        // a dense node, with many more relationships than flags
+        db.executeTransactionally("CREATE (hub:Hub {name:'hub'}) WITH hub UNWIND range(1, 2000) AS i CREATE (hub)-[:LINKS]->(:Leaf {i:i})");
+        db.executeTransactionally("CALL neo4j.dq.createClass('ChildClass', 'ParentClass')");
+        db.executeTransactionally("CALL neo4j.dq.createClass('CompactClass', 'ParentClass', -1, '', 0, true)");
+        db.executeTransactionally("MATCH (h:Hub) CALL neo4j.dq.createFlag(h, 'ParentClass') yield flag RETURN flag");
+        db.executeTransactionally("MATCH (h:Hub) CALL neo4j.dq.createFlag(h, 'ChildClass') yield flag RETURN flag");
+        db.executeTransactionally("MATCH (h:Hub) CALL neo4j.dq.createFlag(h, 'CompactClass') yield compactFlag RETURN compactFlag");
+        db.executeTransactionally("MATCH (l:Leaf) WHERE l.i % 2 = 0 CALL neo4j.dq.createFlag(l, 'ChildClass') yield flag RETURN flag");
+    }
+
+    @After
+    public void tearDown() {
+        db.shutdown();
+    }
+
+    @Test
+    public void testNodeFlags() throws Exception {
+        TestUtil.testResult(db, "MATCH (h:Hub) CALL neo4j.dq.nodeFlags(h) yield node, flags, compactFlags, flagCount RETURN node.name as name, size(flags) as flags, size(compactFlags) as compactFlags, flagCount", null, r -> {
+            Map<String, Object> row = r.next();
+            assertEquals("hub", row.get("name"));
+            assertEquals(2L, row.get("flags"));
+            assertEquals(1L, row.get("compactFlags"));
+            assertEquals(3L, row.get("flagCount"));
+            assertFalse(r.hasNext());
+        });
+        TestUtil.testResult(db, "MATCH (h:Hub) CALL neo4j.dq.nodeFlags(h, 'ChildClass') yield flags RETURN size(flags) as flags, all(f IN flags WHERE f:ChildClass) as filtered", null, r -> {
+            Map<String, Object> row = r.next();
+            assertEquals(1L, row.get("flags"));
+            assertEquals(true, row.get("filtered"));
+        });
+        TestUtil.testResult(db, "MATCH (h:Hub) CALL neo4j.dq.nodeFlags(id(h), 'ParentClass', true) yield flagCount RETURN flagCount", null,
+                r -> assertEquals(3L, r.next().get("flagCount")));
+        TestUtil.testResult(db, "MATCH (h:Hub) CALL neo4j.dq.nodeFlags(h, 'UnknownClass') yield node RETURN node", null,
+                r -> assertFalse("expected only nodes with flags", r.hasNext()));
+
+        // more nodes than a chunk : looked up in parallel
+        TestUtil.testResult(db, "MATCH (l:Leaf) WITH collect(l) as leaves CALL neo4j.dq.nodeFlags(leaves, 'ChildClass') yield node, flagCount RETURN count(node) as nodes, sum(flagCount) as flags", null, r -> {
+            Map<String, Object> row = r.next();
+            assertEquals(1000L, row.get("nodes"));
+            assertEquals(1000L, row.get("flags"));
+        });
+    }
+
+    @Test
+    public void testUncommittedFlags() throws Exception {
+        // more nodes than a chunk, flagged in the same transaction : looked up in it
+        TestUtil.testResult(db, "MATCH (l:Leaf) WHERE l.i % 2 = 1 CALL neo4j.dq.createFlag(l, 'ChildClass') yield flag " +
+                "WITH count(flag) as created MATCH (l:Leaf) WITH collect(l) as leaves " +
+                "CALL neo4j.dq.hasFlags(leaves, 'ChildClass') yield flagCount RETURN sum(flagCount) as flags", null,
+                r -> assertEquals(2000L, r.next().get("flags")));
+    }
+
+    @Test
+    public void testHasFlags() throws Exception {
+        TestUtil.testResult(db, "MATCH (h:Hub) CALL neo4j.dq.hasFlags([h, -1]) yield node, flagCount RETURN node.name as name, flagCount", null, r -> {
+            Map<String, Object> row = r.next();
+            assertEquals("hub", row.get("name"));
+            assertEquals(3L, row.get("flagCount"));
+            assertFalse("expected missing nodes to be skipped", r.hasNext());
+        });
+        TestUtil.testResult(db, "MATCH (h:Hub) CALL neo4j.dq.hasFlags(h, 'CompactClass') yield flagCount RETURN flagCount", null,
+                r -> assertEquals(1L, r.next().get("flagCount")));
+        TestUtil.testResult(db, "MATCH (h:Hub) CALL neo4j.dq.hasFlags(h, 'ParentClass') yield flagCount RETURN flagCount", null,
+                r -> assertEquals(1L, r.next().get("flagCount")));
+
+        // results follow the input order, every node gets a row
+        TestUtil.testResult(db, "MATCH (l:Leaf) WITH l ORDER BY l.i WITH collect(l) as leaves CALL neo4j.dq.hasFlags(leaves) yield node, flagCount RETURN node.i as i, flagCount", null, r -> {
+            Map<Long, Long> counts = new HashMap<>();
+            long previous = 0;
+            while (r.hasNext()) {
+                Map<String, Object> row = r.next();
+                long i = (Long) row.get("i");
+                assertTrue("expected input order", i > previous);
+                previous = i;
+                counts.put(i, (Long) row.get("flagCount"));
+            }
+            assertEquals(2000, counts.size());
+            assertEquals(Long.valueOf(1), counts.get(2L));
+            assertEquals(Long.valueOf(0), counts.get(3L));
+        });
+    }
+}
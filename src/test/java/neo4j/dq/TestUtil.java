@@ -7,9 +7,11 @@ import org.neo4j.graphdb.Result;
 import org.neo4j.graphdb.Transaction;
 import org.neo4j.internal.helpers.collection.Iterables;
 import org.neo4j.internal.helpers.collection.Iterators;
+import org.neo4j.kernel.api.procedure.Context;
 import org.neo4j.kernel.api.procedure.GlobalProcedures;
 import org.neo4j.kernel.internal.GraphDatabaseAPI;
 
+import java.lang.reflect.Proxy;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -29,6 +31,16 @@ public class TestUtil {
         }
     }
 
+    /**
+     * @return the DQ state of the database, as injected into procedures.
+     */
+    public static DQDatabase database(GraphDatabaseService db) throws Exception {
+        GlobalProcedures globalProcedures = ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(GlobalProcedures.class);
+        Context context = (Context) Proxy.newProxyInstance(Context.class.getClassLoader(), new Class<?>[]{Context.class},
+                (proxy, method, args) -> "graphDatabaseAPI".equals(method.getName()) ? db : null);
+        return globalProcedures.lookupComponentProvider(DQDatabase.class, true).apply(context);
+    }
+
     public static void testResult(GraphDatabaseService db, String call, Map<String,Object> params, Consumer<Result> resultConsumer) {
         try (Transaction tx = db.beginTx()) {
             Map<String, Object> p = (params == null) ? Collections.emptyMap() : params;
@@ -0,0 +1,76 @@
+package neo4j.dq;
+
+import org.junit.*;
+import org.neo4j.configuration.GraphDatabaseSettings;
+import org.neo4j.configuration.SettingImpl;
+import org.neo4j.kernel.api.procedure.GlobalProcedures;
+import org.neo4j.test.rule.DbmsRule;
+import org.neo4j.test.rule.ImpermanentDbmsRule;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.*;
+
+public class ThreadPoolTest {
+    @Rule
+    public DbmsRule db = new ImpermanentDbmsRule()
+            .withSetting(GraphDatabaseSettings.procedure_unrestricted, singletonList("neo4j.dq.*"))
+            .withSetting(DQSettings.pool_size, 2)
+            .withSetting(DQSettings.pool_queue_size, 1)
+            .withSetting(DQSettings.pool_keep_alive, Duration.ofSeconds(5))
+            .withSetting(DQSettings.pool_saturation_policy, DQSettings.SaturationPolicy.ABORT);
+
+    private ThreadPool threadPool;
+
+    @Before
+    public void setUp() throws Exception {
+        TestUtil.registerProcedure(db, DQ.class);
+        GlobalProcedures globalProcedures = db.getDependencyResolver().resolveDependency(GlobalProcedures.class);
+        threadPool = globalProcedures.lookupComponentProvider(ThreadPool.class, true).apply(null);
+    }
+
+    @After
+    public void tearDown() {
+        db.shutdown();
+    }
+
+    @Test
+    public void testSettings() throws Exception {
+        TestUtil.testResult(db, "CALL neo4j.dq.poolStats()", null, r -> {
+            Map<String, Object> row = r.next();
+            assertEquals(2L, row.get("maxPoolSize"));
+            assertEquals(1L, row.get("corePoolSize"));
+            assertEquals("ABORT", row.get("saturationPolicy"));
+        });
+        assertEquals(DQSettings.SaturationPolicy.CALLER_RUNS, ((SettingImpl<DQSettings.SaturationPolicy>) DQSettings.pool_saturation_policy).parse("caller_runs"));
+    }
+
+    @Test
+    public void testRejectionsAreCounted() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Runnable blocked = () -> {
+            try {
+                release.await();
+            } catch (InterruptedException ignore) {
+            }
+        };
+        // 2 threads and a queue of 1 : the 4th task can't fit
+        for (int i = 0; i < 3; i++) threadPool.getExecutorService().submit(blocked);
+        try {
+            threadPool.getExecutorService().submit(blocked);
+            fail("Expected the saturated pool to reject the task");
+        } catch (RejectedExecutionException expected) {
+        } finally {
+            release.countDown();
+        }
+
+        TestUtil.testResult(db, "CALL neo4j.dq.poolStats()", null, r -> {
+            Map<String, Object> row = r.next();
+            assertEquals(1L, row.get("rejectedTasks"));
+        });
+    }
+}
@@ -0,0 +1,37 @@
+package neo4j.dq;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class VersionedCacheTest {
+
+    @Test
+    public void testLoadOnce() {
+        AtomicInteger loads = new AtomicInteger();
+        VersionedCache<Integer> cache = new VersionedCache<>(loads::incrementAndGet);
+        assertEquals(1, (int) cache.get());
+        assertEquals(1, (int) cache.get());
+        cache.invalidate();
+        assertEquals(2, (int) cache.get());
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void testInvalidatedDuringLoad() {
+        AtomicInteger loads = new AtomicInteger();
+        AtomicReference<VersionedCache<Integer>> cache = new AtomicReference<>();
+        cache.set(new VersionedCache<>(() -> {
+            int load = loads.incrementAndGet();
+            // a change committed while the first load reads the graph
+            if (load == 1) cache.get().invalidate();
+            return load;
+        }));
+        assertEquals("the caller gets what was loaded", 1, (int) cache.get().get());
+        assertEquals("but it isn't kept", 2, (int) cache.get().get());
+        assertEquals(2, (int) cache.get().get());
+    }
+}